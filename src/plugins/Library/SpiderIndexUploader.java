@@ -1,5 +1,6 @@
 package plugins.Library;
 
+import java.io.BufferedInputStream;
 import java.io.BufferedReader;
 import java.io.EOFException;
 import java.io.File;
@@ -28,8 +29,10 @@ import plugins.Library.index.ProtoIndexSerialiser;
 import plugins.Library.index.TermEntry;
 import plugins.Library.index.TermEntryReaderWriter;
 import plugins.Library.io.serial.LiveArchiver;
+import plugins.Library.io.serial.PackFileArchiver;
 import plugins.Library.io.serial.Serialiser.PullTask;
 import plugins.Library.io.serial.Serialiser.PushTask;
+import plugins.Library.util.Maps;
 import plugins.Library.util.SkeletonBTreeMap;
 import plugins.Library.util.SkeletonBTreeSet;
 import plugins.Library.util.TaskAbortExceptionConvertor;
@@ -419,23 +422,47 @@ public class SpiderIndexUploader {
 	 * immediately to Freenet. 
 	 * @throws TaskAbortException If something broke catastrophically. */
 	private boolean createDiskIndex() throws TaskAbortException {
-	    boolean tooBig = false;
+	    final MutableBoolean tooBig = new MutableBoolean();
+	    tooBig.value = false;
         // created a new index, fill it with data.
         // DON'T MERGE, merge with a lot of data will deadlock.
         // FIXME throw in update() if it will deadlock.
-        for(String key : terms) {
-            SkeletonBTreeSet<TermEntry> tree = makeEntryTree(leafsrlDisk);
-            SortedSet<TermEntry> toMerge = newtrees.get(key);
-            tree.addAll(toMerge);
-            if(toMerge.size() > MAX_DISK_ENTRY_SIZE)
-                tooBig = true;
-            toMerge = null;
-            tree.deflate();
-            assert(tree.isBare());
-            idxDisk.ttab.put(key, tree);
+        // Bulk load both levels from the sorted terms and entries: each node is
+        // written to disk as soon as it is full, so only the right-hand edge of
+        // each tree is in memory at once.
+        final Iterator<String> it = terms.iterator();
+        try {
+            idxDisk.ttab.putAllSorted(new Iterator<Map.Entry<String, SkeletonBTreeSet<TermEntry>>>() {
+                public boolean hasNext() {
+                    return it.hasNext();
+                }
+                public Map.Entry<String, SkeletonBTreeSet<TermEntry>> next() {
+                    String key = it.next();
+                    SkeletonBTreeSet<TermEntry> tree = makeEntryTree(leafsrlDisk);
+                    SortedSet<TermEntry> toMerge = newtrees.remove(key);
+                    if(toMerge.size() > MAX_DISK_ENTRY_SIZE)
+                        tooBig.value = true;
+                    try {
+                        tree.addAllSorted(toMerge.iterator());
+                        tree.deflate();
+                    } catch (TaskAbortException e) {
+                        throw new RuntimeException(e);
+                    }
+                    assert(tree.isBare());
+                    return Maps.$$(key, tree);
+                }
+                public void remove() {
+                    throw new UnsupportedOperationException();
+                }
+            });
+        } catch (TaskAbortException e) {
+            // unwrap errors from building a term's tree
+            if(e.getCause() instanceof RuntimeException && e.getCause().getCause() instanceof TaskAbortException)
+                throw (TaskAbortException)e.getCause().getCause();
+            throw e;
         }
         idxDisk.ttab.deflate();
-        return tooBig;
+        return tooBig.value;
     }
 
     /** Read the TermEntry's from the Bucket into newtrees and terms, and set up the index
@@ -456,9 +483,11 @@ public class SpiderIndexUploader {
             idxDisk.setOwnerEmail(fs.get("index.owner.email"));
             idxDisk.setOwner(fs.get("index.owner.name"));
             idxDisk.setTotalPages(fs.getLong("totalPages", -1));
+            // older spiders send v1 entries, newer ones a v2 stream; Reader takes either
+            TermEntryReaderWriter.Reader reader = new TermEntryReaderWriter.Reader(new BufferedInputStream(is));
             try{
                 while(true){    // Keep going til an EOFExcepiton is thrown
-                    TermEntry readObject = TermEntryReaderWriter.getInstance().readObject(is);
+                    TermEntry readObject = reader.next();
                     SortedSet<TermEntry> set = newtrees.get(readObject.subj);
                     if(set == null)
                         newtrees.put(readObject.subj, set = new TreeSet<TermEntry>());
@@ -636,6 +665,11 @@ public class SpiderIndexUploader {
 			Logger.debug(this, "Uploaded new index to "+uri);
 			if(writeURITo(new File(LAST_URL_FILENAME), uri)) {
                 newtrees.deflate();
+                try {
+                    ProtoIndexSerialiser.closeIndex(diskDir);
+                } catch (IOException e) {
+                    Logger.error(this, "Failed to close disk index "+diskDir+": "+e, e);
+                }
                 diskToMerge = null;
                 terms = null;
                 Logger.debug(this, "Finished with disk index "+diskDir);
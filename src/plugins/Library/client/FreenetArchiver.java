@@ -11,12 +11,16 @@ import java.util.ArrayList;
 import java.util.HashSet;
 
 import plugins.Library.Library;
+import plugins.Library.io.BlockCache;
 import plugins.Library.io.ObjectStreamReader;
 import plugins.Library.io.ObjectStreamWriter;
-import plugins.Library.io.serial.LiveArchiver;
+import plugins.Library.io.serial.AsyncArchiver;
+import plugins.Library.util.concurrent.Executors;
 import plugins.Library.util.exec.ProgressParts;
 import plugins.Library.util.exec.SimpleProgress;
 import plugins.Library.util.exec.TaskAbortException;
+import plugins.Library.util.func.SafeClosure;
+import static plugins.Library.util.func.Tuples.X2; // also imports the class
 
 import freenet.client.ClientMetadata;
 import freenet.client.FetchException;
@@ -28,6 +32,8 @@ import freenet.client.InsertContext;
 import freenet.client.InsertException;
 import freenet.client.async.BaseClientPutter;
 import freenet.client.async.ClientContext;
+import freenet.client.async.ClientGetCallback;
+import freenet.client.async.ClientGetter;
 import freenet.client.async.ClientPutCallback;
 import freenet.client.async.ClientPutter;
 import freenet.client.async.PersistenceDisabledException;
@@ -48,7 +54,6 @@ import freenet.support.api.Bucket;
 import freenet.support.api.RandomAccessBucket;
 import freenet.support.io.BucketTools;
 import freenet.support.io.Closer;
-import freenet.support.io.FileBucket;
 import freenet.support.io.ResumeFailedException;
 
 /**
@@ -57,13 +62,17 @@ import freenet.support.io.ResumeFailedException;
 ** used to do the hard work once the relevant streams have been established,
 ** from temporary {@link Bucket}s.
 **
-** Supports a local cache.
-** FIXME: NOT GARBAGE COLLECTED! Eventually will fill up all available disk space!
+** Both blocking and {@linkplain AsyncArchiver asynchronous} requests are
+** supported. The latter are driven by the node's own callbacks, so that a
+** fetch or insert in progress does not need a thread waiting on it.
+**
+** Supports a local {@link BlockCache}, which keeps a copy of each block that
+** is pushed, up to a limit on its total size.
 **
 ** @author infinity0
 */
 public class FreenetArchiver<T>
-implements LiveArchiver<T, SimpleProgress> {
+implements AsyncArchiver<T, SimpleProgress> {
 
 	final protected NodeClientCore core;
 	final protected ObjectStreamReader reader;
@@ -73,7 +82,7 @@ implements LiveArchiver<T, SimpleProgress> {
 	final protected int expected_bytes;
 	public final short priorityClass;
 	public final boolean realTimeFlag;
-	private static File cacheDir;
+	private static volatile BlockCache cache;
 	/** If true, we will insert data semi-asynchronously. That is, we will start the
 	 * insert, with ForceEncode enabled, and return the URI as soon as possible. The
 	 * inserts will continue in the background, and before inserting the final USK,
@@ -94,12 +103,30 @@ implements LiveArchiver<T, SimpleProgress> {
 	private final ArrayList<InsertException> pushesFailed = new ArrayList<InsertException>();
 	private long totalBytesPushing;
 	
+	/**
+	** Use a {@link BlockCache} in the given directory, with the default size
+	** limit. Any blocks already in the directory are indexed, and the oldest
+	** ones deleted if they go over the limit.
+	*/
 	public static void setCacheDir(File dir) {
-		cacheDir = dir;
+		cache = (dir == null)? null: new BlockCache(dir);
 	}
 	
 	public static File getCacheDir() {
-		return cacheDir;
+		BlockCache c = cache;
+		return (c == null)? null: c.getDirectory();
+	}
+
+	public static void setCache(BlockCache c) {
+		cache = c;
+	}
+
+	/**
+	** @return The local cache, or {@code null} if there is none. Its counters
+	**         can be shown in stats pages.
+	*/
+	public static BlockCache getCache() {
+		return cache;
 	}
 
 	public FreenetArchiver(NodeClientCore c, ObjectStreamReader r, ObjectStreamWriter w, String mime, int size, short priority) {
@@ -127,12 +154,10 @@ implements LiveArchiver<T, SimpleProgress> {
 	** {@inheritDoc}
 	**
 	** This implementation expects metdata of type {@link FreenetURI}.
-	*
-	* FIXME OPT NORM: Two-phase pull: First pull to a bucket, then construct the data.
-	* The reason for this is memory usage: We can limit the number in the second
-	* phase according to downstream demand (e.g. blocking queues in ObjectProcessor's),
-	* so that the amount of stuff kept in memory is limited, while still allowing an
-	* (almost?) unlimited number in the fetching data phase. See comments in ParallelSerialiser.createPullJob.
+	**
+	** The block is fetched and decoded in the calling thread. {@link
+	** #pullAsync} does the two separately, which is better for pulling many
+	** blocks at once.
 	*/
 	/*@Override**/ public void pullLive(PullTask<T> task, final SimpleProgress progress) throws TaskAbortException {
 		// FIXME make retry count configgable by client metadata somehow
@@ -162,15 +187,14 @@ implements LiveArchiver<T, SimpleProgress> {
 		try {
 			try {
 
-				if(cacheDir != null && cacheDir.exists() && cacheDir.canRead()) {
-					File cached = new File(cacheDir, cacheKey);
-					if(cached.exists() && cached.length() != 0) {
-						tempB = new FileBucket(cached, true, false, false, false);
+				BlockCache c = cache;
+				if(c != null) {
+					is = c.get(cacheKey);
+					if(is != null)
 						Logger.debug(this, "Fetching block for FreenetArchiver from disk cache: "+cacheKey);
-					}
 				}
 				
-				if(tempB == null) {
+				if(is == null) {
 					
 					if(initialMetadata != null)
 						Logger.debug(this, "Fetching block for FreenetArchiver from metadata ("+cacheKey+")");
@@ -212,6 +236,7 @@ implements LiveArchiver<T, SimpleProgress> {
 					}
 					
 					tempB = res.asBucket();
+					is = tempB.getInputStream();
 				} else {
 					// Make sure SimpleProgress.join() doesn't stall.
 					if(progress != null) {
@@ -221,7 +246,6 @@ implements LiveArchiver<T, SimpleProgress> {
 				}
 				long endTime = System.currentTimeMillis();
 				Logger.debug(this, "Fetched block for FreenetArchiver in "+(endTime-startTime)+"ms.");
-				is = tempB.getInputStream();
 				task.data = (T)reader.readObject(is);
 				is.close();
 
@@ -251,6 +275,180 @@ implements LiveArchiver<T, SimpleProgress> {
 		}
 	}
 
+	/**
+	** {@inheritDoc}
+	**
+	** This pulls the block in two phases. The fetch is started in the calling
+	** thread, and the node calls back when the data is in a bucket; it is
+	** then decoded on the {@link Executors#CPU_EXECUTOR}, which also invokes
+	** {@code post}. So the number of fetches in progress is limited only by
+	** the caller, while decoding is limited to one thread per core, and the
+	** number of fetched buckets waiting to be decoded is bounded.
+	*/
+	/*@Override**/ public void pullAsync(PullTask<T> task, SimpleProgress progress, SafeClosure<X2<PullTask<T>, TaskAbortException>> post) {
+		new AsyncPull(task, progress, post).start();
+	}
+
+	/**
+	** State of a single {@link #pullAsync} request.
+	*/
+	protected class AsyncPull implements ClientGetCallback {
+
+		final protected PullTask<T> task;
+		final protected SimpleProgress progress;
+		final protected SafeClosure<X2<PullTask<T>, TaskAbortException>> post;
+		final protected HighLevelSimpleClient hlsc;
+		final protected long startTime = System.currentTimeMillis();
+
+		protected FreenetURI u;
+		protected byte[] initialMetadata;
+		protected String cacheKey;
+		protected ProgressParts prog_old;
+		/** USK redirects should not happen really but can occasionally due to race conditions. */
+		protected int redirects;
+
+		public AsyncPull(PullTask<T> t, SimpleProgress p, SafeClosure<X2<PullTask<T>, TaskAbortException>> cb) {
+			task = t;
+			progress = p;
+			post = cb;
+			// FIXME make retry count configgable by client metadata somehow
+			hlsc = core.makeClient(priorityClass, false, false);
+		}
+
+		public void start() {
+			try {
+				if(task.meta instanceof FreenetURI) {
+					u = (FreenetURI) task.meta;
+					initialMetadata = null;
+					cacheKey = u.toString(false, true);
+				} else {
+					initialMetadata = (byte[]) task.meta;
+					u = FreenetURI.EMPTY_CHK_URI;
+					cacheKey = Base64.encode(SHA256.digest(initialMetadata));
+				}
+
+				BlockCache c = cache;
+				InputStream cached = (c == null)? null: c.get(cacheKey);
+				if(cached != null) {
+					Logger.debug(FreenetArchiver.this, "Fetching block for FreenetArchiver from disk cache: "+cacheKey);
+					// Make sure SimpleProgress.join() doesn't stall.
+					if(progress != null) {
+						progress.addPartKnown(1, true);
+						progress.addPartDone();
+					}
+					decode(cached, null);
+					return;
+				}
+
+				if(initialMetadata != null)
+					Logger.debug(FreenetArchiver.this, "Fetching block for FreenetArchiver from metadata ("+cacheKey+")");
+				else
+					Logger.debug(FreenetArchiver.this, "Fetching block for FreenetArchiver from network: "+u);
+
+				if (progress != null) {
+					hlsc.addEventHook(new SimpleProgressUpdater(progress));
+				}
+				fetch();
+
+			} catch (RuntimeException e) {
+				finish(new TaskAbortException("Failed to complete task: ", e));
+			}
+		}
+
+		protected void fetch() {
+			try {
+				// bookkeeping. detects bugs in the SplitfileProgressEvent handler
+				if (progress != null) { prog_old = progress.getParts(); }
+				if(initialMetadata != null)
+					hlsc.fetchFromMetadata(new SimpleReadOnlyArrayBucket(initialMetadata), this, hlsc.getFetchContext(), priorityClass);
+				else
+					hlsc.fetch(u, -1, this, hlsc.getFetchContext());
+			} catch (FetchException e) {
+				onFailure(e, null);
+			} catch (TaskAbortException e) {
+				finish(e);
+			}
+		}
+
+		/*@Override**/ public void onSuccess(FetchResult result, ClientGetter state) {
+			if (progress != null) {
+				try {
+					ProgressParts prog_new = progress.getParts();
+					if (prog_old.known - prog_old.done != prog_new.known - prog_new.done) {
+						Logger.error(this, "Inconsistency when tracking split file progress (pulling): "+prog_old.known+" of "+prog_old.done+" -> "+prog_new.known+" of "+prog_new.done);
+						System.err.println("Inconsistency when tracking split file progress (pulling): "+prog_old.known+" of "+prog_old.done+" -> "+prog_new.known+" of "+prog_new.done);
+					}
+				} catch (TaskAbortException e) {
+					finish(e);
+					return;
+				}
+				progress.addPartKnown(0, true);
+			}
+			decode(null, result.asBucket());
+		}
+
+		/*@Override**/ public void onFailure(FetchException e, ClientGetter state) {
+			if(e.mode == FetchExceptionMode.PERMANENT_REDIRECT && e.newURI != null && ++redirects < 10) {
+				u = e.newURI;
+				fetch();
+				return;
+			}
+			finish(new TaskAbortException("Failed to fetch content", e, true));
+		}
+
+		/**
+		** Decodes the fetched data on the CPU pool, so that we don't hold up the
+		** node's own threads. The task is always queued, never run in the
+		** calling thread, which is usually one of the node's callbacks.
+		**
+		** @param cached A stream of the data from the local cache, or {@code
+		**        null} to read it from {@code tempB}
+		*/
+		protected void decode(final InputStream cached, final Bucket tempB) {
+			Executors.CPU_EXECUTOR.execute(new Runnable() {
+				/*@Override**/ public void run() {
+					InputStream is = cached;
+					try {
+						Logger.debug(FreenetArchiver.this, "Fetched block for FreenetArchiver in "+(System.currentTimeMillis()-startTime)+"ms.");
+						if(is == null) { is = tempB.getInputStream(); }
+						task.data = (T)reader.readObject(is);
+						is.close();
+					} catch (IOException e) {
+						finish(new TaskAbortException("Failed to read content from local tempbucket", e, true));
+						return;
+					} catch (RuntimeException e) {
+						finish(new TaskAbortException("Failed to complete task: ", e));
+						return;
+					} finally {
+						Closer.close(is);
+						Closer.close(tempB);
+					}
+					finish(null);
+				}
+			});
+		}
+
+		protected void finish(TaskAbortException ex) {
+			if (ex != null && progress != null) {
+				try {
+					progress.abort(ex);
+				} catch (TaskAbortException e) {
+					// abort() always rethrows; we pass it on instead
+				}
+			}
+			post.invoke(X2(task, ex));
+		}
+
+		/*@Override**/ public void onResume(ClientContext context) throws ResumeFailedException {
+			// Ignore. Requests not persistent.
+		}
+
+		/*@Override**/ public RequestClient getRequestClient() {
+			return Library.REQUEST_CLIENT;
+		}
+
+	}
+
 	/**
 	** {@inheritDoc}
 	**
@@ -263,12 +461,50 @@ implements LiveArchiver<T, SimpleProgress> {
 	** incremented.
 	*/
 	/*@Override**/ public void pushLive(PushTask<T> task, final SimpleProgress progress) throws TaskAbortException {
+		PushCallback cb = startPush(task, progress, null);
+		finishPush(task, progress, cb);
+	}
+
+	/**
+	** {@inheritDoc}
+	**
+	** The data is written to a temporary bucket and the insert is started in
+	** the calling thread; {@code post} is invoked (from the {@link
+	** Executors#WORKER_EXECUTOR}) once the insert has generated a URI or
+	** metadata for it. As with {@link #pushLive}, the insert itself continues
+	** in the background; see {@link #waitForAsyncInserts()}.
+	*/
+	/*@Override**/ public void pushAsync(final PushTask<T> task, final SimpleProgress progress, final SafeClosure<X2<PushTask<T>, TaskAbortException>> post) {
+		try {
+			startPush(task, progress, new SafeClosure<PushCallback>() {
+				/*@Override**/ public void invoke(PushCallback cb) {
+					try {
+						finishPush(task, progress, cb);
+					} catch (TaskAbortException e) {
+						post.invoke(X2(task, e));
+						return;
+					}
+					post.invoke(X2(task, (TaskAbortException)null));
+				}
+			});
+		} catch (TaskAbortException e) {
+			post.invoke(X2(task, e));
+		}
+	}
+
+	/**
+	** Writes the task data to a temporary bucket, and starts inserting it.
+	**
+	** @param listener Invoked once the insert has generated a URI or metadata,
+	**        or failed; may be {@code null}.
+	** @return The callback for the insert, to be passed to {@link
+	**         #finishPush(Serialiser.PushTask, SimpleProgress, PushCallback)}
+	*/
+	protected PushCallback startPush(PushTask<T> task, final SimpleProgress progress, SafeClosure<PushCallback> listener) throws TaskAbortException {
 		HighLevelSimpleClient hlsc = core.makeClient(priorityClass, false, false);
 		RandomAccessBucket tempB = null; OutputStream os = null;
 
-		
 		try {
-			ClientPutter putter = null;
 			PushCallback cb = null;
 			try {
 				tempB = core.tempBucketFactory.makeBucket(expected_bytes, 2);
@@ -290,15 +526,6 @@ implements LiveArchiver<T, SimpleProgress> {
 				InsertBlock ib = new InsertBlock(tempB, new ClientMetadata(default_mime), target);
 
 				Logger.debug(this, "Inserting block for FreenetArchiver...");
-				long startTime = System.currentTimeMillis();
-				
-				// code for async insert - maybe be useful elsewhere
-				//ClientContext cctx = core.clientContext;
-				//InsertContext ictx = hlsc.getInsertContext(true);
-				//PutWaiter pw = new PutWaiter();
-				//ClientPutter pu = hlsc.insert(ib, false, null, false, ictx, pw);
-				//pu.setPriorityClass(RequestStarter.INTERACTIVE_PRIORITY_CLASS, cctx, null);
-				//FreenetURI uri = pw.waitForCompletion();
 
 				// bookkeeping. detects bugs in the SplitfileProgressEvent handler
 				ProgressParts prog_old = null;
@@ -313,55 +540,86 @@ implements LiveArchiver<T, SimpleProgress> {
                 // Hopefully it isn't here.
 				ctx.earlyEncode = true;
 				
-				String cacheKey = null;
+				// Do NOT report progress. Pretend we are done as soon as
+				// we have the URI. This allows us to minimise memory usage
+				// without yet splitting up IterableSerialiser.push() and
+				// doing it properly. FIXME
+				if(progress != null)
+					progress.addPartKnown(1, true);
+				cb = new PushCallback(progress, ib, prog_old, listener);
+				ClientPutter putter = new ClientPutter(cb, ib.getData(), FreenetURI.EMPTY_CHK_URI, ib.clientMetadata,
+						ctx, priorityClass,
+						false, null, false, core.clientContext, null, insertAsMetadata ? CHKBlock.DATA_LENGTH : -1);
+				cb.setPutter(putter);
+				try {
+					core.clientContext.start(putter);
+				} catch (PersistenceDisabledException e) {
+					// Impossible
+				}
 				
-//				if(!SEMI_ASYNC_PUSH) {
-//					// Actually report progress.
-//					if (progress != null) {
-//						hlsc.addEventHook(new SimpleProgressUpdater(progress));
-//					}
-//					uri = hlsc.insert(ib, false, null, priorityClass, ctx);
-//					if (progress != null)
-//						progress.addPartKnown(0, true);
-//				} else {
-					// Do NOT report progress. Pretend we are done as soon as
-					// we have the URI. This allows us to minimise memory usage
-					// without yet splitting up IterableSerialiser.push() and
-					// doing it properly. FIXME
-					if(progress != null)
-						progress.addPartKnown(1, true);
-					cb = new PushCallback(progress, ib);
-					putter = new ClientPutter(cb, ib.getData(), FreenetURI.EMPTY_CHK_URI, ib.clientMetadata,
-							ctx, priorityClass,
-							false, null, false, core.clientContext, null, insertAsMetadata ? CHKBlock.DATA_LENGTH : -1);
-					cb.setPutter(putter);
-					long tStart = System.currentTimeMillis();
-					try {
-						core.clientContext.start(putter);
-					} catch (PersistenceDisabledException e) {
-						// Impossible
-					}
-					WAIT_STATUS status = cb.waitFor();
-					if(status == WAIT_STATUS.FAILED) {
-						cb.throwError();
-					} else if(status == WAIT_STATUS.GENERATED_URI) {
-						FreenetURI uri = cb.getURI();
-						task.meta = uri;
-						cacheKey = uri.toString(false, true);
-						Logger.debug(this, "Got URI for asynchronous insert: "+uri+" size "+tempB.size()+" in "+(System.currentTimeMillis() - cb.startTime));
-					} else {
-						Bucket data = cb.getGeneratedMetadata();
-						byte[] buf = BucketTools.toByteArray(data);
-						data.free();
-						task.meta = buf;
-						cacheKey = Base64.encode(SHA256.digest(buf));
-						Logger.debug(this, "Got generated metadata ("+buf.length+" bytes) for asynchronous insert size "+tempB.size()+" in "+(System.currentTimeMillis() - cb.startTime));
+				if(SEMI_ASYNC_PUSH)
+					tempB = null; // Don't free it here.
+				return cb;
+
+			} catch (InsertException e) {
+				if(cb != null) {
+					synchronized(this) {
+						if(semiAsyncPushes.remove(cb))
+							totalBytesPushing -= cb.size();
 					}
-					if(progress != null)
-						progress.addPartDone();
-//				}
+				}
+				throw new TaskAbortException("Failed to insert content", e, true);
+
+			} catch (IOException e) {
+				throw new TaskAbortException("Failed to write content to local tempbucket", e, true);
+
+			} catch (RuntimeException e) {
+				throw new TaskAbortException("Failed to complete task: ", e);
+
+			}
+		} catch (TaskAbortException e) {
+			if (progress != null) { progress.abort(e); }
+			throw e;
+
+		} finally {
+			Closer.close(os);
+			Closer.close(tempB);
+		}
+	}
+
+	/**
+	** Waits for an insert started by {@link #startPush} to generate a URI or
+	** metadata, then sets it as the task's metadata and updates the progress
+	** and the local cache. Once the callback's listener has been invoked, this
+	** does not block.
+	*/
+	protected void finishPush(PushTask<T> task, final SimpleProgress progress, PushCallback cb) throws TaskAbortException {
+		try {
+			try {
+				Bucket tempB = cb.ib.getData();
+				String cacheKey = null;
+
+				WAIT_STATUS status = cb.waitFor();
+				if(status == WAIT_STATUS.FAILED) {
+					cb.throwError();
+				} else if(status == WAIT_STATUS.GENERATED_URI) {
+					FreenetURI uri = cb.getURI();
+					task.meta = uri;
+					cacheKey = uri.toString(false, true);
+					Logger.debug(this, "Got URI for asynchronous insert: "+uri+" size "+cb.size()+" in "+(System.currentTimeMillis() - cb.startTime));
+				} else {
+					Bucket data = cb.getGeneratedMetadata();
+					byte[] buf = BucketTools.toByteArray(data);
+					data.free();
+					task.meta = buf;
+					cacheKey = Base64.encode(SHA256.digest(buf));
+					Logger.debug(this, "Got generated metadata ("+buf.length+" bytes) for asynchronous insert size "+cb.size()+" in "+(System.currentTimeMillis() - cb.startTime));
+				}
+				if(progress != null)
+					progress.addPartDone();
 					
 				if(progress != null) {
+					ProgressParts prog_old = cb.prog_old;
 					ProgressParts prog_new = progress.getParts();
 					if (prog_old.known - prog_old.done != prog_new.known - prog_new.done) {
 						Logger.error(this, "Inconsistency when tracking split file progress (pushing): "+prog_old.known+" of "+prog_old.done+" -> "+prog_new.known+" of "+prog_new.done);
@@ -371,21 +629,20 @@ implements LiveArchiver<T, SimpleProgress> {
 
 				task.data = null;
 				
-				if(cacheKey != null && cacheDir != null && cacheDir.exists() && cacheDir.canRead()) {
-					File cached = new File(cacheDir, cacheKey);
-					Bucket cachedBucket = new FileBucket(cached, false, false, false, false);
-					BucketTools.copy(tempB, cachedBucket);
+				BlockCache c = cache;
+				if(cacheKey != null && c != null) {
+					InputStream is = tempB.getInputStream();
+					try {
+						c.put(cacheKey, is);
+					} finally {
+						is.close();
+					}
 				}
-				
-				if(SEMI_ASYNC_PUSH)
-					tempB = null; // Don't free it here.
 
 			} catch (InsertException e) {
-				if(cb != null) {
-					synchronized(this) {
-						if(semiAsyncPushes.remove(cb))
-							totalBytesPushing -= cb.size();
-					}
+				synchronized(this) {
+					if(semiAsyncPushes.remove(cb))
+						totalBytesPushing -= cb.size();
 				}
 				throw new TaskAbortException("Failed to insert content", e, true);
 
@@ -400,9 +657,6 @@ implements LiveArchiver<T, SimpleProgress> {
 			if (progress != null) { progress.abort(e); }
 			throw e;
 
-		} finally {
-			Closer.close(os);
-			Closer.close(tempB);
 		}
 	}
 	
@@ -424,13 +678,40 @@ implements LiveArchiver<T, SimpleProgress> {
 //		private final SimpleProgress progress;
 		private final long size;
 		private final InsertBlock ib;
+		/** Progress parts when the insert was started, for bookkeeping */
+		private final ProgressParts prog_old;
+		/** Invoked once a URI or metadata is generated, or the insert fails */
+		private final SafeClosure<PushCallback> listener;
+		private boolean notified;
 		
 		public PushCallback(SimpleProgress progress, InsertBlock ib) {
+			this(progress, ib, null, null);
+		}
+
+		public PushCallback(SimpleProgress progress, InsertBlock ib, ProgressParts prog_old, SafeClosure<PushCallback> listener) {
 //			this.progress = progress;
 			this.ib = ib;
+			this.prog_old = prog_old;
+			this.listener = listener;
 			size = ib.getData().size();
 		}
 
+		/**
+		** Hands this callback to the listener, at most once. This is run on
+		** the worker pool, so that we don't hold up the node's own threads.
+		*/
+		private void notifyListener() {
+			synchronized(this) {
+				if(listener == null || notified) return;
+				notified = true;
+			}
+			Executors.WORKER_EXECUTOR.execute(new Runnable() {
+				/*@Override**/ public void run() {
+					listener.invoke(PushCallback.this);
+				}
+			});
+		}
+
 		public long size() {
 			return size;
 		}
@@ -476,6 +757,7 @@ implements LiveArchiver<T, SimpleProgress> {
 				failed = e;
 				notifyAll();
 			}
+			notifyListener();
 			synchronized(FreenetArchiver.this) {
 				if(semiAsyncPushes.remove(this))
 					totalBytesPushing -= size;
@@ -495,6 +777,7 @@ implements LiveArchiver<T, SimpleProgress> {
 		public synchronized void onGeneratedURI(FreenetURI uri, BaseClientPutter state) {
 			generatedURI = uri;
 			notifyAll();
+			notifyListener();
 		}
 
 		@Override
@@ -516,6 +799,7 @@ implements LiveArchiver<T, SimpleProgress> {
 				BaseClientPutter state) {
 			generatedMetadata = metadata;
 			notifyAll();
+			notifyListener();
 		}
 
         @Override
@@ -10,6 +10,7 @@ import plugins.Library.util.Skeleton;
 import plugins.Library.util.SkeletonTreeMap;
 import plugins.Library.util.SkeletonBTreeMap;
 import plugins.Library.util.SkeletonBTreeSet;
+import plugins.Library.util.NodeResidency;
 import plugins.Library.util.DataNotLoadedException;
 import plugins.Library.util.exec.Progress;
 import plugins.Library.util.exec.ProgressParts;
@@ -18,6 +19,7 @@ import plugins.Library.util.exec.Execution;
 import plugins.Library.util.exec.AbstractExecution;
 import plugins.Library.util.exec.TaskAbortException;
 import plugins.Library.util.concurrent.Executors;
+import static plugins.Library.util.func.Tuples.X2; // also imports the class
 
 import freenet.keys.FreenetURI;
 import freenet.support.Logger;
@@ -25,6 +27,9 @@ import freenet.support.Logger;
 import java.util.AbstractSet;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.Set;
 import java.util.Map;
@@ -61,6 +66,15 @@ final public class ProtoIndex implements Index {
 	protected static Executor exec = Executors.DEFAULT_EXECUTOR;
 	public static void setExecutor(Executor e) { exec = e; }
 
+	/**
+	** Manages the {@link #ttab} nodes pulled in by term lookups, for all
+	** indexes, so that they are discarded again when memory is short. May be
+	** {@code null}, to keep them until the index itself is discarded.
+	*/
+	protected static NodeResidency residency = new NodeResidency();
+	public static void setNodeResidency(NodeResidency r) { residency = r; }
+	public static NodeResidency getNodeResidency() { return residency; }
+
 	/**
 	** Request ID for this index
 	*/
@@ -148,19 +162,156 @@ final public class ProtoIndex implements Index {
 	private Map<String, Execution<Set<TermEntry>>> getTermEntriesProgress = new
 	HashMap<String, Execution<Set<TermEntry>>>();
 
+	/**
+	** Lookups in progress for all {@link ProtoIndex}es, by {@link #reqID} and
+	** term. A new {@link ProtoIndex} object is made every time an index is
+	** loaded, so without this, concurrent searches for the same term in the
+	** same index would each walk {@link #ttab} and inflate the same nodes.
+	** Entries are removed when the lookup finishes, successfully or not.
+	*/
+	final private static Map<X2<FreenetURI, String>, getTermEntriesHandler> getTermEntriesInFlight = new
+	HashMap<X2<FreenetURI, String>, getTermEntriesHandler>();
+
+	/**
+	** {@inheritDoc}
+	**
+	** If the same term is already being looked up in the same index (as
+	** identified by its {@link #reqID}), possibly through a different {@link
+	** ProtoIndex} object, this returns that lookup rather than starting
+	** another one, so that all callers share its progress and result.
+	*/
 	public Execution<Set<TermEntry>> getTermEntries(String term) {
-		Execution<Set<TermEntry>> request = getTermEntriesProgress.get(term);
-		if (request == null) {
-			request = new getTermEntriesHandler(term);
-			getTermEntriesProgress.put(term, request);
-			exec.execute((getTermEntriesHandler)request);
+		synchronized (getTermEntriesProgress) {
+			Execution<Set<TermEntry>> request = getTermEntriesProgress.get(term);
+			if (request != null) { return request; }
+
+			getTermEntriesHandler handler;
+			if (reqID == null) {
+				// local index; nothing to coalesce with
+				handler = new getTermEntriesHandler(term, null);
+			} else {
+				X2<FreenetURI, String> key = X2(reqID, term);
+				synchronized (getTermEntriesInFlight) {
+					handler = getTermEntriesInFlight.get(key);
+					if (handler == null) {
+						handler = new getTermEntriesHandler(term, key);
+						getTermEntriesInFlight.put(key, handler);
+					} else {
+						getTermEntriesProgress.put(term, handler);
+						return handler;
+					}
+				}
+			}
+			getTermEntriesProgress.put(term, handler);
+			exec.execute(handler);
+			return handler;
 		}
-		return request;
 	}
 
 
 
 
+	/**
+	** Maximum number of terms that a prefix is expanded to by {@link
+	** #getTermEntriesPrefix(String)}. Terms after this are ignored.
+	*/
+	final public static int PREFIX_TERMS_MAX = 0x40;
+
+	/**
+	** Fetches the entries for all terms starting with the given prefix, up to
+	** {@link #PREFIX_TERMS_MAX} of them, in alphabetical order. The terms are
+	** found by scanning the range of {@link #ttab} that starts with the
+	** prefix, which pulls only the nodes covering that range, and are then
+	** looked up in parallel through {@link #getTermEntries(String)}. Entries
+	** for the same target in several terms are merged, keeping the most
+	** relevant one.
+	**
+	** The handler waits for the lookups, which run on {@link #exec}, so it is
+	** a manager task and runs on {@link Executors#MANAGER_EXECUTOR}; on the
+	** same executor as the lookups, it could hold the only thread they might
+	** run on.
+	*/
+	public Execution<Set<TermEntry>> getTermEntriesPrefix(String prefix) {
+		getTermEntriesPrefixHandler handler = new getTermEntriesPrefixHandler(prefix);
+		Executors.MANAGER_EXECUTOR.execute(handler);
+		return handler;
+	}
+
+	/**
+	** Returns the smallest string greater than every string starting with the
+	** given prefix, or {@code null} if there is none.
+	*/
+	protected static String prefixEnd(String prefix) {
+		int i = prefix.length();
+		while (i > 0 && prefix.charAt(i-1) == Character.MAX_VALUE) { --i; }
+		if (i == 0) { return null; }
+		return prefix.substring(0, i-1) + (char)(prefix.charAt(i-1) + 1);
+	}
+
+	public class getTermEntriesPrefixHandler extends AbstractExecution<Set<TermEntry>> implements Runnable, ChainedProgress {
+
+		/** Lookups for the matching terms, once they are known */
+		volatile List<Execution<Set<TermEntry>>> lookups;
+		volatile Execution<Set<TermEntry>> current;
+
+		protected getTermEntriesPrefixHandler(String prefix) {
+			super(prefix + "*");
+		}
+
+		@Override public ProgressParts getParts() throws TaskAbortException {
+			List<Execution<Set<TermEntry>>> reqs = lookups;
+			if (reqs == null) { return ProgressParts.normalise(0, 1, 1, ProgressParts.ESTIMATE_UNKNOWN); }
+			// the number of terms is known once the range has been scanned
+			return ProgressParts.getParts(reqs, ProgressParts.TOTAL_FINALIZED);
+		}
+
+		@Override public String getStatus() {
+			Progress cur = getCurrentProgress();
+			return (cur == null)? "Looking for terms starting with " + subject: cur.getSubject() + ": " + cur.getStatus();
+		}
+
+		/*@Override**/ public Progress getCurrentProgress() {
+			return current;
+		}
+
+		/*@Override**/ public void run() {
+			try {
+				ttab.setResidency(residency);
+				String prefix = subject.substring(0, subject.length()-1);
+				List<String> terms = ttab.keysInRange(prefix, prefixEnd(prefix), PREFIX_TERMS_MAX);
+				if (terms.isEmpty()) {
+					throw new TaskAbortException("Index does not contain any term starting with " + prefix, new Exception("Index does not contain any term starting with " + prefix));
+				}
+
+				// start all of the lookups before waiting for any of them
+				List<Execution<Set<TermEntry>>> reqs = new ArrayList<Execution<Set<TermEntry>>>(terms.size());
+				for (String term: terms) { reqs.add(getTermEntries(term)); }
+				lookups = reqs;
+
+				Map<X2<TermEntry.EntryType, Object>, TermEntry> union = new HashMap<X2<TermEntry.EntryType, Object>, TermEntry>();
+				for (Execution<Set<TermEntry>> req: reqs) {
+					current = req;
+					try {
+						req.join();
+					} catch (InterruptedException e) {
+						throw new TaskAbortException("Interrupted while looking up " + req.getSubject(), e);
+					}
+					for (TermEntry en: req.getResult()) {
+						X2<TermEntry.EntryType, Object> target = X2(en.entryType(), en.target());
+						TermEntry old = union.get(target);
+						if (old == null || old.rel < en.rel) { union.put(target, en); }
+					}
+				}
+				current = null;
+				setResult(Collections.unmodifiableSet(new HashSet<TermEntry>(union.values())));
+
+			} catch (TaskAbortException e) {
+				setError(e);
+			}
+		}
+
+	}
+
 	public Execution<URIEntry> getURIEntry(FreenetURI uri) {
 		throw new UnsupportedOperationException("not implemented");
 	}
@@ -174,8 +325,12 @@ final public class ProtoIndex implements Index {
 		Object current_meta;
 		ProgressTracker current_tracker;
 
-		protected getTermEntriesHandler(String t) {
+		/** Key in {@link #getTermEntriesInFlight}, or null if not in it */
+		final X2<FreenetURI, String> flight_key;
+
+		protected getTermEntriesHandler(String t, X2<FreenetURI, String> k) {
 			super(t);
+			flight_key = k;
 		}
 
 		@Override public ProgressParts getParts() throws TaskAbortException {
@@ -205,6 +360,8 @@ final public class ProtoIndex implements Index {
 		Progress last = null;
 		/*@Override**/ public void run() {
 			try {
+				ttab.setResidency(residency);
+
 				// get the root container
 				SkeletonBTreeSet<TermEntry> root;
 				for (;;) {
@@ -244,6 +401,12 @@ final public class ProtoIndex implements Index {
 			} catch (TaskAbortException e) {
 				setError(e);
 				return;
+			} finally {
+				if (flight_key != null) {
+					synchronized (getTermEntriesInFlight) {
+						getTermEntriesInFlight.remove(flight_key);
+					}
+				}
 			}
 		}
 
@@ -22,12 +22,16 @@ import plugins.Library.io.serial.Archiver;
 import plugins.Library.io.serial.IterableSerialiser;
 import plugins.Library.io.serial.MapSerialiser;
 import plugins.Library.io.serial.LiveArchiver;
+import plugins.Library.io.serial.AsyncArchiver;
 import plugins.Library.io.serial.ParallelSerialiser;
 import plugins.Library.io.serial.Packer;
 import plugins.Library.io.serial.Packer.Scale; // WORKAROUND javadoc bug #4464323
 import plugins.Library.io.serial.FileArchiver;
 import plugins.Library.io.DataFormatException;
 import plugins.Library.io.YamlReaderWriter;
+import plugins.Library.io.BinaryReaderWriter;
+import plugins.Library.util.func.SafeClosure;
+import static plugins.Library.util.func.Tuples.X2; // also imports the class
 
 import freenet.keys.FreenetURI;
 import freenet.node.RequestStarter;
@@ -58,6 +62,20 @@ public class ProtoIndexComponentSerialiser {
 
 	final protected static int FMT_FREENET_SIMPLE = 0x2db3c940;
 	public final static int FMT_FILE_LOCAL = 0xd439e29a;
+	/**
+	** As {@link #FMT_FREENET_SIMPLE} and {@link #FMT_FILE_LOCAL}, but using
+	** {@link BinaryReaderWriter} instead of YAML for the ''term table''.
+	** {@link BinaryReaderWriter} cannot hold {@link URIEntry}s, so the ''uri
+	** table'' is still stored as YAML (see {@link #uri_arx}).
+	**
+	** Nothing selects these formats yet. Versions of this plugin that predate
+	** them can't read indexes that use them, so they shouldn't be inserted
+	** until most clients can. Also, an archiver passed to {@link #get(int,
+	** LiveArchiver)} is used for both tables, so a caller that supplies its
+	** own (eg. the spider's on-disk index) still gets YAML.
+	*/
+	public final static int FMT_FREENET_BINARY = 0x5a0be7c1;
+	public final static int FMT_FILE_LOCAL_BINARY = 0x8f3c61d2;
 
 	public final static int FMT_DEFAULT = FMT_FREENET_SIMPLE;
 
@@ -66,6 +84,11 @@ public class ProtoIndexComponentSerialiser {
 	*/
 	final protected static YamlReaderWriter yamlrw = new YamlReaderWriter();
 
+	/**
+	** Converts between a low-level object and a compact binary byte stream.
+	*/
+	final protected static BinaryReaderWriter binrw = new BinaryReaderWriter();
+
 	/**
 	** Translator for the local entries of a node of the ''term table''.
 	*/
@@ -173,6 +196,14 @@ public class ProtoIndexComponentSerialiser {
 		return leaf_arx;
 	}
 
+	/**
+	** Archiver for the lowest level (leaf) of the ''uri table''. This is the
+	** same as {@link #leaf_arx}, except for the binary formats, which only
+	** store the ''term table'' in binary.
+	*/
+	final protected LiveArchiver<Map<String, Object>, SimpleProgress>
+	uri_arx;
+
 	/**
 	** Serialiser for the ''targets'' of the values stored in a node of the
 	** ''term table''. In this case, each target is the root node of the
@@ -200,6 +231,7 @@ public class ProtoIndexComponentSerialiser {
 	**         instance (eg. existence of a freenet node) are not met.
 	*/
 	protected ProtoIndexComponentSerialiser(int fmtid, LiveArchiver<Map<String, Object>, SimpleProgress> archiver) {
+		LiveArchiver<Map<String, Object>, SimpleProgress> yaml_arx = null;
 		if(archiver != null) {
 			leaf_arx = archiver;
 		} else {
@@ -213,10 +245,20 @@ public class ProtoIndexComponentSerialiser {
 			case FMT_FILE_LOCAL:
 				leaf_arx = new FileArchiver<Map<String, Object>>(yamlrw, true, YamlReaderWriter.FILE_EXTENSION, "", "", null);
 				break;
+			case FMT_FREENET_BINARY:
+				// binary nodes are much smaller than YAML ones, so expect fewer bytes
+				leaf_arx = Library.makeArchiver(binrw, BinaryReaderWriter.MIME_TYPE, 0x80 * ProtoIndex.BTREE_NODE_MIN, RequestStarter.INTERACTIVE_PRIORITY_CLASS);
+				yaml_arx = Library.makeArchiver(yamlrw, ProtoIndex.MIME_TYPE, 0x180 * ProtoIndex.BTREE_NODE_MIN, RequestStarter.INTERACTIVE_PRIORITY_CLASS);
+				break;
+			case FMT_FILE_LOCAL_BINARY:
+				leaf_arx = new FileArchiver<Map<String, Object>>(binrw, true, BinaryReaderWriter.FILE_EXTENSION, "", "", null);
+				yaml_arx = new FileArchiver<Map<String, Object>>(yamlrw, true, YamlReaderWriter.FILE_EXTENSION, "", "", null);
+				break;
 			default:
 				throw new UnsupportedOperationException("Unknown serial format id");
 			}
 		}
+		uri_arx = (yaml_arx == null)? leaf_arx: yaml_arx;
 
 		serialFormatUID = fmtid;
 
@@ -236,7 +278,7 @@ public class ProtoIndexComponentSerialiser {
 
 		utab_data = new BTreePacker<URIKey, SkeletonBTreeMap<FreenetURI, URIEntry>, EntryGroupSerialiser<URIKey, SkeletonBTreeMap<FreenetURI, URIEntry>>>(
 			new EntryGroupSerialiser<URIKey, SkeletonBTreeMap<FreenetURI, URIEntry>>(
-				leaf_arx,
+				uri_arx,
 				null,
 				new SkeletonBTreeMap.TreeTranslator<FreenetURI, URIEntry>(null, null) {
 					@Override public SkeletonBTreeMap<FreenetURI, URIEntry> rev(Map<String, Object> tree) throws DataFormatException {
@@ -265,7 +307,7 @@ public class ProtoIndexComponentSerialiser {
 		// set serialisers on the utab
 		BTreeNodeSerialiser<URIKey, SkeletonBTreeMap<FreenetURI, URIEntry>> utab_keys = new BTreeNodeSerialiser<URIKey, SkeletonBTreeMap<FreenetURI, URIEntry>>(
 			"uri listings",
-			leaf_arx,
+			uri_arx,
 			index.utab.makeNodeTranslator(utab_keys_ktr, utab_keys_mtr)
 		);
 		index.utab.setSerialiser(utab_keys, utab_data);
@@ -282,7 +324,7 @@ public class ProtoIndexComponentSerialiser {
 	public SkeletonBTreeMap<FreenetURI, URIEntry> setSerialiserFor(SkeletonBTreeMap<FreenetURI, URIEntry> entries) {
 		BTreeNodeSerialiser<FreenetURI, URIEntry> uri_keys = new BTreeNodeSerialiser<FreenetURI, URIEntry>(
 			"uri entries",
-			leaf_arx,
+			uri_arx,
 			entries.makeNodeTranslator(null, null) // no translator needed as FreenetURI and URIEntry are both directly serialisable by YamlReaderWriter
 		);
 		entries.setSerialiser(uri_keys, uri_dummy);
@@ -338,6 +380,7 @@ public class ProtoIndexComponentSerialiser {
 	public static class BTreeNodeSerialiser<K, V>
 	extends ParallelSerialiser<SkeletonBTreeMap<K, V>.SkeletonNode, SimpleProgress>
 	implements Archiver<SkeletonBTreeMap<K, V>.SkeletonNode>,
+	           AsyncArchiver<SkeletonBTreeMap<K, V>.SkeletonNode, SimpleProgress>,
 	           Serialiser.Translate<SkeletonBTreeMap<K, V>.SkeletonNode, Map<String, Object>>,
 	           Serialiser.Composite<LiveArchiver<Map<String, Object>, SimpleProgress>> {
 
@@ -400,6 +443,100 @@ public class ProtoIndexComponentSerialiser {
 			}
 		}
 
+		/**
+		** {@inheritDoc}
+		**
+		** This returns {@code true} only if the child serialiser is itself an
+		** {@link AsyncArchiver}, since otherwise the async methods would just
+		** block on {@link LiveArchiver#pullLive} anyway.
+		*/
+		@Override protected boolean isAsync() {
+			return subsrl instanceof AsyncArchiver;
+		}
+
+		/**
+		** Aborts the progress, without rethrowing the exception, and passes it
+		** on to the callback.
+		*/
+		protected static <K extends Task> void abortAsync(K task, SimpleProgress p, TaskAbortException e, SafeClosure<X2<K, TaskAbortException>> post) {
+			try {
+				p.abort(e);
+			} catch (TaskAbortException x) {
+				// abort() always rethrows; we pass it on instead
+			}
+			post.invoke(X2(task, e));
+		}
+
+		/*@Override**/ public void pullAsync(final PullTask<SkeletonBTreeMap<K, V>.SkeletonNode> task, final SimpleProgress p,
+		  final SafeClosure<X2<PullTask<SkeletonBTreeMap<K, V>.SkeletonNode>, TaskAbortException>> post) {
+			if (!isAsync()) {
+				try {
+					pullLive(task, p);
+				} catch (TaskAbortException e) {
+					post.invoke(X2(task, e));
+					return;
+				}
+				post.invoke(X2(task, (TaskAbortException)null));
+				return;
+			}
+			p.enteredSerialiser();
+			try {
+				final SkeletonBTreeMap<K, V>.GhostNode ghost = (SkeletonBTreeMap.GhostNode)task.meta;
+				p.setSubject("Pulling " + name + ": " + ghost.getRange());
+				PullTask<Map<String, Object>> serialisable = new PullTask<Map<String, Object>>(ghost.getMeta());
+				((AsyncArchiver<Map<String, Object>, SimpleProgress>)subsrl).pullAsync(serialisable, p, new SafeClosure<X2<PullTask<Map<String, Object>>, TaskAbortException>>() {
+					/*@Override**/ public void invoke(X2<PullTask<Map<String, Object>>, TaskAbortException> res) {
+						if (res._1 != null) { post.invoke(X2(task, res._1)); return; }
+						try {
+							ghost.setMeta(res._0.meta); task.data = trans.rev(res._0.data);
+							p.exitingSerialiser();
+						} catch (RuntimeException e) {
+							abortAsync(task, p, new TaskAbortException("Could not pull B-tree node", e), post); return;
+						} catch (DataFormatException e) {
+							abortAsync(task, p, new TaskAbortException("Could not pull B-tree node", e), post); return;
+						}
+						post.invoke(X2(task, (TaskAbortException)null));
+					}
+				});
+			} catch (RuntimeException e) {
+				abortAsync(task, p, new TaskAbortException("Could not pull B-tree node", e), post);
+			}
+		}
+
+		/*@Override**/ public void pushAsync(final PushTask<SkeletonBTreeMap<K, V>.SkeletonNode> task, final SimpleProgress p,
+		  final SafeClosure<X2<PushTask<SkeletonBTreeMap<K, V>.SkeletonNode>, TaskAbortException>> post) {
+			if (!isAsync()) {
+				try {
+					pushLive(task, p);
+				} catch (TaskAbortException e) {
+					post.invoke(X2(task, e));
+					return;
+				}
+				post.invoke(X2(task, (TaskAbortException)null));
+				return;
+			}
+			p.enteredSerialiser();
+			try {
+				p.setSubject("Pushing " + name + ": " + task.data.getRange());
+				Map<String, Object> intermediate = trans.app(task.data);
+				PushTask<Map<String, Object>> serialisable = new PushTask<Map<String, Object>>(intermediate, task.meta);
+				((AsyncArchiver<Map<String, Object>, SimpleProgress>)subsrl).pushAsync(serialisable, p, new SafeClosure<X2<PushTask<Map<String, Object>>, TaskAbortException>>() {
+					/*@Override**/ public void invoke(X2<PushTask<Map<String, Object>>, TaskAbortException> res) {
+						if (res._1 != null) { post.invoke(X2(task, res._1)); return; }
+						try {
+							task.meta = task.data.makeGhost(res._0.meta);
+							p.exitingSerialiser();
+						} catch (RuntimeException e) {
+							abortAsync(task, p, new TaskAbortException("Could not push B-tree node", e), post); return;
+						}
+						post.invoke(X2(task, (TaskAbortException)null));
+					}
+				});
+			} catch (RuntimeException e) {
+				abortAsync(task, p, new TaskAbortException("Could not push B-tree node", e), post);
+			}
+		}
+
 	}
 
 
@@ -15,6 +15,7 @@ import plugins.Library.io.serial.Serialiser;
 import plugins.Library.io.serial.Translator;
 import plugins.Library.io.serial.Archiver;
 import plugins.Library.io.serial.FileArchiver;
+import plugins.Library.io.serial.PackFileArchiver;
 import plugins.Library.io.YamlReaderWriter;
 import plugins.Library.io.DataFormatException;
 
@@ -31,6 +32,7 @@ import java.util.TreeSet;
 import java.util.TreeMap;
 import java.util.Date;
 import java.io.File;
+import java.io.IOException;
 
 /**
 ** Serialiser for ProtoIndex
@@ -100,7 +102,41 @@ implements Archiver<ProtoIndex>,
 //		return srl;
 		
 		// One serialiser per application. See comments above re srl_cls.
-		return new ProtoIndexSerialiser(new FileArchiver<Map<String, Object>>(ProtoIndexComponentSerialiser.yamlrw, true, FILE_EXTENSION, "", "", prefix));
+		// Nodes are appended to pack files; this can still read indexes
+		// written by FileArchiver, with one file per node. The archiver holds
+		// the segments open, so it is shared by every index in the directory.
+		return new ProtoIndexSerialiser(getPackArchiver(prefix));
+	}
+
+	final protected static Map<File, PackFileArchiver<Map<String, Object>>>
+	pack_arx = new HashMap<File, PackFileArchiver<Map<String, Object>>>();
+
+	/**
+	** Returns the archiver for the pack files in the given directory, creating
+	** it the first time the directory is used, or the first time after it was
+	** {@linkplain #closeIndex(File) closed}.
+	*/
+	protected static synchronized PackFileArchiver<Map<String, Object>> getPackArchiver(File prefix) {
+		File dir = prefix.getAbsoluteFile();
+		PackFileArchiver<Map<String, Object>> arx = pack_arx.get(dir);
+		if (arx == null) {
+			pack_arx.put(dir, arx = new PackFileArchiver<Map<String, Object>>(ProtoIndexComponentSerialiser.yamlrw, FILE_EXTENSION, dir));
+		}
+		return arx;
+	}
+
+	/**
+	** Closes the archiver for the pack files in the given directory, if there
+	** is one, and forgets it, eg. because the directory is about to be
+	** deleted. Indexes already loaded from the directory must not be used
+	** afterwards.
+	*/
+	public static void closeIndex(File prefix) throws IOException {
+		PackFileArchiver<Map<String, Object>> arx;
+		synchronized (ProtoIndexSerialiser.class) {
+			arx = pack_arx.remove(prefix.getAbsoluteFile());
+		}
+		if (arx != null) { arx.close(); }
 	}
 
 	/*@Override**/ public LiveArchiver<Map<String, Object>, SimpleProgress> getChildSerialiser() {
@@ -10,6 +10,7 @@ package plugins.Library.index;
 ** specific to that subclass:
 **
 ** * {@link #entryType()}
+** * {@link #target()}
 ** * {@link #compareTo(TermEntry)}
 ** * {@link #equals(Object)}
 ** * {@link #hashCode()}
@@ -104,6 +105,14 @@ abstract public class TermEntry implements Comparable<TermEntry> {
 	*/
 	public abstract boolean equalsTarget(TermEntry entry);
 
+	/**
+	** Returns the part of this TermEntry that {@link #equalsTarget(TermEntry)}
+	** compares, ie. the page, index or term it points to. Two entries of the
+	** same {@link #entryType()} have equal targets iff they are {@link
+	** #equalsTarget(TermEntry)}.
+	*/
+	public abstract Object target();
+
 	/**
 	** {@inheritDoc}
 	**
@@ -3,11 +3,14 @@
  * http://www.gnu.org/ for further details of the GPL. */
 package plugins.Library.index;
 
+import plugins.Library.io.BinaryReaderWriter;
+import plugins.Library.io.ByteBufferInputStream;
 import plugins.Library.io.DataFormatException;
-import plugins.Library.io.ObjectStreamReader;
+import plugins.Library.io.ObjectBufferReader;
 import plugins.Library.io.ObjectStreamWriter;
 
 import freenet.keys.FreenetURI;
+import freenet.support.SortedIntSet;
 
 import java.util.Map;
 import java.util.HashMap;
@@ -17,16 +20,57 @@ import java.io.OutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 /**
 ** Reads and writes {@link TermEntry}s in binary form, for performance.
 **
+** There are two formats. In the original format (v1), each entry starts with
+** {@link TermEntry#serialVersionUID}, and each position of a {@link
+** TermPageEntry} is written as a fixed-width int followed by its fragment, or
+** an empty string if it has none. This is what {@link #readObject} and {@link
+** #writeObject} use.
+**
+** In format v2, the version is written once per stream, as a header ({@link
+** #STREAM_MAGIC} then {@link #FORMAT_V2}), rather than for every entry. Each
+** entry starts with a flags byte that holds its type and which of the
+** optional parts (title, positions, fragments) follow. Positions are written
+** in increasing order, as variable-length differences between consecutive
+** positions, so a typical position takes one or two bytes rather than six.
+** Strings are written with {@link BinaryReaderWriter#writeString}. {@link
+** #writeEntry} and {@link #readEntry} read and write single v2 entries with
+** no header, for use inside other formats; {@link Writer} and {@link Reader}
+** read and write whole streams. {@link Reader} also accepts v1 streams, which
+** have no header.
+**
+** To read from a {@link ByteBuffer} (eg. a slice of a mapped file) without
+** copying it, use {@link #readObject(ByteBuffer)}, or pass a {@link
+** ByteBufferInputStream} to {@link Reader}.
+**
 ** @author infinity0
 */
-public class TermEntryReaderWriter implements ObjectStreamReader<TermEntry>, ObjectStreamWriter<TermEntry> {
+public class TermEntryReaderWriter implements ObjectBufferReader<TermEntry>, ObjectStreamWriter<TermEntry> {
 
 	final private static TermEntryReaderWriter instance = new TermEntryReaderWriter();
 
+	final public static int FORMAT_V1 = 1;
+	final public static int FORMAT_V2 = 2;
+
+	/**
+	** Start of a v2 (or later) stream. This must differ from {@link
+	** TermEntry#serialVersionUID}, which is how v1 streams start.
+	*/
+	final public static long STREAM_MAGIC = 0x4c69625465726d45L; // "LibTermE"
+
+	/** Mask of the flags byte of a v2 entry that holds its {@link TermEntry.EntryType}. */
+	final protected static int F_TYPE = 0x03;
+	/** The entry has a title. */
+	final protected static int F_TITLE = 0x04;
+	/** The entry has positions (possibly none). */
+	final protected static int F_POSITIONS = 0x08;
+	/** The entry has fragments, one for each position. */
+	final protected static int F_FRAGMENTS = 0x10;
+
 	protected TermEntryReaderWriter() {}
 
 	public static TermEntryReaderWriter getInstance() {
@@ -37,11 +81,22 @@ public class TermEntryReaderWriter implements ObjectStreamReader<TermEntry>, Obj
 		return readObject(new DataInputStream(is));
 	}
 
+	/*@Override**/ public TermEntry readObject(ByteBuffer buf) throws IOException {
+		return readObject(new DataInputStream(new ByteBufferInputStream(buf)));
+	}
+
 	public TermEntry readObject(DataInputStream dis) throws IOException {
 		long svuid = dis.readLong();
 		if (svuid != TermEntry.serialVersionUID) {
 			throw new DataFormatException("Incorrect serialVersionUID", null, svuid);
 		}
+		return readV1(dis);
+	}
+
+	/**
+	** Reads the rest of a v1 entry, after its {@link TermEntry#serialVersionUID}.
+	*/
+	protected TermEntry readV1(DataInputStream dis) throws IOException {
 		int type = dis.readInt();
 		String subj = dis.readUTF();
 		float rel = dis.readFloat();
@@ -121,4 +176,214 @@ public class TermEntryReaderWriter implements ObjectStreamReader<TermEntry>, Obj
 		}
 	}
 
+	/**
+	** Writes a single entry in format v2, with no header.
+	*/
+	public void writeEntry(TermEntry en, DataOutputStream dos) throws IOException {
+		writeEntry(en, dos, null);
+	}
+
+	/**
+	** Writes a single entry in format v2, with no header, and its URI through
+	** the given dictionary.
+	**
+	** @param dict Dictionary of the URIs in the stream, or {@code null} to
+	**        write them in full
+	*/
+	public void writeEntry(TermEntry en, DataOutputStream dos, BinaryReaderWriter.URIDictionary dict) throws IOException {
+		TermEntry.EntryType type = en.entryType();
+		int flags = type.ordinal();
+		if (type == TermEntry.EntryType.PAGE) {
+			TermPageEntry enn = (TermPageEntry)en;
+			if (enn.title != null) { flags |= F_TITLE; }
+			if (enn.hasPositions()) {
+				flags |= F_POSITIONS;
+				if (enn.hasFragments()) { flags |= F_FRAGMENTS; }
+			}
+		}
+		dos.writeByte(flags);
+		BinaryReaderWriter.writeString(en.subj, dos);
+		dos.writeFloat(en.rel);
+		switch (type) {
+		case TERM:
+			BinaryReaderWriter.writeString(((TermTermEntry)en).term, dos);
+			return;
+		case INDEX:
+			BinaryReaderWriter.writeURI(((TermIndexEntry)en).index, dos, dict);
+			return;
+		case PAGE:
+			TermPageEntry enn = (TermPageEntry)en;
+			BinaryReaderWriter.writeURI(enn.page, dos, dict);
+			if ((flags & F_TITLE) != 0) {
+				BinaryReaderWriter.writeString(enn.title, dos);
+			}
+			if ((flags & F_POSITIONS) != 0) {
+				int[] pos = enn.positionsRaw();
+				BinaryReaderWriter.writeVarInt(pos.length, dos);
+				int prev = 0;
+				for (int x: pos) {
+					// the first is written as-is; the rest are always positive
+					BinaryReaderWriter.writeVarInt(x - prev, dos);
+					prev = x;
+				}
+				if ((flags & F_FRAGMENTS) != 0) {
+					Map<Integer, String> frags = enn.positionsMap();
+					for (int x: pos) {
+						String frag = frags.get(x);
+						BinaryReaderWriter.writeString(frag == null ? "" : frag, dos);
+					}
+				}
+			}
+			return;
+		}
+	}
+
+	/**
+	** Reads a single entry in format v2, with no header.
+	*/
+	public TermEntry readEntry(DataInputStream dis) throws IOException {
+		return readEntry(dis, null);
+	}
+
+	/**
+	** Reads a single entry in format v2, with no header, and its URI through
+	** the given dictionary.
+	**
+	** @param dict Dictionary of the URIs in the stream, or {@code null} if
+	**        they are written in full
+	*/
+	public TermEntry readEntry(DataInputStream dis, BinaryReaderWriter.URIDictionary dict) throws IOException {
+		int flags = dis.readUnsignedByte();
+		if ((flags & ~(F_TYPE | F_TITLE | F_POSITIONS | F_FRAGMENTS)) != 0) {
+			throw new DataFormatException("Unrecognised entry flags", null, flags);
+		}
+		int type = flags & F_TYPE;
+		TermEntry.EntryType[] types = TermEntry.EntryType.values();
+		if (type >= types.length) {
+			throw new DataFormatException("Unrecognised entry type", null, type);
+		}
+		String subj = BinaryReaderWriter.readString(dis);
+		float rel = dis.readFloat();
+		switch (types[type]) {
+		case TERM:
+			return new TermTermEntry(subj, rel, BinaryReaderWriter.readString(dis));
+		case INDEX:
+			return new TermIndexEntry(subj, rel, BinaryReaderWriter.readURI(dis, dict));
+		case PAGE:
+			FreenetURI page = BinaryReaderWriter.readURI(dis, dict);
+			String title = ((flags & F_TITLE) == 0) ? null : BinaryReaderWriter.readString(dis).intern();
+			SortedIntSet pos = null;
+			Map<Integer, String> frags = null;
+			if ((flags & F_POSITIONS) != 0) {
+				int size = BinaryReaderWriter.readVarInt(dis);
+				if (size < 0) {
+					throw new DataFormatException("Negative number of positions", null, size);
+				}
+				int[] raw = new int[size];
+				int prev = 0;
+				for (int i=0; i<size; ++i) {
+					int x = prev + BinaryReaderWriter.readVarInt(dis);
+					if (i > 0 && x <= prev) {
+						throw new DataFormatException("Positions not in increasing order", null, x);
+					}
+					raw[i] = prev = x;
+				}
+				pos = new SortedIntSet(raw);
+				if ((flags & F_FRAGMENTS) != 0) {
+					frags = new HashMap<Integer, String>(size<<1);
+					for (int x: raw) {
+						String val = BinaryReaderWriter.readString(dis);
+						frags.put(x, "".equals(val) ? null : val);
+					}
+				}
+			} else if ((flags & F_FRAGMENTS) != 0) {
+				throw new DataFormatException("Fragments without positions", null, flags);
+			}
+			return new TermPageEntry(subj, rel, page, title, pos, frags);
+		default:
+			throw new AssertionError();
+		}
+	}
+
+	/**
+	** Writes a stream of entries in format v2. The header is written when
+	** this is created.
+	*/
+	public static class Writer {
+
+		final protected DataOutputStream dos;
+
+		public Writer(OutputStream os) throws IOException {
+			dos = (os instanceof DataOutputStream)? (DataOutputStream)os: new DataOutputStream(os);
+			dos.writeLong(STREAM_MAGIC);
+			dos.writeByte(FORMAT_V2);
+		}
+
+		public void write(TermEntry en) throws IOException {
+			instance.writeEntry(en, dos);
+		}
+
+		public void flush() throws IOException {
+			dos.flush();
+		}
+
+	}
+
+	/**
+	** Reads a stream of entries written by {@link Writer}, or a stream of v1
+	** entries as written by {@link #writeObject}. The format is detected from
+	** the first 8 bytes of the stream.
+	**
+	** The stream is not buffered; callers reading from a file or a network
+	** should pass in a buffered stream.
+	*/
+	public static class Reader {
+
+		final protected DataInputStream dis;
+
+		/** Format of the stream, or 0 if nothing has been read yet. */
+		protected int format = 0;
+
+		public Reader(InputStream is) {
+			dis = (is instanceof DataInputStream)? (DataInputStream)is: new DataInputStream(is);
+		}
+
+		/**
+		** Reads the next entry.
+		**
+		** @throws java.io.EOFException if there are no more entries
+		*/
+		public TermEntry next() throws IOException {
+			switch (format) {
+			case 0:
+				long head = dis.readLong();
+				if (head == TermEntry.serialVersionUID) {
+					format = FORMAT_V1;
+					return instance.readV1(dis);
+				}
+				if (head != STREAM_MAGIC) {
+					throw new DataFormatException("Not a stream of TermEntrys", null, head);
+				}
+				int version = dis.readUnsignedByte();
+				if (version != FORMAT_V2) {
+					throw new DataFormatException("Unsupported TermEntry format version", null, version);
+				}
+				format = version;
+				return instance.readEntry(dis);
+			case FORMAT_V1:
+				return instance.readObject(dis);
+			default:
+				return instance.readEntry(dis);
+			}
+		}
+
+		/**
+		** @return The format of the stream, or 0 if nothing has been read yet
+		*/
+		public int getFormat() {
+			return format;
+		}
+
+	}
+
 }
@@ -51,6 +51,10 @@ public class TermIndexEntry extends TermEntry {
 		return entry == this || (entry instanceof TermIndexEntry) && index.equals(((TermIndexEntry)entry).index);
 	}
 
+	@Override public Object target() {
+		return index;
+	}
+
 	@Override public int hashCode() {
 		return super.hashCode() ^ index.hashCode();
 	}
@@ -4,6 +4,7 @@
 package plugins.Library.index;
 
 import plugins.Library.index.TermEntry.EntryType;
+import plugins.Library.util.WeakInterner;
 
 import freenet.keys.FreenetURI;
 import freenet.support.SortedIntSet;
@@ -29,6 +30,15 @@ public class TermPageEntry extends TermEntry {
 	*/
 	final public FreenetURI page;
 
+	/**
+	** JVM-wide pool of the {@link #page}s of all entries. A page usually
+	** appears under many terms, and across many indexes, so this lets all of
+	** its entries share the same {@link FreenetURI} object, rather than each
+	** having its own copy. This also lets {@link
+	** plugins.Library.io.YamlReaderWriter} write the URI only once per node.
+	*/
+	final public static WeakInterner<FreenetURI> pages = new WeakInterner<FreenetURI>();
+
 	/** Positions where the term occurs. May be null if we don't have that data. 
 	 * Specified as SortedSet<Integer> for ObjectBlueprint but will really always be a SortedIntSet. */
 	final public Set<Integer> positions;
@@ -74,7 +84,7 @@ public class TermPageEntry extends TermEntry {
 		if (u == null) {
 			throw new IllegalArgumentException("can't have a null page");
 		}
-		page = u.intern(); // OPT LOW make the translator use the same URI object as from the URI table?
+		page = internPage(u);
 		title = t == null ? null : t.intern();
 		if(p == null) {
 			posFragments = null;
@@ -98,7 +108,7 @@ public class TermPageEntry extends TermEntry {
 		if (u == null) {
 			throw new IllegalArgumentException("can't have a null page");
 		}
-		page = u.intern(); // OPT LOW make the translator use the same URI object as from the URI table?
+		page = internPage(u);
 		title = t;
 		if(pos != null) {
 			if(pos instanceof SortedIntSet)
@@ -129,6 +139,15 @@ public class TermPageEntry extends TermEntry {
 			posFragments = null;
 	}
 	
+	/**
+	** @return The canonical instance of the given page URI from {@link #pages}
+	*/
+	public static FreenetURI internPage(FreenetURI u) {
+		FreenetURI p = pages.get(u);
+		// only intern the parts of the URI the first time we see it
+		return (p == null)? pages.intern(u.intern()): p;
+	}
+
 	public TermPageEntry(TermPageEntry t, float newRel) {
 		super(t, newRel);
 		this.page = t.page;
@@ -163,6 +182,10 @@ public class TermPageEntry extends TermEntry {
 		return entry == this || (entry instanceof TermPageEntry) && page.equals(((TermPageEntry)entry).page);
 	}
 
+	@Override public Object target() {
+		return page;
+	}
+
 	@Override public int hashCode() {
 		return super.hashCode() ^ page.hashCode();
 	}
@@ -48,6 +48,10 @@ public class TermTermEntry extends TermEntry {
 		return entry == this || (entry instanceof TermTermEntry) && term.equals(((TermTermEntry)entry).term);
 	}
 
+	@Override public Object target() {
+		return term;
+	}
+
 	@Override public int hashCode() {
 		return super.hashCode() ^ term.hashCode();
 	}
@@ -0,0 +1,450 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package plugins.Library.io;
+
+import plugins.Library.io.DataFormatException;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Date;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/* class definitions added to the binary format */
+import plugins.Library.io.serial.Packer;
+import plugins.Library.index.TermEntry;
+import plugins.Library.index.TermEntryReaderWriter;
+import freenet.keys.FreenetURI;
+
+
+/**
+** Converts between an object and a stream containing a compact binary
+** encoding of it. This is an alternative to {@link YamlReaderWriter} for the
+** same low-level objects (ie. trees of {@link Map}s, {@link List}s and
+** scalars, as produced by the various {@link
+** plugins.Library.io.serial.Translator}s), and is several times smaller and
+** faster to parse.
+**
+** The stream consists of a header ({@link #MAGIC} then {@link #VERSION}),
+** followed by a single value. Each value is a one-byte tag, followed by a
+** tag-specific payload. Lengths and integers are written as (zig-zag, for
+** signed values) variable-length integers. {@link TermEntry}s are written
+** using {@link TermEntryReaderWriter#writeEntry}.
+**
+** {@link FreenetURI}s, including the targets of {@link TermEntry}s, go
+** through a {@link URIDictionary} for the stream, so each distinct URI is
+** written in full only once per node or bin, and after that as a small
+** integer id. A page typically appears under many of the terms in the same
+** node, so this saves a lot of space.
+**
+** Streams can also be read straight from a {@link ByteBuffer}, such as a
+** slice of a mapped file; see {@link ObjectBufferReader}.
+**
+** Unlike YAML, this does not preserve object identity (aliases), and only
+** supports the types listed in the {@code T_*} constants. Notably, it does
+** not support arbitrary beans such as {@link plugins.Library.index.URIEntry},
+** so it cannot be used for the ''uri table'' of an index.
+*/
+public class BinaryReaderWriter
+implements ObjectBufferReader, ObjectStreamWriter {
+
+	final public static String MIME_TYPE = "application/octet-stream";
+	final public static String FILE_EXTENSION = ".bin";
+
+	/** "LbIn" */
+	final public static int MAGIC = 0x4c62496e;
+	final public static int VERSION = 1;
+
+	final protected static int T_NULL = 0x00;
+	final protected static int T_FALSE = 0x01;
+	final protected static int T_TRUE = 0x02;
+	final protected static int T_INT = 0x03;
+	final protected static int T_LONG = 0x04;
+	final protected static int T_FLOAT = 0x05;
+	final protected static int T_DOUBLE = 0x06;
+	final protected static int T_STRING = 0x07;
+	final protected static int T_BYTES = 0x08;
+	final protected static int T_LIST = 0x09;
+	final protected static int T_MAP = 0x0a;
+	final protected static int T_SET = 0x0b;
+	final protected static int T_DATE = 0x0c;
+	final protected static int T_URI = 0x10;
+	final protected static int T_TERM_ENTRY = 0x11;
+	final protected static int T_BIN_INFO = 0x12;
+
+	/**
+	** Upper bound on the initial capacity of collections being read, so that
+	** a corrupt length doesn't make us allocate huge amounts of memory.
+	*/
+	final protected static int MAX_INITIAL_CAPACITY = 0x1000;
+
+	/**
+	** Maximum length of a string or byte array, in bytes. Longer ones are
+	** rejected when read, so that a corrupt length doesn't make us allocate
+	** up to 2GiB. Nothing stored in an index comes close to this.
+	*/
+	final public static int MAX_BYTES_LENGTH = 0x1000000;
+
+	/**
+	** Size of the chunks in which strings and byte arrays are read, so that a
+	** length that is in range, but longer than the rest of the stream, fails
+	** at the end of the stream rather than allocating the whole length first.
+	*/
+	final protected static int READ_CHUNK = 0x10000;
+
+	final protected TermEntryReaderWriter terw = TermEntryReaderWriter.getInstance();
+
+	public BinaryReaderWriter() {
+	}
+
+	/*@Override**/ public Object readObject(InputStream is) throws IOException {
+		return readObject(new DataInputStream(new BufferedInputStream(is)));
+	}
+
+	/*@Override**/ public Object readObject(ByteBuffer buf) throws IOException {
+		return readObject(new DataInputStream(new ByteBufferInputStream(buf)));
+	}
+
+	/**
+	** Read the header and the value from an already-buffered stream.
+	*/
+	protected Object readObject(DataInputStream dis) throws IOException {
+		int magic = dis.readInt();
+		if (magic != MAGIC) {
+			throw new DataFormatException("Not a binary Library stream", null, magic);
+		}
+		int version = dis.readUnsignedByte();
+		if (version != VERSION) {
+			throw new DataFormatException("Unsupported binary format version", null, version);
+		}
+		return read(dis, new URIDictionary());
+	}
+
+	/*@Override**/ public void writeObject(Object o, OutputStream os) throws IOException {
+		DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(os));
+		dos.writeInt(MAGIC);
+		dos.writeByte(VERSION);
+		write(o, dos, new URIDictionary());
+		dos.flush();
+	}
+
+	/**
+	** Read a single tagged value from the stream.
+	**
+	** @param dict Dictionary of the URIs in the stream
+	*/
+	public Object read(DataInputStream dis, URIDictionary dict) throws IOException {
+		int tag = dis.readUnsignedByte();
+		switch (tag) {
+		case T_NULL:
+			return null;
+		case T_FALSE:
+			return Boolean.FALSE;
+		case T_TRUE:
+			return Boolean.TRUE;
+		case T_INT:
+			return Integer.valueOf(unzigzag(readVarInt(dis)));
+		case T_LONG:
+			return Long.valueOf(unzigzag(readVarLong(dis)));
+		case T_FLOAT:
+			return Float.valueOf(dis.readFloat());
+		case T_DOUBLE:
+			return Double.valueOf(dis.readDouble());
+		case T_STRING:
+			return readString(dis);
+		case T_BYTES:
+			return readBytes(dis);
+		case T_LIST:
+			int ls = readLength(dis);
+			List<Object> list = new ArrayList<Object>(Math.min(ls, MAX_INITIAL_CAPACITY));
+			for (int i=0; i<ls; ++i) {
+				list.add(read(dis, dict));
+			}
+			return list;
+		case T_MAP:
+			int ms = readLength(dis);
+			Map<Object, Object> map = new LinkedHashMap<Object, Object>(Math.min(ms, MAX_INITIAL_CAPACITY)<<1);
+			for (int i=0; i<ms; ++i) {
+				Object k = read(dis, dict);
+				map.put(k, read(dis, dict));
+			}
+			return map;
+		case T_SET:
+			int ss = readLength(dis);
+			Set<Object> set = new LinkedHashSet<Object>(Math.min(ss, MAX_INITIAL_CAPACITY)<<1);
+			for (int i=0; i<ss; ++i) {
+				set.add(read(dis, dict));
+			}
+			return set;
+		case T_DATE:
+			return new Date(dis.readLong());
+		case T_URI:
+			return readURI(dis, dict);
+		case T_TERM_ENTRY:
+			return terw.readEntry(dis, dict);
+		case T_BIN_INFO:
+			Object id = read(dis, dict);
+			return new Packer.BinInfo(id, unzigzag(readVarInt(dis)));
+		default:
+			throw new DataFormatException("Unrecognised tag in binary stream", null, tag);
+		}
+	}
+
+	/**
+	** Write a single tagged value to the stream.
+	**
+	** @param dict Dictionary of the URIs in the stream
+	** @throws DataFormatException if the object (or any object it contains)
+	**         is not of a supported type
+	*/
+	public void write(Object o, DataOutputStream dos, URIDictionary dict) throws IOException {
+		if (o == null) {
+			dos.writeByte(T_NULL);
+		} else if (o instanceof String) {
+			dos.writeByte(T_STRING);
+			writeString((String)o, dos);
+		} else if (o instanceof Integer) {
+			dos.writeByte(T_INT);
+			writeVarInt(zigzag((Integer)o), dos);
+		} else if (o instanceof Long) {
+			dos.writeByte(T_LONG);
+			writeVarLong(zigzag((Long)o), dos);
+		} else if (o instanceof Boolean) {
+			dos.writeByte((Boolean)o? T_TRUE: T_FALSE);
+		} else if (o instanceof Float) {
+			dos.writeByte(T_FLOAT);
+			dos.writeFloat((Float)o);
+		} else if (o instanceof Double) {
+			dos.writeByte(T_DOUBLE);
+			dos.writeDouble((Double)o);
+		} else if (o instanceof TermEntry) {
+			dos.writeByte(T_TERM_ENTRY);
+			terw.writeEntry((TermEntry)o, dos, dict);
+		} else if (o instanceof FreenetURI) {
+			dos.writeByte(T_URI);
+			writeURI((FreenetURI)o, dos, dict);
+		} else if (o instanceof byte[]) {
+			dos.writeByte(T_BYTES);
+			writeBytes((byte[])o, dos);
+		} else if (o instanceof Map) {
+			Map<?, ?> map = (Map<?, ?>)o;
+			dos.writeByte(T_MAP);
+			writeVarInt(map.size(), dos);
+			for (Map.Entry<?, ?> en: map.entrySet()) {
+				write(en.getKey(), dos, dict);
+				write(en.getValue(), dos, dict);
+			}
+		} else if (o instanceof List) {
+			dos.writeByte(T_LIST);
+			writeCollection((List<?>)o, dos, dict);
+		} else if (o instanceof Set) {
+			dos.writeByte(T_SET);
+			writeCollection((Set<?>)o, dos, dict);
+		} else if (o instanceof Packer.BinInfo) {
+			Packer.BinInfo inf = (Packer.BinInfo)o;
+			dos.writeByte(T_BIN_INFO);
+			write(inf.getID(), dos, dict);
+			writeVarInt(zigzag(inf.getWeight()), dos);
+		} else if (o instanceof Date) {
+			dos.writeByte(T_DATE);
+			dos.writeLong(((Date)o).getTime());
+		} else {
+			throw new DataFormatException("Binary format does not support objects of type " + o.getClass().getName(), null, o);
+		}
+	}
+
+	protected void writeCollection(Collection<?> coll, DataOutputStream dos, URIDictionary dict) throws IOException {
+		writeVarInt(coll.size(), dos);
+		for (Object o: coll) {
+			write(o, dos, dict);
+		}
+	}
+
+	/**
+	** Writes a URI through a dictionary, or in full if it is {@code null}.
+	*/
+	public static void writeURI(FreenetURI uri, DataOutputStream dos, URIDictionary dict) throws IOException {
+		if (dict == null) {
+			uri.writeFullBinaryKeyWithLength(dos);
+		} else {
+			dict.writeURI(uri, dos);
+		}
+	}
+
+	/**
+	** Reads a URI through a dictionary, or in full if it is {@code null}.
+	*/
+	public static FreenetURI readURI(DataInputStream dis, URIDictionary dict) throws IOException {
+		return (dict == null)? FreenetURI.readFullBinaryKeyWithLength(dis): dict.readURI(dis);
+	}
+
+	/**
+	** Writes a string as a length-prefixed UTF-8 byte sequence. Unlike {@link
+	** DataOutputStream#writeUTF(String)}, this has no 64KiB limit, only that of
+	** {@link #MAX_BYTES_LENGTH}.
+	*/
+	public static void writeString(String s, DataOutputStream dos) throws IOException {
+		writeBytes(s.getBytes("UTF-8"), dos);
+	}
+
+	/**
+	** Writes a length-prefixed byte array.
+	**
+	** @throws DataFormatException if it is longer than {@link
+	**         #MAX_BYTES_LENGTH}, and so could not be read back
+	*/
+	public static void writeBytes(byte[] buf, DataOutputStream dos) throws IOException {
+		if (buf.length > MAX_BYTES_LENGTH) {
+			throw new DataFormatException("Byte array too long for binary format", null, buf.length);
+		}
+		writeVarInt(buf.length, dos);
+		dos.write(buf);
+	}
+
+	public static String readString(DataInputStream dis) throws IOException {
+		return new String(readBytes(dis), "UTF-8");
+	}
+
+	/**
+	** Reads a length-prefixed byte array, of at most {@link
+	** #MAX_BYTES_LENGTH} bytes.
+	*/
+	public static byte[] readBytes(DataInputStream dis) throws IOException {
+		int len = readLength(dis);
+		if (len > MAX_BYTES_LENGTH) {
+			throw new DataFormatException("Byte array too long in binary stream", null, len);
+		}
+		byte[] buf = new byte[Math.min(len, READ_CHUNK)];
+		for (int off=0; off<len;) {
+			if (off == buf.length) {
+				byte[] nbuf = new byte[(int)Math.min((long)buf.length<<1, len)];
+				System.arraycopy(buf, 0, nbuf, 0, off);
+				buf = nbuf;
+			}
+			dis.readFully(buf, off, buf.length - off);
+			off = buf.length;
+		}
+		return buf;
+	}
+
+	/**
+	** Writes an unsigned variable-length integer, 7 bits per byte, least
+	** significant group first; the high bit of each byte is set if more bytes
+	** follow.
+	*/
+	public static void writeVarInt(int v, DataOutputStream dos) throws IOException {
+		while ((v & ~0x7F) != 0) {
+			dos.writeByte((v & 0x7F) | 0x80);
+			v >>>= 7;
+		}
+		dos.writeByte(v);
+	}
+
+	public static int readVarInt(DataInputStream dis) throws IOException {
+		int v = 0;
+		for (int shift=0; shift<32; shift+=7) {
+			int b = dis.readUnsignedByte();
+			v |= (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) { return v; }
+		}
+		throw new DataFormatException("Malformed variable-length integer", null, v);
+	}
+
+	public static void writeVarLong(long v, DataOutputStream dos) throws IOException {
+		while ((v & ~0x7FL) != 0) {
+			dos.writeByte((int)(v & 0x7F) | 0x80);
+			v >>>= 7;
+		}
+		dos.writeByte((int)v);
+	}
+
+	public static long readVarLong(DataInputStream dis) throws IOException {
+		long v = 0;
+		for (int shift=0; shift<64; shift+=7) {
+			int b = dis.readUnsignedByte();
+			v |= (long)(b & 0x7F) << shift;
+			if ((b & 0x80) == 0) { return v; }
+		}
+		throw new DataFormatException("Malformed variable-length integer", null, v);
+	}
+
+	/**
+	** Reads a variable-length integer that must be a valid (non-negative)
+	** length.
+	*/
+	protected static int readLength(DataInputStream dis) throws IOException {
+		int len = readVarInt(dis);
+		if (len < 0) {
+			throw new DataFormatException("Negative length in binary stream", null, len);
+		}
+		return len;
+	}
+
+	/** Maps signed to unsigned integers, so that small magnitudes stay short. */
+	public static int zigzag(int v) { return (v << 1) ^ (v >> 31); }
+	public static int unzigzag(int v) { return (v >>> 1) ^ -(v & 1); }
+	public static long zigzag(long v) { return (v << 1) ^ (v >> 63); }
+	public static long unzigzag(long v) { return (v >>> 1) ^ -(v & 1); }
+
+	/**
+	** Gives each distinct {@link FreenetURI} in a stream a small integer id,
+	** in the order they first appear. The first occurrence of a URI is
+	** written as 0 followed by the URI in full; later occurrences are written
+	** as its id plus 1. Reading and writing must go through the same sequence
+	** of calls, so a fresh dictionary is needed for each stream.
+	*/
+	public static class URIDictionary {
+
+		/** Ids of the URIs written so far; not used for reading. */
+		final protected Map<FreenetURI, Integer> ids = new HashMap<FreenetURI, Integer>();
+		/** URIs read or written so far, in order of their ids. */
+		final protected List<FreenetURI> uris = new ArrayList<FreenetURI>();
+
+		public void writeURI(FreenetURI uri, DataOutputStream dos) throws IOException {
+			Integer id = ids.get(uri);
+			if (id != null) {
+				writeVarInt(id + 1, dos);
+				return;
+			}
+			ids.put(uri, uris.size());
+			uris.add(uri);
+			writeVarInt(0, dos);
+			uri.writeFullBinaryKeyWithLength(dos);
+		}
+
+		public FreenetURI readURI(DataInputStream dis) throws IOException {
+			int id = readVarInt(dis);
+			if (id == 0) {
+				FreenetURI uri = FreenetURI.readFullBinaryKeyWithLength(dis);
+				uris.add(uri);
+				return uri;
+			}
+			if (id < 0 || id > uris.size()) {
+				throw new DataFormatException("Undefined URI id in binary stream", null, id);
+			}
+			return uris.get(id - 1);
+		}
+
+		/**
+		** @return Number of distinct URIs read or written so far
+		*/
+		public int size() {
+			return uris.size();
+		}
+
+	}
+
+}
@@ -0,0 +1,293 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package plugins.Library.io;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+** A cache of blocks of data on disk, with a limit on the total size of the
+** blocks. Each block is stored as a file in a single directory, named after
+** its key, so keys must be valid filenames. Once the total size goes over the
+** limit, the least recently used blocks are deleted.
+**
+** The index of blocks is kept in memory, and is rebuilt when the cache is
+** created by scanning the directory. The last-modified time of each file is
+** used as its access time, so that the order survives a restart; it is only
+** updated every {@link #TOUCH_INTERVAL} ms, to avoid writing to the disk on
+** every hit.
+**
+** Blocks are first written to a temporary file, then renamed into place, so
+** a partly-written block is never read back. Temporary files left over from
+** a crash are deleted when the directory is scanned.
+*/
+public class BlockCache {
+
+	/** Default size limit, in bytes. */
+	final public static long DEFAULT_MAX_BYTES = 1L << 30;
+
+	/** Minimum interval between updates of the access time of a file, in ms. */
+	final public static long TOUCH_INTERVAL = 60000;
+
+	/** Suffix of temporary files. Keys must not end with this. */
+	final public static String TEMP_SUFFIX = ".tmp";
+
+	/**
+	** A block in the cache.
+	*/
+	protected static class Block {
+		final long size;
+		long touched;
+		Block(long s, long t) { size = s; touched = t; }
+	}
+
+	final protected File dir;
+
+	/**
+	** Blocks in the cache, in access order.
+	*/
+	final protected LinkedHashMap<String, Block> index = new LinkedHashMap<String, Block>(0x100, 0.75f, true);
+
+	protected long maxBytes;
+	protected long bytes = 0;
+	protected long hits = 0;
+	protected long misses = 0;
+	protected long evictions = 0;
+
+	/**
+	** Creates a cache for the given directory, creating the directory if it
+	** doesn't exist, and indexes the blocks that are already in it. If they
+	** take up more than the limit, the oldest ones are deleted.
+	**
+	** @param d The directory
+	** @param max The size limit, in bytes
+	*/
+	public BlockCache(File d, long max) {
+		if (max < 0) {
+			throw new IllegalArgumentException("BlockCache: negative limit");
+		}
+		dir = d;
+		maxBytes = max;
+		dir.mkdirs();
+		scan();
+	}
+
+	public BlockCache(File d) {
+		this(d, DEFAULT_MAX_BYTES);
+	}
+
+	/**
+	** Rebuilds the index from the files in the directory, in order of their
+	** last-modified time. Temporary and empty files are deleted.
+	*/
+	protected synchronized void scan() {
+		index.clear();
+		bytes = 0;
+		File[] files = dir.listFiles();
+		if (files == null) { return; }
+		final long[] times = new long[files.length];
+		Integer[] order = new Integer[files.length];
+		for (int i=0; i<files.length; ++i) {
+			times[i] = files[i].lastModified();
+			order[i] = i;
+		}
+		Arrays.sort(order, new Comparator<Integer>() {
+			/*@Override**/ public int compare(Integer i, Integer j) {
+				return (times[i] < times[j])? -1: (times[i] > times[j])? 1: 0;
+			}
+		});
+		for (Integer i: order) {
+			File f = files[i];
+			if (!f.isFile()) { continue; }
+			long size = f.length();
+			if (size == 0 || f.getName().endsWith(TEMP_SUFFIX)) {
+				f.delete();
+				continue;
+			}
+			index.put(f.getName(), new Block(size, times[i]));
+			bytes += size;
+		}
+		trim();
+	}
+
+	/**
+	** Opens a block for reading. Once the stream is open, it can still be read
+	** even if the block is evicted, on systems that allow open files to be
+	** deleted.
+	**
+	** @param key The key of the block
+	** @return A stream of the block's data, or {@code null} if it isn't in the
+	**         cache.
+	*/
+	public synchronized InputStream get(String key) {
+		Block b = index.get(key);
+		if (b != null) {
+			File f = new File(dir, key);
+			try {
+				InputStream is = new FileInputStream(f);
+				++hits;
+				long now = System.currentTimeMillis();
+				if (now - b.touched > TOUCH_INTERVAL) {
+					b.touched = now;
+					f.setLastModified(now);
+				}
+				return is;
+			} catch (FileNotFoundException e) {
+				// deleted by something else
+				index.remove(key);
+				bytes -= b.size;
+			}
+		}
+		++misses;
+		return null;
+	}
+
+	/**
+	** @return Whether the given block is in the cache. This does not count as
+	**         an access.
+	*/
+	public synchronized boolean contains(String key) {
+		return index.containsKey(key);
+	}
+
+	/**
+	** Adds a block to the cache, replacing any block with the same key, then
+	** evicts the least recently used blocks if this takes the cache over its
+	** limit. Blocks that are empty or bigger than the limit are not added.
+	**
+	** The data is copied to a temporary file without holding the lock on the
+	** cache, so other blocks can be read in the meantime.
+	**
+	** @param key The key of the block
+	** @param in The data; this is read to the end but not closed
+	** @return Whether the block was added
+	** @throws IOException if the data could not be read or written
+	*/
+	public boolean put(String key, InputStream in) throws IOException {
+		if (key.endsWith(TEMP_SUFFIX)) {
+			throw new IllegalArgumentException("BlockCache: bad key " + key);
+		}
+		File tmp = File.createTempFile("block-", TEMP_SUFFIX, dir);
+		long size = 0;
+		try {
+			OutputStream os = new FileOutputStream(tmp);
+			try {
+				byte[] buf = new byte[0x10000];
+				int n;
+				while ((n = in.read(buf)) > 0) {
+					os.write(buf, 0, n);
+					size += n;
+				}
+			} finally {
+				os.close();
+			}
+		} catch (IOException e) {
+			tmp.delete();
+			throw e;
+		}
+
+		synchronized (this) {
+			if (size == 0 || size > maxBytes) {
+				tmp.delete();
+				return false;
+			}
+			File f = new File(dir, key);
+			// renameTo() does not replace existing files on some platforms
+			if (!tmp.renameTo(f) && !(f.delete() && tmp.renameTo(f))) {
+				tmp.delete();
+				throw new IOException("BlockCache: could not rename " + tmp + " to " + f);
+			}
+			Block old = index.put(key, new Block(size, f.lastModified()));
+			if (old != null) { bytes -= old.size; }
+			bytes += size;
+			trim();
+			return true;
+		}
+	}
+
+	/**
+	** Removes a block from the cache.
+	**
+	** @return Whether the block was in the cache
+	*/
+	public synchronized boolean remove(String key) {
+		Block b = index.remove(key);
+		if (b == null) { return false; }
+		bytes -= b.size;
+		new File(dir, key).delete();
+		return true;
+	}
+
+	/**
+	** Evicts the least recently used blocks until the cache is within its
+	** limit.
+	*/
+	protected void trim() {
+		for (Iterator<Map.Entry<String, Block>> it = index.entrySet().iterator(); bytes > maxBytes && it.hasNext();) {
+			Map.Entry<String, Block> en = it.next();
+			new File(dir, en.getKey()).delete();
+			bytes -= en.getValue().size;
+			it.remove();
+			++evictions;
+		}
+	}
+
+	public File getDirectory() {
+		return dir;
+	}
+
+	public synchronized void setMaxBytes(long max) {
+		if (max < 0) {
+			throw new IllegalArgumentException("BlockCache: negative limit");
+		}
+		maxBytes = max;
+		trim();
+	}
+
+	public synchronized long getMaxBytes() {
+		return maxBytes;
+	}
+
+	/**
+	** @return Total size of the blocks in the cache
+	*/
+	public synchronized long getBytes() {
+		return bytes;
+	}
+
+	/**
+	** @return Number of blocks in the cache
+	*/
+	public synchronized int size() {
+		return index.size();
+	}
+
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	public synchronized long getEvictions() {
+		return evictions;
+	}
+
+	@Override public synchronized String toString() {
+		return "BlockCache: " + index.size() + " blocks, " + bytes + "/" + maxBytes + " bytes; "
+		     + hits + " hits, " + misses + " misses, " + evictions + " evictions";
+	}
+
+}
@@ -0,0 +1,68 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package plugins.Library.io;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+** An {@link InputStream} that reads the remaining bytes of a {@link
+** ByteBuffer}, without copying them first. Reading advances the position of
+** the buffer, so callers that share a buffer should pass in a {@link
+** ByteBuffer#duplicate()} of it.
+**
+** Since the data is already in memory, this does not need to be wrapped in a
+** {@link java.io.BufferedInputStream}.
+*/
+public class ByteBufferInputStream extends InputStream {
+
+	final protected ByteBuffer buf;
+
+	public ByteBufferInputStream(ByteBuffer b) {
+		buf = b;
+	}
+
+	/**
+	** @return The underlying buffer
+	*/
+	public ByteBuffer getBuffer() {
+		return buf;
+	}
+
+	@Override public int read() {
+		return buf.hasRemaining()? buf.get() & 0xFF: -1;
+	}
+
+	@Override public int read(byte[] b, int off, int len) {
+		if (len == 0) { return 0; }
+		if (!buf.hasRemaining()) { return -1; }
+		len = Math.min(len, buf.remaining());
+		buf.get(b, off, len);
+		return len;
+	}
+
+	@Override public long skip(long n) {
+		if (n <= 0) { return 0; }
+		int k = (int)Math.min(n, buf.remaining());
+		buf.position(buf.position() + k);
+		return k;
+	}
+
+	@Override public int available() {
+		return buf.remaining();
+	}
+
+	@Override public boolean markSupported() {
+		return true;
+	}
+
+	@Override public void mark(int readlimit) {
+		buf.mark();
+	}
+
+	@Override public void reset() {
+		buf.reset();
+	}
+
+}
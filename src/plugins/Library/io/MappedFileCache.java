@@ -0,0 +1,202 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package plugins.Library.io;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+** A cache of read-only memory mappings of whole files, so that objects can be
+** read from them without system calls or copying (see {@link
+** ObjectBufferReader}). The total size of the mappings that the cache holds,
+** and their number, is kept under a limit by dropping the least recently used
+** ones.
+**
+** '''The limits do not bound the address space or the number of mappings of
+** the process.''' Java has no way to unmap a file explicitly (without risking
+** a crash if the mapping is still being read by another thread), so a dropped
+** mapping stays mapped until the garbage collector finds it, however long
+** that takes. Every mapping that is dropped or replaced, eg. by mapping a file
+** again after it has grown, therefore adds to the total until the next
+** collection. If that runs out of address space or of mappings (eg. Linux's
+** {@code vm.max_map_count}), the JDK runs a full collection before giving up,
+** which stalls the thread that asked for the mapping. So only map files that
+** are large and no longer change, and rarely more of them than the limits
+** allow.
+**
+** '''Files must not be truncated or overwritten while they are mapped''';
+** reading a mapping past the end of its file can crash the JVM. Files that
+** are only appended to are fine; see {@link #map(File, long)}. Deleting a file
+** that is mapped is fine on POSIX systems.
+*/
+public class MappedFileCache {
+
+	/** Default limit on the total size of the mappings, in bytes. */
+	final public static long DEFAULT_MAX_BYTES = 256 << 20;
+
+	/**
+	** Default limit on the number of mappings. Operating systems limit the
+	** number of mappings per process (eg. Linux's {@code vm.max_map_count}),
+	** so this must be well below that.
+	*/
+	final public static int DEFAULT_MAX_MAPS = 0x1000;
+
+	/** Size of a page; each mapping takes up at least one. */
+	final protected static int PAGE_SIZE = 4096;
+
+	/**
+	** A cache shared by all archivers that don't have their own.
+	*/
+	final public static MappedFileCache DEFAULT = new MappedFileCache(DEFAULT_MAX_BYTES, DEFAULT_MAX_MAPS);
+
+	/**
+	** Mappings, in access order.
+	*/
+	final protected LinkedHashMap<File, MappedByteBuffer> maps = new LinkedHashMap<File, MappedByteBuffer>(0x100, 0.75f, true);
+
+	protected long maxBytes;
+	protected int maxMaps;
+	protected long bytes = 0;
+	protected long hits = 0;
+	protected long misses = 0;
+	protected long evictions = 0;
+
+	public MappedFileCache(long max, int maxn) {
+		if (max < 0 || maxn < 0) {
+			throw new IllegalArgumentException("MappedFileCache: negative limit");
+		}
+		maxBytes = max;
+		maxMaps = maxn;
+	}
+
+	protected static long weigh(ByteBuffer buf) {
+		return ((long)buf.capacity() + PAGE_SIZE - 1) / PAGE_SIZE * PAGE_SIZE;
+	}
+
+	/**
+	** Equivalent to {@link #map(File, long) map(f, 0)}.
+	*/
+	public ByteBuffer map(File f) throws IOException {
+		return map(f, 0);
+	}
+
+	/**
+	** Returns a mapping of the whole of a file. If the file is already mapped,
+	** but the mapping is shorter than {@code minLength} (ie. the file has been
+	** appended to since), it is mapped again; the old mapping lingers until it
+	** is collected (see above), so don't use this on files that grow often.
+	**
+	** @param f The file
+	** @param minLength The minimum length of the mapping
+	** @return A read-only buffer of the file's contents, with its own position
+	**         and limit, or {@code null} if the file is too big to map.
+	** @throws IOException if the file could not be mapped, or is shorter than
+	**         {@code minLength}
+	*/
+	public synchronized ByteBuffer map(File f, long minLength) throws IOException {
+		MappedByteBuffer buf = maps.get(f);
+		if (buf != null && buf.capacity() >= minLength) {
+			++hits;
+			return buf.duplicate();
+		}
+		++misses;
+		if (buf != null) {
+			maps.remove(f);
+			bytes -= weigh(buf);
+		}
+
+		RandomAccessFile raf = new RandomAccessFile(f, "r");
+		try {
+			long size = raf.length();
+			if (size < minLength) {
+				throw new IOException("MappedFileCache: " + f + " is shorter than " + minLength + " bytes");
+			}
+			if (size > Integer.MAX_VALUE || size > maxBytes) { return null; }
+			// the mapping stays valid after the channel is closed
+			buf = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, size);
+		} finally {
+			raf.close();
+		}
+
+		maps.put(f, buf);
+		bytes += weigh(buf);
+		trim();
+		return buf.duplicate();
+	}
+
+	/**
+	** Drops the mapping of a file, if any, eg. because it is being deleted.
+	*/
+	public synchronized void forget(File f) {
+		MappedByteBuffer buf = maps.remove(f);
+		if (buf != null) { bytes -= weigh(buf); }
+	}
+
+	/**
+	** Drops the least recently used mappings until the cache is within its
+	** limits.
+	*/
+	protected void trim() {
+		for (Iterator<MappedByteBuffer> it = maps.values().iterator(); (bytes > maxBytes || maps.size() > maxMaps) && it.hasNext();) {
+			bytes -= weigh(it.next());
+			it.remove();
+			++evictions;
+		}
+	}
+
+	public synchronized void clear() {
+		maps.clear();
+		bytes = 0;
+	}
+
+	public synchronized void setMaxBytes(long max) {
+		if (max < 0) {
+			throw new IllegalArgumentException("MappedFileCache: negative limit");
+		}
+		maxBytes = max;
+		trim();
+	}
+
+	public synchronized long getMaxBytes() {
+		return maxBytes;
+	}
+
+	/**
+	** @return Total size of the mappings, rounded up to whole pages
+	*/
+	public synchronized long getBytes() {
+		return bytes;
+	}
+
+	/**
+	** @return Number of mappings
+	*/
+	public synchronized int size() {
+		return maps.size();
+	}
+
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	public synchronized long getEvictions() {
+		return evictions;
+	}
+
+	@Override public synchronized String toString() {
+		return "MappedFileCache: " + maps.size() + " files, " + bytes + "/" + maxBytes + " bytes; "
+		     + hits + " hits, " + misses + " misses, " + evictions + " evictions";
+	}
+
+}
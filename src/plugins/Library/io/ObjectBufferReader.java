@@ -0,0 +1,22 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package plugins.Library.io;
+
+import java.nio.ByteBuffer;
+import java.io.IOException;
+
+/**
+** An {@link ObjectStreamReader} that can also read an object straight from a
+** {@link ByteBuffer}, eg. a slice of a {@link MappedFileCache mapped file},
+** without it having to be copied into a buffered stream first.
+*/
+public interface ObjectBufferReader<T> extends ObjectStreamReader<T> {
+
+	/**
+	** Read and return the object from the remaining bytes of the given
+	** buffer. This may advance the position of the buffer.
+	*/
+	public T readObject(ByteBuffer buf) throws IOException;
+
+}
@@ -122,7 +122,11 @@ implements ObjectStreamReader, ObjectStreamWriter {
 		public ExtendedRepresenter() {
 			this.representers.put(FreenetURI.class, new Represent() {
 				/*@Override**/ public Node representData(Object data) {
-					return representScalar("!FreenetURI", ((FreenetURI) data).toString());
+					Node node = representScalar("!FreenetURI", ((FreenetURI) data).toString());
+					// SnakeYAML only aliases collections by default; entries for
+					// the same page share a URI object, so alias that too
+					representedObjects.put(data, node);
+					return node;
 				}
 			});
 			this.representers.put(Packer.BinInfo.class, new Represent() {
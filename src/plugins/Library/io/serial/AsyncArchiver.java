@@ -0,0 +1,50 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package plugins.Library.io.serial;
+
+import plugins.Library.io.serial.Serialiser.*;
+import plugins.Library.util.exec.Progress;
+import plugins.Library.util.exec.TaskAbortException;
+import plugins.Library.util.func.SafeClosure;
+import plugins.Library.util.func.Tuples.X2;
+
+/**
+** A {@link LiveArchiver} that can also start a {@link Serialiser.Task} and
+** return straight away, instead of holding the calling thread until the task
+** is done. This lets a scheduler keep many slow tasks (eg. network fetches)
+** in progress at once, without a thread waiting on each of them.
+**
+** The callback has the same type as {@link
+** plugins.Library.util.concurrent.ObjectProcessor}'s post-processor, so the
+** latter can be passed in directly; see {@link ParallelSerialiser}.
+*/
+public interface AsyncArchiver<T, P extends Progress> extends LiveArchiver<T, P> {
+
+	/**
+	** Starts a {@link PullTask} and returns without waiting for it to finish.
+	** When it does, {@code post} is invoked with the task, and the {@link
+	** TaskAbortException} that aborted it (or {@code null} on success).
+	**
+	** Implementations must update the progress object as for {@link
+	** LiveArchiver#pullLive(Serialiser.PullTask, Progress)}, and must invoke
+	** {@code post} exactly once, after the progress has been updated. This
+	** may happen in the calling thread (eg. if the data was available
+	** locally) or in any other thread, so {@code post} should not block.
+	*/
+	public void pullAsync(PullTask<T> task, P p, SafeClosure<X2<PullTask<T>, TaskAbortException>> post);
+
+	/**
+	** Starts a {@link PushTask} and returns without waiting for it to finish.
+	** When it does, {@code post} is invoked with the task, and the {@link
+	** TaskAbortException} that aborted it (or {@code null} on success).
+	**
+	** Implementations must update the progress object as for {@link
+	** LiveArchiver#pushLive(Serialiser.PushTask, Progress)}, and must invoke
+	** {@code post} exactly once, after the progress has been updated. This
+	** may happen in the calling thread or in any other thread, so {@code
+	** post} should not block.
+	*/
+	public void pushAsync(PushTask<T> task, P p, SafeClosure<X2<PushTask<T>, TaskAbortException>> post);
+
+}
@@ -7,13 +7,34 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Array;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.channels.FileLock;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
 
+import plugins.Library.io.ByteBufferInputStream;
+import plugins.Library.io.MappedFileCache;
+import plugins.Library.io.ObjectBufferReader;
 import plugins.Library.io.ObjectStreamReader;
 import plugins.Library.io.ObjectStreamWriter;
 import plugins.Library.io.serial.Serialiser.Task;
+import plugins.Library.util.concurrent.Executors;
 import plugins.Library.util.exec.SimpleProgress;
 import plugins.Library.util.exec.TaskAbortException;
+import plugins.Library.util.func.SafeClosure;
+import static plugins.Library.util.func.Tuples.X2; // also imports the class
 
 /**
 ** Converts between a map of {@link String} to {@link Object}, and a file on
@@ -23,10 +44,33 @@ import plugins.Library.util.exec.TaskAbortException;
 ** This class expects {@link Task#meta} to be of type {@link String}, or an
 ** array whose first element is of type {@link String}.
 **
+** Reading or writing a local file is quick, so the {@link AsyncArchiver}
+** methods just do the work in the calling thread and then invoke the
+** callback.
+**
+** If a {@link MappedFileCache} is {@linkplain #setMappedFileCache(MappedFileCache)
+** set}, large files are pulled through it instead of being opened and locked
+** each time. If the reader is an {@link ObjectBufferReader}, it reads the
+** mapping directly. Small files are always read as streams, since each
+** mapping takes up an entry in the process's memory map, however small it
+** is, and a file that is mapped cannot be deleted on some systems.
+**
+** If a {@linkplain #setCommitWindow(long) commit window} is set, pushes are
+** ''group-committed'': each object is written without being synced, and joins
+** a batch that is synced (once per file) when the window closes. A push only
+** completes once its batch is on disk, so a node that refers to other nodes
+** (eg. the root of a tree) is never written until they are durable. Blocking
+** pushes have their batch synced straight away, and {@link #push(Iterable)}
+** writes all its objects before syncing them together. The directory is
+** synced too when a batch includes a newly created file, since otherwise the
+** file's name might not survive a crash even though its contents would.
+** Syncing is off by default, since it costs a lot of throughput, and isn't
+** needed for data that is thrown away after a crash anyway.
+**
 ** @author infinity0
 */
 public class FileArchiver<T>
-implements Archiver<T>, LiveArchiver<T, SimpleProgress> {
+implements Archiver<T>, IterableSerialiser<T>, LiveArchiver<T, SimpleProgress>, AsyncArchiver<T, SimpleProgress> {
 
 	// DEBUG
 	private static boolean testmode = false;
@@ -73,6 +117,58 @@ implements Archiver<T>, LiveArchiver<T, SimpleProgress> {
 	final protected ObjectStreamReader reader;
 	final protected ObjectStreamWriter writer;
 
+	/**
+	** Mapped files to pull from, or {@code null} to read them as streams.
+	*/
+	protected volatile MappedFileCache mapped;
+
+	/**
+	** Files shorter than this are read as streams, even if there is a {@link
+	** #mapped cache of mapped files}.
+	*/
+	public static long MAP_MIN_BYTES = 0x10000;
+
+	/**
+	** A reasonable time to wait for more pushes to join a batch before it is
+	** synced, in milliseconds, for callers that {@linkplain
+	** #setCommitWindow(long) turn on} group commit.
+	*/
+	final public static long DEFAULT_COMMIT_WINDOW = 20;
+
+	/**
+	** Number of pushes after which a batch is synced without waiting for the
+	** rest of the window.
+	*/
+	public static int COMMIT_BATCH_MAX = 0x400;
+
+	/**
+	** Time to wait for more pushes to join a batch before it is synced, in
+	** milliseconds, or negative if pushes are not synced at all.
+	*/
+	protected volatile long commitWindow = -1;
+
+	/**
+	** The batch that new pushes join, or {@code null} if there is none yet.
+	** Guarded by {@link #commitLock}.
+	*/
+	protected Batch batch;
+
+	final protected Object commitLock = new Object();
+
+	/**
+	** Held while a batch is synced, so that only one is synced at a time, and
+	** the next one gathers the pushes that arrive meanwhile.
+	*/
+	final protected Object syncLock = new Object();
+
+	protected long commits = 0;
+
+	/**
+	** Files that were created since they were last synced, whose directory
+	** must also be synced.
+	*/
+	final protected Set<File> created = Collections.synchronizedSet(new HashSet<File>());
+
 	public <S extends ObjectStreamWriter & ObjectStreamReader> FileArchiver(S rw, String pre, String suf, String ext, File parent) {
 		this(rw, rw, pre, suf, ext, parent);
 	}
@@ -89,6 +185,7 @@ implements Archiver<T>, LiveArchiver<T, SimpleProgress> {
 		extension = (ext == null)? "": ext;
 		random = false;
 		parentDir = parent;
+		mapped = null;
 	}
 
 	public FileArchiver(ObjectStreamReader r, ObjectStreamWriter w, boolean rnd, String ext, String prefix, String suffix, File parent) {
@@ -99,6 +196,71 @@ implements Archiver<T>, LiveArchiver<T, SimpleProgress> {
 		extension = (ext == null)? "": ext;
 		random = rnd;
 		parentDir = parent;
+		mapped = null;
+	}
+
+	/**
+	** Set the cache of mapped files to pull from, or {@code null} to read
+	** files as streams. '''Files must not be rewritten while they are
+	** mapped''', so this should only be set if file names are random, or if
+	** files are otherwise never overwritten. Only files of at least {@link
+	** #MAP_MIN_BYTES} are mapped.
+	*/
+	public void setMappedFileCache(MappedFileCache m) {
+		mapped = m;
+	}
+
+	public MappedFileCache getMappedFileCache() {
+		return mapped;
+	}
+
+	/**
+	** Set the time to wait for more pushes to join a batch before it is
+	** synced, or a negative value to not sync pushes at all (the default).
+	** Zero syncs each batch as soon as the previous one is done.
+	*/
+	public void setCommitWindow(long ms) {
+		commitWindow = ms;
+	}
+
+	public long getCommitWindow() {
+		return commitWindow;
+	}
+
+	/**
+	** @return Number of batches that have been synced
+	*/
+	public long getCommits() {
+		synchronized (commitLock) {
+			return commits;
+		}
+	}
+
+	/**
+	** Reads an object from a buffer, directly if the reader supports it.
+	*/
+	protected Object readBuffer(ByteBuffer buf) throws IOException {
+		return (reader instanceof ObjectBufferReader)?
+			((ObjectBufferReader)reader).readObject(buf):
+			reader.readObject(new ByteBufferInputStream(buf));
+	}
+
+	/**
+	** Maps a file to pull from it, if there is a {@link #mapped cache of
+	** mapped files} and the file is large enough to be worth mapping.
+	**
+	** @return The mapping, or {@code null} if the file should be read as a
+	**         stream instead
+	*/
+	protected ByteBuffer map(File file) {
+		MappedFileCache m = mapped;
+		if (m == null || file.length() < MAP_MIN_BYTES) { return null; }
+		try {
+			return m.map(file);
+		} catch (IOException e) {
+			// eg. out of address space; the stream path reports any real error
+			return null;
+		}
 	}
 
 	protected File getFile(Object meta) {
@@ -128,6 +290,234 @@ implements Archiver<T>, LiveArchiver<T, SimpleProgress> {
 		return new File(parentDir, prefix + main + suffix + part + extension);
 	}
 
+	/**
+	** Writes an object without syncing it, and sets its metadata.
+	**
+	** @return The file that must be synced to make the object durable
+	*/
+	protected File write(PushTask<T> t) throws TaskAbortException {
+		if (random) { t.meta = java.util.UUID.randomUUID().toString(); }
+		File file = getFile(t.meta);
+		if (commitWindow >= 0 && !file.exists()) { created.add(file); }
+		try {
+			FileOutputStream os = new FileOutputStream(file);
+			try {
+				FileLock lock = os.getChannel().lock();
+				try {
+					writer.writeObject(t.data, os);
+				} finally {
+					lock.release();
+				}
+			} finally {
+				try { os.close(); } catch (IOException f) { }
+			}
+		} catch (IOException e) {
+			throw new TaskAbortException("FileArchiver could not complete push on " + file, e, true);
+		} catch (RuntimeException e) {
+			throw new TaskAbortException("FileArchiver could not complete push on " + file, e);
+		}
+		return file;
+	}
+
+	/**
+	** Forces a file to be written to disk. A file that has since been deleted
+	** is skipped, rather than created again.
+	*/
+	protected static void sync(File f) throws IOException {
+		if (!f.exists()) { return; }
+		RandomAccessFile raf = new RandomAccessFile(f, "rw");
+		try {
+			raf.getFD().sync();
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	** {@code FileChannel.open(Path, OpenOption...)}, or {@code null} if this
+	** JVM doesn't have it. This is looked up reflectively, since it was only
+	** added in Java 7.
+	*/
+	final private static Method CHANNEL_OPEN;
+	final private static Method FILE_TO_PATH;
+	final private static Object OPEN_READ;
+	static {
+		Method open = null, toPath = null;
+		Object read = null;
+		try {
+			Class<?> pathClass = Class.forName("java.nio.file.Path");
+			Class<?> optClass = Class.forName("java.nio.file.OpenOption");
+			Class<?> stdClass = Class.forName("java.nio.file.StandardOpenOption");
+			read = Array.newInstance(optClass, 1);
+			Array.set(read, 0, stdClass.getField("READ").get(null));
+			open = FileChannel.class.getMethod("open", pathClass, read.getClass());
+			toPath = File.class.getMethod("toPath");
+		} catch (Exception e) {
+			open = null;
+		}
+		CHANNEL_OPEN = open;
+		FILE_TO_PATH = toPath;
+		OPEN_READ = read;
+	}
+
+	/**
+	** Forces a directory's entries, such as the names of files created in it,
+	** to be written to disk. This does nothing on JVMs older than Java 7,
+	** which can't open directories, and on systems that can't sync them (eg.
+	** Windows).
+	*/
+	protected static void syncDirectory(File dir) throws IOException {
+		if (CHANNEL_OPEN == null) { return; }
+		FileChannel ch;
+		try {
+			ch = (FileChannel)CHANNEL_OPEN.invoke(null, FILE_TO_PATH.invoke(dir.getAbsoluteFile()), OPEN_READ);
+		} catch (InvocationTargetException e) {
+			// the directory can't be opened; if it is missing, so is the file
+			return;
+		} catch (IllegalAccessException e) {
+			return;
+		}
+		try {
+			ch.force(true);
+		} catch (IOException e) {
+			// some systems refuse to sync directories
+		} finally {
+			ch.close();
+		}
+	}
+
+	/**
+	** Syncs the given files, then the directories of any that are newly
+	** created.
+	*/
+	protected void syncAll(Collection<File> files) throws IOException {
+		Set<File> dirs = new LinkedHashSet<File>();
+		for (File f: files) {
+			sync(f);
+			if (created.remove(f)) { dirs.add(f.getAbsoluteFile().getParentFile()); }
+		}
+		for (File d: dirs) { syncDirectory(d); }
+	}
+
+	/*========================================================================
+	  group commit
+	 ========================================================================*/
+
+	/**
+	** A group of pushes that are synced together. This runs on the {@link
+	** Executors#SYNC_EXECUTOR}; it only waits for the window to close, and for
+	** the batch before it to be synced, so the pushes that wait for it can run
+	** on worker threads.
+	*/
+	protected class Batch implements Runnable {
+
+		final protected Set<File> files = new LinkedHashSet<File>();
+		final protected List<SafeClosure<IOException>> callbacks = new ArrayList<SafeClosure<IOException>>();
+		protected int size;
+		protected boolean urgent;
+
+		protected boolean done;
+		protected IOException error;
+
+		/*@Override**/ public void run() {
+			synchronized (commitLock) {
+				long end = System.currentTimeMillis() + commitWindow;
+				try {
+					for (long w = end - System.currentTimeMillis(); !urgent && size < COMMIT_BATCH_MAX && w > 0; w = end - System.currentTimeMillis()) {
+						commitLock.wait(w);
+					}
+				} catch (InterruptedException e) {
+					// sync now
+				}
+			}
+
+			IOException ex = null;
+			synchronized (syncLock) {
+				synchronized (commitLock) {
+					if (batch == this) { batch = null; }
+				}
+				try {
+					syncAll(files);
+				} catch (IOException e) {
+					ex = e;
+				}
+				synchronized (commitLock) { ++commits; }
+			}
+
+			synchronized (this) {
+				error = ex;
+				done = true;
+				notifyAll();
+			}
+			for (SafeClosure<IOException> clo: callbacks) { clo.invoke(ex); }
+		}
+
+		/**
+		** Waits for the batch to be synced.
+		**
+		** @throws IOException if it could not be synced
+		*/
+		public synchronized void await() throws IOException {
+			try {
+				while (!done) { wait(); }
+			} catch (InterruptedException e) {
+				throw new InterruptedIOException("FileArchiver was interrupted while waiting for a sync");
+			}
+			if (error != null) { throw error; }
+		}
+
+	}
+
+	/**
+	** Adds a file that has been written to to the open batch, starting a new
+	** batch if there is none.
+	**
+	** @param f The file to sync
+	** @param clo Invoked once the batch has been synced, with the error that
+	**        prevented this, or {@code null} on success. May be {@code null}.
+	** @param urgent Whether to sync the batch without waiting for the window
+	**        to close
+	*/
+	protected Batch enlist(File f, SafeClosure<IOException> clo, boolean urgent) {
+		Batch b;
+		boolean start = false;
+		synchronized (commitLock) {
+			b = batch;
+			if (b == null) {
+				batch = b = new Batch();
+				start = true;
+			}
+			b.files.add(f);
+			++b.size;
+			if (clo != null) { b.callbacks.add(clo); }
+			if (urgent) { b.urgent = true; }
+			if (b.urgent || b.size >= COMMIT_BATCH_MAX) { commitLock.notifyAll(); }
+		}
+		if (start) { Executors.SYNC_EXECUTOR.execute(b); }
+		return b;
+	}
+
+	/**
+	** Syncs everything that has been pushed so far, and waits for this to
+	** finish.
+	*/
+	public void flush() throws IOException {
+		Batch b;
+		synchronized (commitLock) {
+			b = batch;
+			if (b != null) {
+				b.urgent = true;
+				commitLock.notifyAll();
+			}
+		}
+		if (b != null) {
+			b.await();
+		} else {
+			// wait for a batch that is already being synced
+			synchronized (syncLock) { }
+		}
+	}
+
 	/*========================================================================
 	  public interface LiveArchiver
 	 ========================================================================*/
@@ -135,6 +525,11 @@ implements Archiver<T>, LiveArchiver<T, SimpleProgress> {
 	/*@Override**/ public void pull(PullTask<T> t) throws TaskAbortException {
 		File file = getFile(t.meta);
 		try {
+			ByteBuffer buf = map(file);
+			if (buf != null) {
+				t.data = (T)readBuffer(buf);
+				return;
+			}
 			FileInputStream is = new FileInputStream(file);
 			try {
 				FileLock lock = is.getChannel().lock(0L, Long.MAX_VALUE, true); // shared lock for reading
@@ -154,24 +549,12 @@ implements Archiver<T>, LiveArchiver<T, SimpleProgress> {
 	}
 
 	/*@Override**/ public void push(PushTask<T> t) throws TaskAbortException {
-		if (random) { t.meta = java.util.UUID.randomUUID().toString(); }
-		File file = getFile(t.meta);
+		File file = write(t);
+		if (commitWindow < 0) { return; }
 		try {
-			FileOutputStream os = new FileOutputStream(file);
-			try {
-				FileLock lock = os.getChannel().lock();
-				try {
-					writer.writeObject(t.data, os);
-				} finally {
-					lock.release();
-				}
-			} finally {
-				try { os.close(); } catch (IOException f) { }
-			}
+			enlist(file, null, true).await();
 		} catch (IOException e) {
-			throw new TaskAbortException("FileArchiver could not complete push on " + file, e, true);
-		} catch (RuntimeException e) {
-			throw new TaskAbortException("FileArchiver could not complete push on " + file, e);
+			throw new TaskAbortException("FileArchiver could not sync push on " + file, e, true);
 		}
 	}
 
@@ -195,4 +578,82 @@ implements Archiver<T>, LiveArchiver<T, SimpleProgress> {
 		}
 	}
 
+	/*========================================================================
+	  public interface IterableSerialiser
+	 ========================================================================*/
+
+	/*@Override**/ public void pull(Iterable<PullTask<T>> tasks) throws TaskAbortException {
+		for (PullTask<T> t: tasks) { pull(t); }
+	}
+
+	/**
+	** {@inheritDoc}
+	**
+	** This implementation writes every object before syncing any of them, so
+	** they are synced together (if there is a commit window).
+	*/
+	/*@Override**/ public void push(Iterable<PushTask<T>> tasks) throws TaskAbortException {
+		Set<Batch> batches = new LinkedHashSet<Batch>();
+		for (Iterator<PushTask<T>> it = tasks.iterator(); it.hasNext();) {
+			File file = write(it.next());
+			if (commitWindow >= 0) { batches.add(enlist(file, null, !it.hasNext())); }
+		}
+		try {
+			for (Batch b: batches) { b.await(); }
+		} catch (IOException e) {
+			throw new TaskAbortException("FileArchiver could not sync pushes in " + parentDir, e, true);
+		}
+	}
+
+	/*========================================================================
+	  public interface AsyncArchiver
+	 ========================================================================*/
+
+	/*@Override**/ public void pullAsync(PullTask<T> t, SimpleProgress p, SafeClosure<X2<PullTask<T>, TaskAbortException>> post) {
+		TaskAbortException ex = null;
+		try {
+			pullLive(t, p);
+		} catch (TaskAbortException e) {
+			ex = e;
+		}
+		post.invoke(X2(t, ex));
+	}
+
+	/**
+	** {@inheritDoc}
+	**
+	** If there is a commit window, this returns once the object is written,
+	** and the callback is invoked once it has been synced.
+	*/
+	/*@Override**/ public void pushAsync(final PushTask<T> t, final SimpleProgress p, final SafeClosure<X2<PushTask<T>, TaskAbortException>> post) {
+		if (commitWindow >= 0 && !testmode) {
+			try {
+				final File file = write(t);
+				enlist(file, new SafeClosure<IOException>() {
+					/*@Override**/ public void invoke(IOException e) {
+						TaskAbortException ex = null;
+						if (e == null) {
+							p.addPartKnown(0, true);
+						} else {
+							ex = new TaskAbortException("FileArchiver could not sync push on " + file, e, true);
+							try { p.abort(ex); } catch (TaskAbortException x) { /* abort() always rethrows */ }
+						}
+						post.invoke(X2(t, ex));
+					}
+				}, false);
+			} catch (TaskAbortException e) {
+				try { p.abort(e); } catch (TaskAbortException x) { /* abort() always rethrows */ }
+				post.invoke(X2(t, e));
+			}
+			return;
+		}
+		TaskAbortException ex = null;
+		try {
+			pushLive(t, p);
+		} catch (TaskAbortException e) {
+			ex = e;
+		}
+		post.invoke(X2(t, ex));
+	}
+
 }
@@ -0,0 +1,600 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package plugins.Library.io.serial;
+
+import plugins.Library.io.MappedFileCache;
+import plugins.Library.io.ObjectStreamReader;
+import plugins.Library.io.ObjectStreamWriter;
+import plugins.Library.util.concurrent.Executors;
+import plugins.Library.util.exec.TaskAbortException;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import freenet.support.Logger;
+
+/**
+** A {@link FileArchiver} that appends objects to a few large ''segment''
+** files, instead of writing each one to its own file. This avoids the
+** overhead of creating, locking and (eventually) deleting a file for every
+** node of a tree.
+**
+** The metadata produced is a {@link String} that gives the segment, offset
+** and length of the object, so it can be read back with a single positioned
+** read. If there is a {@link MappedFileCache}, that read is just a slice of
+** the mapped segment, unless it is the head segment that this instance is
+** still appending to. That one is read through its channel, since mapping it
+** again each time it grew would leave a trail of stale mappings for the
+** garbage collector. Metadata that is not in this form is passed to {@link FileArchiver},
+** so objects that were pushed by it can still be pulled.
+**
+** Objects that are no longer referenced are only reclaimed by {@link
+** #compact(Collection)}. This copies the objects that are still referenced
+** out of segments that are mostly garbage, and then deletes those segments.
+** Since the metadata of the moved objects is stored elsewhere (eg. in their
+** parent nodes), it is not changed; instead, a table of moved objects, kept
+** in {@link #INDEX_FILENAME} and in memory as sorted arrays, is consulted on
+** every pull. Nothing in the plugin compacts yet: the spider's on-disk
+** indexes, the only ones stored this way, are deleted whole once they have
+** been uploaded.
+**
+** Like its superclass, this doesn't sync anything unless {@linkplain
+** #setCommitWindow(long) group commit} is turned on, since the spider's
+** indexes are rebuilt from scratch after a crash anyway. When it is on, each
+** batch of nodes costs one sync of the segment it was appended to (plus one of
+** the directory, if the segment is new), and a root is never stored before
+** the nodes it refers to are durable.
+**
+** Each instance appends to a new segment, so anything left over from an
+** incomplete write by an earlier instance is never referenced. Only one
+** instance should use a given directory at a time.
+*/
+public class PackFileArchiver<T> extends FileArchiver<T> {
+
+	/** Default maximum size of a segment, in bytes. */
+	final public static long DEFAULT_SEGMENT_BYTES = 64 << 20;
+
+	/**
+	** Segments in which less than this fraction of the bytes are still
+	** referenced are compacted.
+	*/
+	final public static double COMPACT_RATIO = 0.5;
+
+	/** Name of the file that holds the table of moved objects. */
+	final public static String INDEX_FILENAME = "pack.idx";
+
+	final protected static String SEGMENT_PREFIX = "pack-";
+	final protected static long INDEX_MAGIC = 0x5061636b49647831L; // "PackIdx1"
+
+	/**
+	** Bits of a location that hold the offset; the rest hold the segment.
+	*/
+	final protected static int OFFSET_BITS = 40;
+	final protected static long OFFSET_MASK = (1L << OFFSET_BITS) - 1;
+
+	final protected long segmentBytes;
+
+	/**
+	** Table of moved objects, from their original location to their current
+	** one. This is replaced, not modified, when it changes.
+	*/
+	protected volatile MoveIndex moved = new MoveIndex(new long[0], new long[0]);
+
+	/**
+	** Read-only channels for the segments, opened on demand.
+	*/
+	final protected Map<Integer, FileChannel> channels = new HashMap<Integer, FileChannel>();
+
+	/**
+	** Segments in the directory, including the head.
+	*/
+	final protected TreeSet<Integer> segments = new TreeSet<Integer>();
+
+	/**
+	** Held for reading while an object is read, and for writing while
+	** segments are deleted.
+	*/
+	final protected ReadWriteLock segmentLock = new ReentrantReadWriteLock();
+
+	/**
+	** Held while compacting, so that only one compaction runs at a time.
+	*/
+	final protected Object compactLock = new Object();
+
+	/**
+	** The segment being appended to. Written only under the lock on {@code
+	** this}, but read without it, to decide whether a segment can be mapped.
+	*/
+	protected volatile int head = -1;
+	protected RandomAccessFile headFile;
+	protected long headSize;
+
+	/**
+	** Number of the next segment to create. Segment numbers are never reused,
+	** since the index of moved objects may still refer to deleted segments.
+	*/
+	protected int nextSegment = 0;
+
+	public <S extends ObjectStreamWriter & ObjectStreamReader> PackFileArchiver(S rw, String ext, File parent) {
+		this(rw, rw, ext, parent, DEFAULT_SEGMENT_BYTES);
+	}
+
+	public PackFileArchiver(ObjectStreamReader r, ObjectStreamWriter w, String ext, File parent, long segsize) {
+		super(r, w, true, ext, "", "", parent);
+		if (segsize <= 0 || segsize > OFFSET_MASK) {
+			throw new IllegalArgumentException("PackFileArchiver: bad segment size " + segsize);
+		}
+		segmentBytes = segsize;
+		// segments are large and never overwritten, so they are worth mapping
+		mapped = MappedFileCache.DEFAULT;
+		String[] names = getDirectory().list();
+		if (names != null) {
+			for (String name: names) {
+				int seg = parseSegment(name);
+				if (seg >= 0) { segments.add(seg); }
+			}
+		}
+		try {
+			readIndex();
+		} catch (IOException e) {
+			throw new IllegalStateException("PackFileArchiver could not read the index in " + getDirectory(), e);
+		}
+		if (!segments.isEmpty()) { nextSegment = segments.last() + 1; }
+		MoveIndex idx = moved;
+		for (int i=0; i<idx.size(); ++i) {
+			nextSegment = Math.max(nextSegment, Math.max(segmentOf(idx.from[i]), segmentOf(idx.to[i])) + 1);
+		}
+	}
+
+	/**
+	** A sorted table of moved objects.
+	*/
+	protected static class MoveIndex {
+
+		final long[] from;
+		final long[] to;
+
+		MoveIndex(long[] f, long[] t) {
+			from = f;
+			to = t;
+		}
+
+		/**
+		** @return The current location of an object, given its original one
+		*/
+		long resolve(long loc) {
+			int i = Arrays.binarySearch(from, loc);
+			return (i < 0)? loc: to[i];
+		}
+
+		int size() {
+			return from.length;
+		}
+
+	}
+
+	protected File getDirectory() {
+		return (parentDir == null)? new File("."): parentDir;
+	}
+
+	protected File getSegmentFile(int seg) {
+		return new File(parentDir, SEGMENT_PREFIX + Integer.toHexString(seg) + extension);
+	}
+
+	/**
+	** @return The segment that the given file name belongs to, or -1 if it
+	**         is not a segment.
+	*/
+	protected int parseSegment(String name) {
+		if (!name.startsWith(SEGMENT_PREFIX) || !name.endsWith(extension)) { return -1; }
+		String hex = name.substring(SEGMENT_PREFIX.length(), name.length() - extension.length());
+		try {
+			return Integer.parseInt(hex, 16);
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	/*========================================================================
+	  metadata
+	 ========================================================================*/
+
+	protected static long location(int seg, long off) {
+		return ((long)seg << OFFSET_BITS) | off;
+	}
+
+	protected static int segmentOf(long loc) {
+		return (int)(loc >>> OFFSET_BITS);
+	}
+
+	protected static long offsetOf(long loc) {
+		return loc & OFFSET_MASK;
+	}
+
+	/**
+	** @return The metadata for an object stored at the given location
+	*/
+	protected static String makeMeta(long loc, int len) {
+		return "p" + Integer.toHexString(segmentOf(loc)) + ":" + Long.toHexString(offsetOf(loc)) + ":" + Integer.toHexString(len);
+	}
+
+	/**
+	** Parses metadata produced by {@link #makeMeta(long, int)}.
+	**
+	** @return The original location and length of the object, or {@code null}
+	**         if the metadata is not in that form.
+	*/
+	protected static long[] parseMeta(Object meta) {
+		if (!(meta instanceof String)) { return null; }
+		String s = (String)meta;
+		if (s.length() < 6 || s.charAt(0) != 'p') { return null; }
+		int i = s.indexOf(':'), j = s.lastIndexOf(':');
+		if (i < 0 || i == j) { return null; }
+		try {
+			int seg = Integer.parseInt(s.substring(1, i), 16);
+			long off = Long.parseLong(s.substring(i+1, j), 16);
+			int len = Integer.parseInt(s.substring(j+1), 16);
+			if (seg < 0 || off < 0 || off > OFFSET_MASK || len < 0) { return null; }
+			return new long[]{location(seg, off), len};
+		} catch (NumberFormatException e) {
+			return null;
+		}
+	}
+
+	/*========================================================================
+	  segment I/O
+	 ========================================================================*/
+
+	/**
+	** Appends data to the head segment, starting a new one if it would go
+	** over the size limit.
+	**
+	** @return The location of the data
+	*/
+	protected synchronized long append(byte[] buf, int len) throws IOException {
+		if (headFile == null || (headSize > 0 && headSize + len > segmentBytes)) {
+			if (headFile != null) { headFile.close(); }
+			head = nextSegment++;
+			if (commitWindow >= 0) { created.add(getSegmentFile(head)); }
+			headFile = new RandomAccessFile(getSegmentFile(head), "rw");
+			headFile.setLength(0);
+			headSize = 0;
+			synchronized (channels) { segments.add(head); }
+		}
+		long loc = location(head, headSize);
+		headFile.seek(headSize);
+		headFile.write(buf, 0, len);
+		headSize += len;
+		return loc;
+	}
+
+	/**
+	** Reads data from a segment. The caller must hold the read lock on
+	** {@link #segmentLock}.
+	**
+	** @return A slice of the mapped segment, if there is a {@link
+	**         MappedFileCache}, the segment is no longer being appended to,
+	**         and it could be mapped; otherwise a copy of the data.
+	*/
+	protected ByteBuffer read(long loc, int len) throws IOException {
+		int seg = segmentOf(loc);
+		long pos = offsetOf(loc);
+		MappedFileCache m = mapped;
+		// the head is only mapped once it is full, when it can't grow again
+		if (m != null && seg != head) {
+			ByteBuffer map;
+			try {
+				map = m.map(getSegmentFile(seg), pos + len);
+			} catch (IOException e) {
+				// read it through the channel instead, which reports any real error
+				map = null;
+			}
+			if (map != null) {
+				map.position((int)pos);
+				map.limit((int)pos + len);
+				return map.slice();
+			}
+		}
+		FileChannel ch;
+		synchronized (channels) {
+			ch = channels.get(seg);
+			if (ch == null) {
+				if (!segments.contains(seg)) {
+					throw new IOException("PackFileArchiver: no such segment " + getSegmentFile(seg));
+				}
+				ch = new FileInputStream(getSegmentFile(seg)).getChannel();
+				channels.put(seg, ch);
+			}
+		}
+		ByteBuffer buf = ByteBuffer.allocate(len);
+		while (buf.hasRemaining()) {
+			if (ch.read(buf, pos + buf.position()) < 0) {
+				throw new EOFException("PackFileArchiver: segment " + seg + " is truncated");
+			}
+		}
+		buf.flip();
+		return buf;
+	}
+
+	/**
+	** Forces a segment to be written to disk.
+	*/
+	protected void sync(int seg) throws IOException {
+		sync(getSegmentFile(seg));
+	}
+
+	/**
+	** Syncs any pending pushes, then closes all open files and drops their
+	** mappings. They are reopened if the archiver is used again.
+	*/
+	public void close() throws IOException {
+		flush();
+		synchronized (this) {
+			if (headFile != null) {
+				headFile.close();
+				headFile = null;
+			}
+		}
+		synchronized (channels) {
+			for (FileChannel ch: channels.values()) { ch.close(); }
+			channels.clear();
+			MappedFileCache m = mapped;
+			if (m != null) {
+				for (int seg: segments) { m.forget(getSegmentFile(seg)); }
+			}
+		}
+	}
+
+	/*========================================================================
+	  index of moved objects
+	 ========================================================================*/
+
+	protected void readIndex() throws IOException {
+		File f = new File(parentDir, INDEX_FILENAME);
+		if (!f.exists()) { return; }
+		DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(f)));
+		try {
+			if (dis.readLong() != INDEX_MAGIC) {
+				throw new IOException("PackFileArchiver: bad index file " + f);
+			}
+			int n = dis.readInt();
+			long[] from = new long[n], to = new long[n];
+			for (int i=0; i<n; ++i) {
+				from[i] = dis.readLong();
+				to[i] = dis.readLong();
+			}
+			moved = new MoveIndex(from, to);
+		} finally {
+			dis.close();
+		}
+	}
+
+	/**
+	** Writes the index of moved objects to a temporary file, then renames it
+	** into place.
+	*/
+	protected void writeIndex(MoveIndex idx) throws IOException {
+		File f = new File(parentDir, INDEX_FILENAME);
+		File tmp = new File(parentDir, INDEX_FILENAME + ".tmp");
+		FileOutputStream fos = new FileOutputStream(tmp);
+		try {
+			DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(fos));
+			dos.writeLong(INDEX_MAGIC);
+			dos.writeInt(idx.size());
+			for (int i=0; i<idx.size(); ++i) {
+				dos.writeLong(idx.from[i]);
+				dos.writeLong(idx.to[i]);
+			}
+			dos.flush();
+			fos.getFD().sync();
+		} finally {
+			fos.close();
+		}
+		// renameTo() does not replace existing files on some platforms
+		if (!tmp.renameTo(f) && !(f.delete() && tmp.renameTo(f))) {
+			throw new IOException("PackFileArchiver: could not rename " + tmp + " to " + f);
+		}
+		syncDirectory(getDirectory());
+	}
+
+	/*========================================================================
+	  compaction
+	 ========================================================================*/
+
+	/**
+	** Reclaims the space used by objects that are no longer referenced. Every
+	** segment (other than the one being appended to) in which the referenced
+	** objects take up less than {@link #COMPACT_RATIO} of the space has those
+	** objects copied to the head, and is then deleted. Pushes and pulls can
+	** continue while this runs.
+	**
+	** '''The given metadata must include every object that might be pulled in
+	** future''', eg. every node reachable from the roots of the trees stored in
+	** this archiver. Other objects in the compacted segments are lost.
+	**
+	** @param live Metadata of the objects that are still referenced
+	** @return The number of segments that were deleted
+	*/
+	public int compact(Collection<?> live) throws IOException {
+		synchronized (compactLock) {
+			MoveIndex idx = moved;
+			// segments from here on may be receiving new objects
+			int limit;
+			synchronized (this) { limit = (head < 0)? nextSegment: head; }
+
+			// current location and length of each live object, by segment
+			Map<Integer, List<long[]>> bySeg = new HashMap<Integer, List<long[]>>();
+			Map<Integer, Long> liveBytes = new HashMap<Integer, Long>();
+			Set<Long> origs = new HashSet<Long>();
+			for (Object meta: live) {
+				long[] p = parseMeta(meta);
+				if (p == null || !origs.add(p[0])) { continue; }
+				long loc = idx.resolve(p[0]);
+				int seg = segmentOf(loc);
+				List<long[]> objs = bySeg.get(seg);
+				if (objs == null) { bySeg.put(seg, objs = new ArrayList<long[]>()); }
+				objs.add(new long[]{p[0], loc, p[1]});
+				Long b = liveBytes.get(seg);
+				liveBytes.put(seg, ((b == null)? 0: b) + p[1]);
+			}
+
+			List<Integer> victims = new ArrayList<Integer>();
+			synchronized (channels) {
+				for (int seg: segments) {
+					if (seg >= limit) { continue; }
+					Long b = liveBytes.get(seg);
+					if (b == null || b < COMPACT_RATIO * getSegmentFile(seg).length()) { victims.add(seg); }
+				}
+			}
+			if (victims.isEmpty()) { return 0; }
+
+			// copy the live objects out of the victims
+			Map<Long, Long> relocated = new HashMap<Long, Long>();
+			for (int seg: victims) {
+				List<long[]> objs = bySeg.get(seg);
+				if (objs == null) { continue; }
+				for (long[] o: objs) {
+					byte[] buf = new byte[(int)o[2]];
+					segmentLock.readLock().lock();
+					try {
+						read(o[1], buf.length).get(buf);
+					} finally {
+						segmentLock.readLock().unlock();
+					}
+					relocated.put(o[0], append(buf, buf.length));
+				}
+			}
+
+			// new index: keep the entries for live objects, and add the moves
+			TreeSet<Long> keys = new TreeSet<Long>(relocated.keySet());
+			for (int i=0; i<idx.size(); ++i) {
+				if (origs.contains(idx.from[i])) { keys.add(idx.from[i]); }
+			}
+			long[] from = new long[keys.size()], to = new long[keys.size()];
+			int i = 0;
+			for (long k: keys) {
+				Long r = relocated.get(k);
+				from[i] = k;
+				to[i] = (r == null)? idx.resolve(k): r;
+				++i;
+			}
+			MoveIndex nidx = new MoveIndex(from, to);
+
+			// the copies must be on disk before the index points to them
+			Set<Integer> written = new HashSet<Integer>();
+			for (long loc: relocated.values()) { written.add(segmentOf(loc)); }
+			for (int seg: written) { sync(seg); }
+			writeIndex(nidx);
+
+			segmentLock.writeLock().lock();
+			try {
+				moved = nidx;
+				synchronized (channels) {
+					for (int seg: victims) {
+						FileChannel ch = channels.remove(seg);
+						if (ch != null) { ch.close(); }
+						segments.remove(seg);
+						MappedFileCache m = mapped;
+						if (m != null) { m.forget(getSegmentFile(seg)); }
+						getSegmentFile(seg).delete();
+					}
+				}
+			} finally {
+				segmentLock.writeLock().unlock();
+			}
+			return victims.size();
+		}
+	}
+
+	/**
+	** Runs {@link #compact(Collection)} on the {@link
+	** Executors#WORKER_EXECUTOR}. Errors are logged; the segments are left as
+	** they were.
+	*/
+	public void compactAsync(final Collection<?> live) {
+		Executors.WORKER_EXECUTOR.execute(new Runnable() {
+			/*@Override**/ public void run() {
+				try {
+					int n = compact(live);
+					Logger.normal(PackFileArchiver.this, "Compacted " + n + " segments in " + getDirectory());
+				} catch (IOException e) {
+					Logger.error(PackFileArchiver.this, "Failed to compact segments in " + getDirectory() + ": " + e, e);
+				}
+			}
+		});
+	}
+
+	/**
+	** @return The number of segments in the directory
+	*/
+	public int segmentCount() {
+		synchronized (channels) {
+			return segments.size();
+		}
+	}
+
+	/*========================================================================
+	  public interface LiveArchiver
+	 ========================================================================*/
+
+	@Override public void pull(PullTask<T> t) throws TaskAbortException {
+		long[] p = parseMeta(t.meta);
+		if (p == null) {
+			super.pull(t);
+			return;
+		}
+		try {
+			ByteBuffer buf;
+			segmentLock.readLock().lock();
+			try {
+				buf = read(moved.resolve(p[0]), (int)p[1]);
+			} finally {
+				segmentLock.readLock().unlock();
+			}
+			t.data = (T)readBuffer(buf);
+		} catch (IOException e) {
+			throw new TaskAbortException("PackFileArchiver could not complete pull on " + t.meta, e, true);
+		} catch (RuntimeException e) {
+			throw new TaskAbortException("PackFileArchiver could not complete pull on " + t.meta, e);
+		}
+	}
+
+	@Override protected File write(PushTask<T> t) throws TaskAbortException {
+		try {
+			ByteArrayOutputStream bos = new ByteArrayOutputStream(0x1000);
+			writer.writeObject(t.data, bos);
+			byte[] buf = bos.toByteArray();
+			long loc = append(buf, buf.length);
+			t.meta = makeMeta(loc, buf.length);
+			return getSegmentFile(segmentOf(loc));
+		} catch (IOException e) {
+			throw new TaskAbortException("PackFileArchiver could not complete push in " + getDirectory(), e, true);
+		} catch (RuntimeException e) {
+			throw new TaskAbortException("PackFileArchiver could not complete push in " + getDirectory(), e);
+		}
+	}
+
+}
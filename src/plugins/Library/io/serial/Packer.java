@@ -9,17 +9,17 @@ import plugins.Library.util.concurrent.ObjectProcessor;
 import plugins.Library.util.exec.TaskAbortException;
 import plugins.Library.util.exec.TaskCompleteException;
 
-import java.util.Collections;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Iterator;
 import java.util.Comparator;
 import java.util.List;
 import java.util.Set;
 import java.util.Map;
-import java.util.SortedSet;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.TreeMap;
 import java.util.TreeSet;
 
 import freenet.support.Logger;
@@ -211,7 +211,7 @@ implements MapSerialiser<K, T>,
 	** reads its metadata to determine which bin to add it to.
 	 * @throws TaskAbortException 
 	*/
-	protected SortedSet<Bin<K>> initialiseBinSet(SortedSet<Bin<K>> bins, Map<K, PushTask<T>> elems, Inventory<K, T> inv, IDGenerator gen, Object mapmeta) throws TaskAbortException {
+	protected BinIndex<K> initialiseBinSet(BinIndex<K> bins, Map<K, PushTask<T>> elems, Inventory<K, T> inv, IDGenerator gen, Object mapmeta) throws TaskAbortException {
 
 		Map<Object, Set<K>> binincubator = new HashMap<Object, Set<K>>();
 
@@ -262,9 +262,9 @@ implements MapSerialiser<K, T>,
 		// FIXME: TEST THIS: In current usage, the data can't shrink, so we're okay.
 		
 		Bin<K> second;
-		Bin<K> lightest;
-		while(bins.size() > 1 && (second = bins.headSet(lightest = bins.last()).last()).filled() < BIN_CAPHF) {
+		while(bins.size() > 1 && (second = bins.secondLightest()).filled() < BIN_CAPHF) {
 			System.err.println("Merging bins: Data has shrunk!");
+			Bin<K> lightest = bins.lightest();
 			bins.remove(lightest);
 			bins.remove(second);
 			for (K k: lightest) {
@@ -283,7 +283,7 @@ implements MapSerialiser<K, T>,
 	** NOTE: this method assumes the conditions described in the description
 	** for this class. It is up to the calling code to ensure that they hold.
 	*/
-	protected void packBestFitDecreasing(SortedSet<Bin<K>> bins, Map<K, PushTask<T>> elems, Inventory<K, T> inv, IDGenerator gen) {
+	protected void packBestFitDecreasing(BinIndex<K> bins, Map<K, PushTask<T>> elems, Inventory<K, T> inv, IDGenerator gen) {
 
 		if (NO_TINY && !bins.isEmpty()) {
 			// locate the single bin heavier than BIN_CAP (if it exists), and keep
@@ -300,7 +300,7 @@ implements MapSerialiser<K, T>,
 			//   BIN_CAP / 2 and BIN_CAP, and the other bin will be in this zone too
 			//   (since the single bin would weigh between BIN_CAP and BIN_CAP * 3/2
 			//
-			Bin<K> heaviest = bins.first();
+			Bin<K> heaviest = bins.heaviest();
 			if (heaviest.filled() > BIN_CAP) {
 				Bin<K> second = new Bin<K>(BIN_CAP, inv, gen.nextID(), null);
 				bins.remove(heaviest);
@@ -315,47 +315,53 @@ implements MapSerialiser<K, T>,
 		}
 
 		// heaviest bin is <= BIN_CAP // FIXME convert back to assertion when happy with this
-		if(!(bins.isEmpty() || bins.first().filled() <= BIN_CAP)) {
+		if(!(bins.isEmpty() || bins.heaviest().filled() <= BIN_CAP)) {
 			System.err.println("Bins:");
-			for(Bin<K> bin : bins)
+			for(Bin<K> bin : bins.toList())
 				System.err.println("Bin: "+bin.filled());
 			assert(false);
 		}
 		// 2nd-lightest bin is >= BIN_CAP / 2 // FIXME convert back to assertion when happy with this
 		if(bins.size() >= 2) {
-			if(!(bins.headSet(bins.last()).last().filled() >= BIN_CAPHF)) {
+			if(!(bins.secondLightest().filled() >= BIN_CAPHF)) {
 				System.err.println("Last but one bin should be at least "+BIN_CAPHF);
-				for(Bin<K> bin : bins)
+				for(Bin<K> bin : bins.toList())
 					System.err.println("Bin: "+bin.filled());
 				assert(false);
 			}
 		}
 
-		// sort keys in descending weight order of their elements
-		SortedSet<K> sorted = new TreeSet<K>(Collections.reverseOrder(inv));
+		// sort keys in descending weight order of their elements. pack each
+		// (weight, index) into a long and sort those, so that each weight is
+		// only looked up once
+		List<K> keys = new ArrayList<K>(elems.size());
 		for (Map.Entry<K, PushTask<T>> en: elems.entrySet()) {
 			if (en.getValue().data != null) {
-				sorted.add(en.getKey());
+				keys.add(en.getKey());
 			}
 		}
+		long[] sorted = new long[keys.size()];
+		for (int i=0; i<sorted.length; ++i) {
+			sorted[i] = ((long)inv.getWeight(keys.get(i)) << 32) | i;
+		}
+		Arrays.sort(sorted);
 
-		// go through the sorted set and try to fit the keys into the bins
-		for (K key: sorted) {
-			int weight = inv.getWeight(key);
+		// go through the sorted keys and try to fit them into the bins
+		for (int i=sorted.length-1; i>=0; --i) {
+			K key = keys.get((int)sorted[i]);
+			int weight = (int)(sorted[i] >>> 32);
 
-			// get all bins that can fit the key; tailSet() should do this efficiently
-			SortedSet<Bin<K>> subbins = bins.tailSet(new DummyBin<K>(BIN_CAP, BIN_CAP - weight));
+			// get the fullest bin that can fit the key
+			Bin<K> lowest = bins.bestFit(BIN_CAP - weight);
 
-			if (subbins.isEmpty()) {
+			if (lowest == null) {
 				// if no bin can fit it, then start a new bin
 				Bin<K> bin = new Bin<K>(BIN_CAP, inv, gen.nextID(), null);
 				bin.add(key);
 				bins.add(bin);
 
 			} else {
-				// get the fullest bin that can fit the key
-				Bin<K> lowest = subbins.first();
-				// TreeSet assumes its elements are immutable.
+				// bins must be re-indexed when their weight changes
 				bins.remove(lowest);
 				lowest.add(key);
 				bins.add(lowest);
@@ -363,17 +369,17 @@ implements MapSerialiser<K, T>,
 		}
 
 		// heaviest bin is <= BIN_CAP
-		assert(bins.isEmpty() || bins.first().filled() <= BIN_CAP);
+		assert(bins.isEmpty() || bins.heaviest().filled() <= BIN_CAP);
 		// 2nd-lightest bin is >= BIN_CAP / 2
-		assert(bins.size() < 2 || bins.headSet(bins.last()).last().filled() >= BIN_CAPHF);
+		assert(bins.size() < 2 || bins.secondLightest().filled() >= BIN_CAPHF);
 
 		if (NO_TINY && bins.size() > 1) {
 			// locate the single bin lighter than BIN_CAP / 2 (if it exists), and
 			// combine it with the next smallest bin
-			Bin<K> lightest = bins.last();
+			Bin<K> lightest = bins.lightest();
 			if (lightest.filled() < BIN_CAPHF) {
 				bins.remove(lightest);
-				Bin<K> second = bins.last();
+				Bin<K> second = bins.lightest();
 				bins.remove(second);
 				for (K k: lightest) {
 					second.add(k);
@@ -387,7 +393,7 @@ implements MapSerialiser<K, T>,
 	** Given a group of bins, attempts to redistribute the items already
 	** contained within them to make the weights more even.
 	*/
-	protected void redistributeWeights(SortedSet<Bin<K>> bins, Inventory<K, T> inv) {
+	protected void redistributeWeights(BinIndex<K> bins, Inventory<K, T> inv) {
 
 		// keep track of bins we have finalised
 		List<Bin<K>> binsFinal = new ArrayList<Bin<K>>(bins.size());
@@ -406,10 +412,10 @@ implements MapSerialiser<K, T>,
 		// - D is bounded-below by 0
 		// - hence the algorithm terminates
 		//
-		Bin<K> lightest = bins.last();
+		Bin<K> lightest = bins.lightest();
 		while (!bins.isEmpty()) {
 			// we don't need to find the lightest bin every time
-			Bin<K> heaviest = bins.first();
+			Bin<K> heaviest = bins.heaviest();
 			bins.remove(heaviest);
 			int weightdiff = heaviest.filled() - lightest.filled();
 
@@ -425,7 +431,7 @@ implements MapSerialiser<K, T>,
 				bins.add(heaviest);
 				bins.add(lightest);
 
-				lightest = bins.last();
+				lightest = bins.lightest();
 
 			} else {
 				// if there does not exist such an element, then it is impossible for the
@@ -433,10 +439,13 @@ implements MapSerialiser<K, T>,
 				// decrease the load of the lightest bin. so, remove it from the bins set.
 
 				binsFinal.add(heaviest);
+				// only happens when all remaining bins weigh the same; don't let
+				// a finalised bin be picked as the lightest
+				if (heaviest == lightest) { lightest = bins.lightest(); }
 			}
 
 			// TODO NORM some tighter assertions than this
-			assert(bins.isEmpty() || bins.first().filled() - bins.last().filled() <= weightdiff);
+			assert(bins.isEmpty() || bins.heaviest().filled() - bins.lightest().filled() <= weightdiff);
 		}
 
 		for (Bin<K> bin: binsFinal) {
@@ -450,12 +459,10 @@ implements MapSerialiser<K, T>,
 	** initialised to contain. This means that we don't re-push something that
 	** is already pushed.
 	*/
-	protected void discardUnchangedBins(SortedSet<Bin<K>> bins, Map<K, PushTask<T>> elems) {
-		Iterator<Bin<K>> it = bins.iterator();
-		while (it.hasNext()) {
-			Bin<K> bin = it.next();
+	protected void discardUnchangedBins(BinIndex<K> bins, Map<K, PushTask<T>> elems) {
+		for (Bin<K> bin: bins.toList()) {
 			if (bin.unchanged()) {
-				it.remove();
+				bins.remove(bin);
 				for (K key: bin) {
 					elems.remove(key);
 				}
@@ -608,7 +615,7 @@ implements MapSerialiser<K, T>,
 
 			IDGenerator gen = generator();
 			Inventory<K, T> inv = new Inventory<K, T>(this, tasks);
-			SortedSet<Bin<K>> bins = new TreeSet<Bin<K>>();
+			BinIndex<K> bins = new BinIndex<K>();
 
 			// initialise the binset based on the aggression setting
 			if (agg <= 0) {
@@ -646,7 +653,7 @@ implements MapSerialiser<K, T>,
 
 			// form the list of bin-tasks for each bin, using data from the map-tasks
 			List<PushTask<Map<K, T>>> bintasks = new ArrayList<PushTask<Map<K, T>>>(bins.size());
-			for (Bin<K> bin: bins) {
+			for (Bin<K> bin: bins.toList()) {
 				Map<K, T> data = new HashMap<K, T>(bin.size()<<1);
 				for (K k: bin) {
 					data.put(k, tasks.get(k).data);
@@ -688,7 +695,7 @@ implements MapSerialiser<K, T>,
 	**
 	** @author infinity0
 	*/
-	protected static class Bin<K> extends TreeSet<K> implements Comparable<Bin<K>> {
+	protected static class Bin<K> extends TreeSet<K> {
 
 		final protected Object id;
 		final protected Set<K> orig;
@@ -697,6 +704,22 @@ implements MapSerialiser<K, T>,
 
 		int weight = 0;
 
+		/**
+		** Number of elements that are not in {@link #orig}.
+		*/
+		int foreign = 0;
+
+		/**
+		** Position of this bin in its bucket of a {@link BinIndex}, or -1 if
+		** it is not in one.
+		*/
+		int slot = -1;
+
+		/**
+		** The weight this bin had when it was added to a {@link BinIndex}.
+		*/
+		int indexed;
+
 		public Bin(int c, Inventory<K, ?> v, Object i, Set<K> o) {
 			super(v);
 			inv = v;
@@ -705,10 +728,13 @@ implements MapSerialiser<K, T>,
 			orig = o;
 		}
 
+		/**
+		** Whether the bin holds exactly the elements it was initialised with.
+		** This is kept track of as elements are added and removed, rather
+		** than by comparing the two sets.
+		*/
 		public boolean unchanged() {
-			// proper implementations of equals() should not throw NullPointerException
-			// but check null anyway, just in case...
-			return orig != null && equals(orig);
+			return orig != null && foreign == 0 && size() == orig.size();
 		}
 
 		public int filled() {
@@ -720,62 +746,138 @@ implements MapSerialiser<K, T>,
 		}
 
 		@Override public boolean add(K c) {
-			if (super.add(c)) { weight += inv.getWeight(c); return true; }
+			if (super.add(c)) {
+				weight += inv.getWeight(c);
+				if (orig == null || !orig.contains(c)) { ++foreign; }
+				return true;
+			}
 			return false;
 		}
 
 		@Override public boolean remove(Object c) {
-			if (super.remove(c)) { weight -= inv.getWeight((K)c); return true; }
+			if (super.remove(c)) {
+				weight -= inv.getWeight((K)c);
+				if (orig == null || !orig.contains(c)) { --foreign; }
+				return true;
+			}
 			return false;
 		}
 
-		/**
-		** Descending comparator for total bin load, ie. ascending comparator
-		** for remainding weight capacity. {@link DummyBin}s are treated as the
-		** "heaviest", or "least empty" bin for its weight.
-		*/
-		/*@Override**/ public int compareTo(Bin<K> bin) {
-			if (this == bin) { return 0; }
-			int f1 = filled(), f2 = bin.filled();
-			if (f1 != f2) { return (f2 > f1)? 1: -1; }
-			return (bin instanceof DummyBin)? -1: IdentityComparator.comparator.compare(this, bin);
-		}
-
 	}
 
 
 	/************************************************************************
-	** A class that pretends to be a bin with a certain capacity and weight.
-	** This is used when we want a such a bin for some purpose (eg. as an
-	** argument to a comparator) but we don't want to have to populate a real
-	** bin to get the desired weight (which might be massive).
+	** A group of {@link Bin}s, indexed by weight. Bins with the same weight
+	** are kept in a bucket, and the buckets in a {@link TreeMap}, so finding
+	** the heaviest bin, the lightest bin, or the fullest bin that still has
+	** room for an element of a given weight, all take O(log W) time, where W
+	** is the number of distinct weights; adding and removing a bin take the
+	** same. (Previously the bins were kept in a {@link java.util.TreeSet},
+	** which needed a comparison by identity to tell apart bins of the same
+	** weight, and a dummy bin to search for a weight.)
+	**
+	** A bin must be removed before its contents are changed, and then added
+	** back, so that it goes into the right bucket.
 	**
 	** @author infinity0
 	*/
-	protected static class DummyBin<K> extends Bin<K> {
+	protected static class BinIndex<K> {
+
+		final protected TreeMap<Integer, ArrayList<Bin<K>>> buckets = new TreeMap<Integer, ArrayList<Bin<K>>>();
+		protected int size = 0;
 
-		public DummyBin(int c, int w) {
-			super(c, null, null, null);
-			weight = w;
+		public int size() {
+			return size;
 		}
 
-		@Override public boolean add(K k) {
-			throw new UnsupportedOperationException("Dummy bins cannot be modified");
+		public boolean isEmpty() {
+			return size == 0;
 		}
 
-		@Override public boolean remove(Object c) {
-			throw new UnsupportedOperationException("Dummy bins cannot be modified");
+		public void add(Bin<K> bin) {
+			if (bin.slot >= 0) {
+				throw new IllegalStateException("Bin " + bin.id + " is already in the index");
+			}
+			ArrayList<Bin<K>> bucket = buckets.get(bin.weight);
+			if (bucket == null) {
+				bucket = new ArrayList<Bin<K>>(4);
+				buckets.put(bin.weight, bucket);
+			}
+			bin.indexed = bin.weight;
+			bin.slot = bucket.size();
+			bucket.add(bin);
+			++size;
+		}
+
+		public boolean remove(Bin<K> bin) {
+			if (bin.slot < 0) { return false; }
+			ArrayList<Bin<K>> bucket = buckets.get(bin.indexed);
+			assert(bucket.get(bin.slot) == bin);
+			// move the last bin of the bucket into the gap
+			Bin<K> last = bucket.remove(bucket.size()-1);
+			if (last != bin) {
+				bucket.set(bin.slot, last);
+				last.slot = bin.slot;
+			}
+			if (bucket.isEmpty()) { buckets.remove(bin.indexed); }
+			bin.slot = -1;
+			--size;
+			return true;
+		}
+
+		/**
+		** @return A heaviest bin, or {@code null} if there are none.
+		*/
+		public Bin<K> heaviest() {
+			if (size == 0) { return null; }
+			ArrayList<Bin<K>> bucket = buckets.lastEntry().getValue();
+			return bucket.get(bucket.size()-1);
+		}
+
+		/**
+		** @return A lightest bin, or {@code null} if there are none. If this
+		**         has the same weight as {@link #heaviest()}, it is a
+		**         different bin (unless there is only one).
+		*/
+		public Bin<K> lightest() {
+			if (size == 0) { return null; }
+			return buckets.firstEntry().getValue().get(0);
+		}
+
+		/**
+		** @return The bin that would be the lightest if {@link #lightest()}
+		**         was removed, or {@code null} if there are fewer than two
+		**         bins.
+		*/
+		public Bin<K> secondLightest() {
+			if (size < 2) { return null; }
+			Map.Entry<Integer, ArrayList<Bin<K>>> en = buckets.firstEntry();
+			if (en.getValue().size() > 1) { return en.getValue().get(1); }
+			return buckets.higherEntry(en.getKey()).getValue().get(0);
 		}
 
 		/**
-		** {@inheritDoc}
+		** @return A heaviest bin that weighs at most {@code max}, or {@code
+		**         null} if there are none.
 		*/
-		@Override public int compareTo(Bin<K> bin) {
-			if (this == bin) { return 0; }
-			int f1 = filled(), f2 = bin.filled();
-			if (f1 != f2) { return (f2 > f1)? 1: -1; }
-			return (bin instanceof DummyBin)? IdentityComparator.comparator.compare(this, bin): 1;
+		public Bin<K> bestFit(int max) {
+			Map.Entry<Integer, ArrayList<Bin<K>>> en = buckets.floorEntry(max);
+			if (en == null) { return null; }
+			ArrayList<Bin<K>> bucket = en.getValue();
+			return bucket.get(bucket.size()-1);
 		}
+
+		/**
+		** @return A new list of all the bins, heaviest first
+		*/
+		public List<Bin<K>> toList() {
+			List<Bin<K>> list = new ArrayList<Bin<K>>(size);
+			for (ArrayList<Bin<K>> bucket: buckets.descendingMap().values()) {
+				list.addAll(bucket);
+			}
+			return list;
+		}
+
 	}
 
 
@@ -888,7 +990,7 @@ implements MapSerialiser<K, T>,
 			} else {
 				return o;
 			}
-			if (id > nextID) {
+			if (id >= nextID) {
 				nextID = id+1;
 			}
 			return o;
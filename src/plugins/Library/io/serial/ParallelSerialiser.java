@@ -9,6 +9,7 @@ import plugins.Library.util.concurrent.Scheduler;
 import plugins.Library.util.concurrent.ObjectProcessor;
 import plugins.Library.util.concurrent.Executors;
 import plugins.Library.util.exec.Progress;
+import plugins.Library.util.exec.SimpleProgress;
 import plugins.Library.util.exec.TaskAbortException;
 import plugins.Library.util.exec.TaskInProgressException;
 import plugins.Library.util.exec.TaskCompleteException;
@@ -20,12 +21,9 @@ import java.util.List;
 import java.util.Map;
 import java.util.ArrayList;
 
-import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.SynchronousQueue;
-import java.util.concurrent.TimeUnit;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
 
 /**
 ** An {@link IterableSerialiser} that uses threads to handle tasks given to it
@@ -35,6 +33,15 @@ import java.util.concurrent.ConcurrentMap;
 ** LiveArchiver#pullLive(Serialiser.PullTask, Progress)} and {@link
 ** LiveArchiver#pushLive(Serialiser.PushTask, Progress)} methods.
 **
+** If the implementation is also an {@link AsyncArchiver}, and {@link
+** #isAsync()} returns {@code true}, then each job only starts its task and
+** returns. The {@link ObjectProcessor}s created by {@link #pullSchedule} and
+** {@link #pushSchedule} count a task as running until its callback fires, so
+** they then limit the number of tasks in progress ({@link #async_maxconc})
+** rather than the number of threads in use. An {@link AsyncArchiver} that
+** pulls in two phases (eg. {@link plugins.Library.client.FreenetArchiver})
+** then only needs a thread to decode each task once its data has arrived.
+**
 ** DOCUMENT (rewritten)
 **
 ** @author infinity0
@@ -45,11 +52,23 @@ implements IterableSerialiser<T>,
            LiveArchiver<T, P>,
            Serialiser.Trackable<T> {
 
-	final static protected ThreadPoolExecutor exec = new ThreadPoolExecutor(
-		0, 0x40, 60, TimeUnit.SECONDS,
-		new LinkedBlockingQueue<Runnable>(),
-		new ThreadPoolExecutor.CallerRunsPolicy() // easier than catching RejectedExecutionException, if it ever occurs
-	);
+	/**
+	** Executor for the pull and push jobs. These only do I/O, through a child
+	** archiver that runs in the same thread, so they are worker tasks; see
+	** {@link Executors}. A push may also wait for its file to be synced, on
+	** the {@link Executors#SYNC_EXECUTOR}.
+	*/
+	final static protected Executor exec = Executors.WORKER_EXECUTOR;
+
+	/**
+	** Maximum number of tasks in progress for each scheduler, when tasks are
+	** run {@linkplain #isAsync() asynchronously}. This does not cost a thread
+	** per task, so it can be much higher than {@link
+	** ObjectProcessor#default_maxconc}. The scheduler also never has more
+	** tasks in progress than its output queue has room for, so that their
+	** results are never left waiting in memory for a place in it.
+	*/
+	public static volatile int async_maxconc = 0x200;
 
 	final protected ProgressTracker<T, P> tracker;
 
@@ -65,8 +84,35 @@ implements IterableSerialiser<T>,
 		return tracker;
 	}
 
+	/**
+	** Whether this serialiser is an {@link AsyncArchiver} whose async methods
+	** return without waiting for I/O. This implementation returns {@code
+	** true} iff it is an {@link AsyncArchiver}; subclasses that wrap another
+	** archiver should override this to check that too.
+	*/
+	protected boolean isAsync() {
+		return this instanceof AsyncArchiver;
+	}
+
+	/**
+	** A callback that does nothing, for async tasks whose completion is
+	** tracked through their progress instead.
+	*/
+	protected static <K extends Task> SafeClosure<X2<K, TaskAbortException>> ignorePost() {
+		return new SafeClosure<X2<K, TaskAbortException>>() {
+			/*@Override**/ public void invoke(X2<K, TaskAbortException> res) { }
+		};
+	}
+
+	/**
+	** Creates a job that waits for another job, already running for the same
+	** task, to complete. Waiting makes this a manager task (see {@link
+	** Executors}), so the returned {@link Runnable} only hands the wait off to
+	** {@link Executors#MANAGER_EXECUTOR}; this way it can safely be run on a
+	** worker pool that the other job may still be queued on.
+	*/
 	protected <K extends Task> Runnable createJoinRunnable(final K task, final TaskInProgressException e, final SafeClosure<X2<K, TaskAbortException>> post) {
-		return new Runnable() {
+		final Runnable join = new Runnable() {
 			public void run() {
 				TaskAbortException ex;
 				try {
@@ -83,6 +129,11 @@ implements IterableSerialiser<T>,
 				if (post != null) { post.invoke(X2(task, ex)); }
 			}
 		};
+		return new Runnable() {
+			public void run() {
+				Executors.MANAGER_EXECUTOR.execute(join);
+			}
+		};
 	}
 
 	/**
@@ -99,6 +150,24 @@ implements IterableSerialiser<T>,
 	protected Runnable createPullJob(final PullTask<T> task, final SafeClosure<X2<PullTask<T>, TaskAbortException>> post) {
 		try {
 			final P prog = (post != null)? tracker.addPullProgress(task): tracker.getPullProgress(task);
+			if (isAsync()) {
+				final AsyncArchiver<T, P> arx = (AsyncArchiver<T, P>)this;
+				final SafeClosure<X2<PullTask<T>, TaskAbortException>> cb = (post != null)? post: ParallelSerialiser.<PullTask<T>>ignorePost();
+				return new Runnable() {
+					public void run() {
+						try {
+							arx.pullAsync(task, prog, cb);
+						} catch (RuntimeException e) {
+							// otherwise the callback never fires, and the task is never finished
+							TaskAbortException ex = new TaskAbortException("failed", e);
+							if (prog instanceof SimpleProgress) {
+								try { ((SimpleProgress)prog).abort(ex); } catch (TaskAbortException x) { /* abort() always rethrows */ }
+							}
+							cb.invoke(X2(task, ex));
+						}
+					}
+				};
+			}
 			return new Runnable() {
 				public void run() {
 					TaskAbortException ex = null;
@@ -106,13 +175,6 @@ implements IterableSerialiser<T>,
 					catch (RuntimeException e) { ex = new TaskAbortException("failed", e); }
 					catch (TaskAbortException e) { ex = e; }
 					if (post != null) { post.invoke(X2(task, ex)); }
-					// FIXME OPT NORM Two-phase pull (see FreenetArchiver.pull comments):
-					// All we'd need to do is:
-					// Bucket = pullFirst(task, prog)
-					// Take semaphore (purpose is to limit the number of decoded stuff in memory which is not yet wanted)
-					// pullSecond(task, prog, bucket)
-					// Call post-process
-					// Release semaphore
 				}
 			};
 		} catch (final TaskInProgressException e) {
@@ -134,6 +196,24 @@ implements IterableSerialiser<T>,
 	protected Runnable createPushJob(final PushTask<T> task, final SafeClosure<X2<PushTask<T>, TaskAbortException>> post) {
 		try {
 			final P prog = (post != null)? tracker.addPushProgress(task): tracker.getPushProgress(task);
+			if (isAsync()) {
+				final AsyncArchiver<T, P> arx = (AsyncArchiver<T, P>)this;
+				final SafeClosure<X2<PushTask<T>, TaskAbortException>> cb = (post != null)? post: ParallelSerialiser.<PushTask<T>>ignorePost();
+				return new Runnable() {
+					public void run() {
+						try {
+							arx.pushAsync(task, prog, cb);
+						} catch (RuntimeException e) {
+							// otherwise the callback never fires, and the task is never finished
+							TaskAbortException ex = new TaskAbortException("failed", e);
+							if (prog instanceof SimpleProgress) {
+								try { ((SimpleProgress)prog).abort(ex); } catch (TaskAbortException x) { /* abort() always rethrows */ }
+							}
+							cb.invoke(X2(task, ex));
+						}
+					}
+				};
+			}
 			return new Runnable() {
 				public void run() {
 					TaskAbortException ex = null;
@@ -244,11 +324,14 @@ implements IterableSerialiser<T>,
 		BlockingQueue<X2<PullTask<T>, TaskAbortException>> output,
 		Map<PullTask<T>, E> deposit
 	) {
-		return new ObjectProcessor<PullTask<T>, E, TaskAbortException>(input, output, deposit, null, Executors.DEFAULT_EXECUTOR, new TaskAbortExceptionConvertor()) {
+		ObjectProcessor<PullTask<T>, E, TaskAbortException> proc = new ObjectProcessor<PullTask<T>, E, TaskAbortException>(input, output, deposit, null, exec, new TaskAbortExceptionConvertor()) {
 			@Override protected Runnable createJobFor(PullTask<T> task) {
 				return createPullJob(task, postProcess);
 			}
-		}.autostart();
+		};
+		if (isAsync()) { proc.setMaxConc(async_maxconc); }
+		proc.autostart();
+		return proc;
 	}
 
 	/**
@@ -261,11 +344,14 @@ implements IterableSerialiser<T>,
 		BlockingQueue<X2<PushTask<T>, TaskAbortException>> output,
 		Map<PushTask<T>, E> deposit
 	) {
-		return new ObjectProcessor<PushTask<T>, E, TaskAbortException>(input, output, deposit, null, Executors.DEFAULT_EXECUTOR, new TaskAbortExceptionConvertor()) {
+		ObjectProcessor<PushTask<T>, E, TaskAbortException> proc = new ObjectProcessor<PushTask<T>, E, TaskAbortException>(input, output, deposit, null, exec, new TaskAbortExceptionConvertor()) {
 			@Override protected Runnable createJobFor(PushTask<T> task) {
 				return createPushJob(task, postProcess);
 			}
-		}.autostart();
+		};
+		if (isAsync()) { proc.setMaxConc(async_maxconc); }
+		proc.autostart();
+		return proc;
 	}
 
 }
@@ -0,0 +1,130 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package plugins.Library.search;
+
+import plugins.Library.index.TermEntry;
+
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * An immutable list of TermEntrys sorted by target (the page, index or term
+ * which {@link TermEntry#equalsTarget} compares), so that several lists can be
+ * intersected by merging them in order rather than by looking up every entry
+ * of one in each of the others.
+ * <br /> <br />
+ * The sort key is the entry type and the hash of the target. This is cheap to
+ * compute and compare, and sorts entries with equal targets next to each
+ * other; a merge then only has to check {@link TermEntry#equalsTarget} within
+ * a run of equal keys, which is almost always a single entry. Entries with
+ * equal keys keep the order of the original collection.
+ * <br /> <br />
+ * A {@link Cursor} walks forwards through a list using exponential
+ * ("galloping") search, so skipping over a long stretch of entries missing
+ * from a shorter list costs O(log gap) rather than O(gap).
+ */
+class PostingList {
+
+	/** Number of low bits used to store the original index while sorting */
+	private static final int INDEX_BITS = 29;
+	private static final int MAX_SIZE = 1 << INDEX_BITS;
+
+	private final TermEntry[] entries;
+	private final long[] keys;
+
+	/**
+	 * Sort a collection into a new PostingList
+	 * @throws IllegalArgumentException if the collection is too large
+	 */
+	PostingList(Collection<? extends TermEntry> collection) {
+		TermEntry[] unsorted = collection.toArray(new TermEntry[collection.size()]);
+		if(unsorted.length >= MAX_SIZE)
+			throw new IllegalArgumentException("Too many entries for a PostingList: " + unsorted.length);
+		// pack (key, original index) into a long and sort those, to avoid
+		// allocating a wrapper object per entry
+		long[] packed = new long[unsorted.length];
+		for (int i = 0; i < unsorted.length; i++)
+			packed[i] = (keyOf(unsorted[i]) << INDEX_BITS) | i;
+		Arrays.sort(packed);
+		entries = new TermEntry[unsorted.length];
+		keys = new long[unsorted.length];
+		for (int i = 0; i < packed.length; i++) {
+			entries[i] = unsorted[(int)(packed[i] & (MAX_SIZE - 1))];
+			keys[i] = packed[i] >>> INDEX_BITS;
+		}
+	}
+
+	public int size() {
+		return entries.length;
+	}
+
+	public TermEntry get(int i) {
+		return entries[i];
+	}
+
+	public Cursor cursor() {
+		return new Cursor();
+	}
+
+	/**
+	 * Sort key for an entry: its type in bits 32-33, and the hash of its target
+	 * in bits 0-31. This is non-negative and fits in 34 bits.
+	 */
+	static long keyOf(TermEntry entry) {
+		return ((long)entry.entryType().ordinal() << 32) | (entry.target().hashCode() & 0xFFFFFFFFL);
+	}
+
+	/**
+	 * Position in a PostingList which only moves forwards. Lookups must be made
+	 * in increasing key order, ie. in the order of another PostingList.
+	 */
+	class Cursor {
+		private int pos = 0;
+
+		/**
+		 * Move forward to the entry which is equal to the given entry ignoring
+		 * subject, if there is one
+		 * @param entry to look for
+		 * @param key {@link PostingList#keyOf(TermEntry)} of entry
+		 * @return the first such entry, or null if there is none
+		 */
+		TermEntry seek(TermEntry entry, long key) {
+			pos = gallop(key, pos);
+			for (int i = pos; i < keys.length && keys[i] == key; i++) {
+				if (entry.equalsTarget(entries[i]))
+					return entries[i];
+			}
+			return null;
+		}
+
+		/**
+		 * @return the first index at or after from whose key is not less than
+		 * key, or size() if there is none
+		 */
+		private int gallop(long key, int from) {
+			int n = keys.length;
+			if (from >= n || keys[from] >= key)
+				return from;
+			// keys[lo] < key throughout; find hi with keys[hi] >= key
+			int lo = from, step = 1, hi = from + 1;
+			while (hi < n && keys[hi] < key) {
+				lo = hi;
+				step <<= 1;
+				hi = from + step;
+			}
+			if (hi > n)
+				hi = n;
+			// binary search in (lo, hi]
+			while (hi - lo > 1) {
+				int mid = (lo + hi) >>> 1;
+				if (keys[mid] < key)
+					lo = mid;
+				else
+					hi = mid;
+			}
+			return hi;
+		}
+	}
+
+}
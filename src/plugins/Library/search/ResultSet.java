@@ -236,8 +236,11 @@ public class ResultSet implements Set<TermEntry>, Runnable{
 	 * Add all entries in the first collection but not in the second
 	 */
 	private void exclude(Collection<? extends TermEntry> add, Collection<? extends TermEntry> subtract) {
-		for (TermEntry termEntry : add){
-			if(getIgnoreSubject(termEntry, subtract)==null)
+		PostingList addList = new PostingList(add);
+		PostingList.Cursor cursor = new PostingList(subtract).cursor();
+		for (int j = 0; j < addList.size(); j++) {
+			TermEntry termEntry = addList.get(j);
+			if(cursor.seek(termEntry, PostingList.keyOf(termEntry))==null)
 				addInternal(termEntry);
 		}
 	}
@@ -262,29 +265,40 @@ public class ResultSet implements Set<TermEntry>, Runnable{
 	}
 
 	/**
-	 * Iterate over the first collection adding those elements which exist in all the other collections
+	 * Add those elements of the first collection which exist in all the other
+	 * collections. The collections are sorted into {@link PostingList}s and
+	 * merged, driven by the smallest one, so the cost is about the size of the
+	 * smallest times the log of the others, rather than their product.
 	 * @param collections a bunch of collections to intersect
 	 */
 	private void intersect(Collection<? extends TermEntry>... collections) {
-		Collection<? extends TermEntry> firstCollection = collections[0];
-		// Iterate over it
-		for (Iterator<? extends TermEntry> it = firstCollection.iterator(); it.hasNext();) {
-			TermEntry termEntry = it.next();
+		PostingList[] lists = new PostingList[collections.length];
+		PostingList.Cursor[] cursors = new PostingList.Cursor[collections.length];
+		int smallest = 0;
+		for (int i = 0; i < collections.length; i++) {
+			lists[i] = new PostingList(collections[i]);
+			cursors[i] = lists[i].cursor();
+			if(lists[i].size() < lists[smallest].size())
+				smallest = i;
+		}
+		PostingList driver = lists[smallest];
+		for (int j = 0; j < driver.size(); j++) {
+			TermEntry candidate = driver.get(j);
+			long key = PostingList.keyOf(candidate);
 			// if term entry is contained in all the other collections add it
-			float combinedrelevance = termEntry.rel;
+			TermEntry termEntry = null;
+			float combinedrelevance = 0;
 
 			int i;
-			for (i = 1; i < collections.length; i++) {
-				Collection<? extends TermEntry> collection = collections[i];
-				// See if collection contains termEntry
-
-				TermEntry termEntry2 = getIgnoreSubject(termEntry, collection);
+			for (i = 0; i < lists.length; i++) {
+				TermEntry termEntry2 = (i == smallest) ? candidate : cursors[i].seek(candidate, key);
 				if ( termEntry2 == null )
 					break;
-				else	// add to combined relevance
-					combinedrelevance += termEntry2.rel;
+				if (i == 0)	// entries are built from those in the first collection
+					termEntry = termEntry2;
+				combinedrelevance += termEntry2.rel;
 			}
-			if (i==collections.length){
+			if (i==lists.length){
 				TermEntry newEntry = convertEntry(termEntry, combinedrelevance/collections.length);
 				addInternal(newEntry);
 			}
@@ -294,13 +308,28 @@ public class ResultSet implements Set<TermEntry>, Runnable{
 	/**
 	 * Iterate over the first collection, and the termpositions of each entry,
 	 * keeping those positions which are followed in the other collections. Keeps
-	 * those entries which have positions remaingin after this process
+	 * those entries which have positions remaingin after this process. As for
+	 * {@link #intersect}, the collections are merged as {@link PostingList}s,
+	 * driven by the smallest one.
 	 * @param collections
 	 */
 	private void phrase(Collection<? extends TermEntry>... collections) {
-		Collection<? extends TermEntry> firstCollection = collections[0];
-		// Iterate over it
-		for (TermEntry termEntry : firstCollection) {
+		PostingList[] lists = new PostingList[collections.length];
+		PostingList.Cursor[] cursors = new PostingList.Cursor[collections.length];
+		int smallest = 0;
+		for (int i = 0; i < collections.length; i++) {
+			if(i > 0 && collections[i] == null)
+				continue;	// Treat stop words as blanks, dont check
+			lists[i] = new PostingList(collections[i]);
+			cursors[i] = lists[i].cursor();
+			if(lists[i].size() < lists[smallest].size())
+				smallest = i;
+		}
+		PostingList driver = lists[smallest];
+		for (int j = 0; j < driver.size(); j++) {
+			TermEntry candidate = driver.get(j);
+			long key = PostingList.keyOf(candidate);
+			TermEntry termEntry = (smallest == 0) ? candidate : cursors[0].seek(candidate, key);
 			if(!(termEntry instanceof TermPageEntry))
 				continue;
 			// if term entry is followed in all the others, add it to this
@@ -311,11 +340,10 @@ public class ResultSet implements Set<TermEntry>, Runnable{
 
 			int i;	// Iterate over the other collections, checking for following
 			for (i = 1; positions != null && i < collections.length && positions.size() > 0; i++) {
-				Collection<? extends TermEntry> collection = collections[i];
-				if(collection == null)
+				if(lists[i] == null)
 					continue;	// Treat stop words as blanks, dont check
 				// See if collection follows termEntry
-				TermPageEntry termPageEntry1 = (TermPageEntry)getIgnoreSubject(termPageEntry, collection);
+				TermPageEntry termPageEntry1 = (TermPageEntry)((i == smallest) ? candidate : cursors[i].seek(termPageEntry, key));
 				if(termPageEntry1==null || !termPageEntry1.hasPositions())	// If collection doesnt contain this termpageentry or has not positions, it does not follow
 					positions = null;
 				else{
@@ -454,22 +482,6 @@ public class ResultSet implements Set<TermEntry>, Runnable{
 		return sets;
 	}
 
-	/**
-	 * Gets a TermEntry from the collection which is equal to entry ignoring subject
-	 * @param entry
-	 * @param collection
-	 */
-	private TermEntry getIgnoreSubject(TermEntry entry, Collection<? extends TermEntry> collection){
-		TermEntry result = null;
-			for (TermEntry termEntry : collection) {
-				if (entry.equalsTarget(termEntry)){
-					result = termEntry;
-					break;
-				}
-			}
-		return result;
-	}
-
 	@Override public String toString(){
 		return internal.keySet().toString();
 	}
@@ -11,10 +11,13 @@ import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
+import java.net.MalformedURLException;
 import java.util.regex.Pattern;
 import java.util.regex.Matcher;
 
+import plugins.Library.Index;
 import plugins.Library.Library;
+import plugins.Library.index.ProtoIndex;
 import plugins.Library.index.TermEntry;
 import plugins.Library.search.ResultSet.ResultOperation;
 import plugins.Library.ui.ResultNodeGenerator;
@@ -24,6 +27,7 @@ import plugins.Library.util.exec.Execution;
 import plugins.Library.util.exec.Progress;
 import plugins.Library.util.exec.ProgressParts;
 import plugins.Library.util.exec.TaskAbortException;
+import freenet.keys.FreenetURI;
 import freenet.support.Executor;
 import freenet.support.HTMLNode;
 import freenet.support.Logger;
@@ -50,6 +54,18 @@ public class Search extends AbstractExecution<Set<TermEntry>>
 	private static HashMap<String, Search> allsearches = new HashMap<String, Search>();
 	/** Map of Searches by hashCode */
 	private static HashMap<Integer,Search> searchhashes = new HashMap<Integer, Search>();
+	/** How long a finished Search is kept after its results were last collected (or after it finished, if they never were), in ms */
+	public static final long FINISHED_SEARCH_EXPIRY = 10 * 60 * 1000;
+	/** Fewest characters allowed before the * of a prefix search, so it can't expand to most of the index */
+	public static final int MIN_PREFIX_LENGTH = 2;
+	/** Results of single term lookups, shared by all searches */
+	private static TermResultCache termcache = new TermResultCache(TermResultCache.DEFAULT_MAX_BYTES);
+	/** If this is a single term search which missed the cache, the key to cache its result under */
+	private TermResultCache.Key cachekey;
+	/** When this Search finished or failed, or -1 if it hasn't yet */
+	private volatile long finishedTime = -1;
+	/** When the results of this Search were last collected, or -1 if they haven't been */
+	private volatile long collectedTime = -1;
 	private ResultSet resultset;
 
 	/**
@@ -59,6 +75,8 @@ public class Search extends AbstractExecution<Set<TermEntry>>
 	private boolean htmlgroupusk;
 	private boolean htmlshowold;
 	private boolean htmljs;
+	private int htmllimit;
+	private String htmlpagelink;
 	private ResultNodeGenerator resultNodeGenerator;
 	private HTMLNode pageEntryNode;
 
@@ -73,6 +91,7 @@ public class Search extends AbstractExecution<Set<TermEntry>>
 	}
 
 	private synchronized static void storeSearch(Search search){
+		expireSearches();
 		allsearches.put(search.getSubject(), search);
 		searchhashes.put(search.hashCode(), search);
 	}
@@ -82,6 +101,26 @@ public class Search extends AbstractExecution<Set<TermEntry>>
 		searchhashes.remove(search.hashCode());
 	}
 
+	/**
+	 * Forget Searches which finished, and whose results were last collected,
+	 * more than {@link #FINISHED_SEARCH_EXPIRY} ago, so they don't stay in
+	 * memory for the lifetime of the plugin. Searches are not forgotten as
+	 * soon as their results are collected, so that later pages of them can
+	 * still be shown. Searching for them again is cheap as their terms will
+	 * be in the {@link TermResultCache}.
+	 */
+	private synchronized static void expireSearches(){
+		long expiry = System.currentTimeMillis() - FINISHED_SEARCH_EXPIRY;
+		for (Iterator<Search> it = allsearches.values().iterator(); it.hasNext();) {
+			Search search = it.next();
+			long finished = Math.max(search.finishedTime, search.collectedTime);
+			if(search.finishedTime >= 0 && finished < expiry){
+				it.remove();
+				searchhashes.remove(search.hashCode());
+			}
+		}
+	}
+
 	/**
 	 * Creates a search for any number of indices, starts and returns the associated Request object
 	 * TODO startSearch with array of indexes
@@ -238,14 +277,35 @@ public class Search extends AbstractExecution<Set<TermEntry>>
 	private static Search splitQuery(String query, String indexuri) throws InvalidSearchException, TaskAbortException{
 		query = query.trim();
 		if(query.matches("\\A[\\S&&[^-\"]]*\\Z")){
-			// single search term
-			// return null if stopword
-			if(SearchUtil.isStopWord(query))
+			// single search term, or prefix ending in *
+			String prefix = null;
+			if(query.endsWith("*")){
+				prefix = query.substring(0, query.length()-1);
+				if(prefix.indexOf('*') >= 0)
+					throw new InvalidSearchException("Wildcards are only supported at the end of a term: \""+query+"\"");
+				if(prefix.codePointCount(0, prefix.length()) < MIN_PREFIX_LENGTH)
+					throw new InvalidSearchException("Prefix searches need at least "+MIN_PREFIX_LENGTH+" characters before the *");
+			}else if(SearchUtil.isStopWord(query))
+				// return null if stopword
 				return null;
-			Execution<Set<TermEntry>> request = library.getIndex(indexuri).getTermEntries(query);
+			TermResultCache.Key key = cacheKey(indexuri, query);
+			Execution<Set<TermEntry>> request = (key == null) ? null : termcache.get(key);
+			if (request != null) {
+				if(logMINOR) Logger.minor(Search.class, "Found "+key+" in the term cache");
+				return new Search(query, indexuri, request );
+			}
+			if(prefix != null){
+				Index index = library.getIndex(indexuri);
+				if(!(index instanceof ProtoIndex))
+					throw new InvalidSearchException("Prefix searches are not supported by the index "+indexuri);
+				request = ((ProtoIndex)index).getTermEntriesPrefix(prefix);
+			}else
+				request = library.getIndex(indexuri).getTermEntries(query);
 			if (request == null)
 				throw new InvalidSearchException( "Something wrong with query=\""+query+"\" or indexURI=\""+indexuri+"\", maybe something is wrong with the index or it's uri is wrong." );
-			return new Search(query, indexuri, request );
+			Search search = new Search(query, indexuri, request );
+			search.cachekey = key;
+			return search;
 		}
 
 		// Make phrase search (hyphen-separated words are also treated as phrases)
@@ -378,6 +438,44 @@ public class Search extends AbstractExecution<Set<TermEntry>>
 	}
 
 
+	/**
+	 * Works out the key for the results of a term in a single index. Bookmarks
+	 * are resolved to the uri they currently point to, and the edition is
+	 * separated from USKs, so that each edition is cached separately.
+	 * @return the key, or null if the results shouldn't be cached because the
+	 * index could change, ie. it is a USK with no definite edition, or a local
+	 * file, which can be rewritten in place
+	 */
+	private static TermResultCache.Key cacheKey(String indexuri, String term){
+		String index = indexuri.trim();
+		if (index.startsWith(Library.BOOKMARK_PREFIX)){
+			index = library.getBookmark(index.substring(Library.BOOKMARK_PREFIX.length()));
+			if (index == null)
+				return null;	// getIndex() will fail for us
+		}
+		long edition = -1;
+		try {
+			FreenetURI uri = new FreenetURI(index);
+			if (uri.isUSK()){
+				edition = uri.getEdition();
+				if (edition < 0)
+					return null;
+				index = uri.setSuggestedEdition(0).toString();
+			}
+		} catch (MalformedURLException e) {
+			// not a freenet uri, so a local file, which has no editions
+			return null;
+		}
+		return new TermResultCache.Key(index, edition, term);
+	}
+
+	/**
+	 * @return the cache of single term results shared by all searches
+	 */
+	public static TermResultCache getTermCache(){
+		return termcache;
+	}
+
 	/**
 	 * Sets the parent plugin to be used for logging & plugin api
 	 */
@@ -484,7 +582,13 @@ public class Search extends AbstractExecution<Set<TermEntry>>
 	 * @return true if all are Finished and Result is ready, also stimulates the creation of the result if all subreqquests are complete and the result isn't made
 	 */
 	@Override public boolean isDone() throws TaskAbortException{
-		setStatus();
+		try {
+			setStatus();
+		} catch (TaskAbortException e) {
+			if(finishedTime < 0)
+				finishedTime = System.currentTimeMillis();
+			throw e;
+		}
 		return status == SearchStatus.Done;
 	}
 
@@ -523,10 +627,14 @@ public class Search extends AbstractExecution<Set<TermEntry>>
 				if(!resultset.isDone())
 					return;		// If Combining & combine not finished, status remains as Combining
 				subsearches = null;	// clear the subrequests after they have been combined
+				if(cachekey != null){
+					termcache.put(cachekey, resultset);
+					cachekey = null;
+				}
 				// If finished Combining and asked to generate resultnode, start that process
 				if(formatResult){
 					// resultset doesn't exist but subrequests are complete so we can start up a resultset
-					resultNodeGenerator = new ResultNodeGenerator(resultset, htmlgroupusk, htmlshowold, htmljs);
+					resultNodeGenerator = new ResultNodeGenerator(resultset, htmlgroupusk, htmlshowold, htmljs, 0, htmllimit, htmlpagelink);
 					if(executor!=null)
 						executor.execute(resultNodeGenerator, "Library.Search : formatting results");
 					else
@@ -544,6 +652,7 @@ public class Search extends AbstractExecution<Set<TermEntry>>
 					resultNodeGenerator = null;
 				}
 				status = SearchStatus.Done;
+				finishedTime = System.currentTimeMillis();
 			case Done :
 				// Done , do nothing
 		}
@@ -579,7 +688,7 @@ public class Search extends AbstractExecution<Set<TermEntry>>
 			throw e;
 		}
 
-		removeSearch(this);
+		collectedTime = System.currentTimeMillis();
 		Set<TermEntry> rs = resultset;
 		return rs;
 	}
@@ -594,7 +703,7 @@ public class Search extends AbstractExecution<Set<TermEntry>>
 			return null;
 		}
 
-		removeSearch(this);
+		collectedTime = System.currentTimeMillis();
 		HTMLNode pen = pageEntryNode;
 		pageEntryNode = null;
 
@@ -602,10 +711,22 @@ public class Search extends AbstractExecution<Set<TermEntry>>
 	}
 
 	public synchronized void setMakeResultNode(boolean groupusk, boolean showold, boolean js){
+		setMakeResultNode(groupusk, showold, js, 0, null);
+	}
+
+	/**
+	 * As {@link #setMakeResultNode(boolean, boolean, boolean)}, but only
+	 * generate the first page of results
+	 * @param limit number of results on a page, 0 for all
+	 * @param pageLink URL for links to other pages, see {@link ResultNodeGenerator}
+	 */
+	public synchronized void setMakeResultNode(boolean groupusk, boolean showold, boolean js, int limit, String pageLink){
 		formatResult = true;
 		htmlgroupusk = groupusk;
 		htmlshowold = showold;
 		htmljs = js;
+		htmllimit = limit;
+		htmlpagelink = pageLink;
 	}
 
 	@Override
@@ -0,0 +1,324 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package plugins.Library.search;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import plugins.Library.index.TermEntry;
+import plugins.Library.index.TermPageEntry;
+import plugins.Library.util.exec.AbstractExecution;
+import plugins.Library.util.exec.Execution;
+import plugins.Library.util.exec.ProgressParts;
+import plugins.Library.util.exec.TaskAbortException;
+
+/**
+ * Cache of the results of single term lookups, shared by all Searches, so
+ * that a term which appears in several queries (or is searched for again) is
+ * not fetched and inflated from the index each time.
+ * <br /> <br />
+ * Results are keyed by index, edition and term, and weighed by a rough
+ * estimate of the memory they use; once the total goes over the budget the
+ * least recently used results are dropped. Only results which can't change
+ * are cached, so a USK index without a definite edition is never cached.
+ * <br /> <br />
+ * New results are only let in (TinyLFU admission) if their term has been
+ * looked up more often lately than each of the results they would push out.
+ * Lookups are counted in a small count-min sketch whose counters are halved
+ * every so often, so that old popularity fades. This stops a burst of
+ * one-off terms from flushing out the terms that are searched for all the
+ * time.
+ */
+public class TermResultCache {
+
+	/** Default memory budget, in bytes */
+	public static final long DEFAULT_MAX_BYTES = 16 << 20;
+
+	/** Estimated size of a TermEntry with no title or positions, including its URI */
+	private static final int ENTRY_BYTES = 256;
+	/** Estimated size of each position or fragment of a TermPageEntry */
+	private static final int POSITION_BYTES = 48;
+	/** Number of counters in each row of the frequency sketch; a power of two */
+	private static final int SKETCH_WIDTH = 4096;
+
+	/** Map of results to their weight, in access order */
+	private final LinkedHashMap<Key, Cached> cache = new LinkedHashMap<Key, Cached>(16, 0.75f, true);
+	/** Recent lookups of each key, whether they hit or not */
+	private final FrequencySketch lookups = new FrequencySketch(SKETCH_WIDTH);
+
+	private long maxBytes;
+	private long bytes = 0;
+	private long hits = 0;
+	private long misses = 0;
+	private long evictions = 0;
+	private long rejections = 0;
+
+	public TermResultCache(long maxBytes) {
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * Identifies the results for a term in a particular edition of an index
+	 */
+	public static final class Key {
+		final String index;
+		final long edition;
+		final String term;
+
+		/**
+		 * @param index the index uri, without the edition
+		 * @param edition the edition of the index, or -1 if it has no editions
+		 * @param term the term looked up
+		 */
+		public Key(String index, long edition, String term) {
+			if(index == null || term == null)
+				throw new NullPointerException();
+			this.index = index;
+			this.edition = edition;
+			this.term = term;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if(!(o instanceof Key))
+				return false;
+			Key k = (Key)o;
+			return edition == k.edition && term.equals(k.term) && index.equals(k.index);
+		}
+
+		@Override
+		public int hashCode() {
+			return (index.hashCode() * 31 + (int)(edition ^ (edition >>> 32))) * 31 + term.hashCode();
+		}
+
+		@Override
+		public String toString() {
+			return term + "@" + index + (edition < 0 ? "" : "#" + edition);
+		}
+	}
+
+	private static final class Cached {
+		final Set<TermEntry> result;
+		final long weight;
+
+		Cached(Set<TermEntry> result, long weight) {
+			this.result = result;
+			this.weight = weight;
+		}
+	}
+
+	/**
+	 * Look up the results for a term
+	 * @return an Execution which is already complete with the cached results, or null if they aren't cached
+	 */
+	public synchronized Execution<Set<TermEntry>> get(Key key) {
+		lookups.increment(key);
+		Cached c = cache.get(key);
+		if(c == null) {
+			misses++;
+			return null;
+		}
+		hits++;
+		return new CachedExecution(key, c.result);
+	}
+
+	/**
+	 * Add the results for a term, dropping the least recently used results if
+	 * this takes the cache over its budget. If the term is new, and has been
+	 * looked up no more often than one of the results it would push out, it
+	 * is not added at all. The set must not be modified afterwards.
+	 */
+	public synchronized void put(Key key, Set<TermEntry> result) {
+		long weight = weigh(result);
+		if(!cache.containsKey(key) && !admit(key, weight)) {
+			rejections++;
+			return;
+		}
+		Cached old = cache.put(key, new Cached(result, weight));
+		if(old != null)
+			bytes -= old.weight;
+		bytes += weight;
+		trim();
+	}
+
+	/**
+	 * Whether a new result should be let in, ie. whether it fits in the
+	 * budget, and its key has been looked up more often than each of the
+	 * least recently used results that would be dropped to make room for it
+	 */
+	private boolean admit(Key key, long weight) {
+		if(weight > maxBytes)
+			return false;
+		long free = maxBytes - bytes;
+		if(weight <= free)
+			return true;
+		int freq = lookups.frequency(key);
+		for (Map.Entry<Key, Cached> victim : cache.entrySet()) {
+			if(lookups.frequency(victim.getKey()) >= freq)
+				return false;
+			free += victim.getValue().weight;
+			if(weight <= free)
+				return true;
+		}
+		return true;
+	}
+
+	/**
+	 * Drop results until the cache fits in the budget
+	 */
+	private void trim() {
+		for (Iterator<Cached> it = cache.values().iterator(); bytes > maxBytes && it.hasNext();) {
+			bytes -= it.next().weight;
+			it.remove();
+			evictions++;
+		}
+	}
+
+	public synchronized void clear() {
+		cache.clear();
+		bytes = 0;
+	}
+
+	public synchronized void setMaxBytes(long maxBytes) {
+		this.maxBytes = maxBytes;
+		trim();
+	}
+
+	public synchronized long getMaxBytes() {
+		return maxBytes;
+	}
+
+	/** @return estimated memory used by the cached results */
+	public synchronized long getBytes() {
+		return bytes;
+	}
+
+	public synchronized int size() {
+		return cache.size();
+	}
+
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	public synchronized long getEvictions() {
+		return evictions;
+	}
+
+	/** @return number of new results which were not let in */
+	public synchronized long getRejections() {
+		return rejections;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "TermResultCache: " + cache.size() + " terms, " + bytes + "/" + maxBytes + " bytes, "
+				+ hits + " hits, " + misses + " misses, " + evictions + " evictions, " + rejections + " rejections";
+	}
+
+	/**
+	 * Rough estimate of the memory used by a set of results
+	 */
+	static long weigh(Set<TermEntry> result) {
+		long weight = 0;
+		for (TermEntry entry : result) {
+			weight += ENTRY_BYTES;
+			if(entry instanceof TermPageEntry) {
+				TermPageEntry page = (TermPageEntry)entry;
+				if(page.title != null)
+					weight += page.title.length() * 2;
+				if(page.hasPositions())
+					weight += page.positionsSize() * POSITION_BYTES;
+			}
+		}
+		return weight;
+	}
+
+	/**
+	 * Count-min sketch of how often keys have been seen lately. Each key has a
+	 * counter in each of a few rows, picked by hashing; its frequency is the
+	 * smallest of these, which overestimates only when every one is shared
+	 * with other keys. Counters stop at 15, and all are halved once there
+	 * have been ten times as many increments as a row has counters.
+	 */
+	private static final class FrequencySketch {
+		private static final int DEPTH = 4;
+		private static final int MAX_COUNT = 15;
+		private static final int[] SEEDS = { 0x9E3779B9, 0x85EBCA6B, 0xC2B2AE35, 0x27D4EB2F };
+
+		private final byte[][] rows;
+		private final int mask;
+		private final int sampleSize;
+		private int additions = 0;
+
+		FrequencySketch(int width) {
+			rows = new byte[DEPTH][width];
+			mask = width - 1;
+			sampleSize = 10 * width;
+		}
+
+		private int indexOf(int hash, int row) {
+			int h = hash * SEEDS[row];
+			return (h ^ (h >>> 16)) & mask;
+		}
+
+		int frequency(Object o) {
+			int hash = o.hashCode();
+			int freq = MAX_COUNT;
+			for (int i=0; i<DEPTH; ++i)
+				freq = Math.min(freq, rows[i][indexOf(hash, i)]);
+			return freq;
+		}
+
+		void increment(Object o) {
+			int hash = o.hashCode();
+			boolean added = false;
+			for (int i=0; i<DEPTH; ++i) {
+				int j = indexOf(hash, i);
+				if(rows[i][j] < MAX_COUNT) {
+					rows[i][j]++;
+					added = true;
+				}
+			}
+			if(added && ++additions >= sampleSize)
+				age();
+		}
+
+		/** Halve every counter, so that old lookups count for less */
+		private void age() {
+			for (byte[] row : rows)
+				for (int j=0; j<row.length; ++j)
+					row[j] >>= 1;
+			additions /= 2;
+		}
+	}
+
+	/**
+	 * An Execution which is complete as soon as it is made
+	 */
+	private static class CachedExecution extends AbstractExecution<Set<TermEntry>> {
+
+		CachedExecution(Key key, Set<TermEntry> result) {
+			super(key.toString());
+			setResult(result);
+		}
+
+		@Override
+		public String getStatus() {
+			return "Cached";
+		}
+
+		@Override
+		public ProgressParts getParts() throws TaskAbortException {
+			return ProgressParts.normalise(1, 1, 1, ProgressParts.TOTAL_FINALIZED);
+		}
+	}
+
+}
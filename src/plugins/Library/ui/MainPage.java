@@ -109,6 +109,15 @@ class MainPage {
 		return null;
 	}
 
+	/**
+	 * Get the index of the first result to show for a get request, for paging
+	 * through results. This is passed to {@link #writeContent(HTMLNode, MultiValueTable, int)}
+	 * rather than kept in the page, as several people may be viewing it.
+	 */
+	public static int getResultOffset(HTTPRequest request){
+		return Math.max(0, request.getIntParam("offset", 0));
+	}
+
 	/** post commands */
 	private static enum Commands {
 		/** performs a search */
@@ -193,7 +202,7 @@ class MainPage {
 					if(page.search == null)
 						page.messages.append("Stopwords too prominent in search term, try removing words like 'the', 'and' and 'that' and any words less than 3 characters");
 					else{
-						page.search.setMakeResultNode(page.groupusk, page.showold, true);	// for the moment js will always be on for results, js detecting isnt being used
+						page.search.setMakeResultNode(page.groupusk, page.showold, true, ResultNodeGenerator.DEFAULT_PAGE_SIZE, path()+"?request="+page.search.hashCode());	// for the moment js will always be on for results, js detecting isnt being used
 						
 						// at this point pages is in a state ready to be saved
 						addpage(page.search.hashCode(), page);
@@ -251,6 +260,14 @@ class MainPage {
 	 * freenet.support.HTMLNode)
 	 */
 	public void writeContent(HTMLNode contentNode, MultiValueTable<String, String> headers) {
+		writeContent(contentNode, headers, 0);
+	}
+
+	/**
+	 * As {@link #writeContent(HTMLNode, MultiValueTable)}, showing the page of
+	 * results starting at resultOffset
+	 */
+	public void writeContent(HTMLNode contentNode, MultiValueTable<String, String> headers, int resultOffset) {
 		HTMLNode errorDiv = contentNode.addChild("div", "id", "errors");
 
 		for (Exception exception : exceptions) {
@@ -283,13 +300,13 @@ class MainPage {
 				contentNode.addChild(progressBox());
 				// If search is complete show results
 				if (search.isDone()) {
-					if(search.hasGeneratedResultNode()){
+					if(resultOffset == 0 && search.hasGeneratedResultNode()){
 						contentNode.addChild(search.getHTMLNode());
 						//Logger.normal(this, "Got pre generated result node.");
 					}else
 						try {
 							//Logger.normal(this, "Blocking to generate resultnode.");
-							ResultNodeGenerator nodegenerator = new ResultNodeGenerator(search.getResult(), groupusk, showold, true); // js is being switch on always currently due to detection being off
+							ResultNodeGenerator nodegenerator = new ResultNodeGenerator(search.getResult(), groupusk, showold, true, resultOffset, ResultNodeGenerator.DEFAULT_PAGE_SIZE, refreshURL); // js is being switch on always currently due to detection being off
 							nodegenerator.run();
 							contentNode.addChild(nodegenerator.getPageEntryNode());
 						} catch (TaskAbortException ex) {
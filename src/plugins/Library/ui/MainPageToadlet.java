@@ -64,7 +64,7 @@ public class MainPageToadlet extends Toadlet {
 			HTMLNode contentNode = p.content;
 
 			MultiValueTable<String, String> headers = new MultiValueTable();
-			page.writeContent(contentNode, headers);
+			page.writeContent(contentNode, headers, MainPage.getResultOffset(request));
 			// write reply
 			writeHTMLReply(ctx, 200, "OK", headers, pageNode.generate());
 		} catch(RuntimeException e) {	// this way isnt working particularly well, i think the ctx only gives out one page maker
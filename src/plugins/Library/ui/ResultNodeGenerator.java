@@ -12,8 +12,15 @@ import freenet.keys.FreenetURI;
 import freenet.support.HTMLNode;
 import freenet.support.Logger;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Map.Entry;
+import java.util.PriorityQueue;
 import java.util.Set;
 import java.util.SortedMap;
 import java.util.SortedSet;
@@ -22,12 +29,21 @@ import java.util.TreeSet;
 
 /**
  * Class for parsing and formatting search results, once isDone() return true, the nodes are ready to use
+ * <br /> <br />
+ * If a page size (limit) is given, only one page of results is formatted. When
+ * the results are not grouped, only the best offset+limit pages are kept while
+ * parsing, in a bounded heap ordered by {@link RelevanceComparator}, so the
+ * cost of sorting and rendering depends on the page size rather than on the
+ * number of results.
  *
  * @author MikeB
  */
 public class ResultNodeGenerator implements Runnable {
+	/** Default number of results to show on each page */
+	public static final int DEFAULT_PAGE_SIZE = 100;
+
 	private TreeMap<String, TermPageGroupEntry> groupmap;
-	private TreeMap<TermPageEntry, Boolean> pageset;
+	private Map<TermPageEntry, Boolean> pageset;
 	private TreeSet<TermTermEntry> relatedTerms;
 	private TreeSet<TermIndexEntry> relatedIndexes;
 	private Set<TermEntry> result;
@@ -37,6 +53,14 @@ public class ResultNodeGenerator implements Runnable {
 	private boolean done;
 	private HTMLNode pageEntryNode;
 	private RuntimeException exception;
+	/** Index of the first result (or group if grouping) to show */
+	private final int offset;
+	/** Maximum number of results (or groups) to show, 0 for all */
+	private final int limit;
+	/** URL to which "&offset=n" is appended to link to other pages, or null for no links */
+	private final String pageLink;
+	/** Total number of pages in the results, counted while parsing in top-k mode */
+	private int total;
 
 
 	/**
@@ -47,10 +71,31 @@ public class ResultNodeGenerator implements Runnable {
 	 * @param js whether
 	 */
 	public ResultNodeGenerator(Set<TermEntry> result, boolean groupusk, boolean showold, boolean js){
+		this(result, groupusk, showold, js, 0, 0, null);
+	}
+
+	/**
+	 * Create a generator for one page of results
+	 * @param result Set of TermEntrys to format
+	 * @param groupusk whether the sites and editions should be grouped
+	 * @param showold whether to show older editions
+	 * @param js whether
+	 * @param offset index of the first result (or group if grouping) to show,
+	 * this is clamped to the number of results so it can come from the user
+	 * @param limit maximum number of results (or groups) to show, 0 for all
+	 * @param pageLink URL to which "&offset=n" is appended to link to the
+	 * previous and next pages, or null to not show links
+	 */
+	public ResultNodeGenerator(Set<TermEntry> result, boolean groupusk, boolean showold, boolean js, int offset, int limit, String pageLink){
+		if(offset < 0 || limit < 0)
+			throw new IllegalArgumentException("Negative offset or limit");
 		this.result = result;
 		this.groupusk = groupusk;
 		this.showold = showold;
 		this.js = js;
+		this.offset = (result == null) ? offset : Math.min(offset, result.size());
+		this.limit = limit;
+		this.pageLink = pageLink;
 	}
 
 
@@ -93,6 +138,10 @@ public class ResultNodeGenerator implements Runnable {
 	 * Parse result into generator
 	 */
 	private void parseResult(){
+		if(!groupusk && limit > 0){
+			parseResultTopK();
+			return;
+		}
 		groupmap = new TreeMap();
 		if(!groupusk)
 			pageset = new TreeMap(RelevanceComparator.comparator);
@@ -105,19 +154,8 @@ public class ResultNodeGenerator implements Runnable {
 			if(o instanceof TermPageEntry){
 				TermPageEntry pageEntry = (TermPageEntry)o;
 					// Put pages into a group hirearchy : USK key/docnames --> USK editions --> Pages
-				String sitebase;
-				long uskEdition = Long.MIN_VALUE;
-				// Get the key and name
-				FreenetURI uri;
-				uri = pageEntry.page;
-				// convert usk's
-				if(uri.isSSKForUSK()){
-					uri = uri.uskForSSK();
-					// Get the USK edition
-					uskEdition = uri.getEdition();
-				}
-				// Get the site base name, key + documentname - uskversion
-				sitebase = uri.setMetaString(null).setSuggestedEdition(0).toString().replaceFirst("/0", "");
+				long uskEdition = uskEdition(pageEntry.page);
+				String sitebase = siteBase(pageEntry.page);
 				Logger.minor(this, sitebase);
 
 				// Add site
@@ -154,6 +192,98 @@ public class ResultNodeGenerator implements Runnable {
 		}
     }
 
+	/**
+	 * A page found by a search, with its site and edition, so that these are
+	 * only worked out once
+	 */
+	private static class SitePage {
+		final TermPageEntry entry;
+		final String sitebase;
+		final long edition;
+
+		SitePage(TermPageEntry entry) {
+			this.entry = entry;
+			this.sitebase = siteBase(entry.page);
+			this.edition = uskEdition(entry.page);
+		}
+	}
+
+	/**
+	 * Parse result into generator, keeping only the best offset+limit pages
+	 * and then only the ones on the page being shown. This makes a pass over
+	 * the result to find the newest edition of each site, and then one over
+	 * its pages to fill the heap.
+	 */
+	private void parseResultTopK(){
+		relatedTerms = new TreeSet(RelevanceComparator.comparator);
+		relatedIndexes = new TreeSet(RelevanceComparator.comparator);
+
+		HashMap<String, Long> newest = new HashMap<String, Long>();
+		ArrayList<SitePage> pages = new ArrayList<SitePage>();
+		for (TermEntry o : result) {
+			if(o instanceof TermPageEntry){
+				SitePage page = new SitePage((TermPageEntry)o);
+				pages.add(page);
+				Long edition = newest.get(page.sitebase);
+				if(edition == null || edition < page.edition)
+					newest.put(page.sitebase, page.edition);
+			}else if(o instanceof TermTermEntry){
+				relatedTerms.add((TermTermEntry)o);
+			}else if(o instanceof TermIndexEntry){
+				relatedIndexes.add((TermIndexEntry)o);
+			}else
+				Logger.error(this, "Unknown TermEntry type : "+o.getClass().getName());
+		}
+
+		// heap of the best k pages, with the worst at the head
+		int k = (int)Math.min((long)offset + limit, Integer.MAX_VALUE);
+		final Comparator<TermEntry> worst = Collections.reverseOrder(RelevanceComparator.comparator);
+		Comparator<SitePage> worstFirst = new Comparator<SitePage>() {
+			public int compare(SitePage a, SitePage b) {
+				return worst.compare(a.entry, b.entry);
+			}
+		};
+		PriorityQueue<SitePage> heap = new PriorityQueue<SitePage>(Math.min(k, 0x400) + 1, worstFirst);
+		total = 0;
+		for (SitePage page : pages) {
+			if(!showold && page.edition != newest.get(page.sitebase))
+				continue;	// If not showing old, skip all but newest
+			total++;
+			if(heap.size() < k)
+				heap.add(page);
+			else if(worstFirst.compare(page, heap.peek()) > 0){	// better than the worst kept so far
+				heap.poll();
+				heap.add(page);
+			}
+		}
+
+		// the heap drains worst first; keep those on the page being shown, best first
+		SitePage[] best = new SitePage[heap.size()];
+		for (int i = best.length - 1; i >= 0; i--)
+			best[i] = heap.poll();
+		pageset = new LinkedHashMap<TermPageEntry, Boolean>();
+		for (int i = offset; i < best.length; i++) {
+			pageset.put(best[i].entry, best[i].edition == newest.get(best[i].sitebase));
+		}
+	}
+
+	/**
+	 * Get the site base name of a page, key + documentname - uskversion
+	 */
+	private static String siteBase(FreenetURI uri) {
+		// convert usk's
+		if(uri.isSSKForUSK())
+			uri = uri.uskForSSK();
+		return uri.setMetaString(null).setSuggestedEdition(0).toString().replaceFirst("/0", "");
+	}
+
+	/**
+	 * Get the USK edition of a page, or Long.MIN_VALUE if it is not part of a USK
+	 */
+	private static long uskEdition(FreenetURI uri) {
+		return uri.isSSKForUSK() ? uri.uskForSSK().getEdition() : Long.MIN_VALUE;
+	}
+
 	private HTMLNode generateIndexEntryNode(){
 		return new HTMLNode("#", "TermIndexEntry code not done yet");
 	}
@@ -177,10 +307,15 @@ public class ResultNodeGenerator implements Runnable {
 
 			// Loop over keys
 			Iterator<TermPageGroupEntry> it2 = groupSet.iterator();
-			while (it2.hasNext()) {
+			for (int g = 0; it2.hasNext(); g++) {
 				TermPageGroupEntry group = it2.next();
 				String keybase = group.subj;
 				SortedMap<Long, SortedSet<TermPageEntry>> siteMap = group.getEditions();
+				if(limit > 0 && (g < offset || g >= offset + limit)){	// not on this page, just count it
+					for (SortedSet<TermPageEntry> edition : siteMap.values())
+						results += edition.size();
+					continue;
+				}
 				HTMLNode siteNode = pageEntryNode.addChild("div", "style", "padding-bottom: 6px;");
 				// Create a block for old versions of this SSK
 				HTMLNode siteBlockOldOuter = siteNode.addChild("div", new String[]{"id", "style"}, new String[]{"result-hiddenblock-"+keybase, (!showold?"display:none":"")});
@@ -222,6 +357,7 @@ public class ResultNodeGenerator implements Runnable {
 					}
 				}
 			}
+			addPageLinks(groupSet.size());
 		}else{	// Just produce sorted list of results
 			for (Iterator<Entry<TermPageEntry, Boolean>> it = pageset.entrySet().iterator(); it.hasNext();) {
 				Entry<TermPageEntry, Boolean> entry = it.next();
@@ -230,10 +366,29 @@ public class ResultNodeGenerator implements Runnable {
 				pageEntryNode.addChild("div").addChild(termPageEntryNode(termPageEntry, newestVersion));
 				results++;
 			}
+			if(limit > 0){
+				results = total;
+				addPageLinks(total);
+			}
 		}
 		pageEntryNode.addChild("p").addChild("span", "class", "librarian-summary-found", "Found "+results+" results");
 	}
 
+	/**
+	 * Add links to the previous and next pages of results, if there are any
+	 * @param count the number of results (or groups if grouping) in all pages
+	 */
+	private void addPageLinks(int count) {
+		if(limit == 0 || pageLink == null || count <= limit)
+			return;
+		HTMLNode pageLinks = pageEntryNode.addChild("p", "class", "librarian-result-pages");
+		if(offset > 0)
+			pageLinks.addChild("a", "href", pageLink+"&offset="+Math.max(0, offset-limit), "[ Previous "+limit+" ]");
+		pageLinks.addChild("span", " Showing "+(offset+1)+" to "+Math.min(offset+limit, count)+" of "+count+" ");
+		if(offset + limit < count)
+			pageLinks.addChild("a", "href", pageLink+"&offset="+(offset+limit), "[ Next "+Math.min(limit, count-offset-limit)+" ]");
+	}
+
 	/**
 	 * Returns an {@link HTMLNode} representation of a {@link TermPageEntry} for display in a browser
 	 * @param entry
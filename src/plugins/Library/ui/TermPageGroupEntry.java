@@ -33,6 +33,11 @@ public class TermPageGroupEntry extends TermEntry {
 		throw new UnsupportedOperationException("Not supported yet.");
 	}
 
+	@Override
+	public Object target() {
+		throw new UnsupportedOperationException("Not supported yet.");
+	}
+
 	public void addPage(long uskEdition, TermPageEntry pageEntry) {
 		// Add Edition
 		if(!editions.containsKey(uskEdition))
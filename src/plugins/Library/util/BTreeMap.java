@@ -366,7 +366,7 @@ implements Map<K, V>, SortedMap<K, V>/*, NavigableMap<K, V>, Cloneable, Serializ
 		** @param lf Whether to create a leaf node
 		*/
 		protected Node(K lk, K rk, boolean lf) {
-			this(lk, rk, lf, new TreeMap<K, V>(comparator));
+			this(lk, rk, lf, new SortedArrayMap<K, V>(comparator));
 		}
 
 		/**
@@ -1057,54 +1057,35 @@ implements Map<K, V>, SortedMap<K, V>/*, NavigableMap<K, V>, Cloneable, Serializ
 		parent._size = child._size = -1;
 
 		Node lnode = newNode(null, null, child.isLeaf());
-		K mkey;
 
-		if (child.isLeaf()) {
-			// this is just the same as the code in the else block, but with leaf
-			// references to rnodes and lnodes removed (since they are null)
-			Iterator<Map.Entry<K, V>> it = child.entries.entrySet().iterator();
-			for (int i=0; i<ENT_MIN; ++i) {
-				Map.Entry<K, V> entry = it.next(); it.remove();
-				K key = entry.getKey();
-
-				lnode.entries.put(key, entry.getValue());
-			}
-			Map.Entry<K, V> median = it.next(); it.remove();
-			mkey = median.getKey();
+		// the median is the (ENT_MIN+1)th key; the entries before it are moved
+		// into lnode in bulk, rather than one at a time
+		Iterator<K> it = child.entries.keySet().iterator();
+		for (int i=0; i<ENT_MIN; ++i) { it.next(); }
+		K mkey = it.next();
+		V mval = child.entries.get(mkey);
+		SortedMap<K, V> head = child.entries.headMap(mkey);
 
-			lnode.lkey = child.lkey;
-			lnode.rkey = child.lkey = mkey;
-
-			parent.rnodes.put(lnode.lkey, lnode);
-			parent.lnodes.put(child.rkey, child);
-			parent.entries.put(mkey, median.getValue());
-			parent.rnodes.put(mkey, child);
-			parent.lnodes.put(mkey, lnode);
-
-		} else {
+		lnode.entries.putAll(head);
+		if (!child.isLeaf()) {
 			lnode.rnodes.put(child.lkey, child.rnodes.remove(child.lkey));
-			Iterator<Map.Entry<K, V>> it = child.entries.entrySet().iterator();
-			for (int i=0; i<ENT_MIN; ++i) {
-				Map.Entry<K, V> entry = it.next(); it.remove();
-				K key = entry.getKey();
-
-				lnode.entries.put(key, entry.getValue());
+			for (K key: head.keySet()) {
 				lnode.lnodes.put(key, child.lnodes.remove(key));
 				lnode.rnodes.put(key, child.rnodes.remove(key));
 			}
-			Map.Entry<K, V> median = it.next(); it.remove();
-			mkey = median.getKey();
 			lnode.lnodes.put(mkey, child.lnodes.remove(mkey));
+		}
+		head.clear();
+		child.entries.remove(mkey);
 
-			lnode.lkey = child.lkey;
-			lnode.rkey = child.lkey = mkey;
+		lnode.lkey = child.lkey;
+		lnode.rkey = child.lkey = mkey;
 
-			parent.rnodes.put(lnode.lkey, lnode);
-			parent.lnodes.put(child.rkey, child);
-			parent.entries.put(mkey, median.getValue());
-			parent.rnodes.put(mkey, child);
-			parent.lnodes.put(mkey, lnode);
-		}
+		parent.rnodes.put(lnode.lkey, lnode);
+		parent.lnodes.put(child.rkey, child);
+		parent.entries.put(mkey, mval);
+		parent.rnodes.put(mkey, child);
+		parent.lnodes.put(mkey, lnode);
 
 		assert(parent.rnodes.get(mkey) == child);
 		assert(parent.lnodes.get(mkey) == lnode);
@@ -1333,49 +1314,73 @@ implements Map<K, V>, SortedMap<K, V>/*, NavigableMap<K, V>, Cloneable, Serializ
 
 	/**
 	** Returns the entry at a particular (zero-based) index.
+	**
+	** This descends from the root using the subtree sizes cached in each node
+	** (see {@link Node#totalSize()}), so it visits one node per level of the
+	** tree, and never touches the subnodes off that path. In a {@link
+	** SkeletonBTreeMap}, those may be ghosts.
 	*/
 	public Map.Entry<K, V> getEntry(int index) {
 		if (index < 0 || index >= size) {
 			throw new IndexOutOfBoundsException("Index outside of range [0," + size + ")");
 		}
 
-		int current = 0;
 		Node node = root;
-
 		for (;;) {
 			if (node.isLeaf()) {
+				if (node.entries instanceof SortedArrayMap) {
+					return ((SortedArrayMap<K, V>)node.entries).getEntry(index);
+				}
 				for (Map.Entry<K, V> en: node.entries.entrySet()) {
-					if (current == index) { return en; }
-					++current;
+					if (index == 0) { return en; }
+					--index;
 				}
-				throw new IllegalStateException("BTreeMap getKey method is buggy, please report.");
+				throw new IllegalStateException("BTreeMap getEntry method is buggy, please report.");
 			}
 
-			// OPT LOW better way to do this than linear iteration through the entries.
-			// this performs badly when large nodes are accessed repeatedly.
-			//
-			// one way would be to insert the last sum-key pair we calculate at each node, into
-			// a cache of SoftReference<TreeSet<Integer, K>> for that node. then, next time we visit
-			// the same node, we can use this cache to generate a submap - ie.
-			//   node.entries.tailMap(cache.get(cache.tailMap(index).firstKey())) // firstEntry().getValue() is Java 6 only :(
-			// - and iterate only over this submap (don't forget to set "current" to the right value)
-			//
-			Node nextnode = node.rnodes.get(node.lkey);
-			int next = current + nextnode.totalSize();
-			if (index < next) { node = nextnode; continue; }
-			current = next;
-
+			Node child = node.rnodes.get(node.lkey);
 			for (Map.Entry<K, V> en: node.entries.entrySet()) {
-				if (current == index) { return en; }
-				++current;
+				int s = child.totalSize();
+				if (index < s) { break; }
+				index -= s;
+				if (index == 0) { return en; }
+				--index;
+				child = node.rnodes.get(en.getKey());
+			}
+			node = child;
+		}
+	}
 
-				nextnode = node.rnodes.get(en.getKey());
-				next = current + nextnode.totalSize();
-				if (index < next) { node = nextnode; break; }
-				current = next;
+	/**
+	** Returns the number of keys in the map that are less than the given key.
+	** This is the index of the key if it is in the map, or the index it would
+	** have if it were added.
+	**
+	** Like {@link #getEntry(int)}, this only visits one node per level of the
+	** tree.
+	**
+	** @throws ClassCastException key cannot be compared with the keys
+	**         currently in the map
+	** @throws NullPointerException key is {@code null}
+	*/
+	public int rank(K key) {
+		if (key == null) { throw new NullPointerException(); }
+		int r = 0;
+		Node node = root;
+		for (;;) {
+			if (node.isLeaf()) {
+				return r + node.entries.headMap(key).size();
 			}
 
-			assert(current <= index);
+			Node child = node.rnodes.get(node.lkey);
+			for (K k: node.entries.keySet()) {
+				int d = compare(key, k);
+				if (d == 0) { return r + child.totalSize(); }
+				if (d < 0) { break; }
+				r += child.totalSize() + 1;
+				child = node.rnodes.get(k);
+			}
+			node = child;
 		}
 	}
 
@@ -1669,7 +1674,7 @@ implements Map<K, V>, SortedMap<K, V>/*, NavigableMap<K, V>, Cloneable, Serializ
 				int k = minNodesFor(map.size());
 
 				nextlnodes = new HashMap<K, Node>(k<<1);
-				nextmap = new TreeMap<K, V>(comparator);
+				nextmap = new SortedArrayMap<K, V>(comparator);
 
 				Iterator<Map.Entry<K, V>> it = map.entrySet().iterator();
 				K prevkey = null; // NULLNOTICE
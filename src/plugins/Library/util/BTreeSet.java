@@ -72,5 +72,13 @@ implements Set<E>, SortedSet<E>/*, NavigableSet<E>, Cloneable, Serializable*/ {
 		return bkmap.getEntry(i).getKey();
 	}
 
+	/**
+	** Returns the number of elements in the set that are less than the given
+	** element.
+	*/
+	public int rank(E e) {
+		return bkmap.rank(e);
+	}
+
 
 }
@@ -0,0 +1,21 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package plugins.Library.util;
+
+import java.util.Iterator;
+
+/**
+** An {@link Iterator} that holds resources (eg. background tasks) until it
+** reaches the end. Callers that stop before then should {@link #close()} it.
+*/
+public interface CloseableIterator<T> extends Iterator<T>, java.io.Closeable {
+
+	/**
+	** Releases the resources held by this iterator. It must not be used
+	** afterwards. This does nothing if it has already been closed, or has
+	** reached the end.
+	*/
+	public void close();
+
+}
@@ -0,0 +1,341 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package plugins.Library.util;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+** Keeps track of the {@link SkeletonBTreeMap.SkeletonNode}s that have been
+** pulled into one or more {@link SkeletonBTreeMap}s, and turns the least
+** recently used ones back into {@link SkeletonBTreeMap.GhostNode}s when their
+** total weight goes over a limit. This lets a long-running process serve
+** searches over many indexes without slowly filling the heap with nodes it
+** has finished with.
+**
+** A node is re-ghosted using {@link SkeletonBTreeMap.SkeletonNode#makeGhost}
+** with the metadata it was originally pulled from, so this must only be used
+** for trees that are not modified after they are loaded; {@link
+** SkeletonBTreeMap#update} stops managing a tree before it modifies it. A
+** node is only re-ghosted once all of its subnodes have been re-ghosted, and
+** nodes in the top levels of each tree (just below the root, which is never
+** pulled) are never re-ghosted at all, since almost every lookup needs them.
+** These ''pinned'' nodes are not counted towards the limit.
+**
+** Nodes, and their trees, are only referred to weakly, so a tree that is
+** dropped by everything else (eg. a {@link plugins.Library.index.ProtoIndex}
+** that is no longer in use) is garbage collected as usual, and its nodes stop
+** being managed.
+**
+** The weight of a node is estimated from the number of entries it held when
+** it was pulled. Access times are updated as lookups descend through the tree
+** (see {@link SkeletonBTreeMap.SkeletonNode#selectNode}), so the order is
+** only approximately least-recently-used for other types of access.
+**
+** Nodes are only ever re-ghosted by a thread that is loading a node into the
+** same tree, so a lookup in one tree never modifies another. Within a tree,
+** re-ghosting only replaces the child of a parent node, as loading does, and
+** threads that are already inside a re-ghosted node carry on using the old
+** copy. Like the rest of {@link SkeletonBTreeMap}, this is not safe if the
+** tree is being modified in other ways at the same time.
+*/
+public class NodeResidency {
+
+	/** Default weight limit, in bytes. */
+	final public static long DEFAULT_MAX_BYTES = 32 << 20;
+	/** Default estimate of the memory used by each entry of a node, in bytes. */
+	final public static int DEFAULT_ENTRY_BYTES = 256;
+	/** Default number of levels below the root that are never re-ghosted. */
+	final public static int DEFAULT_PIN_LEVELS = 1;
+
+	/**
+	** Estimate of the memory used by a node, other than its entries.
+	*/
+	final protected static int NODE_BYTES = 512;
+
+	/**
+	** Nodes being managed, in access order.
+	*/
+	final protected LinkedHashMap<NodeRef, Resident<?, ?>> residents = new LinkedHashMap<NodeRef, Resident<?, ?>>(0x100, 0.75f, true);
+
+	/**
+	** Keys of {@link #residents} whose nodes have been garbage collected.
+	*/
+	final protected ReferenceQueue<Object> collected = new ReferenceQueue<Object>();
+
+	protected long maxBytes;
+	final protected int entryBytes;
+	final protected int pinLevels;
+
+	protected long bytes = 0;
+	protected long pinnedBytes = 0;
+	protected long loads = 0;
+	protected long hits = 0;
+	protected long evictions = 0;
+
+	public NodeResidency(long max, int entry, int pin) {
+		if (max < 0 || entry < 0 || pin < 0) {
+			throw new IllegalArgumentException("NodeResidency: negative parameter");
+		}
+		maxBytes = max;
+		entryBytes = entry;
+		pinLevels = pin;
+	}
+
+	public NodeResidency(long max) {
+		this(max, DEFAULT_ENTRY_BYTES, DEFAULT_PIN_LEVELS);
+	}
+
+	public NodeResidency() {
+		this(DEFAULT_MAX_BYTES);
+	}
+
+	/**
+	** A weak reference to a node, which is equal to any other reference to the
+	** same node, so that it can be used to look up the node's {@link
+	** Resident}.
+	*/
+	protected static class NodeRef extends WeakReference<Object> {
+
+		final int hash;
+
+		NodeRef(Object node, ReferenceQueue<Object> q) {
+			super(node, q);
+			hash = System.identityHashCode(node);
+		}
+
+		@Override public int hashCode() {
+			return hash;
+		}
+
+		@Override public boolean equals(Object o) {
+			if (o == this) { return true; }
+			if (!(o instanceof NodeRef)) { return false; }
+			Object node = get();
+			return node != null && node == ((NodeRef)o).get();
+		}
+
+	}
+
+	/**
+	** A node being managed.
+	*/
+	protected static class Resident<K, V> {
+
+		final NodeRef ref;
+		final WeakReference<SkeletonBTreeMap<K, V>> tree;
+		final WeakReference<SkeletonBTreeMap<K, V>.SkeletonNode> parent;
+		/** Metadata of the {@link SkeletonBTreeMap.GhostNode} the node was pulled from. */
+		final Object meta;
+		/** Depth of the node in the tree; the root has depth 0. */
+		final int depth;
+		final long weight;
+		final boolean pinned;
+
+		Resident(NodeRef r, SkeletonBTreeMap<K, V> t, SkeletonBTreeMap<K, V>.SkeletonNode p, Object m, int d, long w, boolean pin) {
+			ref = r;
+			tree = new WeakReference<SkeletonBTreeMap<K, V>>(t);
+			parent = new WeakReference<SkeletonBTreeMap<K, V>.SkeletonNode>(p);
+			meta = m;
+			depth = d;
+			weight = w;
+			pinned = pin;
+		}
+
+		SkeletonBTreeMap<K, V>.SkeletonNode node() {
+			return (SkeletonBTreeMap<K, V>.SkeletonNode)ref.get();
+		}
+
+		/**
+		** Whether the node is still attached to its parent. It might not be
+		** if the parent was modified by something else, or if either of them
+		** have been garbage collected.
+		*/
+		boolean isAttached() {
+			SkeletonBTreeMap<K, V>.SkeletonNode n = node(), p = parent.get();
+			return n != null && p != null && p.rnodes.get(n.lkey) == n;
+		}
+
+		/**
+		** Whether all of the node's subnodes are ghosts.
+		*/
+		boolean isBottom() {
+			SkeletonBTreeMap<K, V>.SkeletonNode n = node();
+			return n != null && (n.isLeaf() || n.ghosts == n.childCount());
+		}
+
+		void reghost() {
+			parent.get().attachGhost(node().makeGhost(meta));
+		}
+
+	}
+
+	protected void remove(Resident<?, ?> r) {
+		if (r.pinned) { pinnedBytes -= r.weight; } else { bytes -= r.weight; }
+	}
+
+	/**
+	** Stop managing nodes that have been garbage collected.
+	*/
+	protected void purge() {
+		for (Object ref; (ref = collected.poll()) != null;) {
+			Resident<?, ?> r = residents.remove(ref);
+			if (r != null) { remove(r); }
+		}
+	}
+
+	/**
+	** Start managing a node that has just been pulled into a tree and
+	** attached to its parent, then re-ghost other nodes of the same tree if
+	** this takes the total weight over the limit.
+	**
+	** If the parent is not the root of the tree and is not being managed, the
+	** depth of the node is unknown, and it is ignored.
+	**
+	** @param tree The tree
+	** @param node The node that was pulled
+	** @param parent Its parent
+	** @param meta The metadata it was pulled from
+	*/
+	public synchronized <K, V> void loaded(SkeletonBTreeMap<K, V> tree, SkeletonBTreeMap<K, V>.SkeletonNode node, SkeletonBTreeMap<K, V>.SkeletonNode parent, Object meta) {
+		purge();
+		++loads;
+		int depth;
+		if (parent == tree.root) {
+			depth = 1;
+		} else {
+			Resident<?, ?> pr = residents.get(new NodeRef(parent, null));
+			if (pr == null) { return; }
+			depth = pr.depth + 1;
+		}
+		NodeRef ref = new NodeRef(node, collected);
+		Resident<K, V> r = new Resident<K, V>(ref, tree, parent, meta, depth, NODE_BYTES + (long)node.nodeSize() * entryBytes, depth <= pinLevels);
+		Resident<?, ?> old = residents.remove(ref);
+		if (old != null) { remove(old); }
+		residents.put(ref, r);
+		if (r.pinned) { pinnedBytes += r.weight; } else { bytes += r.weight; }
+		trim(tree);
+	}
+
+	/**
+	** Mark a node as having been used.
+	*/
+	public synchronized void accessed(Object node) {
+		if (residents.get(new NodeRef(node, null)) != null) { ++hits; }
+	}
+
+	/**
+	** Stop managing all of the nodes of a tree. They are left as they are.
+	*/
+	public synchronized void forget(SkeletonBTreeMap<?, ?> tree) {
+		purge();
+		for (Iterator<Resident<?, ?>> it = residents.values().iterator(); it.hasNext();) {
+			Resident<?, ?> r = it.next();
+			if (r.tree.get() == tree) {
+				remove(r);
+				it.remove();
+			}
+		}
+	}
+
+	/**
+	** Re-ghost the least recently used nodes of the given tree until the total
+	** weight is under the limit, or there are no more nodes in the tree that
+	** can be re-ghosted. Other trees are left alone, since other threads may
+	** be using them; their nodes are re-ghosted when they next load a node.
+	**
+	** Parents only become eligible after their subnodes have been re-ghosted,
+	** so this makes more than one pass over the nodes if necessary.
+	*/
+	protected void trim(SkeletonBTreeMap<?, ?> tree) {
+		boolean progress = true;
+		while (bytes > maxBytes && progress) {
+			progress = false;
+			for (Iterator<Resident<?, ?>> it = residents.values().iterator(); bytes > maxBytes && it.hasNext();) {
+				Resident<?, ?> r = it.next();
+				if (!r.isAttached()) {
+					// dropped from the tree by something else
+					remove(r);
+					it.remove();
+					continue;
+				}
+				if (r.tree.get() != tree || r.pinned || !r.isBottom()) { continue; }
+				r.reghost();
+				remove(r);
+				it.remove();
+				++evictions;
+				progress = true;
+			}
+		}
+	}
+
+	/**
+	** Set the weight limit. This takes effect for each tree the next time a
+	** node is loaded into it.
+	*/
+	public synchronized void setMaxBytes(long max) {
+		if (max < 0) {
+			throw new IllegalArgumentException("NodeResidency: negative limit");
+		}
+		maxBytes = max;
+	}
+
+	public synchronized long getMaxBytes() {
+		return maxBytes;
+	}
+
+	/**
+	** @return Estimated total weight of the nodes being managed, other than
+	**         pinned ones
+	*/
+	public synchronized long getBytes() {
+		purge();
+		return bytes;
+	}
+
+	/**
+	** @return Estimated total weight of the pinned nodes
+	*/
+	public synchronized long getPinnedBytes() {
+		purge();
+		return pinnedBytes;
+	}
+
+	/**
+	** @return Number of nodes being managed
+	*/
+	public synchronized int size() {
+		purge();
+		return residents.size();
+	}
+
+	/**
+	** @return Number of nodes that have been pulled
+	*/
+	public synchronized long getLoads() {
+		return loads;
+	}
+
+	/**
+	** @return Number of times a lookup passed through a managed node
+	*/
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	/**
+	** @return Number of nodes that have been re-ghosted
+	*/
+	public synchronized long getEvictions() {
+		return evictions;
+	}
+
+	@Override public synchronized String toString() {
+		return "NodeResidency: " + residents.size() + " nodes, " + bytes + "/" + maxBytes + " bytes, " + pinnedBytes + " pinned bytes; "
+		     + loads + " loads, " + hits + " hits, " + evictions + " evictions";
+	}
+
+}
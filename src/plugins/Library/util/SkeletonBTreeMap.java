@@ -14,6 +14,7 @@ import plugins.Library.util.exec.TaskCompleteException;
 import plugins.Library.util.func.Tuples.X2;
 import plugins.Library.util.func.Tuples.X3;
 
+import java.util.AbstractMap;
 import java.util.AbstractSet;
 import java.util.Comparator;
 import java.util.Iterator;
@@ -22,6 +23,8 @@ import java.util.Map;
 import java.util.List;
 import java.util.LinkedHashMap;
 import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.HashSet;
 import java.util.NoSuchElementException;
 import java.util.Set;
 import java.util.Stack;
@@ -35,8 +38,6 @@ import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executor;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.PriorityBlockingQueue;
-import java.util.concurrent.ThreadPoolExecutor;
-import java.util.concurrent.TimeUnit;
 import plugins.Library.util.exec.Progress;
 import plugins.Library.util.exec.ProgressParts;
 import plugins.Library.util.exec.BaseCompositeProgress;
@@ -65,6 +66,7 @@ import plugins.Library.util.event.CountingSweeper;
 import plugins.Library.util.func.Closure;
 import plugins.Library.util.func.SafeClosure;
 import static plugins.Library.util.Maps.$K;
+import static plugins.Library.util.Maps.$$;
 
 /**
 ** {@link Skeleton} of a {@link BTreeMap}. DOCUMENT
@@ -147,6 +149,32 @@ public class SkeletonBTreeMap<K, V> extends BTreeMap<K, V> implements SkeletonMa
 		((SkeletonNode)root).setSerialiser();
 	}
 
+	/**
+	** Manager for nodes pulled into this tree, or {@code null} to keep them
+	** until they are explicitly deflated.
+	*/
+	protected volatile NodeResidency residency;
+
+	/**
+	** Set the {@link NodeResidency} that will manage nodes pulled into this
+	** tree from now on. Nodes that are already loaded are not affected. If a
+	** different one was managing this tree before, it will stop doing so.
+	**
+	** This must only be used for trees that are not going to be modified;
+	** see the class description of {@link NodeResidency} for details.
+	**
+	** @param r The manager, or {@code null} to stop managing this tree.
+	*/
+	public synchronized void setResidency(NodeResidency r) {
+		if (residency == r) { return; }
+		if (residency != null) { residency.forget(this); }
+		residency = r;
+	}
+
+	public NodeResidency getResidency() {
+		return residency;
+	}
+
 	static volatile boolean logMINOR;
 	static volatile boolean logDEBUG;
 	
@@ -255,6 +283,19 @@ public class SkeletonBTreeMap<K, V> extends BTreeMap<K, V> implements SkeletonMa
 			return ((SkeletonTreeMap<K, V>)entries).isBare();
 		}
 
+		/**
+		** {@inheritDoc}
+		**
+		** This also tells the {@link NodeResidency} for the tree (if any) that
+		** the subnode has been used.
+		*/
+		@Override public Node selectNode(K key) {
+			Node node = super.selectNode(key);
+			NodeResidency r = residency;
+			if (r != null && node != null && !node.isGhost()) { r.accessed(node); }
+			return node;
+		}
+
 		/**
 		** {@inheritDoc}
 		*/
@@ -344,6 +385,25 @@ public class SkeletonBTreeMap<K, V> extends BTreeMap<K, V> implements SkeletonMa
 			inflate(key, false);
 		}
 
+		/**
+		** Inflates the entries of this node and its subnodes whose keys are
+		** in the given range, and only those subnodes whose ranges overlap
+		** it.
+		**
+		** @param lk Lower bound of the range, inclusive, or {@code null}
+		** @param rk Upper bound of the range, exclusive, or {@code null}
+		*/
+		public void inflate(K lk, K rk) throws TaskAbortException {
+			((SkeletonTreeMap<K, V>)entries).inflate(lk, rk);
+			if (!isLeaf()) {
+				for (Node node: iterNodes()) {
+					if (!overlaps(node, lk, rk)) { continue; }
+					inflate(node.lkey, false);
+					((SkeletonNode)rnodes.get(node.lkey)).inflate(lk, rk);
+				}
+			}
+		}
+
 		/**
 		** Deflates the node to the immediate right of the given key.
 		**
@@ -488,6 +548,8 @@ public class SkeletonBTreeMap<K, V> extends BTreeMap<K, V> implements SkeletonMa
 		}
 
 		parent.attachSkeleton(node);
+		NodeResidency r = residency;
+		if (r != null) { r.loaded(this, node, parent, ghost.getMeta()); }
 		return node;
 	}
 
@@ -546,17 +608,47 @@ public class SkeletonBTreeMap<K, V> extends BTreeMap<K, V> implements SkeletonMa
 	** Not yet thread safe, but ideally it should be. See source for details.
 	*/
 	/*@Override**/ public void inflate() throws TaskAbortException {
+		inflate((K)null, (K)null);
+	}
+
+	/**
+	** Whether a node might contain keys in the range {@code [lkey, rkey)}.
+	** {@code null} bounds mean no bound, as for {@link Node#lkey} and {@link
+	** Node#rkey}.
+	*/
+	protected boolean overlaps(Node node, K lkey, K rkey) {
+		return (rkey == null || node.lkey == null || compare(node.lkey, rkey) < 0)
+		    && (lkey == null || node.rkey == null || compare(lkey, node.rkey) < 0);
+	}
+
+	/**
+	** Parallel bulk-inflate of the entries in the range {@code [lkey, rkey)},
+	** including their values. Only the nodes whose ranges overlap this are
+	** pulled; {@link #inflate()} is the same as this with no bounds.
+	**
+	** Not yet thread safe, but ideally it should be. See source for details.
+	**
+	** @param lkey Lower bound of the range, inclusive, or {@code null} for no
+	**        lower bound
+	** @param rkey Upper bound of the range, exclusive, or {@code null} for no
+	**        upper bound
+	*/
+	public void inflate(K lkey, K rkey) throws TaskAbortException {
 
-		// TODO NORM adapt the algorithm to track partial loads of submaps (SUBMAP)
-		// TODO NORM if we do that, we'll also need to make it thread-safe. (THREAD)
+		// TODO NORM make this thread-safe. (THREAD)
 		// TODO NORM and do the PROGRESS stuff whilst we're at it
 
+		boolean all = lkey == null && rkey == null;
 		if (!(nsrl instanceof ScheduledSerialiser)) {
 			// TODO LOW could just use the code below - since the Scheduler would be
 			// unavailable, the tasks could be executed in the current thread, and the
 			// priority queue's comparator would turn it into depth-first search
 			// automatically.
-			((SkeletonNode)root).inflate();
+			if (all) {
+				((SkeletonNode)root).inflate();
+			} else {
+				((SkeletonNode)root).inflate(lkey, rkey);
+			}
 			return;
 		}
 
@@ -570,15 +662,20 @@ public class SkeletonBTreeMap<K, V> extends BTreeMap<K, V> implements SkeletonMa
 			ntracker = ((Serialiser.Trackable<SkeletonNode>)nsrl).getTracker();
 			// PROGRESS make a ProgressTracker track this instead of "pr_inf".
 			pr_inf.setSubProgress(ProgressTracker.makePullProgressIterable(ids));
-			pr_inf.setSubject("Pulling all entries in B-tree");
+			pr_inf.setSubject(all? "Pulling all entries in B-tree": "Pulling entries in B-tree from " + lkey + " to " + rkey);
 		}
 
+		// Wake up as soon as a task completes, instead of polling.
+		final Notifier notifier = new Notifier();
+
+		// the output queue also limits the pulls in progress; see ObjectProcessor
 		final ObjectProcessor<PullTask<SkeletonNode>, SkeletonNode, TaskAbortException> proc_pull
 		= ((ScheduledSerialiser<SkeletonNode>)nsrl).pullSchedule(
 			new PriorityBlockingQueue<PullTask<SkeletonNode>>(0x10, CMP_PULL),
-			new LinkedBlockingQueue<X2<PullTask<SkeletonNode>, TaskAbortException>>(0x10),
+			new LinkedBlockingQueue<X2<PullTask<SkeletonNode>, TaskAbortException>>(0x40),
 			new HashMap<PullTask<SkeletonNode>, SkeletonNode>()
 		);
+		proc_pull.setNotifier(notifier);
 		//System.out.println("Using scheduler");
 		//int DEBUG_pushed = 0, DEBUG_popped = 0;
 
@@ -624,10 +721,11 @@ public class SkeletonBTreeMap<K, V> extends BTreeMap<K, V> implements SkeletonMa
 				while (!nodequeue.isEmpty()) {
 					SkeletonNode node = nodequeue.remove();
 					// TODO HIGH this needs to be asynchronous
-					((SkeletonTreeMap<K, V>)node.entries).inflate(); // SUBMAP here
+					((SkeletonTreeMap<K, V>)node.entries).inflate(lkey, rkey);
 
 					if (node.isLeaf()) { continue; }
-					for (Node next: node.iterNodes()) { // SUBMAP here
+					for (Node next: node.iterNodes()) {
+						if (!all && !overlaps(next, lkey, rkey)) { continue; }
 						if (!next.isGhost()) {
 							SkeletonNode skel = (SkeletonNode)next;
 							if (!skel.isLive()) { nodequeue.add(skel); }
@@ -640,10 +738,11 @@ public class SkeletonBTreeMap<K, V> extends BTreeMap<K, V> implements SkeletonMa
 					}
 				}
 
-				Thread.sleep(0x40); // FIXME HIGH
-				// we really should put this higher, but BIndexTest tries to inflate a
-				// of trees in serial and with a 1 second-wait between each, this would
-				// take ages
+				// block until the next task completes. the notifier remembers any
+				// notification made since the last wait, so a task that completed
+				// after the hasCompleted() check above will not be missed. the
+				// timeout is only a safety net.
+				if (!proc_pull.hasCompleted()) { notifier.waitUpdate(1000); }
 			} while (proc_pull.hasPending());
 
 			pr_inf.setEstimate(ProgressParts.TOTAL_FINALIZED);
@@ -743,51 +842,19 @@ public class SkeletonBTreeMap<K, V> extends BTreeMap<K, V> implements SkeletonMa
 	}
 
 	/**
-	** The executor backing {@link #VALUE_EXECUTOR}.
+	** Executor for value handlers. Value handlers can themselves call update()
+	** on a nested structure and wait for it to finish, so they are manager
+	** tasks and must not share a bounded pool with the pulls and pushes that
+	** they (or the outer update) are waiting on. See {@link Executors}.
 	*/
-	private static Executor value_exec = null;
-
-	/**
-	 * Separate executor for value handlers. Value handlers can themselves call
-	 * update() and end up polling, so we need to keep them separate from the 
-	 * threads that do the actual work! */
-	final public static Executor VALUE_EXECUTOR = new Executor() {
-		/*@Override**/ public void execute(Runnable r) {
-			synchronized (Executors.class) {
-				if (value_exec == null) {
-					value_exec = new ThreadPoolExecutor(
-						0, 0x40, 60, TimeUnit.SECONDS,
-						new LinkedBlockingQueue<Runnable>(),
-						new ThreadPoolExecutor.CallerRunsPolicy()
-					);
-				}
-			}
-			value_exec.execute(r);
-		}
-	};
+	final public static Executor VALUE_EXECUTOR = Executors.MANAGER_EXECUTOR;
 
 	/**
-	** The executor backing {@link #VALUE_EXECUTOR}.
+	** Executor for deflating. Deflating a node pushes its values and waits for
+	** the pushes to finish, so this is also a manager task. We don't want
+	** update()'s to prevent actual pushes.
 	*/
-	private static Executor deflate_exec = null;
-
-	/**
-	 * Separate executor for deflating. We don't want update()'s to prevent actual
-	 * pushes. */
-	final public static Executor DEFLATE_EXECUTOR = new Executor() {
-		/*@Override**/ public void execute(Runnable r) {
-			synchronized (Executors.class) {
-				if (deflate_exec == null) {
-					deflate_exec = new ThreadPoolExecutor(
-						0, 0x40, 60, TimeUnit.SECONDS,
-						new LinkedBlockingQueue<Runnable>(),
-						new ThreadPoolExecutor.CallerRunsPolicy()
-					);
-				}
-			}
-			deflate_exec.execute(r);
-		}
-	};
+	final public static Executor DEFLATE_EXECUTOR = Executors.MANAGER_EXECUTOR;
 
 	/**
 	** Asynchronously updates a remote B-tree. This uses two-pass merge/split
@@ -815,6 +882,10 @@ public class SkeletonBTreeMap<K, V> extends BTreeMap<K, V> implements SkeletonMa
 		final SortedMap<K, V> putmap, Closure<Map.Entry<K, V>, X> value_handler,
 		ExceptionConvertor<X> conv
 	) throws TaskAbortException {
+
+		// Nodes are about to be modified, so they can no longer be re-ghosted
+		// from the metadata they were pulled from.
+		setResidency(null);
 		
 		// Check parameters.
 		
@@ -895,27 +966,26 @@ public class SkeletonBTreeMap<K, V> extends BTreeMap<K, V> implements SkeletonMa
 		// be quite fiddly. also, the current way allows the Packer to be more
 		// aggressive in packing the values into splitfiles.
 
-		// FIXME NORM - currently, there is a potential deadlock issue here,
-		// because proc_{pull,push,val} all use the same ThreadPoolExecutor to
-		// execute tasks. if the pool fills up with manager tasks {pull,push}
-		// then worker tasks {val} cannot execute, resulting in deadlock. at
-		// present, this is avoided by having ObjectProcessor.maxconc less than
-		// the poolsize, but future developers may change this unknowingly.
-		//
-		// a proper solution would be to have manager and worker tasks use
-		// different thread pools, ie. different ThreadPoolExecutors. care
-		// needs to be taken when doing this because the call can be recursive;
-		// ie. if the values are also SkeletonBTreeMaps, then the workers might
-		// start child "manager" tasks by calling value.update()
+		// Executor topology: proc_{pull,push} run worker tasks, which only do
+		// I/O and never wait for other tasks, on Executors.WORKER_EXECUTOR
+		// (via the ScheduledSerialiser). proc_{val,deflate} run manager tasks,
+		// which can wait for other tasks, on Executors.MANAGER_EXECUTOR. the
+		// call can be recursive; ie. if the values are also SkeletonBTreeMaps,
+		// then a value handler might start child manager tasks by calling
+		// value.update(). since the manager pool never queues, and workers
+		// never wait on anything, no pool can fill up with tasks that are
+		// waiting for tasks queued behind them. so ObjectProcessor.maxconc and
+		// the worker pool size can be raised independently of each other.
 		//
 		// arguably a better solution would be to not use threads, and use
 		// the async interface (i should have done this when i first coded it).
 		// see doc/todo.txt for details
 
+		// the output queue also limits the pulls in progress; see ObjectProcessor
 		final ObjectProcessor<PullTask<SkeletonNode>, SafeClosure<SkeletonNode>, TaskAbortException> proc_pull
 		= ((ScheduledSerialiser<SkeletonNode>)nsrl).pullSchedule(
 			new PriorityBlockingQueue<PullTask<SkeletonNode>>(0x10, CMP_PULL),
-			new LinkedBlockingQueue<X2<PullTask<SkeletonNode>, TaskAbortException>>(8),
+			new LinkedBlockingQueue<X2<PullTask<SkeletonNode>, TaskAbortException>>(0x40),
 			new HashMap<PullTask<SkeletonNode>, SafeClosure<SkeletonNode>>()
 		);
 		proc_pull.setNotifier(notifier);
@@ -1439,6 +1509,329 @@ public class SkeletonBTreeMap<K, V> extends BTreeMap<K, V> implements SkeletonMa
 	}
 
 
+	/**
+	** Default proportion of {@link #ENT_MAX} entries that {@link
+	** #putAllSorted(Iterator)} puts in each node. Some room is left so that
+	** the first {@link #update} after a bulk load doesn't split every node it
+	** touches.
+	*/
+	final public static float DEFAULT_BULK_FILL = 0.75f;
+
+	/**
+	** Maximum number of nodes being pushed at once by {@link
+	** #putAllSorted(Iterator, float)}. Building waits for pushes to finish
+	** when there are this many, so that memory use does not grow with the
+	** number of entries.
+	*/
+	final public static int BULK_PUSH_MAX = 0x20;
+
+	/**
+	** Calls {@link #putAllSorted(Iterator, float)} with {@link
+	** #DEFAULT_BULK_FILL}.
+	*/
+	public void putAllSorted(Iterator<? extends Map.Entry<K, V>> it) throws TaskAbortException {
+		putAllSorted(it, DEFAULT_BULK_FILL);
+	}
+
+	/**
+	** Builds this tree bottom-up from a stream of entries, of any length, in
+	** ascending key order. Each node is pushed through the node serialiser as
+	** soon as it (and all of its subnodes) are finished, in parallel with the
+	** rest of the build if the serialiser is a {@link ScheduledSerialiser}.
+	** Only the nodes along the right-hand edge of the tree, and those waiting
+	** to be pushed, are kept in memory, so this can build trees much larger
+	** than the heap, at about the speed of the serialiser.
+	**
+	** Nodes get {@code fill * ENT_MAX} entries, except for the last few of
+	** each level, which are evened out so that each has at least {@link
+	** #ENT_MIN}. The values of each node are deflated just before it is
+	** pushed. When this returns, every node except the root has been pushed;
+	** call {@link #deflate()} to also deflate the values of the root.
+	**
+	** This is not thread-safe. If it fails, the tree is left empty.
+	**
+	** @param it Iterator over the entries, in strictly ascending key order
+	** @param fill Proportion of {@link #ENT_MAX} entries to put in each node,
+	**        in the range {@code (0, 1]}
+	** @throws IllegalStateException if the tree is not empty
+	** @throws IllegalArgumentException if {@code fill} is out of range, or
+	**         the keys are not in strictly ascending order
+	** @throws TaskAbortException if a push fails or the iterator throws
+	*/
+	public void putAllSorted(Iterator<? extends Map.Entry<K, V>> it, float fill) throws TaskAbortException {
+		if (!(fill > 0 && fill <= 1)) {
+			throw new IllegalArgumentException("SkeletonBTreeMap: bulk load fill must be in (0, 1]: " + fill);
+		}
+		if (!isEmpty()) {
+			throw new IllegalStateException("SkeletonBTreeMap: can only bulk load an empty tree");
+		}
+		new BulkLoader(Math.max(ENT_MIN, Math.round(fill * ENT_MAX))).load(it);
+	}
+
+	/**
+	** Does the work for {@link #putAllSorted(Iterator, float)}.
+	**
+	** Each level of the tree being built has a buffer of the entries, and
+	** (except for leaves) the subnodes between them, that have not yet been
+	** put into a node. When a buffer has enough entries that a full node can
+	** be made and still leave {@link #ENT_MIN} entries behind, a node is made
+	** from the front of the buffer, and the next entry is moved up to the
+	** buffer of the level above as a separator. Once the input runs out, each
+	** buffer becomes one or two last nodes, and the last buffer becomes the
+	** root.
+	**
+	** A subnode that finishes pushing before its parent has been made is
+	** replaced by its ghost in the buffer; otherwise, the ghost is attached
+	** to the parent. A parent is pushed once all of its subnodes have been.
+	*/
+	protected class BulkLoader {
+
+		final protected int fill;
+
+		/** Buffers of each level, leaves first */
+		final protected List<Level> levels = new ArrayList<Level>();
+
+		/** Nodes that can be pushed, in the order they became ready */
+		final protected Queue<SkeletonNode> ready = new LinkedList<SkeletonNode>();
+		/** Parents of nodes being pushed, if they have been made yet */
+		final protected Map<SkeletonNode, SkeletonNode> parents = new HashMap<SkeletonNode, SkeletonNode>();
+		/** Ghosts of pushed nodes whose parents have not been made yet */
+		final protected Map<SkeletonNode, GhostNode> pushed = new HashMap<SkeletonNode, GhostNode>();
+		/** Number of subnodes still being pushed, for each parent */
+		final protected Map<SkeletonNode, Integer> waiting = new HashMap<SkeletonNode, Integer>();
+
+		/** Runs the pushes, or {@code null} if they are done one at a time */
+		protected ObjectProcessor<PushTask<SkeletonNode>, SkeletonNode, TaskAbortException> proc_push;
+
+		protected SkeletonNode newroot;
+
+		protected class Level {
+			final protected List<Map.Entry<K, V>> entries = new ArrayList<Map.Entry<K, V>>();
+			/** Subnodes before each of the entries, or {@code null} for leaves */
+			final protected List<Node> nodes;
+			/** Separator before the next node of this level */
+			protected K lkey = null;
+
+			protected Level(boolean leaf) {
+				nodes = (leaf)? null: new ArrayList<Node>();
+			}
+		}
+
+		protected BulkLoader(int f) {
+			assert(ENT_MIN <= f && f <= ENT_MAX);
+			fill = f;
+		}
+
+		protected void load(Iterator<? extends Map.Entry<K, V>> it) throws TaskAbortException {
+			if (nsrl instanceof ScheduledSerialiser) {
+				proc_push = ((ScheduledSerialiser<SkeletonNode>)nsrl).pushSchedule(
+					new LinkedBlockingQueue<PushTask<SkeletonNode>>(),
+					new LinkedBlockingQueue<X2<PushTask<SkeletonNode>, TaskAbortException>>(),
+					new HashMap<PushTask<SkeletonNode>, SkeletonNode>()
+				);
+				proc_push.setName("bulk push");
+			}
+
+			try {
+				levels.add(new Level(true));
+				Level leaves = levels.get(0);
+				K prevkey = null;
+				int count = 0;
+				while (it.hasNext()) {
+					Map.Entry<K, V> en = it.next();
+					K key = en.getKey();
+					if (count > 0 && compare(prevkey, key) >= 0) {
+						throw new IllegalArgumentException("SkeletonBTreeMap: bulk load keys not in ascending order: " + prevkey + ", " + key);
+					}
+					leaves.entries.add($$(key, en.getValue()));
+					prevkey = key;
+					++count;
+					if (emitFull(0)) { pump(BULK_PUSH_MAX); }
+				}
+				if (count == 0) { return; }
+
+				for (int i=0; i<levels.size(); ++i) {
+					finish(i);
+				}
+				pump(0);
+				assert(waiting.isEmpty() && parents.isEmpty() && pushed.isEmpty());
+
+				root = newroot;
+				size = count;
+
+			} catch (IllegalArgumentException e) {
+				reset();
+				throw e;
+			} catch (RuntimeException e) {
+				reset();
+				throw new TaskAbortException("Could not bulk load BTreeMap", e);
+			} catch (InterruptedException e) {
+				reset();
+				throw new TaskAbortException("interrupted", e);
+			} catch (TaskAbortException e) {
+				reset();
+				throw e;
+			} finally {
+				if (proc_push != null) { proc_push.close(); }
+			}
+		}
+
+		protected void reset() {
+			root = newNode(null, null, true);
+			size = 0;
+		}
+
+		/**
+		** Makes a full node from the front of the buffer of the given level,
+		** if that would still leave at least {@link #ENT_MIN} entries in it,
+		** and moves the entry after it up a level.
+		**
+		** @return Whether a node was made
+		*/
+		protected boolean emitFull(int i) {
+			Level lv = levels.get(i);
+			if (lv.entries.size() < fill + 1 + ENT_MIN) { return false; }
+			Map.Entry<K, V> sep = lv.entries.get(fill);
+			SkeletonNode node = makeNode(lv, fill, sep.getKey(), false);
+			lv.entries.remove(0);
+			lv.lkey = sep.getKey();
+			emit(i+1, node, sep);
+			return true;
+		}
+
+		/**
+		** Turns what is left in the buffer of the given level into one node,
+		** or two if it has too many entries for one. If this is the top
+		** level, and one node is enough, that node is the root.
+		*/
+		protected void finish(int i) {
+			Level lv = levels.get(i);
+			int n = lv.entries.size();
+			boolean top = i == levels.size()-1;
+			if (n <= ENT_MAX) {
+				SkeletonNode node = makeNode(lv, n, null, top);
+				if (top) { newroot = node; } else { emit(i+1, node, null); }
+			} else {
+				int h = n>>1;
+				Map.Entry<K, V> sep = lv.entries.get(h);
+				SkeletonNode lnode = makeNode(lv, h, sep.getKey(), false);
+				lv.entries.remove(0);
+				lv.lkey = sep.getKey();
+				SkeletonNode rnode = makeNode(lv, n-h-1, null, false);
+				emit(i+1, lnode, sep);
+				emit(i+1, rnode, null);
+			}
+		}
+
+		/**
+		** Adds a finished node, and the separator after it (if any), to the
+		** buffer of the given level.
+		*/
+		protected void emit(int i, SkeletonNode node, Map.Entry<K, V> sep) {
+			if (i == levels.size()) { levels.add(new Level(false)); }
+			Level lv = levels.get(i);
+			lv.nodes.add(node);
+			if (sep != null) {
+				lv.entries.add(sep);
+				emitFull(i);
+			}
+		}
+
+		/**
+		** Makes a node from the first {@code n} entries of a buffer (and the
+		** {@code n+1} subnodes around them), and removes them from it.
+		*/
+		protected SkeletonNode makeNode(Level lv, int n, K rkey, boolean isroot) {
+			SkeletonNode node = (SkeletonNode)newNode(lv.lkey, rkey, lv.nodes == null);
+			List<Map.Entry<K, V>> ents = lv.entries.subList(0, n);
+			for (Map.Entry<K, V> en: ents) {
+				node.entries.put(en.getKey(), en.getValue());
+			}
+			ents.clear();
+
+			int left = 0;
+			if (lv.nodes != null) {
+				List<Node> subs = lv.nodes.subList(0, n+1);
+				for (Node sub: subs) {
+					GhostNode ghost = pushed.remove(sub);
+					if (ghost != null) {
+						ghost.parent = node;
+						node.addChildNode(ghost);
+					} else {
+						node.addChildNode(sub);
+						parents.put((SkeletonNode)sub, node);
+						++left;
+					}
+				}
+				subs.clear();
+			}
+
+			if (left > 0) {
+				waiting.put(node, left);
+			} else if (!isroot) {
+				ready.add(node);
+			}
+			return node;
+		}
+
+		/**
+		** Pushes the nodes that are ready, and handles finished pushes, until
+		** nothing is ready and at most {@code max} pushes are in progress.
+		*/
+		protected void pump(int max) throws TaskAbortException, InterruptedException {
+			if (proc_push == null) {
+				for (SkeletonNode node; (node = ready.poll()) != null;) {
+					((SkeletonTreeMap<K, V>)node.entries).deflate();
+					PushTask<SkeletonNode> task = new PushTask<SkeletonNode>(node);
+					nsrl.push(task);
+					pushed(task);
+				}
+				return;
+			}
+			for (;;) {
+				while (proc_push.hasCompleted()) { accept(); }
+				if (!ready.isEmpty() && proc_push.size() < BULK_PUSH_MAX) {
+					SkeletonNode node = ready.poll();
+					((SkeletonTreeMap<K, V>)node.entries).deflate();
+					proc_push.submit(new PushTask<SkeletonNode>(node), node);
+				} else if (ready.isEmpty() && proc_push.size() <= max) {
+					return;
+				} else {
+					accept();
+				}
+			}
+		}
+
+		protected void accept() throws TaskAbortException, InterruptedException {
+			X3<PushTask<SkeletonNode>, SkeletonNode, TaskAbortException> res = proc_push.accept();
+			if (res._2 != null) { throw res._2; }
+			pushed(res._0);
+		}
+
+		/**
+		** Attaches the ghost of a pushed node to its parent, or keeps it until
+		** the parent is made.
+		*/
+		protected void pushed(PushTask<SkeletonNode> task) {
+			SkeletonNode node = task.data;
+			SkeletonNode parent = parents.remove(node);
+			if (parent == null) {
+				pushed.put(node, (GhostNode)task.meta);
+				return;
+			}
+			postPushTask(task, parent);
+			int left = waiting.get(parent) - 1;
+			if (left > 0) {
+				waiting.put(parent, left);
+			} else {
+				waiting.remove(parent);
+				if (parent != newroot) { ready.add(parent); }
+			}
+		}
+
+	}
+
+
 	/**
 	** Creates a translator for the nodes of the B-tree. This method is
 	** necessary because {@link NodeTranslator} is a non-static class.
@@ -1597,11 +1990,394 @@ public class SkeletonBTreeMap<K, V> extends BTreeMap<K, V> implements SkeletonMa
 		return getClass().getName() + "@" + System.identityHashCode(this)+":size="+size;
 	}
 	
+	/**
+	** Adds the entries in the range {@code [lkey, rkey)} from a node and its
+	** subnodes to the given list, in order, until the list has {@code max}
+	** elements.
+	**
+	** @param values Whether to add the values too; if {@code false}, values
+	**        are not accessed and the list gets {@link Maps.KeyEntry}s with
+	**        {@code null} values.
+	** @return Whether it stopped because the list has {@code max} elements
+	** @throws DataNotLoadedException if a node (or value, if {@code values}
+	**         is {@code true}) that is needed is not loaded
+	*/
+	protected boolean collectRange(Node node, K lkey, K rkey, List<Map.Entry<K, V>> out, int max, boolean values) {
+		boolean leaf = node.isLeaf();
+		SortedMap<K, V> ents = (lkey == null)? node.entries: node.entries.tailMap(lkey);
+		for (Map.Entry<K, V> en: ents.entrySet()) {
+			K key = en.getKey();
+			if (!leaf) {
+				Node child = node.lnodes.get(key);
+				if (overlaps(child, lkey, rkey) && collectRange(child, lkey, rkey, out, max, values)) { return true; }
+			}
+			if (rkey != null && compare(key, rkey) >= 0) { return false; }
+			if (out.size() >= max) { return true; }
+			out.add(values? $$(key, en.getValue()): $K(key, (V)null));
+		}
+		if (!leaf) {
+			Node child = node.lnodes.get(node.rkey);
+			if (overlaps(child, lkey, rkey) && collectRange(child, lkey, rkey, out, max, values)) { return true; }
+		}
+		return false;
+	}
+
+	/**
+	** Returns up to {@code max} keys in the range {@code [lkey, rkey)}, in
+	** order. This pulls only the nodes needed to find them, one at a time,
+	** and does not inflate any values, so it is cheap for small ranges of a
+	** large remote tree.
+	**
+	** @param lkey Lower bound of the range, inclusive, or {@code null} for no
+	**        lower bound
+	** @param rkey Upper bound of the range, exclusive, or {@code null} for no
+	**        upper bound
+	** @param max Maximum number of keys to return
+	*/
+	public List<K> keysInRange(K lkey, K rkey, int max) throws TaskAbortException {
+		List<Map.Entry<K, V>> out = new ArrayList<Map.Entry<K, V>>();
+		for (;;) {
+			try {
+				out.clear();
+				collectRange(root, lkey, rkey, out, max, false);
+				break;
+			} catch (DataNotLoadedException e) {
+				e.getParent().inflate(e.getKey());
+			}
+		}
+		List<K> keys = new ArrayList<K>(out.size());
+		for (Map.Entry<K, V> en: out) { keys.add(en.getKey()); }
+		return keys;
+	}
+
+	/**
+	** Returns the key at a particular (zero-based) index. This pulls only the
+	** nodes on the path from the root to the key, one at a time, using the
+	** subtree sizes that are stored with each node's metadata to choose the
+	** path; see {@link BTreeMap#getEntry(int)}.
+	**
+	** @throws IndexOutOfBoundsException if the index is out of range
+	*/
+	public K keyAt(int index) throws TaskAbortException {
+		for (;;) {
+			try {
+				return getEntry(index).getKey();
+			} catch (DataNotLoadedException e) {
+				e.getParent().inflate(e.getKey());
+			}
+		}
+	}
+
+	/**
+	** Returns the number of keys in the map that are less than the given key.
+	** Like {@link #keyAt(int)}, this pulls only the nodes on the path from the
+	** root to the key; see {@link BTreeMap#rank(Object)}.
+	*/
+	public int rankOf(K key) throws TaskAbortException {
+		for (;;) {
+			try {
+				return rank(key);
+			} catch (DataNotLoadedException e) {
+				e.getParent().inflate(e.getKey());
+			}
+		}
+	}
+
+	/**
+	** Returns up to {@code max} keys in order, starting from the one at a
+	** particular (zero-based) index. This is for paging through a large
+	** remote tree; it pulls the nodes on the path to the first key, then the
+	** ones needed to find the rest, as for {@link #keysInRange(Object,
+	** Object, int)}.
+	**
+	** @throws IndexOutOfBoundsException if the index is negative or greater
+	**         than the size of the map
+	*/
+	public List<K> keysFrom(int index, int max) throws TaskAbortException {
+		if (index == size) { return new ArrayList<K>(0); }
+		K first = keyAt(index);
+		return (max > 0)? keysInRange(first, null, max): new ArrayList<K>(0);
+	}
+
+	/**
+	** Returns a read-only view of the entries with keys in the range {@code
+	** [lkey, rkey)}, which inflates the part of the tree that it needs when it
+	** is accessed, using {@link #inflate(Object, Object)}. Only the nodes
+	** whose ranges overlap the view are pulled.
+	**
+	** Each call to the view's {@code size()} or {@code iterator()} walks the
+	** whole range, and inflates it again if any of it has been deflated (eg.
+	** by a {@link NodeResidency}) in the meantime.
+	**
+	** @param lkey Lower bound of the range, inclusive, or {@code null} for no
+	**        lower bound
+	** @param rkey Upper bound of the range, exclusive, or {@code null} for no
+	**        upper bound
+	** @throws IllegalArgumentException if {@code lkey} is greater than {@code
+	**         rkey}
+	** @throws RuntimeException wrapping a {@link TaskAbortException} if the
+	**         view is accessed and the inflate fails
+	*/
+	public SortedMap<K, V> subMapAutoInflate(K lkey, K rkey) {
+		if (lkey != null && rkey != null && compare(lkey, rkey) > 0) {
+			throw new IllegalArgumentException("fromKey > toKey");
+		}
+		return new InflatingSubMap(lkey, rkey);
+	}
+
+	/**
+	** DOCUMENT. See {@link #subMapAutoInflate(Object, Object)}.
+	*/
+	protected class InflatingSubMap extends AbstractMap<K, V> implements SortedMap<K, V> {
+
+		final K lkey;
+		final K rkey;
+
+		protected InflatingSubMap(K lk, K rk) {
+			lkey = lk;
+			rkey = rk;
+		}
+
+		protected boolean inRange(K key) {
+			return (lkey == null || compare(lkey, key) <= 0) && (rkey == null || compare(key, rkey) < 0);
+		}
+
+		/**
+		** Whether the key can be used as a bound of a view inside this one.
+		*/
+		protected boolean inBounds(K key) {
+			return (lkey == null || key != null && compare(lkey, key) <= 0) && (rkey == null || key != null && compare(key, rkey) <= 0);
+		}
+
+		/**
+		** Loads the data that caused the given exception. The first time
+		** this is called for an operation, the whole range is inflated;
+		** after that, only the missing piece of data is.
+		*/
+		protected void load(DataNotLoadedException e, boolean first) {
+			try {
+				if (first) {
+					inflate(lkey, rkey);
+				} else {
+					e.getParent().inflate(e.getKey());
+				}
+			} catch (TaskAbortException x) {
+				throw new RuntimeException(x);
+			}
+		}
+
+		protected List<Map.Entry<K, V>> entries() {
+			for (boolean first = true;; first = false) {
+				try {
+					List<Map.Entry<K, V>> out = new ArrayList<Map.Entry<K, V>>();
+					collectRange(root, lkey, rkey, out, Integer.MAX_VALUE, true);
+					return out;
+				} catch (DataNotLoadedException e) {
+					load(e, first);
+				}
+			}
+		}
+
+		@Override public V get(Object o) {
+			K key = (K)o;
+			if (!inRange(key)) { return null; }
+			for (boolean first = true;; first = false) {
+				try {
+					return SkeletonBTreeMap.this.get(key);
+				} catch (DataNotLoadedException e) {
+					load(e, first);
+				}
+			}
+		}
+
+		@Override public boolean containsKey(Object o) {
+			K key = (K)o;
+			if (!inRange(key)) { return false; }
+			for (boolean first = true;; first = false) {
+				try {
+					return SkeletonBTreeMap.this.containsKey(key);
+				} catch (DataNotLoadedException e) {
+					load(e, first);
+				}
+			}
+		}
+
+		@Override public Set<Map.Entry<K, V>> entrySet() {
+			return new AbstractSet<Map.Entry<K, V>>() {
+				@Override public int size() { return entries().size(); }
+				@Override public Iterator<Map.Entry<K, V>> iterator() {
+					return Collections.unmodifiableList(entries()).iterator();
+				}
+			};
+		}
+
+		/*@Override**/ public Comparator<? super K> comparator() {
+			return SkeletonBTreeMap.this.comparator();
+		}
+
+		/*@Override**/ public K firstKey() {
+			List<Map.Entry<K, V>> ents = entries();
+			if (ents.isEmpty()) { throw new NoSuchElementException(); }
+			return ents.get(0).getKey();
+		}
+
+		/*@Override**/ public K lastKey() {
+			List<Map.Entry<K, V>> ents = entries();
+			if (ents.isEmpty()) { throw new NoSuchElementException(); }
+			return ents.get(ents.size()-1).getKey();
+		}
+
+		/*@Override**/ public SortedMap<K, V> subMap(K fr, K to) {
+			if (!inBounds(fr) || !inBounds(to)) { throw new IllegalArgumentException("key out of range"); }
+			return subMapAutoInflate(fr, to);
+		}
+
+		/*@Override**/ public SortedMap<K, V> headMap(K to) {
+			if (!inBounds(to)) { throw new IllegalArgumentException("key out of range"); }
+			return subMapAutoInflate(lkey, to);
+		}
+
+		/*@Override**/ public SortedMap<K, V> tailMap(K fr) {
+			if (!inBounds(fr)) { throw new IllegalArgumentException("key out of range"); }
+			return subMapAutoInflate(fr, rkey);
+		}
+
+	}
+
+	/**
+	** Number of sibling nodes to the right of the current one that {@link
+	** #keySetAutoDeflate()} pulls in advance, at each level of the tree.
+	*/
+	final public static int SCAN_PREFETCH = 4;
+
+	/**
+	** Pulls nodes ahead of an in-order scan of the tree, so that the scan
+	** does not wait for each node in turn. The parent of a node is always
+	** loaded when the scan reaches it, and knows the metadata of all of its
+	** children, so the next few siblings along can be pulled in parallel
+	** through the node serialiser's pull scheduler. This gives a scan the
+	** read-ahead that sibling links would give a B+-tree, without changing
+	** the format of the nodes.
+	**
+	** Pulled nodes are attached to their parents from the scanning thread,
+	** when it next {@linkplain #load loads} a node. At most {@link
+	** #SCAN_PREFETCH} nodes per level of the tree are pulled ahead, and a
+	** scan that stops early must {@linkplain #close() close} its prefetcher so
+	** that these are dropped.
+	*/
+	protected class Prefetcher {
+
+		/** Runs the pulls, or {@code null} if the serialiser can't schedule them */
+		final protected ObjectProcessor<PullTask<SkeletonNode>, SkeletonNode, TaskAbortException> proc_pull;
+
+		protected Prefetcher() {
+			if (nsrl instanceof ScheduledSerialiser && SCAN_PREFETCH > 0) {
+				proc_pull = ((ScheduledSerialiser<SkeletonNode>)nsrl).pullSchedule(
+					new PriorityBlockingQueue<PullTask<SkeletonNode>>(0x10, CMP_PULL),
+					new LinkedBlockingQueue<X2<PullTask<SkeletonNode>, TaskAbortException>>(),
+					new HashMap<PullTask<SkeletonNode>, SkeletonNode>()
+				);
+				proc_pull.setName("prefetch");
+			} else {
+				proc_pull = null;
+			}
+		}
+
+		/** Ghosts of the nodes being pulled */
+		final protected Set<Node> pending = new HashSet<Node>();
+
+		/**
+		** Starts pulling up to {@link #SCAN_PREFETCH} siblings to the right
+		** of the given subnode, that are not already loaded or being pulled.
+		*/
+		public void ahead(SkeletonNode parent, Node node) {
+			if (proc_pull == null) { return; }
+			K key = node.rkey;
+			for (int i=0; i<SCAN_PREFETCH && !compare0(key, parent.rkey); ++i) {
+				Node sib = parent.rnodes.get(key);
+				if (sib.isGhost() && pending.add(sib)) {
+					ObjectProcessor.submitSafe(proc_pull, new PullTask<SkeletonNode>(sib), parent);
+				}
+				key = sib.rkey;
+			}
+		}
+
+		/**
+		** Makes sure the subnode of the given parent whose {@link Node#lkey}
+		** is the given key is loaded, and returns it. If it is being
+		** prefetched, this waits for that pull; otherwise it is pulled now.
+		*/
+		public SkeletonNode load(SkeletonNode parent, K key) throws TaskAbortException {
+			Node node = parent.rnodes.get(key);
+			if (proc_pull != null) {
+				// attach whatever has already arrived
+				while (proc_pull.hasCompleted()) { accept(); }
+				node = parent.rnodes.get(key);
+				while (node.isGhost() && pending.contains(node)) {
+					accept();
+					node = parent.rnodes.get(key);
+				}
+			}
+			if (node.isGhost()) {
+				parent.inflate(key, false);
+				node = parent.rnodes.get(key);
+			}
+			return (SkeletonNode)node;
+		}
+
+		protected void accept() throws TaskAbortException {
+			X3<PullTask<SkeletonNode>, SkeletonNode, TaskAbortException> res;
+			try {
+				res = proc_pull.accept();
+			} catch (InterruptedException e) {
+				throw new TaskAbortException("interrupted", e);
+			}
+			PullTask<SkeletonNode> task = res._0;
+			SkeletonNode parent = res._1;
+			pending.remove(task.meta);
+			if (res._2 != null) {
+				// leave it as a ghost; load() will try again synchronously
+				return;
+			}
+			// the scan might have been overtaken by someone else loading it
+			if (parent.rnodes.get(((GhostNode)task.meta).lkey) != task.meta) { return; }
+			try {
+				postPullTask(task, parent);
+			} catch (DataFormatException e) {
+				throw new TaskAbortException("Could not inflate BTreeMap Node " + ((GhostNode)task.meta).getRange(), e);
+			}
+		}
+
+		/**
+		** Stops accepting pulls, and drops the nodes that have been pulled
+		** but not yet loaded. Pulls that have already been started finish in
+		** the background, and are then discarded with the processor.
+		*/
+		public void close() {
+			if (proc_pull == null) { return; }
+			proc_pull.close();
+			pending.clear();
+			while (proc_pull.hasCompleted()) {
+				try {
+					proc_pull.accept();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					break;
+				}
+			}
+		}
+
+	}
+
 	/**
 	 * FIXME implement entrySet() along similar lines - auto-activation and auto-deactivation.
 	 * keySet() achieves a slightly different purpose. It never activates values.
 	 * 
 	 * NOTE: This is not called keySet() because some callers may not want us to auto-deflate.
+	 *
+	 * The iterators of this set are {@link CloseableIterator}s, which pull
+	 * nodes ahead of the scan; callers that stop before the end should close
+	 * them, which also deflates the tree.
 	 */
 	private Set<K> keySet = null;
 	public Set<K> keySetAutoDeflate() {
@@ -1613,16 +2389,18 @@ public class SkeletonBTreeMap<K, V> extends BTreeMap<K, V> implements SkeletonMa
 				@Override public Iterator<K> iterator() {
 					// FIXME LOW - this does NOT yet throw ConcurrentModificationException
 					// use a modCount counter
-					return new Iterator<K>() {
+					return new CloseableIterator<K>() {
 
 						Stack<SkeletonNode> nodestack = new Stack<SkeletonNode>();
 						Stack<Iterator<Map.Entry<K, V>>> itstack = new Stack<Iterator<Map.Entry<K, V>>>();
 
 						SkeletonNode cnode = (SkeletonNode)(SkeletonBTreeMap.this.root);
 						Iterator<Map.Entry<K, V>> centit = cnode.entries.entrySet().iterator();
+						Prefetcher prefetch = new Prefetcher();
 
 						K lastkey = null;
 						boolean removeok = false;
+						boolean closed = false;
 						
 						
 						// DEBUG ONLY, remove when unneeded
@@ -1641,12 +2419,19 @@ public class SkeletonBTreeMap<K, V> extends BTreeMap<K, V> implements SkeletonMa
 							}
 							if (centit.hasNext()) { return true; }
 							if (!cnode.isLeaf()) { return true; }
+							close();
+							return false;
+						}
+
+						/*@Override**/ public void close() {
+							if (closed) { return; }
+							closed = true;
+							prefetch.close();
 							try {
 								deflate();
 							} catch (TaskAbortException e) {
 								throw new RuntimeException(e);
 							}
-							return false;
 						}
 
 						/*@Override**/ public K next() {
@@ -1670,18 +2455,13 @@ public class SkeletonBTreeMap<K, V> extends BTreeMap<K, V> implements SkeletonMa
 								while (!cnode.isLeaf()) {
 									// NULLNOTICE lastkey initialised to null, so this will get the right node
 									// even at the smaller edge of the map
-									Node testnode = cnode.rnodes.get(lastkey);
-									if(testnode.isGhost()) {
-										try {
-											cnode.inflate(testnode.lkey, false);
-										} catch (TaskAbortException e) {
-											throw new RuntimeException(e);
-										}
-										testnode = cnode.rnodes.get(lastkey);
-										assert(testnode instanceof SkeletonBTreeMap.SkeletonNode);
+									SkeletonNode n;
+									try {
+										n = prefetch.load(cnode, lastkey);
+									} catch (TaskAbortException e) {
+										throw new RuntimeException(e);
 									}
-									assert(!testnode.isGhost());
-									SkeletonNode n = (SkeletonNode) testnode;
+									prefetch.ahead(cnode, n);
 									// node OK, proceed
 									nodestack.push(cnode);
 									itstack.push(centit);
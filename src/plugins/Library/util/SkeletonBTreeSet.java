@@ -12,6 +12,8 @@ import plugins.Library.util.exec.TaskAbortException;
 
 import java.util.Comparator;
 import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.SortedMap;
 import java.util.SortedSet;
@@ -77,6 +79,39 @@ public class SkeletonBTreeSet<E> extends BTreeSet<E> /*implements Skeleton<E, Ma
 		((SkeletonBTreeMap<E, E>)bkmap).update(null, remset, new SortedSetMap<E, SortedSet<E>>(putset), null, new TaskAbortExceptionConvertor());
 	}
 
+	/**
+	** Builds this set from a stream of elements in ascending order. See
+	** {@link SkeletonBTreeMap#putAllSorted(Iterator, float)} for details.
+	*/
+	public void addAllSorted(Iterator<? extends E> it, float fill) throws TaskAbortException {
+		((SkeletonBTreeMap<E, E>)bkmap).putAllSorted(new KeyEntryIterator<E>(it), fill);
+	}
+
+	public void addAllSorted(Iterator<? extends E> it) throws TaskAbortException {
+		addAllSorted(it, SkeletonBTreeMap.DEFAULT_BULK_FILL);
+	}
+
+	/**
+	** Returns up to {@code max} elements in order, starting from the one at a
+	** particular (zero-based) index, pulling only the nodes needed to find
+	** them. See {@link SkeletonBTreeMap#keysFrom(int, int)}.
+	*/
+	public List<E> elementsFrom(int index, int max) throws TaskAbortException {
+		return ((SkeletonBTreeMap<E, E>)bkmap).keysFrom(index, max);
+	}
+
+	/**
+	** Iterator over entries that map each element of another iterator to
+	** itself.
+	*/
+	protected static class KeyEntryIterator<E> implements Iterator<Map.Entry<E, E>> {
+		final Iterator<? extends E> it;
+		KeyEntryIterator(Iterator<? extends E> i) { it = i; }
+		/*@Override**/ public boolean hasNext() { return it.hasNext(); }
+		/*@Override**/ public Map.Entry<E, E> next() { E e = it.next(); return Maps.$$(e, e); }
+		/*@Override**/ public void remove() { throw new UnsupportedOperationException(); }
+	}
+
 	/**
 	** Creates a translator for the nodes of the B-tree. This method just calls
 	** the {@link SkeletonBTreeMap#makeNodeTranslator(Translator, Translator)
@@ -21,6 +21,7 @@ import java.util.AbstractMap;
 import java.util.SortedMap;
 import java.util.TreeMap;
 import java.util.HashMap;
+import java.util.HashSet;
 
 import freenet.support.Logger;
 
@@ -45,8 +46,12 @@ implements Map<K, V>, SortedMap<K, V>, SkeletonMap<K, V>, Cloneable {
 	** {@link SkeletonValue} for a given key is never overwritten; only its
 	** contents are. This ensures correct behaviour for the {@link
 	** UnwrappingIterator} class.
+	**
+	** This is a {@link SortedArrayMap} rather than a {@link TreeMap}, since
+	** these maps are mostly used for the entries of a {@link
+	** SkeletonBTreeMap.SkeletonNode}.
 	*/
-	final protected TreeMap<K, SkeletonValue<V>> skmap;
+	final protected SortedArrayMap<K, SkeletonValue<V>> skmap;
 
 	/**
 	** The meta data for this skeleton.
@@ -59,25 +64,25 @@ implements Map<K, V>, SortedMap<K, V>, SkeletonMap<K, V>, Cloneable {
 	protected transient int ghosts;
 
 	public SkeletonTreeMap() {
-		skmap = new TreeMap<K, SkeletonValue<V>>();
+		skmap = new SortedArrayMap<K, SkeletonValue<V>>();
 	}
 
 	public SkeletonTreeMap(Comparator<? super K> c) {
-		skmap = new TreeMap<K, SkeletonValue<V>>(c);
+		skmap = new SortedArrayMap<K, SkeletonValue<V>>(c);
 	}
 
 	public SkeletonTreeMap(Map<? extends K,? extends V> m) {
-		skmap = new TreeMap<K, SkeletonValue<V>>();
+		skmap = new SortedArrayMap<K, SkeletonValue<V>>();
 		putAll(m);
 	}
 
 	public SkeletonTreeMap(SortedMap<K,? extends V> m) {
-		skmap = new TreeMap<K, SkeletonValue<V>>(m.comparator());
+		skmap = new SortedArrayMap<K, SkeletonValue<V>>(m.comparator());
 		putAll(m);
 	}
 
 	public SkeletonTreeMap(SkeletonTreeMap<K, V> m) {
-		skmap = new TreeMap<K, SkeletonValue<V>>(m.comparator());
+		skmap = new SortedArrayMap<K, SkeletonValue<V>>(m.comparator());
 		for (Map.Entry<K, SkeletonValue<V>> en: m.skmap.entrySet()) {
 			skmap.put(en.getKey(), en.getValue().clone());
 		}
@@ -163,6 +168,56 @@ implements Map<K, V>, SortedMap<K, V>, SkeletonMap<K, V>, Cloneable {
 		}
 	}
 
+	/**
+	** Inflates the values for the keys in the given range only.
+	**
+	** @param lkey Lower bound of the range, inclusive; {@code null} means no
+	**        lower bound.
+	** @param rkey Upper bound of the range, exclusive; {@code null} means no
+	**        upper bound.
+	*/
+	public void inflate(K lkey, K rkey) throws TaskAbortException {
+		if (lkey == null && rkey == null) { inflate(); return; }
+		if (serialiser == null) { throw new IllegalStateException("No serialiser set for this structure."); }
+		if (isLive()) { return; }
+
+		SortedMap<K, SkeletonValue<V>> range = (lkey == null)? skmap.headMap(rkey):
+		                                       (rkey == null)? skmap.tailMap(lkey): skmap.subMap(lkey, rkey);
+		Map<K, PullTask<V>> tasks = new HashMap<K, PullTask<V>>();
+		for (Map.Entry<K, SkeletonValue<V>> en: range.entrySet()) {
+			SkeletonValue<V> skel = en.getValue();
+			if (skel.isLoaded()) { continue; }
+			tasks.put(en.getKey(), new PullTask<V>(skel.meta()));
+		}
+		if (tasks.isEmpty()) { return; }
+		Set<K> keys = new HashSet<K>(tasks.keySet());
+
+		try {
+			serialiser.pull(tasks, mapmeta);
+
+			for (Map.Entry<K, PullTask<V>> en: tasks.entrySet()) {
+				PullTask<V> t = en.getValue();
+				if (keys.contains(en.getKey())) {
+					// TODO NORM atm old metadata is retained, could update?
+					put(en.getKey(), t.data);
+					continue;
+				}
+				// other keys may also have been inflated; see inflate(K)
+				if(t.data == null)
+					throw new DataFormatException("Inflate got null from PullTask for "+en.getKey()+" on "+this, null, null, tasks, en.getKey());
+				SkeletonValue<V> sk = skmap.get(en.getKey());
+				if (sk == null) { throw new DataFormatException("SkeletonTreeMap got unexpected extra data from the serialiser.", null, sk, tasks, en.getKey()); }
+				if (sk.meta().equals(t.meta)) {
+					if (!sk.isLoaded()) { --ghosts; }
+					sk.set(t.data);
+				}
+			}
+
+		} catch (DataFormatException e) {
+			throw new TaskAbortException("Could not complete inflate operation", e);
+		}
+	}
+
 	/*@Override**/ public void deflate() throws TaskAbortException {
 		if (serialiser == null) { throw new IllegalStateException("No serialiser set for this structure."); }
 		if (isBare()) { return; }
@@ -414,7 +469,7 @@ implements Map<K, V>, SortedMap<K, V>, SkeletonMap<K, V>, Cloneable {
 		int g = 0;
 		for (Map.Entry<K, SkeletonValue<V>> en: putmap.entrySet()) {
 			SkeletonValue<V> sk = en.getValue();
-			SkeletonValue<V> old = skmap.put(en.getKey(), sk);
+			SkeletonValue<V> old = skmap.get(en.getKey());
 			if (old == null) {
 				if (!sk.isLoaded()) { ++g; }
 			} else {
@@ -425,6 +480,8 @@ implements Map<K, V>, SortedMap<K, V>, SkeletonMap<K, V>, Cloneable {
 				}
 			}
 		}
+		// this splices the entries in with a single copy, if possible
+		skmap.putAll(putmap);
 		ghosts += g;
 	}
 
@@ -725,10 +782,10 @@ implements Map<K, V>, SortedMap<K, V>, SkeletonMap<K, V>, Cloneable {
 
 	/************************************************************************
 	** Submap of a {@link SkeletonTreeMap}. Currently, this only implements the
-	** {@link #firstKey()}, {@link #lastKey()} and {@link #isEmpty()} methods.
-	** This is because it's a bitch to implement an entire {@link SortedMap},
-	** and I only needed those three methods for {@link SkeletonBTreeMap} to
-	** work. Feel free to expand it.
+	** {@link #firstKey()}, {@link #lastKey()}, {@link #isEmpty()} and {@link
+	** #clear()} methods, and iteration without removal. This is because it's a
+	** bitch to implement an entire {@link SortedMap}, and I only needed those
+	** methods for {@link SkeletonBTreeMap} to work. Feel free to expand it.
 	**
 	** @author infinity0
 	*/
@@ -760,6 +817,13 @@ implements Map<K, V>, SortedMap<K, V>, SkeletonMap<K, V>, Cloneable {
 			return bkmap.lastKey();
 		}
 
+		@Override public void clear() {
+			for (SkeletonValue<V> sk: bkmap.values()) {
+				if (!sk.isLoaded()) { --ghosts; }
+			}
+			bkmap.clear();
+		}
+
 		private transient Set<Map.Entry<K, V>> entries;
 		@Override public Set<Map.Entry<K, V>> entrySet() {
 			if (entries == null) {
@@ -238,6 +238,24 @@ final public class Sorted {
 
 		List<E> sel = new ArrayList<E>(num);
 		int n = num;
+
+		if (subj instanceof BTreeSet) {
+			// pick the elements out by index, rather than walking through them all
+			BTreeSet<E> bset = (BTreeSet<E>)subj;
+			int i = 0;
+			switch (inc) {
+			case NONE: ++n; break;
+			case BOTH: --n;
+			case LEFT: sel.add(bset.get(i++)); break;
+			}
+			for (Integer s: Integers.allocateEvenly(subj.size() - num, n)) {
+				i += s;
+				if (i < bset.size()) { sel.add(bset.get(i++)); }
+			}
+			assert(sel.size() == num);
+			return sel;
+		}
+
 		Iterator<E> it = subj.iterator();
 
 		switch (inc) {
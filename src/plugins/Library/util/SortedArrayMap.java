@@ -0,0 +1,685 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package plugins.Library.util;
+
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.Collection;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.AbstractCollection;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ConcurrentModificationException;
+import java.util.NoSuchElementException;
+
+/**
+** A {@link SortedMap} backed by two sorted arrays, one of keys and one of
+** values. Lookups are binary searches; insertions and removals shift the rest
+** of the arrays along using {@link System#arraycopy}.
+**
+** This is used to hold the entries of a {@link BTreeMap.Node} instead of a
+** {@link java.util.TreeMap}. Nodes are small (at most {@link
+** BTreeMap#entMax()} entries), so shifting the arrays is cheap, and this uses
+** a fraction of the memory, since a tree needs a separate object with four
+** references for every entry. The operations used when nodes are split and
+** merged are done in bulk:
+**
+** * {@link #putAll(Map)} of a sorted map whose keys all lie before, or all
+**   after, the keys already present is a single array copy;
+** * {@link Map#clear()} on a {@linkplain #subMap(Object, Object) submap}
+**   removes the whole range at once.
+**
+** Submaps and the collection views are live, like those of {@link
+** java.util.TreeMap}, and their iterators are fail-fast. {@code null} keys
+** are not supported.
+**
+** Note: this implementation, like {@link java.util.TreeMap}, is not
+** thread-safe.
+*/
+public class SortedArrayMap<K, V> extends AbstractMap<K, V>
+implements Map<K, V>, SortedMap<K, V>, Cloneable {
+
+	/**
+	** Initial capacity of the arrays, if none is given.
+	*/
+	final public static int DEFAULT_CAPACITY = 0x10;
+
+	/**
+	** The keys, in order. Only the first {@link #size} elements are used.
+	*/
+	protected Object[] keys;
+
+	/**
+	** The values, in the same order as {@link #keys}.
+	*/
+	protected Object[] vals;
+
+	/**
+	** Number of entries in the map.
+	*/
+	protected int size;
+
+	/**
+	** The comparator used to sort the keys. A {@code null} value means
+	** {@linkplain Comparable natural ordering} is used.
+	*/
+	final protected Comparator<? super K> comparator;
+
+	/**
+	** Number of structural modifications, for detecting concurrent
+	** modification in iterators and entries.
+	*/
+	protected transient int modCount;
+
+	public SortedArrayMap(int capacity, Comparator<? super K> cmp) {
+		if (capacity < 0) { throw new IllegalArgumentException("Negative capacity: " + capacity); }
+		keys = new Object[capacity];
+		vals = new Object[capacity];
+		comparator = cmp;
+	}
+
+	public SortedArrayMap(Comparator<? super K> cmp) {
+		this(DEFAULT_CAPACITY, cmp);
+	}
+
+	public SortedArrayMap() {
+		this(DEFAULT_CAPACITY, null);
+	}
+
+	public SortedArrayMap(SortedMap<K, ? extends V> m) {
+		this(m.size(), m.comparator());
+		putAll(m);
+	}
+
+	/**
+	** Compare two keys using the map's comparator, or their natural ordering
+	** if it has none.
+	*/
+	protected int compare(Object k1, Object k2) {
+		return (comparator == null)? ((Comparable<Object>)k1).compareTo(k2):
+		                             comparator.compare((K)k1, (K)k2);
+	}
+
+	protected boolean sameComparator(Comparator<?> cmp) {
+		return (comparator == null)? cmp == null: comparator.equals(cmp);
+	}
+
+	/**
+	** Binary search for a key within the given range of the arrays.
+	**
+	** @return The index of the key, if it is present; otherwise {@code
+	**         (-(insertion point) - 1)}, as for {@link
+	**         java.util.Arrays#binarySearch(Object[], Object)}.
+	** @throws NullPointerException if the key is {@code null}
+	*/
+	protected int search(Object key, int lo, int hi) {
+		if (key == null) { throw new NullPointerException("SortedArrayMap does not support null keys"); }
+		--hi;
+		while (lo <= hi) {
+			int mid = (lo + hi) >>> 1;
+			int d = compare(keys[mid], key);
+			if (d < 0) {
+				lo = mid + 1;
+			} else if (d > 0) {
+				hi = mid - 1;
+			} else {
+				return mid;
+			}
+		}
+		return -(lo + 1);
+	}
+
+	protected int search(Object key) {
+		return search(key, 0, size);
+	}
+
+	/**
+	** @return The index of the first key not less than the given key, or
+	**         {@link #size} if there is none.
+	*/
+	protected int ceilIndex(Object key) {
+		int i = search(key);
+		return (i < 0)? -(i + 1): i;
+	}
+
+	/**
+	** Make room for {@code n} entries at index {@code i}, shifting the
+	** entries after it along. The new slots must be filled in by the caller.
+	*/
+	protected void openGap(int i, int n) {
+		assert(0 <= i && i <= size && n >= 0);
+		if (size + n > keys.length) {
+			int cap = Math.max(size + n, keys.length + (keys.length>>1) + 1);
+			Object[] nk = new Object[cap];
+			Object[] nv = new Object[cap];
+			System.arraycopy(keys, 0, nk, 0, i);
+			System.arraycopy(vals, 0, nv, 0, i);
+			System.arraycopy(keys, i, nk, i + n, size - i);
+			System.arraycopy(vals, i, nv, i + n, size - i);
+			keys = nk;
+			vals = nv;
+		} else {
+			System.arraycopy(keys, i, keys, i + n, size - i);
+			System.arraycopy(vals, i, vals, i + n, size - i);
+		}
+		size += n;
+		++modCount;
+	}
+
+	/**
+	** Remove the entries with indexes from {@code fr} (inclusive) to {@code
+	** to} (exclusive).
+	*/
+	protected void removeRange(int fr, int to) {
+		assert(0 <= fr && to <= size);
+		int n = to - fr;
+		if (n <= 0) { return; }
+		System.arraycopy(keys, to, keys, fr, size - to);
+		System.arraycopy(vals, to, vals, fr, size - to);
+		for (int i=size-n; i<size; ++i) {
+			keys[i] = null;
+			vals[i] = null;
+		}
+		size -= n;
+		++modCount;
+	}
+
+	protected V removeAt(int i) {
+		V old = (V)vals[i];
+		removeRange(i, i + 1);
+		return old;
+	}
+
+	/**
+	** Returns the entry at a particular (zero-based) index.
+	*/
+	public Map.Entry<K, V> getEntry(int i) {
+		if (i < 0 || i >= size) {
+			throw new IndexOutOfBoundsException("Index outside of range [0," + size + ")");
+		}
+		return new ArrayEntry(i);
+	}
+
+	/**
+	** Shrink the arrays to the size of the map.
+	*/
+	public void trimToSize() {
+		if (keys.length == size) { return; }
+		Object[] nk = new Object[size];
+		Object[] nv = new Object[size];
+		System.arraycopy(keys, 0, nk, 0, size);
+		System.arraycopy(vals, 0, nv, 0, size);
+		keys = nk;
+		vals = nv;
+	}
+
+	/*========================================================================
+	  public interface Map
+	 ========================================================================*/
+
+	@Override public int size() {
+		return size;
+	}
+
+	@Override public boolean isEmpty() {
+		return size == 0;
+	}
+
+	@Override public boolean containsKey(Object key) {
+		return search(key) >= 0;
+	}
+
+	@Override public V get(Object key) {
+		int i = search(key);
+		return (i < 0)? null: (V)vals[i];
+	}
+
+	@Override public V put(K key, V value) {
+		int i = search(key);
+		if (i >= 0) {
+			V old = (V)vals[i];
+			vals[i] = value;
+			return old;
+		}
+		i = -(i + 1);
+		openGap(i, 1);
+		keys[i] = key;
+		vals[i] = value;
+		return null;
+	}
+
+	/**
+	** {@inheritDoc}
+	**
+	** If the given map is a {@link SortedMap} with the same comparator, and
+	** all of its keys are less than, or all greater than, the keys in this
+	** map, its entries are spliced in at one end of the arrays in a single
+	** operation.
+	*/
+	@Override public void putAll(Map<? extends K, ? extends V> map) {
+		if (map.isEmpty()) { return; }
+		if (map != this && map instanceof SortedMap && sameComparator(((SortedMap<? extends K, ? extends V>)map).comparator())) {
+			SortedMap<? extends K, ? extends V> sorted = (SortedMap<? extends K, ? extends V>)map;
+			int i = (size == 0 || compare(sorted.firstKey(), keys[size-1]) > 0)? size:
+			        (compare(sorted.lastKey(), keys[0]) < 0)? 0: -1;
+			if (i >= 0) {
+				splice(i, sorted);
+				return;
+			}
+		}
+		super.putAll(map);
+	}
+
+	/**
+	** Insert all the entries of a sorted map at the given index. It is
+	** '''assumed''' that this keeps the arrays sorted; it is up to the caller
+	** to ensure that this holds.
+	*/
+	protected void splice(int i, SortedMap<? extends K, ? extends V> map) {
+		int n = map.size();
+		if (map instanceof SortedArrayMap) {
+			SortedArrayMap<?, ?> src = (SortedArrayMap<?, ?>)map;
+			openGap(i, n);
+			System.arraycopy(src.keys, 0, keys, i, n);
+			System.arraycopy(src.vals, 0, vals, i, n);
+		} else if (map instanceof SortedArrayMap.SubMap) {
+			SortedArrayMap<?, ?>.SubMap src = (SortedArrayMap<?, ?>.SubMap)map;
+			int l = src.lIndex();
+			openGap(i, n);
+			System.arraycopy(src.outer().keys, l, keys, i, n);
+			System.arraycopy(src.outer().vals, l, vals, i, n);
+		} else {
+			openGap(i, n);
+			for (Map.Entry<? extends K, ? extends V> en: map.entrySet()) {
+				keys[i] = en.getKey();
+				vals[i] = en.getValue();
+				++i;
+			}
+		}
+	}
+
+	@Override public V remove(Object key) {
+		int i = search(key);
+		return (i < 0)? null: removeAt(i);
+	}
+
+	@Override public void clear() {
+		removeRange(0, size);
+	}
+
+	private transient Set<Map.Entry<K, V>> entries;
+	@Override public Set<Map.Entry<K, V>> entrySet() {
+		if (entries == null) {
+			entries = new EntrySet(null);
+		}
+		return entries;
+	}
+
+	private transient Set<K> keyset;
+	@Override public Set<K> keySet() {
+		if (keyset == null) {
+			keyset = new AbstractSet<K>() {
+
+				@Override public int size() { return size; }
+
+				@Override public Iterator<K> iterator() {
+					return new ArrayIterator<K>(0, size) {
+						@Override protected K item(int i) { return (K)keys[i]; }
+					};
+				}
+
+				@Override public void clear() { SortedArrayMap.this.clear(); }
+
+				@Override public boolean contains(Object o) {
+					return containsKey(o);
+				}
+
+				@Override public boolean remove(Object o) {
+					int i = search(o);
+					if (i < 0) { return false; }
+					removeAt(i);
+					return true;
+				}
+
+			};
+		}
+		return keyset;
+	}
+
+	private transient Collection<V> values;
+	@Override public Collection<V> values() {
+		if (values == null) {
+			values = new AbstractCollection<V>() {
+
+				@Override public int size() { return size; }
+
+				@Override public Iterator<V> iterator() {
+					return new ArrayIterator<V>(0, size) {
+						@Override protected V item(int i) { return (V)vals[i]; }
+					};
+				}
+
+				@Override public void clear() { SortedArrayMap.this.clear(); }
+
+			};
+		}
+		return values;
+	}
+
+	/*========================================================================
+	  public interface SortedMap
+	 ========================================================================*/
+
+	/*@Override**/ public Comparator<? super K> comparator() {
+		return comparator;
+	}
+
+	/*@Override**/ public K firstKey() {
+		if (size == 0) { throw new NoSuchElementException(); }
+		return (K)keys[0];
+	}
+
+	/*@Override**/ public K lastKey() {
+		if (size == 0) { throw new NoSuchElementException(); }
+		return (K)keys[size-1];
+	}
+
+	/*@Override**/ public SortedMap<K, V> subMap(K fr, K to) {
+		if (compare(fr, to) > 0) { throw new IllegalArgumentException("fromKey > toKey"); }
+		return new SubMap(fr, to);
+	}
+
+	/*@Override**/ public SortedMap<K, V> headMap(K to) {
+		if (to == null) { throw new NullPointerException(); }
+		return new SubMap(null, to);
+	}
+
+	/*@Override**/ public SortedMap<K, V> tailMap(K fr) {
+		if (fr == null) { throw new NullPointerException(); }
+		return new SubMap(fr, null);
+	}
+
+	/*========================================================================
+	  public class Object
+	 ========================================================================*/
+
+	@Override public SortedArrayMap<K, V> clone() {
+		try {
+			SortedArrayMap<K, V> map = (SortedArrayMap<K, V>)super.clone();
+			map.keys = keys.clone();
+			map.vals = vals.clone();
+			map.modCount = 0;
+			map.entries = null;
+			map.keyset = null;
+			map.values = null;
+			return map;
+		} catch (CloneNotSupportedException e) {
+			throw new AssertionError(e);
+		}
+	}
+
+
+	/************************************************************************
+	** Fail-fast iterator over a range of indexes of the arrays.
+	*/
+	abstract protected class ArrayIterator<T> implements Iterator<T> {
+
+		/** Index of the next item */
+		protected int i;
+		/** Index after the last item */
+		protected int end;
+		/** Index of the last item returned, or -1 */
+		protected int last = -1;
+		protected int expect = modCount;
+
+		protected ArrayIterator(int fr, int to) {
+			i = fr;
+			end = to;
+		}
+
+		abstract protected T item(int i);
+
+		public boolean hasNext() {
+			return i < end;
+		}
+
+		public T next() {
+			if (expect != modCount) { throw new ConcurrentModificationException(); }
+			if (i >= end) { throw new NoSuchElementException(); }
+			return item(last = i++);
+		}
+
+		public void remove() {
+			if (last < 0) { throw new IllegalStateException("Iteration has not yet begun, or the element has already been removed."); }
+			if (expect != modCount) { throw new ConcurrentModificationException(); }
+			removeRange(last, last + 1);
+			i = last;
+			--end;
+			last = -1;
+			expect = modCount;
+		}
+
+	}
+
+
+	/************************************************************************
+	** An entry of the map. This remembers its index, and only searches for
+	** its key again if the map has been structurally modified since.
+	*/
+	protected class ArrayEntry implements Map.Entry<K, V> {
+
+		final K key;
+		int index;
+		int expect;
+
+		protected ArrayEntry(int i) {
+			key = (K)keys[i];
+			index = i;
+			expect = modCount;
+		}
+
+		protected int index() {
+			if (expect != modCount) {
+				index = search(key);
+				expect = modCount;
+			}
+			if (index < 0) { throw new IllegalStateException("Entry is no longer in the map: " + key); }
+			return index;
+		}
+
+		public K getKey() {
+			return key;
+		}
+
+		public V getValue() {
+			return (V)vals[index()];
+		}
+
+		public V setValue(V value) {
+			int i = index();
+			V old = (V)vals[i];
+			vals[i] = value;
+			return old;
+		}
+
+		@Override public int hashCode() {
+			V v = getValue();
+			return key.hashCode() ^ (v==null? 0: v.hashCode());
+		}
+
+		@Override public boolean equals(Object o) {
+			if (!(o instanceof Map.Entry)) { return false; }
+			Map.Entry<?, ?> en = (Map.Entry<?, ?>)o;
+			V v = getValue();
+			return key.equals(en.getKey()) && (v==null? en.getValue()==null: v.equals(en.getValue()));
+		}
+
+		@Override public String toString() {
+			return key + "=" + getValue();
+		}
+
+	}
+
+
+	/************************************************************************
+	** Entry set of the map, or of a submap.
+	*/
+	protected class EntrySet extends AbstractSet<Map.Entry<K, V>> {
+
+		/** The submap this is a view of, or {@code null} for the whole map */
+		final protected SubMap sub;
+
+		protected EntrySet(SubMap s) {
+			sub = s;
+		}
+
+		@Override public int size() {
+			return (sub == null)? size: sub.size();
+		}
+
+		@Override public Iterator<Map.Entry<K, V>> iterator() {
+			return new ArrayIterator<Map.Entry<K, V>>((sub == null)? 0: sub.lIndex(), (sub == null)? size: sub.rIndex()) {
+				@Override protected Map.Entry<K, V> item(int i) { return new ArrayEntry(i); }
+			};
+		}
+
+		@Override public void clear() {
+			if (sub == null) { SortedArrayMap.this.clear(); } else { sub.clear(); }
+		}
+
+		protected int indexOf(Object o) {
+			if (!(o instanceof Map.Entry)) { return -1; }
+			Map.Entry<?, ?> en = (Map.Entry<?, ?>)o;
+			Object key = en.getKey();
+			if (sub != null && !sub.inRange(key)) { return -1; }
+			int i = search(key);
+			if (i < 0) { return -1; }
+			Object v = vals[i];
+			return (v == null? en.getValue() == null: v.equals(en.getValue()))? i: -1;
+		}
+
+		@Override public boolean contains(Object o) {
+			return indexOf(o) >= 0;
+		}
+
+		@Override public boolean remove(Object o) {
+			int i = indexOf(o);
+			if (i < 0) { return false; }
+			removeAt(i);
+			return true;
+		}
+
+	}
+
+
+	/************************************************************************
+	** A live view of the entries of the map whose keys lie in a range.
+	*/
+	protected class SubMap extends AbstractMap<K, V> implements SortedMap<K, V> {
+
+		/** Lower bound, inclusive; {@code null} means no lower bound */
+		final K lo;
+		/** Upper bound, exclusive; {@code null} means no upper bound */
+		final K hi;
+
+		protected SubMap(K l, K h) {
+			lo = l;
+			hi = h;
+		}
+
+		protected SortedArrayMap<K, V> outer() {
+			return SortedArrayMap.this;
+		}
+
+		protected boolean inRange(Object key) {
+			return (lo == null || compare(key, lo) >= 0) && (hi == null || compare(key, hi) < 0);
+		}
+
+		/** Whether the given upper bound lies within the range */
+		protected boolean inRangeR(Object key) {
+			return (lo == null || compare(key, lo) >= 0) && (hi == null || compare(key, hi) <= 0);
+		}
+
+		protected int lIndex() {
+			return (lo == null)? 0: ceilIndex(lo);
+		}
+
+		protected int rIndex() {
+			return (hi == null)? size: ceilIndex(hi);
+		}
+
+		@Override public int size() {
+			return rIndex() - lIndex();
+		}
+
+		@Override public boolean isEmpty() {
+			return rIndex() == lIndex();
+		}
+
+		@Override public boolean containsKey(Object key) {
+			return inRange(key) && SortedArrayMap.this.containsKey(key);
+		}
+
+		@Override public V get(Object key) {
+			return inRange(key)? SortedArrayMap.this.get(key): null;
+		}
+
+		@Override public V put(K key, V value) {
+			if (!inRange(key)) { throw new IllegalArgumentException("Key out of range: " + key); }
+			return SortedArrayMap.this.put(key, value);
+		}
+
+		@Override public V remove(Object key) {
+			return inRange(key)? SortedArrayMap.this.remove(key): null;
+		}
+
+		@Override public void clear() {
+			removeRange(lIndex(), rIndex());
+		}
+
+		/*@Override**/ public Comparator<? super K> comparator() {
+			return comparator;
+		}
+
+		/*@Override**/ public K firstKey() {
+			int l = lIndex();
+			if (l >= rIndex()) { throw new NoSuchElementException(); }
+			return (K)keys[l];
+		}
+
+		/*@Override**/ public K lastKey() {
+			int r = rIndex();
+			if (r <= lIndex()) { throw new NoSuchElementException(); }
+			return (K)keys[r-1];
+		}
+
+		/*@Override**/ public SortedMap<K, V> subMap(K fr, K to) {
+			if (!inRange(fr) || !inRangeR(to)) { throw new IllegalArgumentException("Key out of range"); }
+			if (compare(fr, to) > 0) { throw new IllegalArgumentException("fromKey > toKey"); }
+			return new SubMap(fr, to);
+		}
+
+		/*@Override**/ public SortedMap<K, V> headMap(K to) {
+			if (!inRangeR(to)) { throw new IllegalArgumentException("Key out of range"); }
+			return new SubMap(lo, to);
+		}
+
+		/*@Override**/ public SortedMap<K, V> tailMap(K fr) {
+			if (!inRange(fr)) { throw new IllegalArgumentException("Key out of range"); }
+			return new SubMap(fr, hi);
+		}
+
+		private transient Set<Map.Entry<K, V>> entries;
+		@Override public Set<Map.Entry<K, V>> entrySet() {
+			if (entries == null) {
+				entries = new EntrySet(this);
+			}
+			return entries;
+		}
+
+	}
+
+}
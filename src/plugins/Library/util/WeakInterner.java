@@ -0,0 +1,91 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package plugins.Library.util;
+
+import java.lang.ref.WeakReference;
+import java.util.WeakHashMap;
+
+/**
+** A pool of canonical instances of immutable objects, like {@link
+** String#intern()}, except that it doesn't keep them alive: once nothing
+** else refers to a canonical instance, the garbage collector removes it from
+** the pool.
+**
+** The pool is split into {@link #STRIPES} independently locked parts, chosen
+** by hash code, so that threads interning different objects (eg. several
+** nodes being decoded at once) rarely wait for each other.
+**
+** Objects in the pool must have {@link Object#equals(Object)} and {@link
+** Object#hashCode()} methods that depend only on their (unchanging) value.
+*/
+public class WeakInterner<T> {
+
+	/** Number of parts of the pool; a power of two. */
+	final public static int STRIPES = 0x20;
+
+	/**
+	** Parts of the pool. Each maps a canonical instance to a reference to
+	** itself, and is guarded by its own lock. The value is weak too, since
+	** otherwise it would keep its own key alive.
+	*/
+	final protected WeakHashMap<T, WeakReference<T>>[] pools;
+
+	@SuppressWarnings("unchecked")
+	public WeakInterner() {
+		pools = new WeakHashMap[STRIPES];
+		for (int i=0; i<STRIPES; ++i) {
+			pools[i] = new WeakHashMap<T, WeakReference<T>>();
+		}
+	}
+
+	/**
+	** @return The part of the pool that holds objects equal to the given one
+	*/
+	protected WeakHashMap<T, WeakReference<T>> poolFor(T o) {
+		int h = o.hashCode();
+		// mix in the high bits, which the mask would otherwise ignore
+		h ^= (h >>> 16) ^ (h >>> 8);
+		return pools[h & (STRIPES - 1)];
+	}
+
+	/**
+	** @return The canonical instance equal to the given object, or the object
+	**         itself if there was none, in which case it becomes canonical.
+	*/
+	public T intern(T o) {
+		WeakHashMap<T, WeakReference<T>> pool = poolFor(o);
+		synchronized (pool) {
+			WeakReference<T> ref = pool.get(o);
+			T c = (ref == null)? null: ref.get();
+			if (c != null) { return c; }
+			pool.put(o, new WeakReference<T>(o));
+			return o;
+		}
+	}
+
+	/**
+	** @return The canonical instance equal to the given object, or {@code
+	**         null} if there is none.
+	*/
+	public T get(T o) {
+		WeakHashMap<T, WeakReference<T>> pool = poolFor(o);
+		synchronized (pool) {
+			WeakReference<T> ref = pool.get(o);
+			return (ref == null)? null: ref.get();
+		}
+	}
+
+	/**
+	** @return Number of canonical instances in the pool. This includes any
+	**         that are unreachable but have not been removed yet.
+	*/
+	public int size() {
+		int n = 0;
+		for (WeakHashMap<T, WeakReference<T>> pool: pools) {
+			synchronized (pool) { n += pool.size(); }
+		}
+		return n;
+	}
+
+}
@@ -10,11 +10,21 @@ import java.util.concurrent.ExecutorService;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.ThreadPoolExecutor.CallerRunsPolicy; // WORKAROUND javadoc bug #4464323
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.SynchronousQueue;
 import java.util.concurrent.TimeUnit;
 
 /**
 ** Class providing various {@link Executor}s.
 **
+** Tasks that wait for other tasks to complete (''managers'') and tasks that
+** don't (''workers'') should not share a bounded pool, otherwise the pool can
+** fill up with managers waiting on workers that can never start. Use {@link
+** #MANAGER_EXECUTOR} for the former and {@link #WORKER_EXECUTOR} for the
+** latter. Workers that only use the CPU, such as decoding data that has
+** already been fetched, can go on {@link #CPU_EXECUTOR} instead, so that they
+** don't compete with workers that are waiting for I/O. Workers may wait on
+** {@link #SYNC_EXECUTOR}, whose tasks never wait on workers or managers.
+**
 ** @author infinity0
 */
 public class Executors {
@@ -68,6 +78,218 @@ public class Executors {
 	*/
 	private static Executor default_exec = null;
 
+	/**
+	** A JVM-wide executor for manager tasks, ie. tasks that may block whilst
+	** waiting for other tasks to complete. The value handlers of {@link
+	** plugins.Library.util.SkeletonBTreeMap#update} are an example; they may
+	** call {@code update()} on a nested structure, which then waits for its
+	** own pulls and pushes.
+	**
+	** This executor never queues tasks; a new thread is started whenever all
+	** the existing ones are busy, so a blocked manager can never prevent the
+	** tasks it is waiting on from starting. Idle threads exit after 60s.
+	**
+	** It is deliberately unbounded: any bound, whether a thread limit or a
+	** queue, would let a full pool of managers wait on managers that can
+	** never start. Instead, every submitter limits its own tasks:
+	**
+	** * the value and deflate handlers of {@link
+	**   plugins.Library.util.SkeletonBTreeMap#update} are limited by the
+	**   {@link ObjectProcessor#maxconc} of their processor;
+	** * the join tasks of {@link plugins.Library.io.serial.ParallelSerialiser}
+	**   each stand in for a pull or push of a task already in progress, and
+	**   those requests are limited in the same way;
+	** * {@link plugins.Library.index.ProtoIndex#getTermEntriesPrefix} runs one
+	**   handler per prefix search, which are limited by the searches the
+	**   user has running.
+	**
+	** The thread count therefore grows with the number of structures being
+	** updated and searches running at once, not with their size. Anything
+	** new submitted here must be limited in the same way; tasks that only
+	** wait for the disk belong on {@link #SYNC_EXECUTOR} instead.
+	*/
+	final public static Executor MANAGER_EXECUTOR = new Executor() {
+		/*@Override**/ public void execute(Runnable r) {
+			synchronized (Executors.class) {
+				if (manager_exec == null) {
+					manager_exec = new ThreadPoolExecutor(
+						0, Integer.MAX_VALUE, 60, TimeUnit.SECONDS,
+						new SynchronousQueue<Runnable>()
+					);
+				}
+			}
+			manager_exec.execute(r);
+		}
+	};
+
+	/**
+	** The executor backing {@link #MANAGER_EXECUTOR}.
+	*/
+	private static Executor manager_exec = null;
+
+	/**
+	** A JVM-wide executor for worker tasks, ie. tasks that do I/O or
+	** computation, but never wait for other worker or manager tasks to
+	** complete. They may wait for {@link #SYNC_EXECUTOR} tasks. This is backed
+	** by a fixed-size pool (see {@link #setWorkerPoolSize(int)}) whose idle
+	** threads exit after 60s. Excess tasks are queued.
+	**
+	** Since workers never wait on each other, the pool size only limits the
+	** overall concurrency, and can be raised to match the available cores and
+	** I/O capacity without risk of deadlock.
+	*/
+	final public static Executor WORKER_EXECUTOR = new Executor() {
+		/*@Override**/ public void execute(Runnable r) {
+			getWorkerPool().execute(r);
+		}
+	};
+
+	/**
+	** The executor backing {@link #WORKER_EXECUTOR}.
+	*/
+	private static ThreadPoolExecutor worker_exec = null;
+
+	/**
+	** Size of the pool backing {@link #WORKER_EXECUTOR}.
+	*/
+	private static int worker_size = 0x40;
+
+	private static synchronized ThreadPoolExecutor getWorkerPool() {
+		if (worker_exec == null) {
+			// core == max, otherwise the pool never grows past the core size
+			// when used with an unbounded queue
+			worker_exec = new ThreadPoolExecutor(
+				worker_size, worker_size, 60, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<Runnable>()
+			);
+			worker_exec.allowCoreThreadTimeOut(true);
+		}
+		return worker_exec;
+	}
+
+	/**
+	** Set the number of threads in the pool backing {@link #WORKER_EXECUTOR}.
+	** This can be called at any time; running tasks are not affected.
+	*/
+	public static synchronized void setWorkerPoolSize(int size) {
+		if (size < 1) {
+			throw new IllegalArgumentException("Worker pool must have at least one thread");
+		}
+		worker_size = size;
+		if (worker_exec == null) { return; }
+		if (size > worker_exec.getMaximumPoolSize()) {
+			worker_exec.setMaximumPoolSize(size);
+			worker_exec.setCorePoolSize(size);
+		} else {
+			worker_exec.setCorePoolSize(size);
+			worker_exec.setMaximumPoolSize(size);
+		}
+	}
+
+	public static synchronized int getWorkerPoolSize() {
+		return worker_size;
+	}
+
+	/**
+	** A JVM-wide executor for worker tasks that only do computation, such as
+	** decoding data that has already been fetched. This is backed by a pool
+	** with one thread per core by default (see {@link #setCPUPoolSize(int)}),
+	** whose idle threads exit after 60s.
+	**
+	** Excess tasks are queued, and are never run in the thread that submits
+	** them. Submitters are often callbacks on the node's own threads, which
+	** must not be held up by decoding. The queue itself has no limit, since
+	** refusing a task would lose the data it decodes; instead, the submitters
+	** bound the work in progress. An {@link ObjectProcessor} only starts an
+	** item when its output queue has room for the result, so the number of
+	** items being fetched, waiting to be decoded, or decoded but not yet
+	** consumed is bounded by the capacity of that queue.
+	*/
+	final public static Executor CPU_EXECUTOR = new Executor() {
+		/*@Override**/ public void execute(Runnable r) {
+			getCPUPool().execute(r);
+		}
+	};
+
+	/**
+	** The executor backing {@link #CPU_EXECUTOR}.
+	*/
+	private static ThreadPoolExecutor cpu_exec = null;
+
+	/**
+	** Size of the pool backing {@link #CPU_EXECUTOR}.
+	*/
+	private static int cpu_size = Runtime.getRuntime().availableProcessors();
+
+	private static synchronized ThreadPoolExecutor getCPUPool() {
+		if (cpu_exec == null) {
+			cpu_exec = new ThreadPoolExecutor(
+				cpu_size, cpu_size, 60, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<Runnable>()
+			);
+			cpu_exec.allowCoreThreadTimeOut(true);
+		}
+		return cpu_exec;
+	}
+
+	/**
+	** Set the number of threads in the pool backing {@link #CPU_EXECUTOR}.
+	** This can be called at any time; running tasks are not affected.
+	*/
+	public static synchronized void setCPUPoolSize(int size) {
+		if (size < 1) {
+			throw new IllegalArgumentException("CPU pool must have at least one thread");
+		}
+		cpu_size = size;
+		if (cpu_exec == null) { return; }
+		if (size > cpu_exec.getMaximumPoolSize()) {
+			cpu_exec.setMaximumPoolSize(size);
+			cpu_exec.setCorePoolSize(size);
+		} else {
+			cpu_exec.setCorePoolSize(size);
+			cpu_exec.setMaximumPoolSize(size);
+		}
+	}
+
+	public static synchronized int getCPUPoolSize() {
+		return cpu_size;
+	}
+
+	/**
+	** A JVM-wide executor for tasks that sync files to disk, such as the group
+	** commits of {@link plugins.Library.io.serial.FileArchiver}. These only
+	** wait for the disk, or for a sync that is already running, so workers can
+	** safely wait for them. This is backed by a small fixed-size pool whose
+	** idle threads exit after 60s. Excess tasks are queued.
+	*/
+	final public static Executor SYNC_EXECUTOR = new Executor() {
+		/*@Override**/ public void execute(Runnable r) {
+			getSyncPool().execute(r);
+		}
+	};
+
+	/**
+	** The executor backing {@link #SYNC_EXECUTOR}.
+	*/
+	private static ThreadPoolExecutor sync_exec = null;
+
+	/**
+	** Size of the pool backing {@link #SYNC_EXECUTOR}. Syncs of the same
+	** file system mostly queue up in the kernel anyway, so a few are enough.
+	*/
+	final private static int SYNC_SIZE = 4;
+
+	private static synchronized ThreadPoolExecutor getSyncPool() {
+		if (sync_exec == null) {
+			sync_exec = new ThreadPoolExecutor(
+				SYNC_SIZE, SYNC_SIZE, 60, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<Runnable>()
+			);
+			sync_exec.allowCoreThreadTimeOut(true);
+		}
+		return sync_exec;
+	}
+
 	private Executors() { }
 
 }
@@ -6,12 +6,8 @@ package plugins.Library.util.concurrent;
 import static plugins.Library.util.func.Tuples.X2;
 import static plugins.Library.util.func.Tuples.X3;
 
-import java.lang.ref.WeakReference;
-import java.util.Iterator;
 import java.util.Map;
 import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.Executor;
 import java.util.concurrent.RejectedExecutionException;
 
@@ -25,6 +21,13 @@ import freenet.support.Logger;
 ** secondary "deposit" object, which is returned with the object when it has
 ** been processed. Any exceptions thrown are also returned.
 **
+** Once {@linkplain #auto() automatic dispatch} is enabled, items are handed
+** to the executor as soon as they are submitted, as long as fewer than
+** {@link #maxconc} of them are running, and the output queue has room for
+** all their results. Each completion or acceptance then dispatches the next
+** waiting item, so no thread needs to poll the input queue. A bounded output
+** queue therefore also bounds the processed results held in memory.
+**
 ** @param <T> Type of object to be processed
 ** @param <E> Type of object to be used as a deposit
 ** @param <X> Type of exception thrown by {@link #clo}
@@ -42,9 +45,16 @@ public class ObjectProcessor<T, E, X extends Exception> implements Scheduler {
 	protected Notifier notifier;
 
 	protected volatile boolean open = true;
+	protected volatile boolean autodispatch = false;
+	protected int submitted = 0;
 	protected int dispatched = 0;
 	protected int completed = 0;
 	protected int started = 0;
+
+	/** Time of the first submission, for {@link #getThroughput()}. */
+	protected long time_first = -1;
+	/** Time of the most recent completion, for {@link #getThroughput()}. */
+	protected long time_last = -1;
 	
 	private static volatile boolean logMINOR;
 	private static volatile boolean logDEBUG;
@@ -53,38 +63,57 @@ public class ObjectProcessor<T, E, X extends Exception> implements Scheduler {
 		Logger.registerClass(ObjectProcessor.class);
 	}
 
-	// Most ObjectProcessor's are likely to be autostart()'ed, and this way we can
-	// still use ConcurrentMap for pending while having garbage collection.
-	private final WeakReference<ObjectProcessor> myRef = new WeakReference<ObjectProcessor>(this);
-
 	// TODO NORM make a more intelligent way of adjusting this
-	final public static int default_maxconc = 0x28;
+	// Manager and worker tasks run on separate pools (see Executors), so this
+	// can be raised along with Executors.setWorkerPoolSize() without the risk
+	// of deadlock. It only affects processors created after it is changed.
+	public static volatile int default_maxconc = 0x28;
 	int maxconc = default_maxconc;
 
+	/**
+	** Pushes a result onto the output queue. This never blocks, since it may
+	** be called from threads that we don't own, such as the node's callbacks
+	** for async fetches. It never needs to, either: {@link #dispatchPoll()}
+	** only starts an item when the output queue has room for its result, as
+	** well as for the results of all the other running items. This only holds
+	** if nothing else adds to the output queue.
+	*/
 	final protected SafeClosure<X2<T, X>> postProcess = new SafeClosure<X2<T, X>>() {
 		/*@Override**/ public void invoke(X2<T, X> res) {
-			try {
-				out.put(res);
-				if(notifier != null) notifier.notifyUpdate();
-				synchronized(ObjectProcessor.this) { ++completed; }
-			} catch (InterruptedException e) {
-				throw new UnsupportedOperationException();
-			}
+			queueResult(res);
+			// a slot has been freed, so run the next waiting item
+			if (autodispatch) { dispatchAvailable(); }
 		}
 	};
+
+	/**
+	** Puts a result on the output queue, and counts its item as completed.
+	** This does not dispatch any more items.
+	*/
+	protected void queueResult(X2<T, X> res) {
+		if (!out.offer(res)) {
+			throw new IllegalStateException("ObjectProcessor: output queue is full; something other than the processor added to it");
+		}
+		if(notifier != null) notifier.notifyUpdate();
+		synchronized(this) {
+			++completed;
+			time_last = System.currentTimeMillis();
+		}
+	}
 	
-	public int outputCapacity() {
-		return out.remainingCapacity();
+	/**
+	** Room left in the output queue, not counting the room kept for the
+	** results of running items.
+	*/
+	public synchronized int outputCapacity() {
+		// a result is queued just before its item stops counting as running
+		return Math.max(0, out.remainingCapacity() - (dispatched - completed));
 	}
 	
 	public int outputSize() {
 		return out.size();
 	}
 
-	final private static ConcurrentMap<WeakReference<ObjectProcessor>, Boolean> pending = new ConcurrentHashMap<WeakReference<ObjectProcessor>, Boolean>();
-	// This must only be modified in a static synchronized block
-	private static Thread auto = null;
-
 	/**
 	** Constructs a new processor. The processor itself will be thread-safe
 	** as long as the queues and deposit map are not exposed to other threads,
@@ -126,8 +155,9 @@ public class ObjectProcessor<T, E, X extends Exception> implements Scheduler {
 		this.notifier = n;
 	}
 	
-	public synchronized void setMaxConc(int x) {
-		maxconc = x;
+	public void setMaxConc(int x) {
+		synchronized(this) { maxconc = x; }
+		if (autodispatch) { dispatchAvailable(); }
 	}
 	
 	/**
@@ -159,11 +189,14 @@ public class ObjectProcessor<T, E, X extends Exception> implements Scheduler {
 			}
 			
 			dep.put(item, deposit);
+			++submitted;
+			if (time_first < 0) { time_first = System.currentTimeMillis(); }
 		}
 		// in.put() can block. Don't hold the outer lock during pushing.
 		// Note that this can result in more stuff being in dep than is in in. This is okay, assuming that
 		// we don't have an infinite number of calling threads.
 		in.put(item);
+		if (autodispatch) { dispatchAvailable(); }
 	}
 
 	/**
@@ -188,10 +221,14 @@ public class ObjectProcessor<T, E, X extends Exception> implements Scheduler {
 	*/
 	public X3<T, E, X> accept() throws InterruptedException {
 		X2<T, X> item = out.take();
+		X3<T, E, X> res;
 		// DO NOT hold the lock while blocking on out.
 		synchronized(this) {
-			return X3(item._0, dep.remove(item._0), item._1);
+			res = X3(item._0, dep.remove(item._0), item._1);
 		}
+		// there is room for another result, so run the next waiting item
+		if (autodispatch) { dispatchAvailable(); }
+		return res;
 	}
 
 	/**
@@ -244,20 +281,49 @@ public class ObjectProcessor<T, E, X extends Exception> implements Scheduler {
 	** This method is provided for completeness, in case anyone needs it;
 	** {@link #auto()} should be adequate for most purposes.
 	**
-	** @return Whether a task was retrieved and executed
+	** @return Whether a task was retrieved, and either executed or failed
 	*/
 	public boolean dispatchPoll() {
+		T item;
 		synchronized(this) {
-			if (dispatched - completed >= maxconc) { return false; }
-		}
-		// DO NOT hold the lock while blocking on in.
-		T item = in.poll();
-		synchronized(this) {
+			int running = dispatched - completed;
+			// keep room in the output queue for the result of every running
+			// item, so that postProcess never has to wait for the consumer
+			if (running >= maxconc || running >= out.remainingCapacity()) { return false; }
+			// poll() does not block, so it is safe to hold the lock here
+			item = in.poll();
 			if (item == null) { return false; }
-			exec.execute(createJobFor(item));
 			++dispatched;
-			return true;
 		}
+		// DO NOT hold the lock whilst executing; the executor might run the job
+		// in this thread, and the job might block on the output queue.
+		try {
+			exec.execute(createJobFor(item));
+		} catch (RejectedExecutionException e) {
+			// neither Executors.DEFAULT_EXECUTOR nor Freenet's in-built executors
+			// throw this. The input queue may be full by now, and nothing would
+			// retry the item anyway, so fail it; this also frees its slot. Don't
+			// go through postProcess, which would dispatch again from in here
+			// and recurse once for each item that is rejected.
+			Logger.error(this, "REJECTED EXECUTION", e);
+			queueResult(X2(item, convertor.convert(e)));
+		}
+		return true;
+	}
+
+	/**
+	** Dispatches waiting items until either the input queue is empty, or
+	** {@link #maxconc} items are running, or the output queue has no room for
+	** any more results. This is called whenever an item is submitted,
+	** completed or accepted, if {@linkplain #auto() automatic dispatch} is
+	** enabled.
+	**
+	** Every addition to the input queue, every completion and every removal
+	** from the output queue is followed by a call to this method, so an item
+	** can never be left waiting while there is spare capacity.
+	*/
+	protected void dispatchAvailable() {
+		while (dispatchPoll());
 	}
 
 	/**
@@ -291,73 +357,18 @@ public class ObjectProcessor<T, E, X extends Exception> implements Scheduler {
 	}
 
 	/**
-	** Start a new thread to run the {@link #pending} processors, if one is not
-	** already running.
-	*/
-	private static synchronized void ensureAutoHandler() {
-		if (auto != null) { return; }
-		auto = new Thread() {
-			@Override public void run() {
-				final int timeout = 4;
-				int t = timeout;
-				while (!pending.isEmpty() && (t=timeout) == timeout || t-- > 0) {
-					for (Iterator<WeakReference<ObjectProcessor>> it = pending.keySet().iterator(); it.hasNext();) {
-						WeakReference<ObjectProcessor> ref = it.next();
-						ObjectProcessor proc = ref.get();
-						if(proc == null) {
-							it.remove();
-							continue;
-						}
-						try {
-							boolean o = proc.open;
-							while (proc.dispatchPoll());
-							if (!o) { it.remove(); }
-						} catch (RejectedExecutionException e) {
-							// FIXME NORM
-							// neither Executors.DEFAULT_EXECUTOR nor Freenet's in-built executors
-							// throw this, so this is not a high priority
-							Logger.error(this, "REJECTED EXECUTION", e);
-						}
-					}
-					try {
-					    // FIXME why do we sleep here at all?
-					    // FIXME for small jobs, such as merging to disk in SpiderIndexUploader, this can 
-					    // dominate the execution time!
-					    // FIXME the executors are perfectly capable of limiting the number of threads running...
-						Thread.sleep(100);
-					} catch (InterruptedException e) {
-						// TODO LOW log this somewhere
-					}
-					// System.out.println("pending " + pending.size());
-
-					if (t > 0) { continue; }
-					synchronized (ObjectProcessor.class) {
-						// if auto() was called just before we entered this synchronized block,
-						// then its ensureAutoHandler() would have done nothing. so we want to keep
-						// this thread running to take care of the new addition.
-						if (!pending.isEmpty()) { continue; }
-						// otherwise we can safely discard this thread, since ensureAutoHandler()
-						// cannot be called as long as we are in this block.
-						auto = null;
-						return;
-					}
-				}
-				throw new AssertionError("ObjectProcessor: bad exit in autohandler. this is a bug; please report.");
-			}
-		};
-		auto.start();
-	}
-
-	/**
-	** Add this processor to the collection of {@link #pending} processes, and
-	** makes sure there is a thread to handle them.
+	** Enable automatic dispatch for this processor, and dispatch any items
+	** that were submitted before this call.
 	**
 	** @return Whether the processor was not already being handled.
 	*/
 	public boolean auto() {
-		Boolean r = ObjectProcessor.pending.put(myRef, Boolean.TRUE);
-		ObjectProcessor.ensureAutoHandler();
-		return r == null;
+		synchronized(this) {
+			if (autodispatch) { return false; }
+			autodispatch = true;
+		}
+		dispatchAvailable();
+		return true;
 	}
 
 	/**
@@ -370,8 +381,9 @@ public class ObjectProcessor<T, E, X extends Exception> implements Scheduler {
 
 	/**
 	** Stop accepting new submissions or deposit updates. Held items can still
-	** be processed and retrieved, and if an {@linkplain #auto() auto-handler}
-	** is running, it will run until all such items have been processed.
+	** be processed and retrieved, and if {@linkplain #auto() automatic
+	** dispatch} is enabled, it will continue until all such items have been
+	** processed.
 	*/
 	/*@Override**/ public void close() {
 		open = false;
@@ -389,12 +401,39 @@ public class ObjectProcessor<T, E, X extends Exception> implements Scheduler {
 	}
 
 
+	/**
+	** Number of items that have been submitted since this processor was
+	** created.
+	*/
+	public synchronized int submittedCount() {
+		return submitted;
+	}
+
+	/**
+	** Number of items that have finished processing since this processor was
+	** created, including any not yet retrieved by {@link #accept()}.
+	*/
+	public synchronized int completedCount() {
+		return completed;
+	}
+
+	/**
+	** Average number of items completed per second, measured from the first
+	** submission to the most recent completion. Returns 0 if nothing has been
+	** completed yet.
+	*/
+	public synchronized double getThroughput() {
+		if (completed == 0 || time_first < 0) { return 0; }
+		long t = time_last - time_first;
+		return completed * 1000.0 / ((t > 0)? t: 1);
+	}
+
 	protected String name;
 	public void setName(String n) {
 		name = n;
 	}
 	@Override public String toString() {
-		return "ObjProc-" + name + ":{" + size() + "|" + dispatched + "|" + started + "|" + completed + "}";
+		return "ObjProc-" + name + ":{" + size() + "|" + dispatched + "|" + started + "|" + completed + "|" + String.format("%.1f", getThroughput()) + "/s}";
 	}
 
 }
@@ -36,6 +36,8 @@ public class BIndexTest extends TestCase {
 
 	final public boolean extensive = Boolean.getBoolean("extensiveTesting");
 
+	final public boolean benchmark = Boolean.getBoolean("benchmark");
+
 	final public static int it_full = 4;
 	final public static int it_partial = 2;
 	final public static boolean fuller = false;
@@ -313,6 +315,281 @@ public class BIndexTest extends TestCase {
 		}
 	}
 
+	/**
+	** Times a full bulk-inflate of the term table from a FileArchiver-backed
+	** index. Run this with {@code -Dbenchmark=true} before and after changes
+	** to the inflate scheduling to compare them.
+	*/
+	public void testInflateBenchmark() throws TaskAbortException {
+		if (!benchmark) { return; }
+		final int rounds = 4;
+		newTestSkeleton();
+		int totalentries = 0;
+		for (int i=0; i<0x400; ++i) {
+			String key = Generators.rndKey();
+			SkeletonBTreeSet<TermEntry> entries = makeEntryTree();
+			totalentries += fillEntrySet(key, entries);
+			idx.ttab.put(key, entries);
+		}
+		for (SkeletonBTreeSet<TermEntry> entries: idx.ttab.values()) {
+			entries.deflate();
+		}
+		idx.ttab.deflate();
+		PushTask<ProtoIndex> task = new PushTask<ProtoIndex>(idx);
+		srl.push(task);
+		System.out.println(totalentries + " entries, " + idx.ttab.size() + " terms deflated in " + timeDiff() + " ms, root at " + task.meta + ".");
+
+		long total = 0;
+		for (int i=0; i<rounds; ++i) {
+			PullTask<ProtoIndex> tasq = new PullTask<ProtoIndex>(task.meta);
+			srl.pull(tasq);
+			idx = tasq.data;
+			timeDiff();
+			idx.ttab.inflate();
+			long t = timeDiff();
+			assertTrue(idx.ttab.isLive());
+			System.out.println("bulk inflate " + i + ": " + t + " ms");
+			total += t;
+		}
+		System.out.println("bulk inflate average: " + (total / rounds) + " ms over " + rounds + " rounds");
+	}
+
+	/**
+	** Looks up every term of a pulled index through a {@link NodeResidency}
+	** that is too small to hold the whole term table, and checks that nodes
+	** get re-ghosted but lookups still work.
+	*/
+	public void testResidency() throws TaskAbortException {
+		if (!extensive) { return; }
+		newTestSkeleton();
+		for (int i=0; i<0x200; ++i) {
+			String key = Generators.rndKey();
+			SkeletonBTreeSet<TermEntry> entries = makeEntryTree();
+			fillEntrySet(key, entries);
+			idx.ttab.put(key, entries);
+		}
+		List<String> keys = new ArrayList<String>(idx.ttab.keySet());
+		for (SkeletonBTreeSet<TermEntry> entries: idx.ttab.values()) {
+			entries.deflate();
+		}
+		idx.ttab.deflate();
+		PushTask<ProtoIndex> task = new PushTask<ProtoIndex>(idx);
+		srl.push(task);
+
+		PullTask<ProtoIndex> tasq = new PullTask<ProtoIndex>(task.meta);
+		srl.pull(tasq);
+		idx = tasq.data;
+		NodeResidency res = new NodeResidency(0x1000, 0x100, 1);
+		idx.ttab.setResidency(res);
+
+		for (int i=0; i<2; ++i) {
+			Collections.shuffle(keys, rand);
+			for (String key: keys) {
+				idx.ttab.inflate(key);
+				assertNotNull(idx.ttab.get(key));
+			}
+		}
+		System.out.println(res);
+		assertTrue(res.getEvictions() > 0);
+		assertTrue(res.getLoads() > res.size());
+		// pinned nodes are kept, but don't count towards the limit
+		assertTrue(res.getPinnedBytes() > 0);
+		assertTrue(res.getBytes() <= 0x1000);
+		assertFalse(idx.ttab.isLive());
+
+		idx.ttab.setResidency(null);
+		assertEquals(0, res.size());
+		assertEquals(0, res.getBytes());
+		assertEquals(0, res.getPinnedBytes());
+	}
+
+	/**
+	** Inflates a range of the term table of a pulled index through a {@link
+	** SkeletonBTreeMap#subMapAutoInflate} view, and checks that it has the
+	** right keys but the rest of the tree was not pulled.
+	*/
+	public void testRangeInflate() throws TaskAbortException {
+		if (!extensive) { return; }
+		newTestSkeleton();
+		for (int i=0; i<0x200; ++i) {
+			String key = Generators.rndKey();
+			SkeletonBTreeSet<TermEntry> entries = makeEntryTree();
+			fillEntrySet(key, entries);
+			idx.ttab.put(key, entries);
+		}
+		List<String> keys = new ArrayList<String>(idx.ttab.keySet());
+		for (SkeletonBTreeSet<TermEntry> entries: idx.ttab.values()) {
+			entries.deflate();
+		}
+		idx.ttab.deflate();
+		PushTask<ProtoIndex> task = new PushTask<ProtoIndex>(idx);
+		srl.push(task);
+
+		PullTask<ProtoIndex> tasq = new PullTask<ProtoIndex>(task.meta);
+		srl.pull(tasq);
+		idx = tasq.data;
+
+		String lkey = keys.get(0x40), rkey = keys.get(0x60);
+		SortedMap<String, SkeletonBTreeSet<TermEntry>> sub = idx.ttab.subMapAutoInflate(lkey, rkey);
+		assertEquals(keys.subList(0x40, 0x60), new ArrayList<String>(sub.keySet()));
+		assertEquals(lkey, sub.firstKey());
+		assertNotNull(sub.get(lkey));
+		assertNull(sub.get(rkey));
+		assertEquals(0x10, sub.headMap(keys.get(0x50)).size());
+		assertFalse(idx.ttab.isLive());
+		assertFalse(idx.ttab.isBare());
+	}
+
+	public void testPrefixSearch() throws TaskAbortException, InterruptedException {
+		if (!extensive) { return; }
+		newTestSkeleton();
+		for (int i=0; i<0x200; ++i) {
+			String key = Generators.rndKey();
+			SkeletonBTreeSet<TermEntry> entries = makeEntryTree();
+			fillEntrySet(key, entries);
+			idx.ttab.put(key, entries);
+		}
+		List<String> keys = new ArrayList<String>(idx.ttab.keySet());
+		for (SkeletonBTreeSet<TermEntry> entries: idx.ttab.values()) {
+			entries.deflate();
+		}
+		idx.ttab.deflate();
+		PushTask<ProtoIndex> task = new PushTask<ProtoIndex>(idx);
+		srl.push(task);
+
+		PullTask<ProtoIndex> tasq = new PullTask<ProtoIndex>(task.meta);
+		srl.pull(tasq);
+		idx = tasq.data;
+
+		String prefix = keys.get(rand.nextInt(keys.size())).substring(0, 1);
+		List<String> expected = new ArrayList<String>();
+		for (String key: keys) {
+			if (key.startsWith(prefix)) { expected.add(key); }
+		}
+		assertEquals(expected, idx.ttab.keysInRange(prefix, ProtoIndex.prefixEnd(prefix), Integer.MAX_VALUE));
+		assertEquals(expected.subList(0, 1), idx.ttab.keysInRange(prefix, ProtoIndex.prefixEnd(prefix), 1));
+		assertFalse(idx.ttab.isLive());
+
+		Execution<Set<TermEntry>> req = idx.getTermEntriesPrefix(prefix);
+		req.join();
+		assertFalse(req.getResult().isEmpty());
+		assertEquals("ab", ProtoIndex.prefixEnd("aa"));
+		assertEquals("b", ProtoIndex.prefixEnd("a\uffff"));
+		assertNull(ProtoIndex.prefixEnd("\uffff"));
+	}
+
+	/**
+	** Checks that lookups of the same term in the same index share a single
+	** handler while it is running, even through different {@link ProtoIndex}
+	** objects, and that a new lookup is started once it has finished.
+	*/
+	public void testSharedLookups() throws TaskAbortException, java.net.MalformedURLException {
+		newTestSkeleton();
+		ProtoIndex same = new ProtoIndex(new FreenetURI("CHK@yeah"), "test", null, null, 0);
+		ProtoIndex other = new ProtoIndex(new FreenetURI("CHK@other"), "test", null, null, 0);
+		ProtoIndex local1 = new ProtoIndex(null, "test", null, null, 0);
+		ProtoIndex local2 = new ProtoIndex(null, "test", null, null, 0);
+		csrl.setSerialiserFor(same);
+		csrl.setSerialiserFor(other);
+		csrl.setSerialiserFor(local1);
+		csrl.setSerialiserFor(local2);
+
+		// hold the lookups until all of them have been requested
+		final List<Runnable> held = new ArrayList<Runnable>();
+		ProtoIndex.setExecutor(new java.util.concurrent.Executor() {
+			/*@Override**/ public void execute(Runnable r) { held.add(r); }
+		});
+		try {
+			String term = Generators.rndKey();
+			Execution<Set<TermEntry>> rq1 = idx.getTermEntries(term);
+			assertTrue(same.getTermEntries(term) == rq1);
+			assertTrue(idx.getTermEntries(term) == rq1);
+			assertTrue(other.getTermEntries(term) != rq1);
+			// indexes without an id are never shared
+			assertTrue(local1.getTermEntries(term) != local2.getTermEntries(term));
+			assertEquals(4, held.size());
+
+			for (Runnable r: new ArrayList<Runnable>(held)) { r.run(); }
+			// the term is not in the index, so both callers see the same failure
+			try {
+				same.getTermEntries(term).getResult();
+				fail();
+			} catch (TaskAbortException e) {
+				// expected
+			}
+
+			// a failed lookup is not shared with later callers
+			ProtoIndex again = new ProtoIndex(new FreenetURI("CHK@yeah"), "test", null, null, 0);
+			csrl.setSerialiserFor(again);
+			assertTrue(again.getTermEntries(term) != rq1);
+			assertEquals(5, held.size());
+		} finally {
+			ProtoIndex.setExecutor(plugins.Library.util.concurrent.Executors.DEFAULT_EXECUTOR);
+		}
+	}
+
+	/**
+	** Builds the term table and the entry trees of an index with {@link
+	** SkeletonBTreeMap#putAllSorted}, then pulls it back and checks that it
+	** has all the entries.
+	*/
+	public void testBulkLoad() throws TaskAbortException {
+		if (!extensive) { return; }
+		newTestSkeleton();
+		SortedMap<String, SortedSet<TermEntry>> data = new TreeMap<String, SortedSet<TermEntry>>();
+		for (int i=0; i<0x200; ++i) {
+			String key = Generators.rndKey();
+			SortedSet<TermEntry> entries = new TreeSet<TermEntry>();
+			fillEntrySet(key, entries);
+			data.put(key, entries);
+		}
+
+		final Iterator<Map.Entry<String, SortedSet<TermEntry>>> it = data.entrySet().iterator();
+		idx.ttab.putAllSorted(new Iterator<Map.Entry<String, SkeletonBTreeSet<TermEntry>>>() {
+			public boolean hasNext() { return it.hasNext(); }
+			public Map.Entry<String, SkeletonBTreeSet<TermEntry>> next() {
+				Map.Entry<String, SortedSet<TermEntry>> en = it.next();
+				SkeletonBTreeSet<TermEntry> entries = makeEntryTree();
+				try {
+					entries.addAllSorted(en.getValue().iterator(), 1.0f);
+					entries.deflate();
+				} catch (TaskAbortException e) {
+					throw new RuntimeException(e);
+				}
+				return Maps.$$(en.getKey(), entries);
+			}
+			public void remove() { throw new UnsupportedOperationException(); }
+		});
+		assertEquals(data.size(), idx.ttab.size());
+		assertFalse(idx.ttab.isLive());
+		System.out.print(data.size() + " keys bulk loaded in " + timeDiff() + " ms, ");
+
+		idx.ttab.deflate();
+		PushTask<ProtoIndex> task = new PushTask<ProtoIndex>(idx);
+		srl.push(task);
+		PullTask<ProtoIndex> tasq = new PullTask<ProtoIndex>(task.meta);
+		srl.pull(tasq);
+		idx = tasq.data;
+
+		idx.ttab.inflate();
+		assertEquals(data.keySet(), idx.ttab.keySet());
+		for (Map.Entry<String, SortedSet<TermEntry>> en: data.entrySet()) {
+			SkeletonBTreeSet<TermEntry> entries = idx.ttab.get(en.getKey());
+			entries.inflate();
+			assertEquals(en.getValue(), entries);
+		}
+		System.out.println("checked in " + timeDiff() + " ms");
+
+		SkeletonBTreeSet<TermEntry> entries = makeEntryTree();
+		try {
+			entries.addAllSorted(Arrays.asList(Generators.rndEntry("b"), Generators.rndEntry("a")).iterator());
+			fail();
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+		assertTrue(entries.isEmpty());
+	}
+
 	public void testProgress() throws TaskAbortException {
 		if (!extensive) { return; }
 		if (disabled_progress) { return; }
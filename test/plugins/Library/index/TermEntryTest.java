@@ -11,15 +11,19 @@ import plugins.Library.util.exec.TaskAbortException;
 import plugins.Library.io.serial.Packer;
 
 import plugins.Library.io.YamlReaderWriter;
+import plugins.Library.util.Generators;
 
 import freenet.keys.FreenetURI;
 
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.ArrayList;
 import java.util.Map;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.Random;
+import java.util.TreeMap;
 import java.util.UUID;
 import java.net.MalformedURLException;
 import java.io.*;
@@ -29,15 +33,28 @@ import java.io.*;
 */
 public class TermEntryTest extends TestCase {
 
+	final public boolean benchmark = Boolean.getBoolean("benchmark");
+
 	final static TermTermEntry w  = new TermTermEntry("test", 0.8f, "lol");
 	final static TermIndexEntry x;
 	final static TermPageEntry z;
 	final static TermPageEntry v;
+	final static TermPageEntry u;
+	final static TermPageEntry t;
 	static {
 		try {
 			x = new TermIndexEntry("test", 0.8f, new FreenetURI("CHK@MIh5-viJQrPkde5gmRZzqjBrqOuh~Wbjg02uuXJUzgM,rKDavdwyVF9Z0sf5BMRZsXj7yiWPFUuewoe0CPesvXE,AAIC--8"));
 			z = new TermPageEntry("lol", 0.8f, new FreenetURI("CHK@9eDo5QWLQcgSuDh1meTm96R4oE7zpoMBuV15jLiZTps,3HJaHbdW~-MtC6YsSkKn6I0DTG9Z1gKDGgtENhHx82I,AAIC--8"), null);
 			v = new TermPageEntry("lol", 0.8f, new FreenetURI("CHK@9eDo5QWLQcgSuDh1meTm96R4oE7zpoMBuV15jLiZTps,3HJaHbdW~-MtC6YsSkKn6I0DTG9Z1gKDGgtENhHx82I,AAIC--8"), "title", null);
+			Map<Integer, String> pos = new HashMap<Integer, String>();
+			pos.put(3, null);
+			pos.put(300, null);
+			pos.put(0x10000, null);
+			u = new TermPageEntry("lol", 0.5f, new FreenetURI("CHK@9eDo5QWLQcgSuDh1meTm96R4oE7zpoMBuV15jLiZTps,3HJaHbdW~-MtC6YsSkKn6I0DTG9Z1gKDGgtENhHx82I,AAIC--8"), "title", pos);
+			pos = new HashMap<Integer, String>(pos);
+			pos.put(300, "three hundred");
+			pos.put(0, "");
+			t = new TermPageEntry("lol", 0.5f, new FreenetURI("CHK@9eDo5QWLQcgSuDh1meTm96R4oE7zpoMBuV15jLiZTps,3HJaHbdW~-MtC6YsSkKn6I0DTG9Z1gKDGgtENhHx82I,AAIC--8"), null, pos);
 		} catch (MalformedURLException e) {
 			throw new AssertionError();
 		}
@@ -112,6 +129,181 @@ public class TermEntryTest extends TestCase {
 		assertEqualButNotIdentical(z, z1);
 	}
 
+	public void testBinaryStreamV2() throws IOException {
+		ByteArrayOutputStream bo = new ByteArrayOutputStream();
+		TermEntryReaderWriter.Writer ww = new TermEntryReaderWriter.Writer(bo);
+		TermEntry[] entries = new TermEntry[]{v, w, x, y, z, u, t};
+		for (TermEntry en: entries) { ww.write(en); }
+		ww.flush();
+
+		TermEntryReaderWriter.Reader rr = new TermEntryReaderWriter.Reader(new ByteArrayInputStream(bo.toByteArray()));
+		for (TermEntry en: entries) {
+			TermEntry en1 = rr.next();
+			assertEqualButNotIdentical(en, en1);
+			assertTrue(rr.getFormat() == TermEntryReaderWriter.FORMAT_V2);
+		}
+		try {
+			rr.next();
+			fail();
+		} catch (EOFException e) {
+			// expected
+		}
+
+		TermPageEntry u1 = (TermPageEntry)read(write(u, true));
+		assertTrue(Arrays.equals(u.positionsRaw(), u1.positionsRaw()));
+		assertFalse(u1.hasFragments());
+		TermPageEntry t1 = (TermPageEntry)read(write(t, true));
+		assertTrue(Arrays.equals(t.positionsRaw(), t1.positionsRaw()));
+		assertEquals("three hundred", t1.positionsMap().get(300));
+		assertNull(t1.positionsMap().get(0));
+		assertNull(t1.positionsMap().get(3));
+		TermPageEntry v1 = (TermPageEntry)read(write(v, true));
+		assertFalse(v1.hasPositions());
+		assertEquals("title", v1.title);
+
+		// positions take one or two bytes each, rather than six
+		assertTrue(write(u, true).length < write(u, false).length - 12);
+	}
+
+	public void testBinaryStreamV1() throws IOException {
+		TermEntryReaderWriter rw = TermEntryReaderWriter.getInstance();
+		ByteArrayOutputStream bo = new ByteArrayOutputStream();
+		DataOutputStream oo = new DataOutputStream(bo);
+		TermEntry[] entries = new TermEntry[]{v, w, x, y, z, u, t};
+		for (TermEntry en: entries) { rw.writeObject(en, oo); }
+		oo.close();
+
+		TermEntryReaderWriter.Reader rr = new TermEntryReaderWriter.Reader(new ByteArrayInputStream(bo.toByteArray()));
+		for (TermEntry en: entries) {
+			assertEqualButNotIdentical(en, rr.next());
+			assertTrue(rr.getFormat() == TermEntryReaderWriter.FORMAT_V1);
+		}
+		try {
+			rr.next();
+			fail();
+		} catch (EOFException e) {
+			// expected
+		}
+
+		try {
+			new TermEntryReaderWriter.Reader(new ByteArrayInputStream(new byte[]{1, 2, 3, 4, 5, 6, 7, 8, 9})).next();
+			fail();
+		} catch (plugins.Library.io.DataFormatException e) {
+			// expected
+		}
+	}
+
+	/**
+	** Compares the size of, and the time taken to read and write, a spider
+	** buffer in format v1 against v2. Run this with {@code -Dbenchmark=true}.
+	** By default this uses randomly-generated pages; to use a real bucket
+	** saved from the spider, also set {@code -Dbenchmark.bucket=<file>}.
+	*/
+	public void testBenchmark() throws IOException {
+		if (!benchmark) { return; }
+		final int rounds = 8;
+		String bucket = System.getProperty("benchmark.bucket");
+		List<TermEntry> entries = (bucket == null)? makeEntries(0x4000, Generators.rand): readBucket(new File(bucket));
+
+		for (int i=0; i<2; ++i) {
+			// warm up the first time round
+			long[] b1 = benchmark(entries, false, rounds);
+			long[] b2 = benchmark(entries, true, rounds);
+			if (i == 0) { continue; }
+			System.out.println(entries.size() + " entries: v1 " + b1[0] + " bytes, v2 " + b2[0] + " bytes");
+			System.out.println("write: v1 " + b1[1]/rounds + " us, v2 " + b2[1]/rounds + " us");
+			System.out.println("read: v1 " + b1[2]/rounds + " us, v2 " + b2[2]/rounds + " us");
+		}
+	}
+
+	/**
+	** @return (size in bytes, total write time in microseconds, total read
+	**         time in microseconds)
+	*/
+	protected long[] benchmark(List<TermEntry> entries, boolean v2, int rounds) throws IOException {
+		byte[] buf = null;
+		long t0 = System.nanoTime();
+		for (int i=0; i<rounds; ++i) {
+			buf = write(entries, v2);
+		}
+		long tw = (System.nanoTime() - t0) / 1000;
+		t0 = System.nanoTime();
+		for (int i=0; i<rounds; ++i) {
+			TermEntryReaderWriter.Reader rr = new TermEntryReaderWriter.Reader(new ByteArrayInputStream(buf));
+			for (int j=0; j<entries.size(); ++j) { rr.next(); }
+		}
+		long tr = (System.nanoTime() - t0) / 1000;
+		return new long[]{buf.length, tw, tr};
+	}
+
+	/**
+	** Makes pages with a similar shape to what the spider produces: a title,
+	** and a few dozen positions for each term, a small fraction of them with
+	** fragments.
+	*/
+	protected static List<TermEntry> makeEntries(int n, Random rand) {
+		List<TermEntry> entries = new ArrayList<TermEntry>(n);
+		for (int i=0; i<n; ++i) {
+			Map<Integer, String> pos = new TreeMap<Integer, String>();
+			int p = rand.nextInt(0x100);
+			for (int j=rand.nextInt(64); j>=0; --j) {
+				pos.put(p, rand.nextInt(16) == 0? Generators.rndStr(): null);
+				p += 1 + rand.nextInt(200);
+			}
+			entries.add(new TermPageEntry(Generators.rndKey(), rand.nextFloat(), FreenetURI.generateRandomCHK(rand), Generators.rndStr(), pos));
+		}
+		return entries;
+	}
+
+	/**
+	** Reads the entries from a bucket as sent by the spider: a {@link
+	** freenet.support.SimpleFieldSet} ending in a line "End", then the
+	** entries in either format.
+	*/
+	protected static List<TermEntry> readBucket(File f) throws IOException {
+		InputStream is = new BufferedInputStream(new FileInputStream(f));
+		try {
+			StringBuilder line = new StringBuilder();
+			for (int c; !"End".equals(line.toString()); ) {
+				line.setLength(0);
+				while ((c = is.read()) != '\n') {
+					if (c < 0) { throw new EOFException("no end of header in " + f); }
+					line.append((char)c);
+				}
+			}
+			List<TermEntry> entries = new ArrayList<TermEntry>();
+			TermEntryReaderWriter.Reader rr = new TermEntryReaderWriter.Reader(is);
+			try {
+				while (true) { entries.add(rr.next()); }
+			} catch (EOFException e) {
+				// end of bucket
+			}
+			return entries;
+		} finally {
+			is.close();
+		}
+	}
+
+	protected static byte[] write(List<TermEntry> entries, boolean v2) throws IOException {
+		ByteArrayOutputStream bo = new ByteArrayOutputStream();
+		DataOutputStream oo = new DataOutputStream(bo);
+		TermEntryReaderWriter.Writer ww = v2? new TermEntryReaderWriter.Writer(oo): null;
+		for (TermEntry en: entries) {
+			if (v2) { ww.write(en); }
+			else { TermEntryReaderWriter.getInstance().writeObject(en, oo); }
+		}
+		oo.flush();
+		return bo.toByteArray();
+	}
+
+	protected static byte[] write(TermEntry en, boolean v2) throws IOException {
+		return write(Collections.singletonList(en), v2);
+	}
+
+	protected static TermEntry read(byte[] buf) throws IOException {
+		return new TermEntryReaderWriter.Reader(new ByteArrayInputStream(buf)).next();
+	}
+
 	public static void assertEqualButNotIdentical(Object a, Object b) {
 		assertTrue(a != b);
 		assertTrue(a.equals(b));
@@ -0,0 +1,253 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package plugins.Library.io;
+
+import junit.framework.TestCase;
+import static plugins.Library.util.Generators.rand;
+
+import plugins.Library.util.Generators;
+import plugins.Library.io.serial.Packer;
+import plugins.Library.index.*;
+
+import freenet.keys.FreenetURI;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.*;
+import java.io.*;
+
+public class BinaryReaderWriterTest extends TestCase {
+
+	final public boolean benchmark = Boolean.getBoolean("benchmark");
+
+	final BinaryReaderWriter binrw = new BinaryReaderWriter();
+	final YamlReaderWriter yamlrw = new YamlReaderWriter();
+
+	/**
+	** Make a map in the same shape as a B-tree node of the ''B-tree'' for a
+	** ''term'', as produced by {@link
+	** plugins.Library.util.SkeletonBTreeMap.NodeTranslator}.
+	*/
+	protected Map<String, Object> makeNode(int entries, int subnodes) {
+		String key = Generators.rndKey();
+		List<TermEntry> ents = new ArrayList<TermEntry>(entries);
+		for (int i=0; i<entries; ++i) {
+			Map<Integer, String> pos = new HashMap<Integer, String>();
+			for (int j=rand.nextInt(8); j>0; --j) {
+				pos.put(rand.nextInt(0x10000), null);
+			}
+			ents.add(new TermPageEntry(key, rand.nextFloat(), FreenetURI.generateRandomCHK(rand), (i%4 == 0)? Generators.rndStr(): null, pos));
+		}
+		Map<String, Object> map = new LinkedHashMap<String, Object>();
+		map.put("lkey", null);
+		map.put("rkey", null);
+		map.put("entries", ents);
+		if (subnodes > 0) {
+			Map<Object, Integer> subs = new LinkedHashMap<Object, Integer>();
+			for (int i=0; i<subnodes; ++i) {
+				subs.put(FreenetURI.generateRandomCHK(rand), rand.nextInt(0x10000));
+			}
+			map.put("subnodes", subs);
+		}
+		return map;
+	}
+
+	protected byte[] write(ObjectStreamWriter w, Object o) throws IOException {
+		ByteArrayOutputStream bo = new ByteArrayOutputStream();
+		w.writeObject(o, bo);
+		bo.close();
+		return bo.toByteArray();
+	}
+
+	protected Object read(ObjectStreamReader r, byte[] buf) throws IOException {
+		return r.readObject(new ByteArrayInputStream(buf));
+	}
+
+	public void testRoundTrip() throws IOException {
+		Map<String, Object> map = makeNode(0x40, 0x10);
+		map.put("node_min", 0x400);
+		map.put("size", -1);
+		map.put("total", 0x123456789L);
+		map.put("flag", true);
+		map.put("meta", new byte[]{1, 2, 3});
+		map.put("modified", new Date());
+		map.put("bin", new Packer.BinInfo(FreenetURI.generateRandomCHK(rand), 123));
+		map.put("set", new HashSet<String>(Arrays.asList("a", "b", "c")));
+		StringBuilder big = new StringBuilder();
+		for (int i=0; i<0x2000; ++i) { big.append("\u00e9\u4e2dA"); }
+		map.put("big", big.toString());
+
+		Map<String, Object> res = (Map<String, Object>)read(binrw, write(binrw, map));
+		assertEquals(map.keySet(), res.keySet());
+		for (Map.Entry<String, Object> en: map.entrySet()) {
+			Object v = en.getValue(), w = res.get(en.getKey());
+			if (v instanceof byte[]) {
+				assertTrue(Arrays.equals((byte[])v, (byte[])w));
+			} else {
+				assertEquals(en.getKey(), v, w);
+			}
+		}
+		assertTrue(res.get("total") instanceof Long);
+		assertTrue(res.get("size") instanceof Integer);
+
+		// reading straight from a buffer gives the same result
+		byte[] buf = write(binrw, map);
+		java.nio.ByteBuffer bb = java.nio.ByteBuffer.allocateDirect(buf.length);
+		bb.put(buf).flip();
+		Map<String, Object> res2 = (Map<String, Object>)binrw.readObject(bb);
+		assertEquals(res.keySet(), res2.keySet());
+		assertEquals(res.get("entries"), res2.get("entries"));
+		assertEquals(res.get("big"), res2.get("big"));
+	}
+
+	public void testURIDictionary() throws IOException {
+		// a bin holding the entries for several terms, all in the same pages
+		FreenetURI[] pages = new FreenetURI[0x10];
+		for (int i=0; i<pages.length; ++i) { pages[i] = FreenetURI.generateRandomCHK(rand); }
+		Map<String, Object> bin = new LinkedHashMap<String, Object>();
+		for (int i=0; i<0x20; ++i) {
+			String key = Generators.rndKey();
+			List<TermEntry> ents = new ArrayList<TermEntry>();
+			for (FreenetURI page: pages) {
+				ents.add(new TermPageEntry(key, rand.nextFloat(), page, null));
+			}
+			bin.put(key, ents);
+		}
+		bin.put("bin", new Packer.BinInfo(pages[0], 1));
+
+		byte[] buf = write(binrw, bin);
+		Map<String, Object> res = (Map<String, Object>)read(binrw, buf);
+		assertEquals(bin, res);
+		Map<FreenetURI, FreenetURI> seen = new HashMap<FreenetURI, FreenetURI>();
+		for (Object o: res.values()) {
+			if (!(o instanceof List)) { continue; }
+			for (TermEntry en: (List<TermEntry>)o) {
+				FreenetURI page = ((TermPageEntry)en).page;
+				if (seen.containsKey(page)) {
+					assertTrue(seen.get(page) == page);
+				} else {
+					seen.put(page, page);
+				}
+			}
+		}
+		assertTrue(seen.size() == pages.length);
+
+		// each URI is written in full only once, not once for every term
+		ByteArrayOutputStream bo = new ByteArrayOutputStream();
+		DataOutputStream dos = new DataOutputStream(bo);
+		for (FreenetURI page: pages) { page.writeFullBinaryKeyWithLength(dos); }
+		dos.close();
+		assertTrue(buf.length < 0x20 * bo.size() / 2);
+
+		// a dictionary counts each distinct URI once, whichever way it is used
+		BinaryReaderWriter.URIDictionary wd = new BinaryReaderWriter.URIDictionary();
+		bo = new ByteArrayOutputStream();
+		dos = new DataOutputStream(bo);
+		for (int i=0; i<3; ++i) {
+			for (FreenetURI page: pages) { wd.writeURI(page, dos); }
+		}
+		dos.close();
+		assertEquals(pages.length, wd.size());
+		BinaryReaderWriter.URIDictionary rd = new BinaryReaderWriter.URIDictionary();
+		DataInputStream dis = new DataInputStream(new ByteArrayInputStream(bo.toByteArray()));
+		for (int i=0; i<3; ++i) {
+			for (FreenetURI page: pages) { assertEquals(page, rd.readURI(dis)); }
+		}
+		assertEquals(pages.length, rd.size());
+	}
+
+	public void testBadInput() throws IOException {
+		try {
+			read(binrw, new byte[]{1, 2, 3, 4, 5});
+			fail();
+		} catch (DataFormatException e) {
+			// expected
+		}
+		try {
+			write(binrw, Collections.singletonMap("x", new Object()));
+			fail();
+		} catch (DataFormatException e) {
+			// expected
+		}
+
+		// a corrupt length must not be allocated up front
+		try {
+			read(binrw, header(BinaryReaderWriter.T_STRING, Integer.MAX_VALUE));
+			fail();
+		} catch (DataFormatException e) {
+			// expected
+		}
+		try {
+			read(binrw, header(BinaryReaderWriter.T_BYTES, BinaryReaderWriter.MAX_BYTES_LENGTH));
+			fail();
+		} catch (EOFException e) {
+			// expected
+		}
+
+		// but long values still read back, across several chunks
+		char[] cs = new char[BinaryReaderWriter.READ_CHUNK * 3 + 7];
+		Arrays.fill(cs, 'x');
+		String s = new String(cs);
+		assertEquals(s, read(binrw, write(binrw, s)));
+	}
+
+	/**
+	** A stream header, followed by the given tag and length.
+	*/
+	protected static byte[] header(int tag, int len) throws IOException {
+		ByteArrayOutputStream bo = new ByteArrayOutputStream();
+		DataOutputStream dos = new DataOutputStream(bo);
+		dos.writeInt(BinaryReaderWriter.MAGIC);
+		dos.writeByte(BinaryReaderWriter.VERSION);
+		dos.writeByte(tag);
+		BinaryReaderWriter.writeVarInt(len, dos);
+		dos.close();
+		return bo.toByteArray();
+	}
+
+	/**
+	** Compares the size, and the time and memory taken to parse, of a full
+	** B-tree node in the binary format against YAML. Run this with {@code
+	** -Dbenchmark=true}.
+	*/
+	public void testBenchmark() throws IOException {
+		if (!benchmark) { return; }
+		final int rounds = 16;
+		Map<String, Object> node = makeNode((ProtoIndex.BTREE_NODE_MIN<<1) - 1, ProtoIndex.BTREE_NODE_MIN<<1);
+
+		byte[] yb = write(yamlrw, node);
+		byte[] bb = write(binrw, node);
+		System.out.println("node size: yaml " + yb.length + " bytes, binary " + bb.length + " bytes");
+
+		for (int i=0; i<2; ++i) {
+			// warm up the first time round
+			long[] y = parse(yamlrw, yb, rounds);
+			long[] b = parse(binrw, bb, rounds);
+			if (i == 0) { continue; }
+			System.out.println("parse time: yaml " + y[0]/rounds + " us, binary " + b[0]/rounds + " us");
+			if (y[1] >= 0) {
+				System.out.println("parse allocation: yaml " + y[1]/rounds + " bytes, binary " + b[1]/rounds + " bytes");
+			}
+		}
+	}
+
+	/**
+	** @return (total time in microseconds, total bytes allocated or -1 if
+	**         this JVM can't measure it)
+	*/
+	protected long[] parse(ObjectStreamReader r, byte[] buf, int rounds) throws IOException {
+		ThreadMXBean mx = ManagementFactory.getThreadMXBean();
+		com.sun.management.ThreadMXBean smx = (mx instanceof com.sun.management.ThreadMXBean)? (com.sun.management.ThreadMXBean)mx: null;
+		long id = Thread.currentThread().getId();
+		long a0 = (smx == null)? 0: smx.getThreadAllocatedBytes(id);
+		long t0 = System.nanoTime();
+		for (int i=0; i<rounds; ++i) {
+			assertTrue(read(r, buf) instanceof Map);
+		}
+		long t = (System.nanoTime() - t0) / 1000;
+		long a = (smx == null)? -1: smx.getThreadAllocatedBytes(id) - a0;
+		return new long[]{t, a};
+	}
+
+}
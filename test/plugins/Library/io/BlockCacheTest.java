@@ -0,0 +1,111 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package plugins.Library.io;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+public class BlockCacheTest extends TestCase {
+
+	protected File dir;
+
+	@Override public void setUp() throws IOException {
+		dir = File.createTempFile("blockcache", "");
+		dir.delete();
+		dir.mkdir();
+	}
+
+	@Override public void tearDown() {
+		for (File f: dir.listFiles()) { f.delete(); }
+		dir.delete();
+	}
+
+	protected static InputStream block(int size, int fill) {
+		byte[] buf = new byte[size];
+		for (int i=0; i<size; ++i) { buf[i] = (byte)fill; }
+		return new ByteArrayInputStream(buf);
+	}
+
+	protected static int readBlock(InputStream is) throws IOException {
+		int n = 0, b, fill = -1;
+		try {
+			while ((b = is.read()) >= 0) {
+				if (fill >= 0) { assertEquals(fill, b); }
+				fill = b; ++n;
+			}
+		} finally {
+			is.close();
+		}
+		return n;
+	}
+
+	public void testLRU() throws IOException {
+		BlockCache cache = new BlockCache(dir, 1000);
+		assertTrue(cache.put("a", block(300, 1)));
+		assertTrue(cache.put("b", block(300, 2)));
+		assertTrue(cache.put("c", block(300, 3)));
+		assertEquals(900, cache.getBytes());
+
+		// touch "a" so that "b" is the least recently used
+		assertEquals(300, readBlock(cache.get("a")));
+		assertTrue(cache.put("d", block(300, 4)));
+		assertEquals(900, cache.getBytes());
+		assertNull(cache.get("b"));
+		assertFalse(new File(dir, "b").exists());
+		assertEquals(1, cache.getEvictions());
+		assertEquals(1, cache.getHits());
+		assertEquals(1, cache.getMisses());
+
+		// replacing a block doesn't count its old size twice
+		assertTrue(cache.put("a", block(100, 5)));
+		assertEquals(700, cache.getBytes());
+		assertEquals(100, readBlock(cache.get("a")));
+
+		// oversized and empty blocks are not added
+		assertFalse(cache.put("e", block(1001, 6)));
+		assertFalse(cache.put("f", block(0, 7)));
+		assertEquals(3, cache.size());
+
+		cache.setMaxBytes(300);
+		assertEquals(1, cache.size());
+		assertTrue(cache.contains("a"));
+
+		// no temporary files are left behind
+		assertEquals(1, dir.list().length);
+	}
+
+	public void testScan() throws IOException {
+		long now = System.currentTimeMillis();
+		String[] keys = new String[]{"x", "y", "z"};
+		for (int i=0; i<keys.length; ++i) {
+			File f = new File(dir, keys[i]);
+			FileOutputStream os = new FileOutputStream(f);
+			os.write(new byte[400]);
+			os.close();
+			// "z" is the oldest
+			f.setLastModified(now - (i+1) * 3600000L);
+		}
+		new FileOutputStream(new File(dir, "partial" + BlockCache.TEMP_SUFFIX)).close();
+		new FileOutputStream(new File(dir, "empty")).close();
+
+		BlockCache cache = new BlockCache(dir, 1000);
+		assertEquals(2, cache.size());
+		assertEquals(800, cache.getBytes());
+		assertFalse(cache.contains("z"));
+		assertFalse(new File(dir, "partial" + BlockCache.TEMP_SUFFIX).exists());
+		assertFalse(new File(dir, "empty").exists());
+
+		// the access order survives a restart
+		assertEquals(400, readBlock(cache.get("y")));
+		cache = new BlockCache(dir, 500);
+		assertTrue(cache.contains("y"));
+		assertFalse(cache.contains("x"));
+	}
+
+}
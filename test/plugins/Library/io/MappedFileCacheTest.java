@@ -0,0 +1,97 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package plugins.Library.io;
+
+import junit.framework.TestCase;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+public class MappedFileCacheTest extends TestCase {
+
+	protected File dir;
+
+	@Override public void setUp() throws IOException {
+		dir = File.createTempFile("mappedfiles", "");
+		dir.delete();
+		dir.mkdir();
+	}
+
+	@Override public void tearDown() {
+		for (File f: dir.listFiles()) { f.delete(); }
+		dir.delete();
+	}
+
+	protected File write(String name, int size, boolean append) throws IOException {
+		File f = new File(dir, name);
+		FileOutputStream os = new FileOutputStream(f, append);
+		for (int i=0; i<size; ++i) { os.write(i); }
+		os.close();
+		return f;
+	}
+
+	public void testMap() throws IOException {
+		MappedFileCache cache = new MappedFileCache(0x10000, 3);
+		File a = write("a", 100, false);
+		ByteBuffer buf = cache.map(a);
+		assertEquals(100, buf.remaining());
+		assertEquals(99, buf.get(99));
+
+		// each caller gets its own position
+		buf.position(50);
+		assertEquals(0, cache.map(a).position());
+		assertEquals(1, cache.getHits());
+
+		// appending to the file and asking for more of it maps it again
+		write("a", 100, true);
+		assertEquals(200, cache.map(a, 200).remaining());
+		assertEquals(2, cache.getMisses());
+		assertEquals(1, cache.size());
+		try {
+			cache.map(a, 300);
+			fail("mapped past the end of a file");
+		} catch (IOException e) {
+			// expected
+		}
+
+		// least recently used files are dropped
+		File b = write("b", 10, false), c = write("c", 10, false), d = write("d", 10, false);
+		cache.map(b); cache.map(c); cache.map(a); cache.map(d);
+		assertEquals(3, cache.size());
+		assertEquals(1, cache.getEvictions());
+		long misses = cache.getMisses();
+		cache.map(a);
+		assertEquals(misses, cache.getMisses());
+		cache.map(b);
+		assertEquals(misses + 1, cache.getMisses());
+
+		// files bigger than the limit are not mapped
+		assertNull(cache.map(write("big", 0x10001, false)));
+
+		cache.forget(a);
+		cache.setMaxBytes(0);
+		assertEquals(0, cache.size());
+		assertEquals(0, cache.getBytes());
+	}
+
+	public void testByteBufferInputStream() throws IOException {
+		ByteBuffer buf = ByteBuffer.allocate(16);
+		buf.putInt(0x12345678).putLong(-2L).put((byte)0xff).flip();
+		ByteBufferInputStream is = new ByteBufferInputStream(buf);
+		DataInputStream dis = new DataInputStream(is);
+		assertEquals(0x12345678, dis.readInt());
+		is.mark(0);
+		assertEquals(-2L, dis.readLong());
+		is.reset();
+		assertEquals(9, is.available());
+		assertEquals(8, is.skip(8));
+		assertEquals(0xff, is.read());
+		assertEquals(-1, is.read());
+		assertEquals(-1, is.read(new byte[4], 0, 4));
+	}
+
+}
@@ -0,0 +1,207 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package plugins.Library.io.serial;
+
+import junit.framework.TestCase;
+
+import plugins.Library.io.MappedFileCache;
+import plugins.Library.io.ObjectStreamReader;
+import plugins.Library.io.ObjectStreamWriter;
+import plugins.Library.io.serial.Serialiser.*;
+import plugins.Library.util.exec.SimpleProgress;
+import plugins.Library.util.exec.TaskAbortException;
+import plugins.Library.util.func.SafeClosure;
+import plugins.Library.util.func.Tuples.X2;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+public class PackFileArchiverTest extends TestCase {
+
+	public static class StringReaderWriter implements ObjectStreamReader<String>, ObjectStreamWriter<String> {
+		/*@Override**/ public String readObject(InputStream is) throws IOException {
+			ByteArrayOutputStream bos = new ByteArrayOutputStream();
+			byte[] buf = new byte[0x100];
+			int n;
+			while ((n = is.read(buf)) > 0) { bos.write(buf, 0, n); }
+			return bos.toString("UTF-8");
+		}
+		/*@Override**/ public void writeObject(String o, OutputStream os) throws IOException {
+			os.write(o.getBytes("UTF-8"));
+		}
+	}
+
+	final static StringReaderWriter rw = new StringReaderWriter();
+
+	protected File dir;
+
+	@Override public void setUp() throws IOException {
+		dir = File.createTempFile("packfile", "");
+		dir.delete();
+		dir.mkdir();
+	}
+
+	@Override public void tearDown() {
+		for (File f: dir.listFiles()) { f.delete(); }
+		dir.delete();
+	}
+
+	protected static Object push(Archiver<String> arx, String s) throws TaskAbortException {
+		PushTask<String> t = new PushTask<String>(s);
+		arx.push(t);
+		return t.meta;
+	}
+
+	protected static String pull(Archiver<String> arx, Object meta) throws TaskAbortException {
+		PullTask<String> t = new PullTask<String>(meta);
+		arx.pull(t);
+		return t.data;
+	}
+
+	protected static String value(int i) {
+		StringBuilder s = new StringBuilder("value ").append(i).append(':');
+		for (int j=0; j<i%50; ++j) { s.append('x'); }
+		return s.toString();
+	}
+
+	public void testPushPull() throws Exception {
+		PackFileArchiver<String> arx = new PackFileArchiver<String>(rw, rw, ".pack", dir, 0x400);
+		List<Object> metas = new ArrayList<Object>();
+		for (int i=0; i<200; ++i) { metas.add(push(arx, value(i))); }
+		assertTrue(arx.segmentCount() > 1);
+		for (int i=0; i<200; ++i) { assertEquals(value(i), pull(arx, metas.get(i))); }
+
+		// and without mapping the segments
+		arx.setMappedFileCache(null);
+		for (int i=0; i<200; ++i) { assertEquals(value(i), pull(arx, metas.get(i))); }
+		arx.setMappedFileCache(MappedFileCache.DEFAULT);
+
+		// objects written by FileArchiver can still be read
+		FileOutputStream os = new FileOutputStream(new File(dir, "legacy.pack"));
+		rw.writeObject("legacy", os);
+		os.close();
+		assertEquals("legacy", pull(arx, "legacy"));
+		arx.close();
+
+		// a new instance can read the old segments, and doesn't append to them
+		arx = new PackFileArchiver<String>(rw, rw, ".pack", dir, 0x400);
+		int segs = arx.segmentCount();
+		Object meta = push(arx, "new");
+		assertEquals(segs + 1, arx.segmentCount());
+		assertEquals("new", pull(arx, meta));
+		for (int i=0; i<200; ++i) { assertEquals(value(i), pull(arx, metas.get(i))); }
+		arx.close();
+	}
+
+	public void testMapping() throws Exception {
+		// plain files are not mapped unless asked for, even with random names
+		assertNull(new FileArchiver<String>(rw, rw, true, ".pack", "", "", dir).getMappedFileCache());
+
+		PackFileArchiver<String> arx = new PackFileArchiver<String>(rw, rw, ".pack", dir, 0x400);
+		assertSame(MappedFileCache.DEFAULT, arx.getMappedFileCache());
+		MappedFileCache cache = new MappedFileCache(MappedFileCache.DEFAULT_MAX_BYTES, MappedFileCache.DEFAULT_MAX_MAPS);
+		arx.setMappedFileCache(cache);
+
+		// the head segment is read through its channel, since it still grows
+		Object meta = push(arx, value(0));
+		assertEquals(value(0), pull(arx, meta));
+		assertEquals(0, cache.size());
+
+		// once it is full, it is mapped, whatever its size
+		while (arx.segmentCount() < 2) { push(arx, value(1)); }
+		assertEquals(value(0), pull(arx, meta));
+		assertEquals(1, cache.size());
+		assertEquals(value(0), pull(arx, meta));
+		assertEquals(1, cache.getMisses());
+
+		// small files are read as streams
+		FileOutputStream os = new FileOutputStream(new File(dir, "small.pack"));
+		rw.writeObject("small", os);
+		os.close();
+		assertEquals("small", pull(arx, "small"));
+		assertEquals(1, cache.size());
+		arx.close();
+	}
+
+	public void testCompact() throws Exception {
+		PackFileArchiver<String> arx = new PackFileArchiver<String>(rw, rw, ".pack", dir, 0x400);
+		List<Object> metas = new ArrayList<Object>();
+		for (int i=0; i<400; ++i) { metas.add(push(arx, value(i))); }
+		int segs = arx.segmentCount();
+
+		// keep every fourth object
+		List<Object> live = new ArrayList<Object>();
+		for (int i=0; i<400; i+=4) { live.add(metas.get(i)); }
+		assertTrue(arx.compact(live) > 0);
+		assertTrue(arx.segmentCount() < segs);
+		for (int i=0; i<400; i+=4) { assertEquals(value(i), pull(arx, metas.get(i))); }
+
+		// objects that were moved can be moved again
+		List<Object> live2 = new ArrayList<Object>();
+		for (int i=0; i<400; i+=8) { live2.add(metas.get(i)); }
+		for (int i=0; i<50; ++i) { live2.add(push(arx, value(1000 + i))); }
+		arx.compact(live2);
+		arx.close();
+
+		// the table of moved objects survives a restart
+		arx = new PackFileArchiver<String>(rw, rw, ".pack", dir, 0x400);
+		for (int i=0; i<400; i+=8) { assertEquals(value(i), pull(arx, metas.get(i))); }
+		for (int i=0; i<50; ++i) { assertEquals(value(1000 + i), pull(arx, live2.get(50 + i))); }
+
+		// new objects don't reuse the locations of deleted ones
+		List<Object> fresh = new ArrayList<Object>();
+		for (int i=0; i<200; ++i) { fresh.add(push(arx, value(2000 + i))); }
+		for (int i=0; i<200; ++i) { assertEquals(value(2000 + i), pull(arx, fresh.get(i))); }
+		for (int i=0; i<400; i+=8) { assertEquals(value(i), pull(arx, metas.get(i))); }
+		arx.close();
+	}
+
+	public void testGroupCommit() throws Exception {
+		PackFileArchiver<String> arx = new PackFileArchiver<String>(rw, rw, ".pack", dir, 0x10000);
+		arx.setCommitWindow(1000);
+
+		// async pushes complete together, once their batch is synced
+		final int n = 100;
+		final CountDownLatch done = new CountDownLatch(n);
+		final List<TaskAbortException> errors = new ArrayList<TaskAbortException>();
+		List<PushTask<String>> tasks = new ArrayList<PushTask<String>>();
+		for (int i=0; i<n; ++i) {
+			PushTask<String> t = new PushTask<String>(value(i));
+			tasks.add(t);
+			arx.pushAsync(t, new SimpleProgress(), new SafeClosure<X2<PushTask<String>, TaskAbortException>>() {
+				/*@Override**/ public void invoke(X2<PushTask<String>, TaskAbortException> res) {
+					if (res._1 != null) { synchronized (errors) { errors.add(res._1); } }
+					done.countDown();
+				}
+			});
+		}
+		assertEquals(n, done.getCount());
+		assertEquals(0, arx.getCommits());
+		// a blocking push syncs the open batch straight away
+		Object meta = push(arx, "root");
+		done.await();
+		assertTrue(errors.isEmpty());
+		assertEquals(1, arx.getCommits());
+		// the new segment's directory was synced with it
+		assertTrue(arx.created.isEmpty());
+		assertEquals("root", pull(arx, meta));
+		for (int i=0; i<n; ++i) { assertEquals(value(i), pull(arx, tasks.get(i).meta)); }
+
+		// so does the end of an iterable push
+		List<PushTask<String>> group = new ArrayList<PushTask<String>>();
+		for (int i=0; i<n; ++i) { group.add(new PushTask<String>(value(n + i))); }
+		arx.push(group);
+		assertEquals(2, arx.getCommits());
+		for (int i=0; i<n; ++i) { assertEquals(value(n + i), pull(arx, group.get(i).meta)); }
+		arx.close();
+	}
+
+}
@@ -16,6 +16,7 @@ import java.util.List;
 import java.util.Iterator;
 import java.util.HashSet;
 import java.util.HashMap;
+import java.util.Random;
 
 /**
 ** PRIORITY actually write some tests for this...
@@ -24,6 +25,8 @@ import java.util.HashMap;
 */
 public class PackerTest extends TestCase {
 
+	final public boolean benchmark = Boolean.getBoolean("benchmark");
+
 	final static public int NODE_MAX = 64;
 
 	final public static Packer<String, HashSet> srl = new Packer<String, HashSet>(
@@ -78,7 +81,131 @@ public class PackerTest extends TestCase {
 
 	}
 
-	// TODO write some more tests for this...
+	/**
+	** Child serialiser that keeps pushed bins in memory, so that they can be
+	** pulled again.
+	*/
+	protected static class MemoryBins implements IterableSerialiser<Map<String, Integer>> {
+
+		final Map<Object, Map<String, Integer>> store = new HashMap<Object, Map<String, Integer>>();
+
+		public void pull(Iterable<PullTask<Map<String, Integer>>> tasks) {
+			for (PullTask<Map<String, Integer>> t: tasks) { pull(t); }
+		}
+
+		public void push(Iterable<PushTask<Map<String, Integer>>> tasks) {
+			for (PushTask<Map<String, Integer>> t: tasks) { push(t); }
+		}
+
+		public void pull(PullTask<Map<String, Integer>> t) {
+			t.data = new HashMap<String, Integer>(store.get(t.meta));
+		}
+
+		public void push(PushTask<Map<String, Integer>> t) {
+			store.put(t.meta, new HashMap<String, Integer>(t.data));
+		}
+
+	}
+
+	/**
+	** Elements are Integers, which weigh their own value.
+	*/
+	final public static Packer.Scale<Integer> intscale = new Packer.Scale<Integer>() {
+		@Override public int weigh(Integer elem) {
+			return elem;
+		}
+	};
+
+	/**
+	** Packs {@code n} new elements, then re-packs them (unloaded) together
+	** with {@code n/8} more.
+	**
+	** @return The metadata of every element, after each push
+	*/
+	protected static Map<String, Object> packTwice(Packer<String, Integer> packer, int n, int[] weights, Random rand,
+	  Map<String, Integer> values, long[] times) throws TaskAbortException {
+		Map<String, Object> metas = new HashMap<String, Object>();
+		for (int round=0; round<2; ++round) {
+			Map<String, PushTask<Integer>> tasks = new HashMap<String, PushTask<Integer>>();
+			for (Map.Entry<String, Object> en: metas.entrySet()) {
+				tasks.put(en.getKey(), new PushTask<Integer>(null, en.getValue()));
+			}
+			for (int i=(round == 0)? n: n>>3; i>0; --i) {
+				String key = Generators.rndKey();
+				int v = 1 + rand.nextInt(weights[rand.nextInt(weights.length)]);
+				values.put(key, v);
+				tasks.put(key, new PushTask<Integer>(v, null));
+			}
+
+			long t0 = System.nanoTime();
+			packer.push(tasks, null);
+			if (times != null) { times[round] += System.nanoTime() - t0; }
+
+			// tasks for bins that didn't need to be re-pushed are discarded
+			for (Map.Entry<String, PushTask<Integer>> en: tasks.entrySet()) {
+				assertTrue(en.getValue().data == null);
+				metas.put(en.getKey(), en.getValue().meta);
+			}
+		}
+		return metas;
+	}
+
+	public void testRepack() throws TaskAbortException {
+		for (int agg=1; agg<=3; ++agg) {
+			MemoryBins mem = new MemoryBins();
+			Packer<String, Integer> packer = new Packer<String, Integer>(mem, intscale, NODE_MAX);
+			packer.setAggression(agg);
+			Map<String, Integer> values = new HashMap<String, Integer>();
+			Map<String, Object> metas = packTwice(packer, 0x400, new int[]{NODE_MAX}, Generators.rand, values, null);
+			assertTrue(metas.size() == values.size());
+
+			// every element is in the bin its metadata points to, and nowhere else
+			Map<Object, Map<String, Integer>> bins = new HashMap<Object, Map<String, Integer>>();
+			for (Map.Entry<String, Object> en: metas.entrySet()) {
+				Object id = intscale.readMetaID(en.getValue());
+				Map<String, Integer> bin = mem.store.get(id);
+				assertEquals(values.get(en.getKey()), bin.get(en.getKey()));
+				assertTrue(intscale.readMetaWeight(en.getValue()) == values.get(en.getKey()));
+				bins.put(id, bin);
+			}
+			// redistribution can push bins a little over NODE_MAX, when evening
+			// them out against the merged "tiny" bin
+			int total = 0, under = 0;
+			for (Map<String, Integer> bin: bins.values()) {
+				int weight = 0;
+				for (int v: bin.values()) { weight += v; }
+				if (weight < NODE_MAX>>1) { ++under; }
+				assertTrue(weight <= NODE_MAX + (NODE_MAX>>1));
+				total += bin.size();
+			}
+			assertTrue(total == values.size());
+			assertTrue(under <= 1);
+		}
+	}
+
+	/**
+	** Times packing and re-packing a few thousand elements at each level of
+	** aggression, with the same capacity as the bins of the ''term table''
+	** of an index. Run this with {@code -Dbenchmark=true}.
+	*/
+	public void testBenchmark() throws TaskAbortException {
+		if (!benchmark) { return; }
+		final int cap = (0x400<<1) - 1, n = 0x2000, rounds = 4;
+		for (int agg=0; agg<=3; ++agg) {
+			long[] times = new long[2];
+			for (int i=0; i<=rounds; ++i) {
+				if (i == 1) { times[0] = times[1] = 0; } // first round is warm-up
+				MemoryBins mem = new MemoryBins();
+				Packer<String, Integer> packer = new Packer<String, Integer>(mem, intscale, cap);
+				packer.setAggression(agg);
+				Random rand = new Random(i);
+				// most root nodes are small; a few are nearly full
+				packTwice(packer, n, new int[]{cap>>6, cap>>6, cap>>6, cap>>4, cap>>4, cap>>2, cap}, rand, new HashMap<String, Integer>(), times);
+			}
+			System.out.println("aggression " + agg + ": pack " + n + " elements " + times[0]/rounds/1000 + " us, re-pack " + times[1]/rounds/1000 + " us");
+		}
+	}
+
 
 
 }
@@ -0,0 +1,280 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package plugins.Library.search;
+
+import junit.framework.TestCase;
+import static plugins.Library.util.Generators.rand;
+
+import plugins.Library.index.TermEntry;
+import plugins.Library.index.TermIndexEntry;
+import plugins.Library.index.TermPageEntry;
+import plugins.Library.index.TermTermEntry;
+import plugins.Library.search.ResultSet.ResultOperation;
+import plugins.Library.util.exec.AbstractExecution;
+import plugins.Library.util.exec.Execution;
+import plugins.Library.util.exec.ProgressParts;
+import plugins.Library.util.exec.TaskAbortException;
+
+import freenet.keys.FreenetURI;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Checks the operations of ResultSet, which merge {@link PostingList}s,
+ * against the way they were done before: by looking up every entry of the
+ * first subresult in each of the others.
+ */
+public class ResultSetTest extends TestCase {
+
+	final static String SUBJECT = "result";
+
+	/** Targets of the entries; random subresults pick from these, so they overlap */
+	final FreenetURI[] pages = new FreenetURI[0x40];
+	final FreenetURI[] indexes = new FreenetURI[0x08];
+	final String[] terms = new String[0x08];
+
+	public ResultSetTest() {
+		for (int i=0; i<pages.length; ++i) { pages[i] = FreenetURI.generateRandomCHK(rand); }
+		for (int i=0; i<indexes.length; ++i) { indexes[i] = FreenetURI.generateRandomCHK(rand); }
+		for (int i=0; i<terms.length; ++i) { terms[i] = "term" + i; }
+	}
+
+	public void testIntersection() throws TaskAbortException {
+		for (int r=0; r<0x40; ++r) {
+			Set<TermEntry>[] subresults = randomSubresults(2 + rand.nextInt(3), false);
+			assertEquals(oldIntersect(subresults), new HashSet<TermEntry>(run(ResultOperation.INTERSECTION, subresults)));
+		}
+	}
+
+	public void testIntersectionEmptyAndDisjoint() throws TaskAbortException {
+		Set<TermEntry> all = randomSubresult("all", 1, false);
+		Set<TermEntry> empty = Collections.emptySet();
+		assertTrue(run(ResultOperation.INTERSECTION, all, empty).isEmpty());
+		assertTrue(run(ResultOperation.INTERSECTION, empty, all).isEmpty());
+		assertTrue(run(ResultOperation.INTERSECTION, all, empty, all).isEmpty());
+
+		Set<TermEntry> even = new HashSet<TermEntry>(), odd = new HashSet<TermEntry>();
+		for (int i=0; i<pages.length; ++i) {
+			((i % 2 == 0)? even: odd).add(new TermPageEntry("x", 0.5f, pages[i], null));
+		}
+		assertTrue(run(ResultOperation.INTERSECTION, even, odd).isEmpty());
+		assertTrue(run(ResultOperation.INTERSECTION, odd, all, even).isEmpty());
+
+		// the same targets with different subjects all match
+		Set<TermEntry> other = randomSubresult("other", 1, false);
+		ResultSet res = run(ResultOperation.INTERSECTION, all, other);
+		assertEquals(all.size(), res.size());
+		for (TermEntry en: res) { assertEquals(SUBJECT, en.subj); }
+	}
+
+	public void testRemove() throws TaskAbortException {
+		for (int r=0; r<0x40; ++r) {
+			Set<TermEntry>[] subresults = randomSubresults(2, false);
+			assertEquals(oldExclude(subresults[0], subresults[1]), new HashSet<TermEntry>(run(ResultOperation.REMOVE, subresults)));
+		}
+
+		Set<TermEntry> all = randomSubresult("all", 1, false);
+		Set<TermEntry> empty = Collections.emptySet();
+		assertEquals(all, new HashSet<TermEntry>(run(ResultOperation.REMOVE, all, empty)));
+		assertTrue(run(ResultOperation.REMOVE, empty, all).isEmpty());
+		assertTrue(run(ResultOperation.REMOVE, all, randomSubresult("other", 1, false)).isEmpty());
+	}
+
+	public void testPhrase() throws TaskAbortException {
+		for (int r=0; r<0x40; ++r) {
+			Set<TermEntry>[] subresults = randomSubresults(2 + rand.nextInt(3), true);
+			// treat some words as stop words, but never the first
+			for (int i=1; i<subresults.length; ++i) {
+				if (rand.nextInt(4) == 0) { subresults[i] = null; }
+			}
+			Set<TermEntry> expected = oldPhrase(subresults);
+			ResultSet res = run(ResultOperation.PHRASE, subresults);
+			assertEquals(expected, new HashSet<TermEntry>(res));
+			assertEquals(positionsOf(expected), positionsOf(res));
+		}
+	}
+
+	public void testPhrasePositions() throws TaskAbortException {
+		FreenetURI a = pages[0], b = pages[1], c = pages[2];
+		Set<TermEntry> free = new HashSet<TermEntry>(Collections.<TermEntry>singleton(new TermPageEntry("free", 0.5f, a, null, positions(1, 10))));
+		free.add(new TermPageEntry("free", 0.5f, b, null, positions(5)));
+		free.add(new TermPageEntry("free", 0.5f, c, null));
+		Set<TermEntry> net = new HashSet<TermEntry>(Collections.<TermEntry>singleton(new TermPageEntry("net", 0.5f, a, null, positions(2, 20))));
+		net.add(new TermPageEntry("net", 0.5f, b, null, positions(7)));
+		net.add(new TermPageEntry("net", 0.5f, c, null, positions(1)));
+		Set<TermEntry> plugin = Collections.<TermEntry>singleton(new TermPageEntry("plugin", 0.5f, a, null, positions(3, 12)));
+
+		// b has both words, but not next to each other; c has no positions
+		assertEquals(Collections.singletonMap(a, positions(1).keySet()), positionsOf(run(ResultOperation.PHRASE, free, net)));
+		assertEquals(Collections.singletonMap(a, positions(1).keySet()), positionsOf(run(ResultOperation.PHRASE, free, net, plugin)));
+		// a stop word matches any word, so "free * plugin" also matches at 10
+		assertEquals(Collections.singletonMap(a, positions(1, 10).keySet()), positionsOf(run(ResultOperation.PHRASE, free, null, plugin)));
+		assertTrue(run(ResultOperation.PHRASE, net, free).isEmpty());
+		assertTrue(run(ResultOperation.PHRASE, free, Collections.<TermEntry>emptySet()).isEmpty());
+	}
+
+	/************************************************************************
+	 * How ResultSet used to do each operation
+	 */
+
+	protected static TermEntry getIgnoreSubject(TermEntry entry, Collection<TermEntry> collection) {
+		for (TermEntry termEntry : collection) {
+			if (entry.equalsTarget(termEntry))
+				return termEntry;
+		}
+		return null;
+	}
+
+	protected static Set<TermEntry> oldIntersect(Set<TermEntry>... collections) {
+		Set<TermEntry> result = new HashSet<TermEntry>();
+		for (TermEntry termEntry : collections[0]) {
+			float combinedrelevance = termEntry.rel;
+			int i;
+			for (i = 1; i < collections.length; i++) {
+				TermEntry termEntry2 = getIgnoreSubject(termEntry, collections[i]);
+				if (termEntry2 == null)
+					break;
+				combinedrelevance += termEntry2.rel;
+			}
+			if (i == collections.length)
+				result.add(convertEntry(termEntry, combinedrelevance / collections.length));
+		}
+		return result;
+	}
+
+	protected static Set<TermEntry> oldExclude(Set<TermEntry> add, Set<TermEntry> subtract) {
+		Set<TermEntry> result = new HashSet<TermEntry>();
+		for (TermEntry termEntry : add) {
+			if (getIgnoreSubject(termEntry, subtract) == null)
+				result.add(termEntry);
+		}
+		return result;
+	}
+
+	protected static Set<TermEntry> oldPhrase(Set<TermEntry>... collections) {
+		Set<TermEntry> result = new HashSet<TermEntry>();
+		for (TermEntry termEntry : collections[0]) {
+			if (!(termEntry instanceof TermPageEntry))
+				continue;
+			TermPageEntry termPageEntry = (TermPageEntry)termEntry;
+			if (!termPageEntry.hasPositions())
+				continue;
+			Map<Integer, String> positions = new HashMap<Integer, String>(termPageEntry.positionsMap());
+			for (int i = 1; positions != null && i < collections.length && positions.size() > 0; i++) {
+				if (collections[i] == null)
+					continue;
+				TermPageEntry termPageEntry1 = (TermPageEntry)getIgnoreSubject(termPageEntry, collections[i]);
+				if (termPageEntry1 == null || !termPageEntry1.hasPositions()) {
+					positions = null;
+				} else {
+					for (Iterator<Integer> it = positions.keySet().iterator(); it.hasNext();) {
+						if (!termPageEntry1.hasPosition(it.next() + i))
+							it.remove();
+					}
+				}
+			}
+			if (positions != null && positions.size() > 0)
+				result.add(new TermPageEntry(SUBJECT, termPageEntry.rel, termPageEntry.page, termPageEntry.title, positions));
+		}
+		return result;
+	}
+
+	protected static TermEntry convertEntry(TermEntry termEntry, float rel) {
+		if (termEntry instanceof TermTermEntry)
+			return new TermTermEntry(SUBJECT, rel, ((TermTermEntry)termEntry).term);
+		if (termEntry instanceof TermPageEntry)
+			return new TermPageEntry(SUBJECT, rel, ((TermPageEntry)termEntry).page, ((TermPageEntry)termEntry).title, ((TermPageEntry)termEntry).positionsMap());
+		return new TermIndexEntry(SUBJECT, rel, ((TermIndexEntry)termEntry).index);
+	}
+
+	/************************************************************************
+	 * Helpers
+	 */
+
+	protected static ResultSet run(ResultOperation op, Set<TermEntry>... subresults) throws TaskAbortException {
+		List<Execution<Set<TermEntry>>> subRequests = new ArrayList<Execution<Set<TermEntry>>>();
+		for (Set<TermEntry> subresult : subresults)
+			subRequests.add((subresult == null)? null: done(subresult));
+		ResultSet result = new ResultSet(SUBJECT, op, subRequests, false);
+		result.run();
+		return result;
+	}
+
+	/**
+	 * An Execution which has already finished with the given result
+	 */
+	protected static Execution<Set<TermEntry>> done(final Set<TermEntry> result) {
+		return new AbstractExecution<Set<TermEntry>>("subrequest") {
+			{ setResult(result); }
+
+			@Override public String getStatus() {
+				return "Done";
+			}
+
+			@Override public ProgressParts getParts() {
+				return ProgressParts.normalise(1, 1, 1, ProgressParts.TOTAL_FINALIZED);
+			}
+		};
+	}
+
+	protected Set<TermEntry>[] randomSubresults(int n, boolean positions) {
+		Set<TermEntry>[] subresults = new Set[n];
+		for (int i=0; i<n; ++i) {
+			// vary the density, so that the smallest list is not always the first
+			subresults[i] = randomSubresult("word" + i, 0.2f + 0.7f * rand.nextFloat(), positions);
+		}
+		return subresults;
+	}
+
+	/**
+	 * A subresult with about the given fraction of the targets, with at most
+	 * one entry for each target. If {@code positions} is set, the pages have
+	 * random positions within a short range, so that phrases are likely to be
+	 * found.
+	 */
+	protected Set<TermEntry> randomSubresult(String subj, float density, boolean positions) {
+		Set<TermEntry> subresult = new HashSet<TermEntry>();
+		for (FreenetURI page : pages) {
+			if (rand.nextFloat() >= density) { continue; }
+			Map<Integer, String> pos = null;
+			if (positions && rand.nextInt(8) != 0) {
+				pos = new HashMap<Integer, String>();
+				for (int j=rand.nextInt(4); j>=0; --j) { pos.put(rand.nextInt(8), null); }
+			}
+			subresult.add(new TermPageEntry(subj, rand.nextFloat(), page, null, pos));
+		}
+		if (positions) { return subresult; }
+		for (FreenetURI index : indexes) {
+			if (rand.nextFloat() < density) { subresult.add(new TermIndexEntry(subj, rand.nextFloat(), index)); }
+		}
+		for (String term : terms) {
+			if (rand.nextFloat() < density) { subresult.add(new TermTermEntry(subj, rand.nextFloat(), term)); }
+		}
+		return subresult;
+	}
+
+	protected static Map<Integer, String> positions(int... pos) {
+		Map<Integer, String> map = new HashMap<Integer, String>();
+		for (int p : pos) { map.put(p, null); }
+		return map;
+	}
+
+	protected static Map<FreenetURI, Set<Integer>> positionsOf(Collection<TermEntry> entries) {
+		Map<FreenetURI, Set<Integer>> map = new HashMap<FreenetURI, Set<Integer>>();
+		for (TermEntry en : entries) {
+			TermPageEntry page = (TermPageEntry)en;
+			map.put(page.page, new HashSet<Integer>(page.positionsMap().keySet()));
+		}
+		return map;
+	}
+
+}
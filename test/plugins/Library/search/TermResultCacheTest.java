@@ -0,0 +1,163 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package plugins.Library.search;
+
+import junit.framework.TestCase;
+import static plugins.Library.util.Generators.rand;
+
+import plugins.Library.index.TermEntry;
+import plugins.Library.index.TermPageEntry;
+import plugins.Library.index.TermTermEntry;
+import plugins.Library.util.exec.Execution;
+import plugins.Library.util.exec.TaskAbortException;
+
+import freenet.keys.FreenetURI;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+public class TermResultCacheTest extends TestCase {
+
+	final static String INDEX = "USK@abc,def,AQACAAE/index/";
+
+	public void testKey() {
+		TermResultCache.Key key = new TermResultCache.Key(INDEX, 3, "term");
+		assertEquals(key, new TermResultCache.Key(INDEX, 3, "term"));
+		assertEquals(key.hashCode(), new TermResultCache.Key(INDEX, 3, "term").hashCode());
+		assertFalse(key.equals(new TermResultCache.Key(INDEX, 4, "term")));
+		assertFalse(key.equals(new TermResultCache.Key(INDEX, 3, "other")));
+		assertFalse(key.equals(new TermResultCache.Key(INDEX + "x", 3, "term")));
+		try {
+			new TermResultCache.Key(null, 3, "term");
+			fail();
+		} catch (NullPointerException e) {
+			// expected
+		}
+	}
+
+	public void testHitsAndMisses() throws TaskAbortException {
+		TermResultCache cache = new TermResultCache(TermResultCache.DEFAULT_MAX_BYTES);
+		TermResultCache.Key key = new TermResultCache.Key(INDEX, 3, "term");
+		assertNull(cache.get(key));
+
+		Set<TermEntry> result = makeResult("term", 10);
+		cache.put(key, result);
+		Execution<Set<TermEntry>> exec = cache.get(key);
+		assertTrue(exec.isDone());
+		assertSame(result, exec.getResult());
+		assertNull(cache.get(new TermResultCache.Key(INDEX, 4, "term")));
+
+		assertEquals(1, cache.getHits());
+		assertEquals(2, cache.getMisses());
+		assertEquals(1, cache.size());
+		assertEquals(TermResultCache.weigh(result), cache.getBytes());
+	}
+
+	public void testReplace() {
+		TermResultCache cache = new TermResultCache(TermResultCache.DEFAULT_MAX_BYTES);
+		TermResultCache.Key key = new TermResultCache.Key(INDEX, 3, "term");
+		cache.put(key, makeResult("term", 10));
+		Set<TermEntry> result = makeResult("term", 3);
+		cache.put(key, result);
+		assertEquals(1, cache.size());
+		assertEquals(TermResultCache.weigh(result), cache.getBytes());
+	}
+
+	public void testWeigh() {
+		assertEquals(0, TermResultCache.weigh(Collections.<TermEntry>emptySet()));
+		long plain = TermResultCache.weigh(Collections.<TermEntry>singleton(new TermTermEntry("term", 0.5f, "other")));
+		assertTrue(plain > 0);
+
+		// titles and positions add to the weight
+		FreenetURI page = FreenetURI.generateRandomCHK(rand);
+		Map<Integer, String> pos = new HashMap<Integer, String>();
+		for (int i=0; i<10; ++i) { pos.put(i, null); }
+		long titled = TermResultCache.weigh(Collections.<TermEntry>singleton(new TermPageEntry("term", 0.5f, page, "a title", null)));
+		long positioned = TermResultCache.weigh(Collections.<TermEntry>singleton(new TermPageEntry("term", 0.5f, page, "a title", pos)));
+		assertTrue(titled > plain);
+		assertTrue(positioned > titled);
+	}
+
+	public void testEviction() {
+		long weight = TermResultCache.weigh(makeResult("t", 10));
+		TermResultCache cache = new TermResultCache(weight * 3);
+		TermResultCache.Key[] keys = new TermResultCache.Key[4];
+		for (int i=0; i<keys.length; ++i) { keys[i] = new TermResultCache.Key(INDEX, 3, "t" + i); }
+
+		cache.put(keys[0], makeResult("t0", 10));
+		cache.put(keys[1], makeResult("t1", 10));
+		cache.put(keys[2], makeResult("t2", 10));
+		assertEquals(3, cache.size());
+		assertEquals(0, cache.getEvictions());
+
+		// keys[0] is now the most recently used, so keys[1] goes first
+		assertNotNull(cache.get(keys[0]));
+		assertNull(cache.get(keys[3]));
+		cache.put(keys[3], makeResult("t3", 10));
+		assertEquals(3, cache.size());
+		assertEquals(1, cache.getEvictions());
+		assertNull(cache.get(keys[1]));
+		assertNotNull(cache.get(keys[0]));
+		assertNotNull(cache.get(keys[2]));
+		assertNotNull(cache.get(keys[3]));
+		assertTrue(cache.getBytes() <= cache.getMaxBytes());
+
+		// shrinking the budget drops results straight away
+		cache.setMaxBytes(weight);
+		assertEquals(1, cache.size());
+		assertEquals(3, cache.getEvictions());
+		assertNotNull(cache.get(keys[3]));
+
+		// a result bigger than the whole budget is not kept
+		cache.put(keys[1], makeResult("t1", 20));
+		assertNull(cache.get(keys[1]));
+		assertTrue(cache.getBytes() <= cache.getMaxBytes());
+
+		cache.clear();
+		assertEquals(0, cache.size());
+		assertEquals(0, cache.getBytes());
+	}
+
+	public void testAdmission() {
+		long weight = TermResultCache.weigh(makeResult("t", 10));
+		TermResultCache cache = new TermResultCache(weight * 2);
+		TermResultCache.Key[] keys = new TermResultCache.Key[4];
+		for (int i=0; i<keys.length; ++i) { keys[i] = new TermResultCache.Key(INDEX, 3, "t" + i); }
+
+		// two terms that are looked up often
+		for (int i=0; i<2; ++i) {
+			for (int j=0; j<3; ++j) { cache.get(keys[i]); }
+			cache.put(keys[i], makeResult("t" + i, 10));
+		}
+
+		// a term looked up once doesn't push either of them out
+		assertNull(cache.get(keys[2]));
+		cache.put(keys[2], makeResult("t2", 10));
+		assertEquals(1, cache.getRejections());
+		assertEquals(0, cache.getEvictions());
+		assertNull(cache.get(keys[2]));
+		assertNotNull(cache.get(keys[0]));
+		assertNotNull(cache.get(keys[1]));
+
+		// one looked up more often than the least recently used does
+		for (int j=0; j<5; ++j) { cache.get(keys[3]); }
+		cache.put(keys[3], makeResult("t3", 10));
+		assertEquals(1, cache.getEvictions());
+		assertNull(cache.get(keys[0]));
+		assertNotNull(cache.get(keys[1]));
+		assertNotNull(cache.get(keys[3]));
+	}
+
+	protected static Set<TermEntry> makeResult(String term, int n) {
+		Set<TermEntry> result = new HashSet<TermEntry>();
+		for (int i=0; i<n; ++i) {
+			result.add(new TermPageEntry(term, 0.5f, FreenetURI.generateRandomCHK(rand), null));
+		}
+		return result;
+	}
+
+}
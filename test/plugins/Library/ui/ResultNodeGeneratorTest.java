@@ -0,0 +1,99 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package plugins.Library.ui;
+
+import junit.framework.TestCase;
+import static plugins.Library.util.Generators.rand;
+
+import plugins.Library.index.TermEntry;
+import plugins.Library.index.TermPageEntry;
+
+import freenet.keys.FreenetURI;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * Checks that a page of results kept by the bounded heap is the same as the
+ * same slice of the fully sorted results.
+ */
+public class ResultNodeGeneratorTest extends TestCase {
+
+	final static int SIZE = 300;
+
+	final Set<TermEntry> result = new HashSet<TermEntry>();
+
+	public ResultNodeGeneratorTest() {
+		for (int i=0; i<SIZE; ++i) {
+			// only a few distinct relevances, so that ties must be broken the same way too
+			result.add(new TermPageEntry("test", rand.nextInt(8) / 8f, FreenetURI.generateRandomCHK(rand), "title-" + i + "-end", null));
+		}
+	}
+
+	public void testTopK() {
+		List<String> all = shown(0, 0);
+		assertEquals(SIZE, all.size());
+		int[][] pages = {{0, 10}, {0, 100}, {95, 10}, {290, 20}, {0, SIZE}, {0, 1000}, {SIZE-1, 1}};
+		for (int[] page : pages) {
+			int offset = page[0], limit = page[1];
+			assertEquals(all.subList(offset, Math.min(offset + limit, SIZE)), shown(offset, limit));
+		}
+	}
+
+	public void testFoundCount() {
+		// every page reports the total, not just the results it shows
+		assertTrue(generate(0, 10).contains("Found " + SIZE + " results"));
+		assertTrue(generate(SIZE - 5, 10).contains("Found " + SIZE + " results"));
+		assertTrue(generate(0, 0).contains("Found " + SIZE + " results"));
+	}
+
+	public void testOffsetPastEnd() {
+		assertTrue(shown(SIZE, 10).isEmpty());
+		assertTrue(shown(SIZE + 1000, 10).isEmpty());
+		// offset + limit must not overflow
+		assertTrue(shown(Integer.MAX_VALUE - 1, 100).isEmpty());
+		assertEquals(shown(0, 0).subList(10, SIZE), shown(10, Integer.MAX_VALUE));
+	}
+
+	public void testNegative() {
+		try {
+			new ResultNodeGenerator(result, false, true, false, -1, 10, null);
+			fail();
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+		try {
+			new ResultNodeGenerator(result, false, true, false, 0, -1, null);
+			fail();
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+
+	protected String generate(int offset, int limit) {
+		ResultNodeGenerator gen = new ResultNodeGenerator(result, false, true, false, offset, limit, null);
+		gen.run();
+		assertTrue(gen.isDone());
+		return gen.getPageEntryNode().generate();
+	}
+
+	/**
+	 * Titles of the results shown, in the order they are shown
+	 */
+	protected List<String> shown(int offset, int limit) {
+		String html = generate(offset, limit);
+		SortedMap<Integer, String> order = new TreeMap<Integer, String>();
+		for (TermEntry en : result) {
+			String title = ((TermPageEntry)en).title;
+			int i = html.indexOf(title);
+			if (i >= 0) { order.put(i, title); }
+		}
+		return new ArrayList<String>(order.values());
+	}
+
+}
@@ -84,6 +84,44 @@ public class BTreeMapTest extends SortedMapTestSkeleton {
 
 	}
 
+	public void testRank() {
+
+		for (int node_min: new int[]{2, 5, 0x40}) {
+			BTreeMap<Integer, Integer> testmap = new BTreeMap<Integer, Integer>(node_min);
+			SortedSet<Integer> backset = new TreeSet<Integer>();
+			for (int i=0; i<sz0; ++i) {
+				int k = Generators.rand.nextInt(sz0<<1)<<1;
+				testmap.put(k, k);
+				backset.add(k);
+			}
+
+			int i = 0;
+			for (Integer k: backset) {
+				assertTrue(testmap.getEntry(i).getKey().equals(k));
+				assertTrue(testmap.rank(k) == i);
+				// odd keys are never in the map
+				assertTrue(testmap.rank(k+1) == i+1);
+				assertTrue(testmap.rank(k-1) == i);
+				++i;
+			}
+
+			// ranks stay right after removals
+			for (Iterator<Integer> it = backset.iterator(); it.hasNext();) {
+				Integer k = it.next();
+				if (Generators.rand.nextBoolean()) { continue; }
+				testmap.remove(k);
+				it.remove();
+			}
+			i = 0;
+			for (Integer k: backset) {
+				assertTrue(testmap.rank(k) == i);
+				assertTrue(testmap.getEntry(i).getKey().equals(k));
+				++i;
+			}
+		}
+
+	}
+
 	public void testUtilityMethods() {
 		// TODO HIGH more of these, like node.subEntries etc
 		SortedSet<String> ts = (new BTreeMap<String, String>(0x40)).subSet(new TreeSet<String>(
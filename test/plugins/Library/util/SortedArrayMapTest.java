@@ -0,0 +1,109 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package plugins.Library.util;
+
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.Iterator;
+
+public class SortedArrayMapTest extends SortedMapTestSkeleton {
+
+	@Override protected SortedMap<String, Integer> makeTestMap() {
+		return new SortedArrayMap<String, Integer>();
+	}
+
+	public void testAgainstTreeMap() {
+		SortedMap<Integer, Integer> map = new SortedArrayMap<Integer, Integer>();
+		SortedMap<Integer, Integer> ref = new TreeMap<Integer, Integer>();
+		for (int i=0; i<0x4000; ++i) {
+			Integer k = Generators.rand.nextInt(0x400), v = Generators.rand.nextInt();
+			if (Generators.rand.nextInt(3) == 0) {
+				assertEquals(ref.remove(k), map.remove(k));
+			} else {
+				assertEquals(ref.put(k, v), map.put(k, v));
+			}
+		}
+		assertEquals(ref, map);
+		assertEquals(ref.firstKey(), map.firstKey());
+		assertEquals(ref.lastKey(), map.lastKey());
+		Iterator<Integer> it = ref.keySet().iterator();
+		for (Integer k: map.keySet()) {
+			assertEquals(it.next(), k);
+		}
+	}
+
+	public void testSubMaps() {
+		SortedMap<Integer, Integer> map = new SortedArrayMap<Integer, Integer>();
+		for (int i=0; i<16; ++i) { map.put(i, -i); }
+
+		SortedMap<Integer, Integer> head = map.headMap(8);
+		SortedMap<Integer, Integer> tail = map.tailMap(8);
+		SortedMap<Integer, Integer> sub = map.subMap(4, 12);
+
+		assertTrue(head.firstKey() == 0);
+		assertTrue(head.lastKey() == 7);
+		assertTrue(head.size() == 8);
+
+		assertTrue(tail.firstKey() == 8);
+		assertTrue(tail.lastKey() == 15);
+		assertTrue(tail.size() == 8);
+
+		assertTrue(sub.firstKey() == 4);
+		assertTrue(sub.lastKey() == 11);
+		assertTrue(sub.size() == 8);
+		assertTrue(sub.get(2) == null);
+		assertTrue(sub.get(5) == -5);
+
+		try {
+			sub.put(12, 0);
+			fail("submap accepted a key out of range");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+
+		// views are live
+		map.remove(4);
+		assertTrue(sub.firstKey() == 5);
+		assertTrue(head.size() == 7);
+		sub.put(4, 4);
+		assertTrue(map.get(4) == 4);
+
+		sub.headMap(8).clear();
+		assertTrue(map.size() == 12);
+		assertTrue(head.lastKey() == 3);
+		assertTrue(sub.firstKey() == 8);
+		assertTrue(map.subMap(8, 8).isEmpty());
+	}
+
+	public void testSplice() {
+		SortedArrayMap<Integer, Integer> map = new SortedArrayMap<Integer, Integer>();
+		SortedArrayMap<Integer, Integer> lo = new SortedArrayMap<Integer, Integer>();
+		SortedArrayMap<Integer, Integer> hi = new SortedArrayMap<Integer, Integer>();
+		for (int i=0; i<0x100; ++i) {
+			lo.put(i, i);
+			map.put(i + 0x100, i + 0x100);
+			hi.put(i + 0x200, i + 0x200);
+		}
+		map.putAll(hi.headMap(0x280));
+		map.putAll(lo);
+		map.putAll(hi);
+		assertTrue(map.size() == 0x300);
+		int i = 0;
+		for (Map.Entry<Integer, Integer> en: map.entrySet()) {
+			assertTrue(en.getKey() == i);
+			assertTrue(en.getValue() == i);
+			++i;
+		}
+
+		// overlapping maps are merged as normal
+		SortedMap<Integer, Integer> odd = new TreeMap<Integer, Integer>();
+		for (int j=1; j<0x400; j+=2) { odd.put(j, -j); }
+		map.putAll(odd);
+		assertTrue(map.size() == 0x380);
+		assertTrue(map.get(0x2ff) == -0x2ff);
+		assertTrue(map.get(0x2fe) == 0x2fe);
+	}
+
+}
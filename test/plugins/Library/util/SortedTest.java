@@ -106,6 +106,20 @@ public class SortedTest extends TestCase {
 		}
 	}
 
+	public void testSelectIndexed() {
+		Inclusivity[] incs = Inclusivity.values();
+		for (int size=2; size<0x100; size+=7) {
+			SortedSet<Integer> subj = new TreeSet<Integer>();
+			BTreeSet<Integer> bsubj = new BTreeSet<Integer>(2);
+			for (int i=0; i<size; ++i) { subj.add(i); bsubj.add(i); }
+			for (int num=2; num<=size; num+=3) {
+				for (Inclusivity inc: incs) {
+					assertEquals(Sorted.select(subj, num, inc), Sorted.select(bsubj, num, inc));
+				}
+			}
+		}
+	}
+
 	public void verifySplit(SortedSet<String> subj, SortedSet<String> sep) {
 		// FIXME LOW this method assumes comparator is consistent with equals() and
 		// there are no null entries
@@ -0,0 +1,36 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package plugins.Library.util;
+
+import junit.framework.TestCase;
+
+public class WeakInternerTest extends TestCase {
+
+	public void testIntern() {
+		WeakInterner<String> pool = new WeakInterner<String>();
+		String a = new String("lol");
+		String b = new String("lol");
+		assertTrue(pool.get(a) == null);
+		assertTrue(pool.intern(a) == a);
+		assertTrue(pool.intern(b) == a);
+		assertTrue(pool.get(b) == a);
+		String c = new String("wut");
+		assertTrue(pool.intern(c) == c);
+		assertTrue(pool.size() == 2);
+	}
+
+	public void testStripes() {
+		WeakInterner<String> pool = new WeakInterner<String>();
+		String[] canon = new String[0x400];
+		for (int i=0; i<canon.length; ++i) {
+			canon[i] = new String("key" + i);
+			assertTrue(pool.intern(canon[i]) == canon[i]);
+		}
+		for (int i=0; i<canon.length; ++i) {
+			assertTrue(pool.intern(new String("key" + i)) == canon[i]);
+		}
+		assertTrue(pool.size() == canon.length);
+	}
+
+}